@@ -42,6 +42,11 @@ public class JavaFieldNameIndex extends StringStubIndexExtension<PsiField> {
     return JavaStubIndexKeys.FIELDS;
   }
 
+  @Override
+  public int getShardCount() {
+    return 4;
+  }
+
   @Override
   public Collection<PsiField> get(final String s, final Project project, @NotNull final GlobalSearchScope scope) {
     return super.get(s, project, new JavaSourceFilterScope(scope));
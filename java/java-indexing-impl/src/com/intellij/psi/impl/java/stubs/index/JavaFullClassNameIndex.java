@@ -43,6 +43,11 @@ public class JavaFullClassNameIndex extends IntStubIndexExtension<PsiClass> {
     return JavaStubIndexKeys.CLASS_FQN;
   }
 
+  @Override
+  public int getShardCount() {
+    return 4;
+  }
+
   @Override
   public Collection<PsiClass> get(final Integer integer, final Project project, @NotNull final GlobalSearchScope scope) {
     return StubIndex.getInstance().safeGet(getKey(), integer, project, new JavaSourceFilterScope(scope), PsiClass.class);
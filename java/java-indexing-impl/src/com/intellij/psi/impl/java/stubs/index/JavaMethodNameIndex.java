@@ -42,6 +42,11 @@ public class JavaMethodNameIndex extends StringStubIndexExtension<PsiMethod> {
     return JavaStubIndexKeys.METHODS;
   }
 
+  @Override
+  public int getShardCount() {
+    return 4;
+  }
+
   @Override
   public Collection<PsiMethod> get(final String s, final Project project, @NotNull final GlobalSearchScope scope) {
     return super.get(s, project, new JavaSourceFilterScope(scope));
@@ -42,6 +42,11 @@ public class JavaShortClassNameIndex extends StringStubIndexExtension<PsiClass>
     return JavaStubIndexKeys.CLASS_SHORT_NAMES;
   }
 
+  @Override
+  public int getShardCount() {
+    return 4;
+  }
+
   @Override
   public Collection<PsiClass> get(final String s, final Project project, @NotNull final GlobalSearchScope scope) {
     return super.get(s, project, new JavaSourceFilterScope(scope));
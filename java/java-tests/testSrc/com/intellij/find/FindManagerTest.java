@@ -25,8 +25,11 @@ import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.application.ex.PathManagerEx;
 import com.intellij.openapi.fileTypes.FileTypes;
 import com.intellij.openapi.projectRoots.Sdk;
+import com.intellij.openapi.util.ThrowableComputable;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.PersistentFSConstants;
+import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.*;
 import com.intellij.psi.search.GlobalSearchScope;
@@ -42,12 +45,17 @@ import com.intellij.util.ArrayUtil;
 import com.intellij.util.CommonProcessors;
 import com.intellij.util.ThrowableRunnable;
 import com.intellij.util.WaitFor;
+import com.intellij.util.indexing.FileBasedIndex;
+import com.intellij.util.indexing.FileBasedIndexImpl;
+import gnu.trove.THashSet;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 /*
  * @author: MYakovlev
@@ -393,6 +401,168 @@ public class FindManagerTest extends DaemonAnalyzerTestCase {
     assertSize(2, findUsages(findModel));
   }
 
+  public void testFindInManyFilesInParallel() throws Exception {
+    TempDirTestFixture fixture = new LightTempDirTestFixtureImpl();
+    fixture.setUp();
+
+    try {
+      Set<String> expected = new THashSet<String>();
+      for (int i = 0; i < 300; i++) {
+        String name = "p" + i + ".txt";
+        StringBuilder text = new StringBuilder();
+        for (int j = 0; j < i % 7; j++) {
+          expected.add(name + ":" + (text.length() + 4));
+          text.append("foo ParallelTarget bar\n");
+        }
+        fixture.createFile(name, text.toString());
+      }
+      PsiTestUtil.addSourceContentToRoots(myModule, fixture.getFile(""));
+
+      FindModel findModel = new FindModel();
+      findModel.setStringToFind("ParallelTarget");
+      findModel.setFromCursor(false);
+      findModel.setGlobal(true);
+      findModel.setMultipleFiles(true);
+      findModel.setCustomScope(GlobalSearchScope.moduleScope(myModule));
+
+      Set<String> found = new THashSet<String>();
+      for (UsageInfo usage : findUsages(findModel)) {
+        assertTrue(found.add(usage.getVirtualFile().getName() + ":" + usage.getNavigationOffset()));
+      }
+      assertEquals(expected, found);
+    }
+    finally {
+      fixture.tearDown();
+    }
+  }
+
+  // the scanner reads 1M chars at a time, the next window starts with 16K chars of the previous one as the context of the search
+  // and 16K chars which weren't searched since the occurrences starting there could continue in the next window
+  private static final int LARGE_FILE_STEP = 1024 * 1024 - 2 * 16 * 1024;
+  // the offset the search in the second window starts from
+  private static final int LARGE_FILE_SEARCHED = 1024 * 1024 - 16 * 1024;
+
+  public void testFindInLargeFileAcrossScanWindows() throws Exception {
+    TempDirTestFixture fixture = new LightTempDirTestFixtureImpl();
+    fixture.setUp();
+
+    try {
+      int[] offsets = {0, LARGE_FILE_STEP - 30, LARGE_FILE_STEP - 5, LARGE_FILE_STEP + 20, LARGE_FILE_SEARCHED - 3, LARGE_FILE_SEARCHED + 10,
+        2 * LARGE_FILE_STEP + 5, LARGE_FILE_STEP + LARGE_FILE_SEARCHED - 3, 6 * LARGE_FILE_STEP - 2};
+      StringBuilder text = createLargeText(6 * LARGE_FILE_STEP + 100);
+      for (int offset : offsets) {
+        text.replace(offset, offset + "LargeTarget".length(), "LargeTarget");
+      }
+      fixture.createFile("large.txt", text.toString());
+      PsiTestUtil.addSourceContentToRoots(myModule, fixture.getFile(""));
+
+      List<Integer> expected = new ArrayList<Integer>();
+      for (int offset : offsets) {
+        expected.add(offset);
+      }
+      assertEquals(expected, findOffsets(createLargeFileFindModel("LargeTarget")));
+    }
+    finally {
+      fixture.tearDown();
+    }
+  }
+
+  public void testFilesTooLargeForIndexingAreTracked() throws Exception {
+    TempDirTestFixture fixture = new LightTempDirTestFixtureImpl();
+    fixture.setUp();
+    int maxSize = PersistentFSConstants.getMaxIntellisenseFileSize();
+    PersistentFSConstants.setMaxIntellisenseFileSize(1000);
+
+    try {
+      final VirtualFile small = fixture.createFile("small.txt", StringUtil.repeatSymbol('a', 100));
+      final VirtualFile large = fixture.createFile("large.txt", StringUtil.repeatSymbol('a', 2000));
+      PsiTestUtil.addSourceContentToRoots(myModule, fixture.getFile(""));
+
+      // they aren't found by the indices, so they are always searched
+      FileBasedIndexImpl index = (FileBasedIndexImpl)FileBasedIndex.getInstance();
+      assertTrue(index.getFilesTooLargeForIndexing().contains(large));
+      assertFalse(index.getFilesTooLargeForIndexing().contains(small));
+
+      ApplicationManager.getApplication().runWriteAction(new ThrowableComputable<Object, IOException>() {
+        @Override
+        public Object compute() throws IOException {
+          VfsUtil.saveText(small, StringUtil.repeatSymbol('a', 2000));
+          large.delete(this);
+          return null;
+        }
+      });
+      assertTrue(index.getFilesTooLargeForIndexing().contains(small));
+      assertFalse(index.getFilesTooLargeForIndexing().contains(large));
+    }
+    finally {
+      PersistentFSConstants.setMaxIntellisenseFileSize(maxSize);
+      fixture.tearDown();
+    }
+  }
+
+  public void testFindInLargeFileWithContextBeforeScanWindow() throws Exception {
+    TempDirTestFixture fixture = new LightTempDirTestFixtureImpl();
+    fixture.setUp();
+
+    try {
+      StringBuilder text = createLargeText(3 * LARGE_FILE_STEP);
+      // the occurrences start right where the search in the second and the third windows starts, so the chars before them are the context
+      text.replace(LARGE_FILE_SEARCHED - 1, LARGE_FILE_SEARCHED + "LargeTarget ".length(), "xLargeTarget ");
+      text.replace(LARGE_FILE_STEP + LARGE_FILE_SEARCHED - 1, LARGE_FILE_STEP + LARGE_FILE_SEARCHED + "LargeTarget ".length(), "#LargeTarget ");
+      fixture.createFile("large.txt", text.toString());
+      PsiTestUtil.addSourceContentToRoots(myModule, fixture.getFile(""));
+
+      FindModel findModel = createLargeFileFindModel("LargeTarget");
+      assertOrderedEquals(findOffsets(findModel), LARGE_FILE_SEARCHED, LARGE_FILE_STEP + LARGE_FILE_SEARCHED);
+
+      findModel.setWholeWordsOnly(true);
+      assertOrderedEquals(findOffsets(findModel), LARGE_FILE_STEP + LARGE_FILE_SEARCHED);
+
+      findModel = createLargeFileFindModel("(?<=#)LargeTarget");
+      findModel.setRegularExpressions(true);
+      assertOrderedEquals(findOffsets(findModel), LARGE_FILE_STEP + LARGE_FILE_SEARCHED);
+
+      findModel = createLargeFileFindModel("\\bLargeTarget");
+      findModel.setRegularExpressions(true);
+      assertOrderedEquals(findOffsets(findModel), LARGE_FILE_STEP + LARGE_FILE_SEARCHED);
+
+      findModel = createLargeFileFindModel("\\Aaaa");
+      findModel.setRegularExpressions(true);
+      assertOrderedEquals(findOffsets(findModel), 0);
+    }
+    finally {
+      fixture.tearDown();
+    }
+  }
+
+  private static StringBuilder createLargeText(int length) {
+    StringBuilder text = new StringBuilder(length);
+    String line = StringUtil.repeatSymbol('a', 63) + "\n";
+    while (text.length() < length) {
+      text.append(line);
+    }
+    return text;
+  }
+
+  private FindModel createLargeFileFindModel(String stringToFind) {
+    FindModel findModel = new FindModel();
+    findModel.setStringToFind(stringToFind);
+    findModel.setFromCursor(false);
+    findModel.setGlobal(true);
+    findModel.setMultipleFiles(true);
+    findModel.setCustomScope(GlobalSearchScope.moduleScope(myModule));
+    return findModel;
+  }
+
+  private List<Integer> findOffsets(FindModel findModel) {
+    List<Integer> offsets = new ArrayList<Integer>();
+    for (UsageInfo usage : findUsages(findModel)) {
+      offsets.add(usage.getNavigationOffset());
+    }
+    Collections.sort(offsets);
+    return offsets;
+  }
+
   public void testLocalScopeSearchPerformance() throws Throwable {
     final int fileCount = 3000;
     final int lineCount = 500;
@@ -47,6 +47,8 @@ public class ClassloaderUtil {
   @NonNls static final String FILE_CACHE = "fileCache";
   @NonNls static final String URL_CACHE = "urlCache";// See http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=4167874
   @NonNls public static final String PROPERTY_IGNORE_CLASSPATH = "ignore.classpath";
+  @NonNls private static final String PROPERTY_CLASSPATH_INDEX = "idea.classpath.index";
+  @NonNls private static final String CLASSPATH_INDEX_FILE = "classpath.index";
 
   @SuppressWarnings({"HardCodedStringLiteral"})
   private static final String ERROR = "Error";
@@ -113,6 +115,11 @@ public class ClassloaderUtil {
 
     filterClassPath(classpathElements);
 
+    // lets the class loaders reuse the jar entries collected by the previous run
+    if (System.getProperty(PROPERTY_CLASSPATH_INDEX) == null) {
+      System.setProperty(PROPERTY_CLASSPATH_INDEX, PathManager.getSystemPath() + File.separator + CLASSPATH_INDEX_FILE);
+    }
+
     UrlClassLoader newClassLoader = null;
     try {
       newClassLoader = new UrlClassLoader(classpathElements, null, true, true);
@@ -19,8 +19,11 @@ package com.intellij.ide.caches;
 import com.intellij.openapi.util.UserDataHolderBase;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.util.ArrayUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
 
 /**
  * @author max
@@ -31,6 +34,8 @@ public class FileContent extends UserDataHolderBase {
   private long myCachedLength = -1;
   private long myCachedTimeStamp = -1;
   private Boolean myCachedWritable;
+  private volatile CharSequence myDecodedText;
+  private volatile Charset myCharset;
 
   public FileContent(VirtualFile virtualFile) {
     myVirtualFile = virtualFile;
@@ -56,6 +61,24 @@ public class FileContent extends UserDataHolderBase {
     myCachedLength = 0;
   }
 
+  public void setDecodedText(@NotNull CharSequence text, @Nullable Charset charset) {
+    myCharset = charset;
+    myDecodedText = text;
+  }
+
+  /**
+   * @return text of the file if it was decoded ahead of processing, e.g. by the decoding stage of the content queue
+   */
+  @Nullable
+  public CharSequence getDecodedText() {
+    return myDecodedText;
+  }
+
+  @Nullable
+  public Charset getCharset() {
+    return myCharset;
+  }
+
   public VirtualFile getVirtualFile() {
     return myVirtualFile;
   }
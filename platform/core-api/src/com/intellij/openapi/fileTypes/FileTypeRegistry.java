@@ -85,4 +85,16 @@ public abstract class FileTypeRegistry {
     @Nullable
     FileType detect(@NotNull VirtualFile file, @NotNull ByteSequence firstBytes, @Nullable CharSequence firstCharsIfText);
   }
+
+  /**
+   * File type detector which needs a limited number of first bytes. The detection reads as many bytes as the detectors need,
+   * so it reads less only if all of them implement this interface.
+   */
+  public interface FileTypeDetectorWithPrefixLength extends FileTypeDetector {
+    /**
+     * Only this many first bytes of the file are read for the detection, so it should be as small as the detector allows
+     * @return the number of first bytes the detector needs to identify a file type
+     */
+    int getDesiredContentPrefixLength();
+  }
 }
@@ -22,6 +22,8 @@ import com.intellij.util.containers.RecentStringInterner;
 import com.intellij.util.io.AbstractStringEnumerator;
 import com.intellij.util.io.DataInputOutputUtil;
 import com.intellij.util.io.IOUtil;
+import com.intellij.util.io.UnsyncByteArrayInputStream;
+import gnu.trove.TIntArrayList;
 import gnu.trove.TIntObjectHashMap;
 import gnu.trove.TObjectIntHashMap;
 import org.jetbrains.annotations.NotNull;
@@ -63,7 +65,16 @@ public class StubSerializationHelper {
     return myNameStorage.enumerate(serializer.getExternalId());
   }
 
-  private void doSerialize(final Stub rootStub, final StubOutputStream stream) throws IOException {
+  private void doSerialize(final Stub rootStub,
+                           final StubOutputStream stream,
+                           final BufferExposingByteArrayOutputStream out,
+                           final int parentIndex,
+                           final TIntArrayList offsets,
+                           final TIntArrayList parents) throws IOException {
+    final int index = offsets.size();
+    offsets.add(out.size());
+    parents.add(parentIndex);
+
     final ObjectStubSerializer serializer = StubSerializationUtil.getSerializer(rootStub);
 
     DataInputOutputUtil.writeINT(stream, getClassId(serializer));
@@ -73,22 +84,41 @@ public class StubSerializationHelper {
     final int childrenSize = children.size();
     DataInputOutputUtil.writeINT(stream, childrenSize);
     for (int i = 0; i < childrenSize; ++i) {
-      doSerialize(children.get(i), stream);
+      doSerialize(children.get(i), stream, out, index, offsets, parents);
     }
   }
 
   public void serialize(Stub rootStub, OutputStream stream) throws IOException {
+    serialize(rootStub, stream, false);
+  }
+
+  /**
+   * The serialized tree consists of the file local string table, the stub table and the stubs themselves in the depth-first order.
+   * The stub table keeps the offset and the parent of every stub, so a single stub can be deserialized without the rest of the tree,
+   * see {@link #deserializeStub}. It is written only if {@code withStubTable} is true, the root stub can be read alone anyway.
+   */
+  public void serialize(Stub rootStub, OutputStream stream, boolean withStubTable) throws IOException {
     BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream();
     FileLocalStringEnumerator storage = new FileLocalStringEnumerator();
     StubOutputStream stubOutputStream = new StubOutputStream(out, storage);
+    TIntArrayList offsets = new TIntArrayList();
+    TIntArrayList parents = new TIntArrayList();
 
-    doSerialize(rootStub, stubOutputStream);
+    doSerialize(rootStub, stubOutputStream, out, -1, offsets, parents);
     DataOutputStream resultStream = new DataOutputStream(stream);
     DataInputOutputUtil.writeINT(resultStream, storage.myStrings.size());
     byte[] buffer = IOUtil.allocReadWriteUTFBuffer();
     for(String s:storage.myStrings) {
       IOUtil.writeUTFFast(buffer, resultStream, s);
     }
+
+    // offsets grow and parents precede their children, so deltas are small positive numbers
+    final int stubCount = withStubTable ? offsets.size() : 0;
+    DataInputOutputUtil.writeINT(resultStream, stubCount);
+    for (int i = 0; i < stubCount; i++) {
+      DataInputOutputUtil.writeINT(resultStream, i == 0 ? offsets.get(0) : offsets.get(i) - offsets.get(i - 1));
+      DataInputOutputUtil.writeINT(resultStream, i == 0 ? 0 : i - parents.get(i));
+    }
     resultStream.write(out.getInternalBuffer(), 0, out.size());
   }
 
@@ -103,6 +133,83 @@ public class StubSerializationHelper {
   public Stub deserialize(InputStream stream) throws IOException, SerializerNotFoundException {
     FileLocalStringEnumerator storage = new FileLocalStringEnumerator();
     StubInputStream inputStream = new StubInputStream(stream, storage);
+    readStrings(inputStream, storage);
+
+    final int stubCount = DataInputOutputUtil.readINT(inputStream);
+    for (int i = 0; i < stubCount; i++) {
+      DataInputOutputUtil.skipINT(inputStream);
+      DataInputOutputUtil.skipINT(inputStream);
+    }
+    return deserialize(inputStream, null);
+  }
+
+  /**
+   * Deserializes only the stub with the given index in the depth-first order of the tree and its ancestors, so that the stub has
+   * its parent chain. Other stubs of the tree are not created: ancestors have no other children, the stub itself has
+   * its whole subtree if {@code withChildren} is true and no children otherwise. If the tree was serialized without the stub table,
+   * only the root stub is read this way, any other stub is taken from the whole deserialized tree.
+   *
+   * @return the stub or null if there is no stub with such an index
+   */
+  @Nullable
+  public Stub deserializeStub(@NotNull byte[] bytes, int length, int stubIndex, boolean withChildren)
+    throws IOException, SerializerNotFoundException {
+    FileLocalStringEnumerator storage = new FileLocalStringEnumerator();
+    UnsyncByteArrayInputStream byteStream = new UnsyncByteArrayInputStream(bytes, 0, length);
+    StubInputStream inputStream = new StubInputStream(byteStream, storage);
+    readStrings(inputStream, storage);
+
+    final int stubCount = DataInputOutputUtil.readINT(inputStream);
+    if (stubCount == 0) {
+      if (stubIndex == 0) {
+        return withChildren ? deserialize(inputStream, null) : deserializeStubData(inputStream, null);
+      }
+      return stubIndex > 0 ? findStub(deserialize(inputStream, null), new int[]{stubIndex}) : null;
+    }
+    if (stubIndex < 0 || stubIndex >= stubCount) return null;
+    final int[] offsets = new int[stubIndex + 1];
+    final int[] parents = new int[stubIndex + 1];
+    for (int i = 0; i <= stubIndex; i++) {
+      offsets[i] = (i == 0 ? 0 : offsets[i - 1]) + DataInputOutputUtil.readINT(inputStream);
+      parents[i] = i - DataInputOutputUtil.readINT(inputStream);
+    }
+    for (int i = stubIndex + 1; i < stubCount; i++) {
+      DataInputOutputUtil.skipINT(inputStream);
+      DataInputOutputUtil.skipINT(inputStream);
+    }
+    final int dataStart = length - byteStream.available();
+
+    TIntArrayList ancestors = new TIntArrayList();
+    for (int i = stubIndex; i > 0; i = parents[i]) {
+      ancestors.add(parents[i]);
+    }
+
+    Stub parent = null;
+    for (int i = ancestors.size() - 1; i >= 0; i--) {
+      parent = deserializeStubData(stubStreamAt(bytes, dataStart + offsets[ancestors.get(i)], length, storage), parent);
+    }
+    final StubInputStream stubStream = stubStreamAt(bytes, dataStart + offsets[stubIndex], length, storage);
+    return withChildren ? deserialize(stubStream, parent) : deserializeStubData(stubStream, parent);
+  }
+
+  /**
+   * @param index the remaining number of stubs to pass in the depth-first order
+   */
+  @Nullable
+  private static Stub findStub(@NotNull Stub stub, @NotNull int[] index) {
+    if (index[0]-- == 0) return stub;
+    for (Stub child : stub.getChildrenStubs()) {
+      Stub found = findStub(child, index);
+      if (found != null) return found;
+    }
+    return null;
+  }
+
+  private static StubInputStream stubStreamAt(byte[] bytes, int offset, int length, FileLocalStringEnumerator storage) {
+    return new StubInputStream(new UnsyncByteArrayInputStream(bytes, offset, length), storage);
+  }
+
+  private void readStrings(StubInputStream inputStream, FileLocalStringEnumerator storage) throws IOException {
     final int size = DataInputOutputUtil.readINT(inputStream);
     byte[] buffer = IOUtil.allocReadWriteUTFBuffer();
 
@@ -113,7 +220,6 @@ public class StubSerializationHelper {
       storage.myEnumerates.put(s, i);
       ++i;
     }
-    return deserialize(inputStream, null);
   }
 
   String intern(String str) {
@@ -121,13 +227,7 @@ public class StubSerializationHelper {
   }
 
   private Stub deserialize(StubInputStream stream, @Nullable Stub parentStub) throws IOException, SerializerNotFoundException {
-    final int id = DataInputOutputUtil.readINT(stream);
-    final ObjectStubSerializer serializer = getClassById(id);
-    if (serializer == null) {
-      throw new SerializerNotFoundException("No serializer registered for stub: ID=" + id + "; parent stub class=" + (parentStub != null? parentStub.getClass().getName() : "null"));
-    }
-
-    Stub stub = serializer.deserialize(stream, parentStub);
+    Stub stub = deserializeStubData(stream, parentStub);
     int childCount = DataInputOutputUtil.readINT(stream);
     for (int i = 0; i < childCount; i++) {
       deserialize(stream, stub);
@@ -136,6 +236,16 @@ public class StubSerializationHelper {
   }
 
 
+  private Stub deserializeStubData(StubInputStream stream, @Nullable Stub parentStub) throws IOException, SerializerNotFoundException {
+    final int id = DataInputOutputUtil.readINT(stream);
+    final ObjectStubSerializer serializer = getClassById(id);
+    if (serializer == null) {
+      throw new SerializerNotFoundException("No serializer registered for stub: ID=" + id + "; parent stub class=" + (parentStub != null? parentStub.getClass().getName() : "null"));
+    }
+
+    return serializer.deserialize(stream, parentStub);
+  }
+
   private ObjectStubSerializer getClassById(int id) {
     return myIdToSerializer.get(id);
   }
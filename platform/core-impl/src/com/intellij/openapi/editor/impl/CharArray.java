@@ -67,6 +67,8 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   private volatile int myDeferredShift;
   private volatile boolean myDeferredChangeMode;
   private volatile boolean myHasDeferredChanges;
+  // not null when the text is stored in a rope instead of myArray, in this case myArray only caches the flattened text
+  private volatile ImmutableText myRope;
   // this lock is for mutual exclusion during read action access
   // (some fields are changed in read action too)
   private final Lock lock = new ReentrantLock();
@@ -75,7 +77,7 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   // The main idea is to hold all history of bulk processing iteration in order to be able to retrieve it from client and reproduce the
   // problem.
   
-  private final boolean myDebug = isDebug();
+  private final boolean myDebug;
 
   boolean isDebug() {
     return DEBUG_DEFERRED_PROCESSING || DocumentImpl.CHECK_DOCUMENT_CONSISTENCY;
@@ -104,6 +106,7 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     myDeferredChangesStorage = new TextChangesStorage();
     myArray = Arrays.copyOf(data, length);
     myCount = length;
+    myDebug = isDebug();
 
     if (myDebug) {
       myDebugArray = new CharArray(bufferSize, data, length) {
@@ -138,6 +141,19 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     assertConsistency();
   }
 
+  /**
+   * Creates char array which keeps its text in a rope, so that a single modification costs O(log(length)) instead of shifting
+   * the whole tail of the array. Intended for very large documents; deferred changes mode is not needed and is ignored then.
+   */
+  CharArray(final int bufferSize, @NotNull ImmutableText text) {
+    myBufferSize = bufferSize;
+    myDeferredChangesStorage = new TextChangesStorage();
+    myRope = text;
+    myCount = text.length();
+    myDebug = false;
+    assertConsistency();
+  }
+
   public void setBufferSize(int bufferSize) {
     assert bufferSize >= 0 : bufferSize;
     myBufferSize = bufferSize;
@@ -167,6 +183,13 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
 
   private void setText(@NotNull CharSequence chars) {
     assertConsistency();
+    if (myRope != null) {
+      setRope(ImmutableText.valueOf(chars));
+      myArray = null;
+      trimToSize();
+      assertConsistency();
+      return;
+    }
     myOriginalSequence = chars.toString();
     myArray = null;
     myStringRef = null;
@@ -184,6 +207,11 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   }
 
   private void assertConsistency() {
+    ImmutableText rope = myRope;
+    if (rope != null) {
+      assert myCount == rope.length();
+      return;
+    }
     if (isDeferredChangeMode()) {
       assert myOriginalSequence == null;
     }
@@ -256,7 +284,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   private void doReplace(int startOffset, int endOffset, @NotNull CharSequence newString) {
     prepareForModification();
 
-    if (isDeferredChangeMode()) {
+    if (myRope != null) {
+      modifyRope(myRope.replace(startOffset, endOffset, newString));
+    }
+    else if (isDeferredChangeMode()) {
       storeChange(new TextChangeImpl(newString, startOffset, endOffset));
       if (myDebug) {
         myDebugArray.doReplace(startOffset, endOffset, newString);
@@ -293,7 +324,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     }
     prepareForModification();
 
-    if (isDeferredChangeMode()) {
+    if (myRope != null) {
+      modifyRope(myRope.delete(startIndex, endIndex));
+    }
+    else if (isDeferredChangeMode()) {
       storeChange(new TextChangeImpl("", startIndex, endIndex));
       if (myDebug) {
         myDebugArray.doRemove(startIndex, endIndex);
@@ -321,7 +355,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   private void doInsert(@NotNull CharSequence s, final int startIndex) {
     prepareForModification();
 
-    if (isDeferredChangeMode()) {
+    if (myRope != null) {
+      modifyRope(myRope.insert(startIndex, s));
+    }
+    else if (isDeferredChangeMode()) {
       storeChange(new TextChangeImpl(s, startIndex));
       if (myDebug) {
         myDebugArray.doInsert(s, startIndex);
@@ -340,6 +377,21 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     }
   }
 
+  /**
+   * Only the leaves of the rope around the modified range are replaced, the flattened text is dropped
+   * and built again on the next request, since patching it would cost O(length) per modification.
+   */
+  private void modifyRope(@NotNull ImmutableText rope) {
+    myArray = null;
+    setRope(rope);
+  }
+
+  private void setRope(@NotNull ImmutableText rope) {
+    myRope = rope;
+    myCount = rope.length();
+    myStringRef = null;
+  }
+
   /**
    * Stores given change at collection of deferred changes (merging it with others if necessary) and updates current object
    * state ({@link #length() length} etc).
@@ -385,6 +437,15 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     return originalSequence == null ? this : originalSequence;
   }
 
+  /**
+   * @return text which is not affected by subsequent modifications. It's the rope itself in rope mode, so this is O(1) then.
+   */
+  @NotNull
+  public CharSequence getImmutableCharSequence() {
+    ImmutableText rope = myRope;
+    return rope == null ? toString() : rope;
+  }
+
   @NotNull
   public String toString() {
     assertConsistency();
@@ -393,6 +454,9 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
       if (myHasDeferredChanges) {
         str = substring(0, length()).toString();
       }
+      else if (myRope != null) {
+        str = myRope.toString();
+      }
       else {
         str = myOriginalSequence == null ? new String(myArray, myStart, myCount) : myOriginalSequence.toString();
       }
@@ -418,6 +482,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     if (i < 0 || i >= length()) {
       throw new IndexOutOfBoundsException("Wrong offset: " + i + "; count:" + length());
     }
+    ImmutableText rope = myRope;
+    if (rope != null) {
+      return rope.charAt(i);
+    }
     i += myStart;
     final char result;
     if (!myHasDeferredChanges) {
@@ -447,6 +515,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     assertReadAccess();
     assertConsistency();
     if (start == 0 && end == length()) return this;
+    ImmutableText rope = myRope;
+    if (rope != null) {
+      return rope.subSequence(start, end);
+    }
     if (myOriginalSequence != null) {
       return myOriginalSequence.subSequence(start, end);
     }
@@ -460,6 +532,22 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     assertReadAccess();
     assertConsistency();
     char[] array = myArray;
+    if (array == null && myRope != null) {
+      lock.lock();
+      try {
+        array = myArray;
+        if (array == null) {
+          ImmutableText rope = myRope;
+          array = new char[rope.length()];
+          rope.getChars(0, array.length, array, 0);
+          myArray = array;
+        }
+      }
+      finally {
+        lock.unlock();
+      }
+      return array;
+    }
     CharSequence originalSequence = myOriginalSequence;
     if (myHasDeferredChanges || originalSequence != null && array == null) {
       // slow track
@@ -483,6 +571,11 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   public void getChars(@NotNull final char[] dst, final int dstOffset) {
     assertReadAccess();
     assertConsistency();
+    ImmutableText rope = myRope;
+    if (rope != null) {
+      rope.getChars(0, rope.length(), dst, dstOffset);
+      return;
+    }
     flushDeferredChanged();
     if (myOriginalSequence == null) {
       System.arraycopy(myArray, myStart, dst, dstOffset, length());
@@ -516,7 +609,11 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   private CharSequence doSubString(int start, int end) {
     if (start == end) return "";
     final CharSequence result;
-    if (myOriginalSequence == null) {
+    ImmutableText rope = myRope;
+    if (rope != null) {
+      result = rope.subSequence(start, end);
+    }
+    else if (myOriginalSequence == null) {
       result = myDeferredChangesStorage.substring(myArray, start + myStart, end + myStart);
     }
     else {
@@ -600,7 +697,7 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
    * @param deferredChangeMode    flag that defines if <code>'defer changes'</code> mode should be used by the current object
    */
   public void setDeferredChangeMode(boolean deferredChangeMode) {
-    if (!DISABLE_DEFERRED_PROCESSING) {
+    if (!DISABLE_DEFERRED_PROCESSING && myRope == null) {
       if (deferredChangeMode) {
         if (myDebug) {
           myDebugArray.setText(myDebugTextOnBatchUpdateStart = toString());
@@ -669,7 +766,7 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   @NonNls
   @NotNull
   public String dumpState() {
-    return "deferred changes mode: " + isDeferredChangeMode()+", length: " + length()+" (data array length: " + myCount+
+    return "rope: " + (myRope != null) + ", deferred changes mode: " + isDeferredChangeMode()+", length: " + length()+" (data array length: " + myCount+
            ", deferred shift: " + myDeferredShift+"); view offsets: [" + myStart+"; "+myCount+"]; deferred changes: "+myDeferredChangesStorage;
   }
   
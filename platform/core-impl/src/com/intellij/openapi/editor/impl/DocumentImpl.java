@@ -35,6 +35,7 @@ import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.util.ArrayUtil;
 import com.intellij.util.LocalTimeCounter;
 import com.intellij.util.Processor;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.text.CharArrayUtil;
 import org.jetbrains.annotations.NonNls;
@@ -51,6 +52,11 @@ import java.util.List;
 public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.editor.impl.DocumentImpl");
   public static boolean CHECK_DOCUMENT_CONSISTENCY = ApplicationManager.getApplication().isUnitTestMode();
+  /**
+   * Documents of at least this length keep their text in a rope, so that typing doesn't copy the whole tail of the text.
+   * Disabled by default.
+   */
+  static final int ROPE_THRESHOLD = SystemProperties.getIntProperty("idea.document.rope.threshold", Integer.MAX_VALUE);
 
   private final List<DocumentListener> myDocumentListeners = ContainerUtil.createLockFreeCopyOnWriteList();
   private final RangeMarkerTree<RangeMarkerEx> myRangeMarkers = new RangeMarkerTree<RangeMarkerEx>(this);
@@ -85,8 +91,12 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
   }
 
   public DocumentImpl(@NotNull CharSequence chars, boolean forUseInNonAWTThread) {
+    this(chars, forUseInNonAWTThread, chars.length() >= ROPE_THRESHOLD);
+  }
+
+  DocumentImpl(@NotNull CharSequence chars, boolean forUseInNonAWTThread, boolean useRope) {
     assertValidSeparators(chars);
-    myText = new MyCharArray(CharArrayUtil.fromSequence(chars), chars.length());
+    myText = useRope ? new MyCharArray(ImmutableText.valueOf(chars)) : new MyCharArray(CharArrayUtil.fromSequence(chars), chars.length());
     myLineSet.documentCreated(this);
     setCyclicBufferSize(0);
     setModificationStamp(LocalTimeCounter.currentTime());
@@ -644,6 +654,15 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
     return myText.getCharArray();
   }
 
+  /**
+   * @return document text which stays the same after subsequent document modifications, e.g. to be processed in a background thread.
+   * Cheap for documents stored in a rope, see {@link #ROPE_THRESHOLD}.
+   */
+  @NotNull
+  public CharSequence getImmutableCharSequence() {
+    return myText.getImmutableCharSequence();
+  }
+
 
   @Override
   public void addDocumentListener(@NotNull DocumentListener listener) {
@@ -867,6 +886,10 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
       super(0, chars, length);
     }
 
+    private MyCharArray(@NotNull ImmutableText text) {
+      super(0, text);
+    }
+
     @Override
     @NotNull
     protected DocumentEvent beforeChangedUpdate(int offset,
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.util.ArrayUtil;
+import com.intellij.util.text.CharArrayUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Immutable rope: a balanced binary tree of small char blocks.
+ * <p/>
+ * Insertion and deletion produce a new instance sharing all untouched blocks with the original one, so both operations cost
+ * O(log(length)) regardless of the text size, and any instance may be handed to other threads as a snapshot of the text.
+ * The balancing scheme is the one used by Javolution's <code>Text</code>: nodes are rotated on concatenation
+ * whenever one side becomes more than twice as long as the other one.
+ */
+final class ImmutableText implements CharSequence {
+  /**
+   * Maximum length of a leaf block. Leaves are merged on concatenation as long as the result doesn't exceed this size.
+   */
+  private static final int BLOCK_SIZE = 1 << 9;
+
+  static final ImmutableText EMPTY = new ImmutableText(new LeafNode(ArrayUtil.EMPTY_CHAR_ARRAY));
+
+  private final Node myNode;
+
+  // the leaf which served the last charAt() call, sequential access hits it most of the time
+  private volatile InnerLeaf myLastLeaf;
+
+  private ImmutableText(@NotNull Node node) {
+    myNode = node;
+  }
+
+  @NotNull
+  static ImmutableText valueOf(@NotNull CharSequence text) {
+    if (text instanceof ImmutableText) return (ImmutableText)text;
+    if (text.length() == 0) return EMPTY;
+    return new ImmutableText(nodeOf(text, 0, text.length()));
+  }
+
+  @NotNull
+  private static Node nodeOf(@NotNull CharSequence text, int start, int end) {
+    int length = end - start;
+    if (length <= BLOCK_SIZE) {
+      char[] data = new char[length];
+      CharArrayUtil.getChars(text.subSequence(start, end), data, 0);
+      return new LeafNode(data);
+    }
+    // split on a block boundary, so that the whole tree consists of full leaves except, perhaps, the last one
+    int half = ((length + BLOCK_SIZE) >> 1) & -BLOCK_SIZE;
+    return new CompositeNode(nodeOf(text, start, start + half), nodeOf(text, start + half, end));
+  }
+
+  @NotNull
+  ImmutableText concat(@NotNull ImmutableText that) {
+    if (that.length() == 0) return this;
+    if (length() == 0) return that;
+    return new ImmutableText(concatNodes(myNode, that.myNode));
+  }
+
+  @NotNull
+  ImmutableText insert(int index, @NotNull CharSequence text) {
+    if (text.length() == 0) return this;
+    return subtext(0, index).concat(valueOf(text)).concat(subtext(index, length()));
+  }
+
+  @NotNull
+  ImmutableText delete(int start, int end) {
+    if (start == end) return this;
+    checkRange(start, end);
+    return subtext(0, start).concat(subtext(end, length()));
+  }
+
+  @NotNull
+  ImmutableText replace(int start, int end, @NotNull CharSequence text) {
+    checkRange(start, end);
+    return subtext(0, start).concat(valueOf(text)).concat(subtext(end, length()));
+  }
+
+  @NotNull
+  ImmutableText subtext(int start, int end) {
+    checkRange(start, end);
+    if (start == 0 && end == length()) return this;
+    if (start == end) return EMPTY;
+    return new ImmutableText(myNode.subNode(start, end));
+  }
+
+  @NotNull
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return subtext(start, end);
+  }
+
+  @Override
+  public int length() {
+    return myNode.length();
+  }
+
+  @Override
+  public char charAt(int index) {
+    InnerLeaf leaf = myLastLeaf;
+    if (leaf == null || index < leaf.offset || index >= leaf.offset + leaf.leafNode.length()) {
+      myLastLeaf = leaf = findLeaf(index);
+    }
+    return leaf.leafNode.data[index - leaf.offset];
+  }
+
+  @NotNull
+  private InnerLeaf findLeaf(int index) {
+    if (index < 0 || index >= length()) {
+      throw new IndexOutOfBoundsException("Wrong offset: " + index + "; count:" + length());
+    }
+    Node node = myNode;
+    int offset = 0;
+    while (node instanceof CompositeNode) {
+      CompositeNode composite = (CompositeNode)node;
+      int headLength = composite.head.length();
+      if (index - offset < headLength) {
+        node = composite.head;
+      }
+      else {
+        offset += headLength;
+        node = composite.tail;
+      }
+    }
+    return new InnerLeaf((LeafNode)node, offset);
+  }
+
+  void getChars(int start, int end, @NotNull char[] dest, int destPos) {
+    checkRange(start, end);
+    myNode.getChars(start, end, dest, destPos);
+  }
+
+  @NotNull
+  @Override
+  public String toString() {
+    int length = length();
+    char[] data = new char[length];
+    myNode.getChars(0, length, data, 0);
+    return new String(data);
+  }
+
+  private void checkRange(int start, int end) {
+    if (start < 0 || start > end || end > length()) {
+      throw new IndexOutOfBoundsException("Wrong range: " + start + "-" + end + "; count:" + length());
+    }
+  }
+
+  @NotNull
+  private static Node concatNodes(@NotNull Node node1, @NotNull Node node2) {
+    int length = node1.length() + node2.length();
+    if (length <= BLOCK_SIZE) {
+      char[] data = new char[length];
+      node1.getChars(0, node1.length(), data, 0);
+      node2.getChars(0, node2.length(), data, node1.length());
+      return new LeafNode(data);
+    }
+
+    Node head = node1;
+    Node tail = node2;
+    if ((head.length() << 1) < tail.length() && tail instanceof CompositeNode) {
+      // head too small, try to merge it with the leftmost part of tail
+      CompositeNode composite = (CompositeNode)tail;
+      if (composite.head.length() > composite.tail.length()) {
+        composite = composite.rightRotation();
+      }
+      head = concatNodes(head, composite.head);
+      tail = composite.tail;
+    }
+    else if ((tail.length() << 1) < head.length() && head instanceof CompositeNode) {
+      // tail too small, try to merge it with the rightmost part of head
+      CompositeNode composite = (CompositeNode)head;
+      if (composite.tail.length() > composite.head.length()) {
+        composite = composite.leftRotation();
+      }
+      tail = concatNodes(composite.tail, tail);
+      head = composite.head;
+    }
+    return new CompositeNode(head, tail);
+  }
+
+  private static class InnerLeaf {
+    final LeafNode leafNode;
+    final int offset;
+
+    private InnerLeaf(@NotNull LeafNode leafNode, int offset) {
+      this.leafNode = leafNode;
+      this.offset = offset;
+    }
+  }
+
+  private abstract static class Node {
+    abstract int length();
+
+    abstract void getChars(int start, int end, @NotNull char[] dest, int destPos);
+
+    @NotNull
+    abstract Node subNode(int start, int end);
+  }
+
+  private static class LeafNode extends Node {
+    private final char[] data;
+
+    private LeafNode(@NotNull char[] data) {
+      this.data = data;
+    }
+
+    @Override
+    int length() {
+      return data.length;
+    }
+
+    @Override
+    void getChars(int start, int end, @NotNull char[] dest, int destPos) {
+      System.arraycopy(data, start, dest, destPos, end - start);
+    }
+
+    @NotNull
+    @Override
+    Node subNode(int start, int end) {
+      if (start == 0 && end == data.length) return this;
+      return new LeafNode(Arrays.copyOfRange(data, start, end));
+    }
+  }
+
+  private static class CompositeNode extends Node {
+    private final int length;
+    private final Node head;
+    private final Node tail;
+
+    private CompositeNode(@NotNull Node head, @NotNull Node tail) {
+      length = head.length() + tail.length();
+      this.head = head;
+      this.tail = tail;
+    }
+
+    @Override
+    int length() {
+      return length;
+    }
+
+    @Override
+    void getChars(int start, int end, @NotNull char[] dest, int destPos) {
+      int headLength = head.length();
+      if (end <= headLength) {
+        head.getChars(start, end, dest, destPos);
+      }
+      else if (start >= headLength) {
+        tail.getChars(start - headLength, end - headLength, dest, destPos);
+      }
+      else {
+        head.getChars(start, headLength, dest, destPos);
+        tail.getChars(0, end - headLength, dest, destPos + headLength - start);
+      }
+    }
+
+    @NotNull
+    @Override
+    Node subNode(int start, int end) {
+      if (start == 0 && end == length) return this;
+      int headLength = head.length();
+      if (end <= headLength) return head.subNode(start, end);
+      if (start >= headLength) return tail.subNode(start - headLength, end - headLength);
+      return concatNodes(head.subNode(start, headLength), tail.subNode(0, end - headLength));
+    }
+
+    @NotNull
+    private CompositeNode rightRotation() {
+      // (A B) C -> A (B C)
+      if (!(head instanceof CompositeNode)) return this;
+      CompositeNode p = (CompositeNode)head;
+      return new CompositeNode(p.head, new CompositeNode(p.tail, tail));
+    }
+
+    @NotNull
+    private CompositeNode leftRotation() {
+      // A (B C) -> (A B) C
+      if (!(tail instanceof CompositeNode)) return this;
+      CompositeNode q = (CompositeNode)tail;
+      return new CompositeNode(new CompositeNode(head, q.head), q.tail);
+    }
+  }
+}
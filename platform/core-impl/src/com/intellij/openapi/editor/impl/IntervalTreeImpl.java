@@ -24,12 +24,16 @@ import com.intellij.util.Processor;
 import com.intellij.util.SmartList;
 import com.intellij.util.WalkingState;
 import com.intellij.util.concurrency.AtomicFieldUpdater;
+import gnu.trove.TIntArrayList;
 import gnu.trove.TLongHashSet;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -41,8 +45,15 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * User: cdr
  */
 public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBlackTree<T> implements IntervalTree<T> {
+  // when true, processOverlappingWith() outside the write lock holds the read lock only while it checks or builds the snapshot
+  // of the current tree version, and calls the processor without any lock
+  private static volatile boolean ourUseSnapshots = Boolean.getBoolean("idea.interval.tree.snapshots");
+
   private int keySize; // number of all intervals, counting all duplicates, some of them maybe gced
   protected final ReadWriteLock l = new ReentrantReadWriteLock();
+  private volatile Snapshot<T> mySnapshot; // immutable copy of intervals at some modCount, built on demand
+  private final Object mySnapshotLock = new Object();
+  private int myQueriedModCount = -1; // modCount at the last query which found the snapshot out of date, guarded by mySnapshotLock
 
   protected abstract int compareEqualStartIntervals(@NotNull IntervalNode<T> i1, @NotNull IntervalNode<T> i2);
   private final ReferenceQueue<T> myReferenceQueue = new ReferenceQueue<T>();
@@ -426,6 +437,12 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
 
   @Override
   public boolean processOverlappingWith(int start, int end, @NotNull Processor<? super T> processor) {
+    if (ourUseSnapshots && !((ReentrantReadWriteLock)l).isWriteLockedByCurrentThread()) {
+      Snapshot<T> snapshot = getSnapshot();
+      if (snapshot != null) {
+        return snapshot.processOverlappingWith(start, end, processor);
+      }
+    }
     try {
       l.readLock().lock();
       checkMax(true);
@@ -436,6 +453,119 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
     }
   }
 
+  /**
+   * Building a snapshot takes O(n) under the read lock, so while the tree keeps changing the queries don't rebuild it
+   * and go through the locked tree instead. The snapshot is rebuilt only when the tree stays the same since the previous query.
+   *
+   * @return snapshot of the current tree version or null if the query should use the tree
+   */
+  @Nullable
+  private Snapshot<T> getSnapshot() {
+    l.readLock().lock();
+    try {
+      Snapshot<T> snapshot = mySnapshot;
+      if (snapshot != null && snapshot.modCount == modCount) {
+        return snapshot;
+      }
+      mySnapshot = null;
+      synchronized (mySnapshotLock) {
+        if (myQueriedModCount != modCount) {
+          myQueriedModCount = modCount;
+          return null;
+        }
+      }
+      checkMax(true);
+      snapshot = new Snapshot<T>(this);
+      mySnapshot = snapshot;
+      return snapshot;
+    }
+    finally {
+      l.readLock().unlock();
+    }
+  }
+
+  @TestOnly
+  static void setUseSnapshots(boolean useSnapshots) {
+    ourUseSnapshots = useSnapshots;
+  }
+
+  /**
+   * Intervals of the tree in its iteration order, with offsets resolved at the moment of the snapshot.
+   * The keys are kept via the same getters as in the tree nodes, so the snapshot doesn't prevent weakly referenced keys from being gced.
+   * Overlap queries walk an implicit balanced tree over the arrays: the node of range [lo, hi) is at (lo + hi) / 2
+   * and {@link #maxEnd} keeps the max end offset in this range.
+   */
+  private static class Snapshot<T extends MutableInterval> {
+    private final int modCount;
+    private final int[] starts;
+    private final int[] ends;
+    private final int[] maxEnd;
+    private final Getter<T>[] keys;
+
+    @SuppressWarnings("unchecked")
+    private Snapshot(@NotNull IntervalTreeImpl<T> tree) {
+      modCount = tree.modCount;
+      List<Getter<T>> keyList = new ArrayList<Getter<T>>();
+      TIntArrayList startList = new TIntArrayList();
+      TIntArrayList endList = new TIntArrayList();
+      collect(tree.getRoot(), 0, keyList, startList, endList);
+
+      keys = keyList.toArray(new Getter[keyList.size()]);
+      starts = startList.toNativeArray();
+      ends = endList.toNativeArray();
+      maxEnd = new int[keys.length];
+      computeMaxEnd(0, keys.length);
+    }
+
+    private static <T extends MutableInterval> void collect(IntervalNode<T> root,
+                                                            int deltaUpToRootExclusive,
+                                                            @NotNull List<Getter<T>> keys,
+                                                            @NotNull TIntArrayList starts,
+                                                            @NotNull TIntArrayList ends) {
+      if (root == null) return;
+      int delta = deltaUpToRootExclusive + root.delta;
+      collect(root.getLeft(), delta, keys, starts, ends);
+      int start = root.intervalStart() + delta;
+      int end = root.intervalEnd() + delta;
+      for (Getter<T> key : root.intervals) {
+        keys.add(key);
+        starts.add(start);
+        ends.add(end);
+      }
+      collect(root.getRight(), delta, keys, starts, ends);
+    }
+
+    private int computeMaxEnd(int lo, int hi) {
+      if (lo >= hi) return Integer.MIN_VALUE;
+      int mid = (lo + hi) >>> 1;
+      int max = Math.max(ends[mid], Math.max(computeMaxEnd(lo, mid), computeMaxEnd(mid + 1, hi)));
+      maxEnd[mid] = max;
+      return max;
+    }
+
+    private boolean processOverlappingWith(int start, int end, @NotNull Processor<? super T> processor) {
+      return processOverlappingWith(0, keys.length, start, end, processor);
+    }
+
+    private boolean processOverlappingWith(int lo, int hi, int start, int end, @NotNull Processor<? super T> processor) {
+      if (lo >= hi) return true;
+      int mid = (lo + hi) >>> 1;
+      if (start > maxEnd[mid]) {
+        return true; // right of the rightmost interval in the range
+      }
+      if (!processOverlappingWith(lo, mid, start, end, processor)) return false;
+      if (end < starts[mid]) {
+        return true; // left of the middle, the rest of the range starts even later
+      }
+      if (ends[mid] >= start) {
+        T key = keys[mid].get();
+        // the tree may have changed since the snapshot was taken, so the key may be already removed from it
+        if (key != null && key.isValid() && !processor.process(key)) return false;
+      }
+      return processOverlappingWith(mid + 1, hi, start, end, processor);
+    }
+  }
+
   private boolean processOverlappingWith(IntervalNode<T> root,
                                          int start,
                                          int end,
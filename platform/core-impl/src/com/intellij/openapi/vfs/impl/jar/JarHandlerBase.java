@@ -47,7 +47,7 @@ public class JarHandlerBase {
   private static final long DEFAULT_TIMESTAMP = -1L;
 
   private final TimedReference<JarFile> myJarFile = new TimedReference<JarFile>(null);
-  private Reference<Map<String, EntryInfo>> myRelPathsToEntries = new SoftReference<Map<String, EntryInfo>>(null);
+  private volatile Reference<Map<String, EntryInfo>> myRelPathsToEntries = new SoftReference<Map<String, EntryInfo>>(null);
   private final Object lock = new Object();
 
   protected final String myBasePath;
@@ -56,11 +56,19 @@ public class JarHandlerBase {
     protected final boolean isDirectory;
     protected final String shortName;
     protected final EntryInfo parent;
+    protected final long length;
+    protected final long timestamp;
 
     public EntryInfo(@NotNull String shortName, final EntryInfo parent, final boolean directory) {
+      this(shortName, parent, directory, DEFAULT_LENGTH, DEFAULT_TIMESTAMP);
+    }
+
+    public EntryInfo(@NotNull String shortName, final EntryInfo parent, final boolean directory, long length, long timestamp) {
       this.shortName = shortName;
       this.parent = parent;
       isDirectory = directory;
+      this.length = length;
+      this.timestamp = timestamp;
     }
   }
 
@@ -77,29 +85,67 @@ public class JarHandlerBase {
 
   @NotNull
   protected Map<String, EntryInfo> initEntries() {
+    // the map is never modified once built, so there is no need to lock if it is still there
+    Reference<Map<String, EntryInfo>> reference = myRelPathsToEntries;
+    Map<String, EntryInfo> map = reference != null ? reference.get() : null;
+    if (map != null) return map;
+
     synchronized (lock) {
-      Map<String, EntryInfo> map = myRelPathsToEntries != null ? myRelPathsToEntries.get() : null;
+      map = myRelPathsToEntries != null ? myRelPathsToEntries.get() : null;
       if (map == null) {
-        final JarFile zip = getJar();
-
         map = new THashMap<String, EntryInfo>();
-        if (zip != null) {
-          map.put("", new EntryInfo("", null, true));
-          final Enumeration<? extends JarFile.JarEntry> entries = zip.entries();
-          while (entries.hasMoreElements()) {
-            JarFile.JarEntry entry = entries.nextElement();
-            final String name = entry.getName();
-            final boolean isDirectory = StringUtil.endsWithChar(name, '/');
-            getOrCreate(isDirectory ? name.substring(0, name.length() - 1) : name, isDirectory, map);
-          }
-
+        map.put("", new EntryInfo("", null, true));
+        if (collectEntries(map)) {
           myRelPathsToEntries = new SoftReference<Map<String, EntryInfo>>(map);
         }
+        else {
+          map.clear();
+        }
       }
       return map;
     }
   }
 
+  /**
+   * Fills the map with the entries of the jar using {@link #addEntry}. By default the entries are read from the central directory
+   * of the same file the content is read from, so the jar itself isn't opened until some content is requested.
+   *
+   * @return false if the jar can't be read
+   */
+  protected boolean collectEntries(@NotNull Map<String, EntryInfo> map) {
+    ZipCentralDirectory directory = getCentralDirectory(getMirrorFile(getOriginalFile()));
+    if (directory != null) {
+      addEntries(directory, map);
+      return true;
+    }
+
+    final JarFile zip = getJar();
+    if (zip == null) return false;
+
+    final Enumeration<? extends JarFile.JarEntry> entries = zip.entries();
+    while (entries.hasMoreElements()) {
+      JarFile.JarEntry entry = entries.nextElement();
+      addEntry(entry.getName(), entry.getSize(), entry.getTime(), map);
+    }
+    return true;
+  }
+
+  @Nullable
+  protected ZipCentralDirectory getCentralDirectory(@NotNull File file) {
+    return ZipCentralDirectory.read(file);
+  }
+
+  protected static void addEntries(@NotNull ZipCentralDirectory directory, @NotNull Map<String, EntryInfo> map) {
+    for (ZipCentralDirectory.Entry entry : directory.getEntries()) {
+      addEntry(entry.name, entry.length, entry.timestamp, map);
+    }
+  }
+
+  protected static void addEntry(@NotNull String name, long length, long timestamp, @NotNull Map<String, EntryInfo> map) {
+    final boolean isDirectory = StringUtil.endsWithChar(name, '/');
+    getOrCreate(isDirectory ? name.substring(0, name.length() - 1) : name, isDirectory, length, timestamp, map);
+  }
+
   public File getMirrorFile(@NotNull File originalFile) {
     return originalFile;
   }
@@ -209,15 +255,20 @@ public class JarHandlerBase {
   }
 
   @NotNull
-  private static EntryInfo getOrCreate(@NotNull String entryName, boolean isDirectory, @NotNull Map<String, EntryInfo> map) {
+  private static EntryInfo getOrCreate(@NotNull String entryName,
+                                       boolean isDirectory,
+                                       long length,
+                                       long timestamp,
+                                       @NotNull Map<String, EntryInfo> map) {
     EntryInfo info = map.get(entryName);
     if (info == null) {
       int idx = entryName.lastIndexOf('/');
       final String parentEntryName = idx > 0 ? entryName.substring(0, idx) : "";
       String shortName = idx > 0 ? entryName.substring(idx + 1) : entryName;
-      if (".".equals(shortName)) return getOrCreate(parentEntryName, true, map);
+      if (".".equals(shortName)) return getOrCreate(parentEntryName, true, DEFAULT_LENGTH, DEFAULT_TIMESTAMP, map);
 
-      info = new EntryInfo(shortName, getOrCreate(parentEntryName, true, map), isDirectory);
+      EntryInfo parent = getOrCreate(parentEntryName, true, DEFAULT_LENGTH, DEFAULT_TIMESTAMP, map);
+      info = new EntryInfo(shortName, parent, isDirectory, length, timestamp);
       map.put(entryName, info);
     }
 
@@ -226,25 +277,20 @@ public class JarHandlerBase {
 
   @NotNull
   public String[] list(@NotNull final VirtualFile file) {
-    synchronized (lock) {
-      EntryInfo parentEntry = getEntryInfo(file);
+    EntryInfo parentEntry = getEntryInfo(file);
 
-      Set<String> names = new HashSet<String>();
-      for (EntryInfo info : getEntriesMap().values()) {
-        if (info.parent == parentEntry) {
-          names.add(info.shortName);
-        }
+    Set<String> names = new HashSet<String>();
+    for (EntryInfo info : getEntriesMap().values()) {
+      if (info.parent == parentEntry) {
+        names.add(info.shortName);
       }
-
-      return ArrayUtil.toStringArray(names);
     }
+
+    return ArrayUtil.toStringArray(names);
   }
 
   protected EntryInfo getEntryInfo(@NotNull VirtualFile file) {
-    synchronized (lock) {
-      String parentPath = getRelativePath(file);
-      return getEntryInfo(parentPath);
-    }
+    return getEntryInfo(getRelativePath(file));
   }
 
   public EntryInfo getEntryInfo(@NotNull String parentPath) {
@@ -270,10 +316,8 @@ public class JarHandlerBase {
   }
 
   public long getLength(@NotNull final VirtualFile file) {
-    final JarFile.JarEntry entry = convertToEntry(file);
-    synchronized (lock) {
-      return entry == null ? DEFAULT_LENGTH : entry.getSize();
-    }
+    final EntryInfo info = getEntryInfo(file);
+    return info == null ? DEFAULT_LENGTH : info.length;
   }
 
   @NotNull
@@ -305,19 +349,14 @@ public class JarHandlerBase {
 
   public long getTimeStamp(@NotNull final VirtualFile file) {
     if (file.getParent() == null) return getOriginalFile().lastModified(); // Optimization
-    final JarFile.JarEntry entry = convertToEntry(file);
-    synchronized (lock) {
-      return entry == null ? DEFAULT_TIMESTAMP : entry.getTime();
-    }
+    final EntryInfo info = getEntryInfo(file);
+    return info == null ? DEFAULT_TIMESTAMP : info.timestamp;
   }
 
   public boolean isDirectory(@NotNull final VirtualFile file) {
     if (file.getParent() == null) return true; // Optimization
-    synchronized (lock) {
-      final String path = getRelativePath(file);
-      final EntryInfo info = getEntryInfo(path);
-      return info == null || info.isDirectory;
-    }
+    final EntryInfo info = getEntryInfo(file);
+    return info == null || info.isDirectory;
   }
 
   public boolean exists(@NotNull final VirtualFile fileOrDirectory) {
@@ -331,13 +370,8 @@ public class JarHandlerBase {
 
   @Nullable
   public FileAttributes getAttributes(@NotNull final VirtualFile file) {
-    final JarFile.JarEntry entry = convertToEntry(file);
-    synchronized (lock) {
-      final EntryInfo entryInfo = getEntryInfo(getRelativePath(file));
-      if (entryInfo == null) return null;
-      final long length = entry != null ? entry.getSize() : DEFAULT_LENGTH;
-      final long timeStamp = entry != null ? entry.getTime() : DEFAULT_TIMESTAMP;
-      return new FileAttributes(entryInfo.isDirectory, false, false, false, length, timeStamp, false);
-    }
+    final EntryInfo entryInfo = getEntryInfo(file);
+    if (entryInfo == null) return null;
+    return new FileAttributes(entryInfo.isDirectory, false, false, false, entryInfo.length, entryInfo.timestamp, false);
   }
 }
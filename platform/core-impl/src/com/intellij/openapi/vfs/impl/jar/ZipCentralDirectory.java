@@ -0,0 +1,227 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.impl.jar;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.vfs.CharsetToolkit;
+import com.intellij.util.io.ByteBufferWrapper;
+import com.intellij.util.io.DataInputOutputUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Reads the entry list of a zip file straight from its memory-mapped central directory, without opening the file
+ * with {@link java.util.zip.ZipFile}, and keeps it in a compact form which can be saved and loaded back
+ * as long as the zip file is not changed.
+ *
+ * @see JarHandlerBase#collectEntries
+ */
+public class ZipCentralDirectory {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.vfs.impl.jar.ZipCentralDirectory");
+
+  private static final int VERSION = 1;
+
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final int END_HEADER_SIZE = 22;
+  private static final int MAX_COMMENT_SIZE = 0xFFFF;
+  private static final int ENTRY_SIGNATURE = 0x02014b50;
+  private static final int ENTRY_HEADER_SIZE = 46;
+
+  public static class Entry {
+    /** Entry name as stored in the zip file, directory names end with '/' */
+    public final String name;
+    public final long length;
+    public final long timestamp;
+
+    public Entry(@NotNull String name, long length, long timestamp) {
+      this.name = name;
+      this.length = length;
+      this.timestamp = timestamp;
+    }
+  }
+
+  private final long myZipLength;
+  private final long myZipTimestamp;
+  private final List<Entry> myEntries;
+
+  private ZipCentralDirectory(long zipLength, long zipTimestamp, @NotNull List<Entry> entries) {
+    myZipLength = zipLength;
+    myZipTimestamp = zipTimestamp;
+    myEntries = entries;
+  }
+
+  @NotNull
+  public List<Entry> getEntries() {
+    return myEntries;
+  }
+
+  public boolean isUpToDate(long zipLength, long zipTimestamp) {
+    return myZipLength == zipLength && myZipTimestamp == zipTimestamp;
+  }
+
+  /**
+   * @return entries of the zip file or null if the file can't be read this way (e.g. it is not a zip or uses ZIP64 extensions)
+   */
+  @Nullable
+  public static ZipCentralDirectory read(@NotNull File zip) {
+    long zipLength = zip.length();
+    long zipTimestamp = zip.lastModified();
+    try {
+      long[] location = findCentralDirectory(zip, zipLength);
+      if (location == null) return null;
+      int entryCount = (int)location[0];
+      long offset = location[1];
+
+      ByteBufferWrapper wrapper = ByteBufferWrapper.readOnly(zip, (int)offset);
+      try {
+        ByteBuffer buffer = wrapper.getBuffer().duplicate();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        List<Entry> entries = new ArrayList<Entry>(entryCount);
+        for (int i = 0; i < entryCount; i++) {
+          Entry entry = readEntry(buffer);
+          if (entry == null) return null;
+          entries.add(entry);
+        }
+        return new ZipCentralDirectory(zipLength, zipTimestamp, entries);
+      }
+      finally {
+        wrapper.unmap();
+      }
+    }
+    catch (IOException e) {
+      LOG.debug(e);
+      return null;
+    }
+  }
+
+  /**
+   * @return entry count and central directory offset
+   */
+  @Nullable
+  private static long[] findCentralDirectory(@NotNull File zip, long zipLength) throws IOException {
+    if (zipLength < END_HEADER_SIZE || zipLength > Integer.MAX_VALUE) return null;
+
+    int tailSize = (int)Math.min(zipLength, END_HEADER_SIZE + MAX_COMMENT_SIZE);
+    byte[] tail = new byte[tailSize];
+    RandomAccessFile file = new RandomAccessFile(zip, "r");
+    try {
+      file.seek(zipLength - tailSize);
+      file.readFully(tail);
+    }
+    finally {
+      file.close();
+    }
+
+    ByteBuffer buffer = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+    for (int pos = tailSize - END_HEADER_SIZE; pos >= 0; pos--) {
+      if (buffer.getInt(pos) == END_SIGNATURE && pos + END_HEADER_SIZE + (buffer.getShort(pos + 20) & 0xFFFF) == tailSize) {
+        int entryCount = buffer.getShort(pos + 10) & 0xFFFF;
+        long size = buffer.getInt(pos + 12) & 0xFFFFFFFFL;
+        long offset = buffer.getInt(pos + 16) & 0xFFFFFFFFL;
+        if (entryCount == 0xFFFF || offset + size > zipLength - tailSize + pos) return null;
+        return new long[]{entryCount, offset};
+      }
+    }
+    return null;
+  }
+
+  @Nullable
+  private static Entry readEntry(@NotNull ByteBuffer buffer) {
+    int pos = buffer.position();
+    if (buffer.remaining() < ENTRY_HEADER_SIZE || buffer.getInt(pos) != ENTRY_SIGNATURE) return null;
+
+    int dosTime = buffer.getInt(pos + 12);
+    long length = buffer.getInt(pos + 24) & 0xFFFFFFFFL;
+    int nameLength = buffer.getShort(pos + 28) & 0xFFFF;
+    int extraLength = buffer.getShort(pos + 30) & 0xFFFF;
+    int commentLength = buffer.getShort(pos + 32) & 0xFFFF;
+    if (length == 0xFFFFFFFFL || buffer.remaining() < ENTRY_HEADER_SIZE + nameLength) return null;
+
+    byte[] name = new byte[nameLength];
+    buffer.position(pos + ENTRY_HEADER_SIZE);
+    buffer.get(name);
+    buffer.position(Math.min(buffer.limit(), pos + ENTRY_HEADER_SIZE + nameLength + extraLength + commentLength));
+    return new Entry(new String(name, CharsetToolkit.UTF8_CHARSET), length, dosToJavaTime(dosTime));
+  }
+
+  // same conversion as java.util.zip.ZipEntry does
+  @SuppressWarnings("deprecation")
+  private static long dosToJavaTime(int dosTime) {
+    Date date = new Date(((dosTime >> 25) & 0x7f) + 80,
+                         ((dosTime >> 21) & 0x0f) - 1,
+                         (dosTime >> 16) & 0x1f,
+                         (dosTime >> 11) & 0x1f,
+                         (dosTime >> 5) & 0x3f,
+                         (dosTime << 1) & 0x3e);
+    return date.getTime();
+  }
+
+  public void save(@NotNull File file) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      DataInputOutputUtil.writeINT(out, VERSION);
+      out.writeLong(myZipLength);
+      out.writeLong(myZipTimestamp);
+      DataInputOutputUtil.writeINT(out, myEntries.size());
+      for (Entry entry : myEntries) {
+        out.writeUTF(entry.name);
+        out.writeLong(entry.length);
+        DataInputOutputUtil.writeTIME(out, entry.timestamp);
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  /**
+   * @return the entries saved with {@link #save} or null if the file is missing or has an unknown format
+   */
+  @Nullable
+  public static ZipCentralDirectory load(@NotNull File file) {
+    if (!file.exists()) return null;
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (DataInputOutputUtil.readINT(in) != VERSION) return null;
+        long zipLength = in.readLong();
+        long zipTimestamp = in.readLong();
+        int count = DataInputOutputUtil.readINT(in);
+        List<Entry> entries = new ArrayList<Entry>(count);
+        for (int i = 0; i < count; i++) {
+          String name = in.readUTF();
+          long length = in.readLong();
+          entries.add(new Entry(name, length, DataInputOutputUtil.readTIME(in)));
+        }
+        return new ZipCentralDirectory(zipLength, zipTimestamp, entries);
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.debug(e);
+      return null;
+    }
+  }
+}
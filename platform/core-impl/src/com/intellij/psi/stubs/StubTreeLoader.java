@@ -21,6 +21,8 @@ import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiFile;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.List;
+
 /**
  * @author yole
  */
@@ -35,6 +37,19 @@ public abstract class StubTreeLoader {
 
   @Nullable
   public abstract ObjectStubTree readFromVFile(Project project, final VirtualFile vFile);
+
+  /**
+   * Reads the stub with the given index in {@link ObjectStubTree#getPlainList()} of the file's stub tree.
+   * Implementations may create only the stub, its ancestors and, if {@code withChildren} is true, its subtree,
+   * so the result is suitable for reading the stub data but not for binding it to PSI.
+   */
+  @Nullable
+  public Stub readStubFromVFile(Project project, final VirtualFile vFile, int stubIndex, boolean withChildren) {
+    ObjectStubTree<?> tree = readFromVFile(project, vFile);
+    if (tree == null) return null;
+    List<? extends Stub> stubs = tree.getPlainList();
+    return stubIndex >= 0 && stubIndex < stubs.size() ? stubs.get(stubIndex) : null;
+  }
   
   public abstract void rebuildStubTree(VirtualFile virtualFile);
 
@@ -33,6 +33,7 @@ import org.jetbrains.annotations.TestOnly;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @author nik
@@ -45,6 +46,7 @@ public final class FileContentImpl extends UserDataHolderBase implements FileCon
   private byte[] myContent;
   private CharSequence myContentAsText;
   private final long myStamp;
+  private volatile ReentrantLock myPsiLock;
 
   @Override
   public Project getProject() {
@@ -59,6 +61,15 @@ public final class FileContentImpl extends UserDataHolderBase implements FileCon
   @NotNull
   @Override
   public PsiFile getPsiFile() {
+    final ReentrantLock psiLock = myPsiLock;
+    if (psiLock != null) {
+      psiLock.lock();
+    }
+    return getOrCreatePsiFile();
+  }
+
+  @NotNull
+  private synchronized PsiFile getOrCreatePsiFile() {
     PsiFile psi = getUserData(IndexingDataKeys.PSI_FILE);
 
     if (psi == null) {
@@ -80,6 +91,26 @@ public final class FileContentImpl extends UserDataHolderBase implements FileCon
     return psi;
   }
 
+  /**
+   * Allows several threads to use the content at once. PSI isn't thread-safe, so {@link #getPsiFile()} then locks it
+   * for the calling thread until it calls {@link #releasePsiFile()}.
+   */
+  public void setShared() {
+    myPsiLock = new ReentrantLock();
+  }
+
+  /**
+   * Lets other threads use the PSI of a {@link #setShared() shared} content, which the calling thread no longer needs.
+   */
+  public void releasePsiFile() {
+    final ReentrantLock psiLock = myPsiLock;
+    if (psiLock != null) {
+      while (psiLock.isHeldByCurrentThread()) {
+        psiLock.unlock();
+      }
+    }
+  }
+
   public static class IllegalDataException extends RuntimeException {
     public IllegalDataException(final String message) {
       super(message);
@@ -98,6 +129,10 @@ public final class FileContentImpl extends UserDataHolderBase implements FileCon
     this(file, null, content, LoadTextUtil.detectCharsetAndSetBOM(file, content), -1);
   }
 
+  public FileContentImpl(@NotNull final VirtualFile file, @NotNull final byte[] content, @NotNull final CharSequence contentAsText, final Charset charset) {
+    this(file, contentAsText, content, charset, -1);
+  }
+
   public FileContentImpl(@NotNull final VirtualFile file) {
     this(file, null, null, null, -1);
   }
@@ -165,7 +200,7 @@ public final class FileContentImpl extends UserDataHolderBase implements FileCon
   }
 
   @Override
-  public byte[] getContent() {
+  public synchronized byte[] getContent() {
     if (myContent == null) {
       if (myContentAsText != null) {
         try {
@@ -181,7 +216,7 @@ public final class FileContentImpl extends UserDataHolderBase implements FileCon
 
   @NotNull
   @Override
-  public CharSequence getContentAsText() {
+  public synchronized CharSequence getContentAsText() {
     if (myFileType.isBinary()) {
       throw new IllegalDataException("Cannot obtain text for binary file type : " + myFileType.getDescription());
     }
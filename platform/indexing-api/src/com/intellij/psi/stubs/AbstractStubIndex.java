@@ -34,4 +34,11 @@ public abstract class AbstractStubIndex<Key, Psi extends PsiElement> implements
   }
 
   public int getCacheSize() { return 2 * 1024; }
+
+  /**
+   * Big indices, which have many keys and are updated all the time, may be split by key hash into several shards
+   * with their own storages and locks, so that updates of some keys don't block queries of the others.
+   * The version of the index should be changed along with the number of shards.
+   */
+  public int getShardCount() { return 1; }
 }
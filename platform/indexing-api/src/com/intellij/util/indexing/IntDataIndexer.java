@@ -0,0 +1,46 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import gnu.trove.THashMap;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntProcedure;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+
+/**
+ * Indexer for scalar indices keyed by int values. Keys are collected into a primitive set, so the index infrastructure
+ * doesn't need to build a boxed {@code Map<Integer, Void>} for every input.
+ */
+public abstract class IntDataIndexer<Data> implements DataIndexer<Integer, Void, Data> {
+  @NotNull
+  public abstract TIntHashSet mapToInts(Data inputData);
+
+  @NotNull
+  @Override
+  public final Map<Integer, Void> map(Data inputData) {
+    final Map<Integer, Void> result = new THashMap<Integer, Void>();
+    mapToInts(inputData).forEach(new TIntProcedure() {
+      @Override
+      public boolean execute(int value) {
+        result.put(value, null);
+        return true;
+      }
+    });
+    return result;
+  }
+}
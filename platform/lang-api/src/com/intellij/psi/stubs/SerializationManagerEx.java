@@ -15,6 +15,9 @@
  */
 package com.intellij.psi.stubs;
 
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
 import java.io.InputStream;
 import java.io.OutputStream;
 
@@ -31,6 +34,13 @@ public abstract class SerializationManagerEx extends SerializationManager {
 
   public abstract Stub deserialize(InputStream stream) throws SerializerNotFoundException;
 
+  /**
+   * @see StubSerializationHelper#deserializeStub
+   */
+  @Nullable
+  public abstract Stub deserializeStub(@NotNull byte[] bytes, int length, int stubIndex, boolean withChildren)
+    throws SerializerNotFoundException;
+
   public abstract boolean isNameStorageCorrupted();
 
   public abstract void repairNameStorage();
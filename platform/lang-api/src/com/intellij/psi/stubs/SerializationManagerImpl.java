@@ -175,4 +175,18 @@ public class SerializationManagerImpl extends SerializationManagerEx implements
       throw new RuntimeException(e);
     }
   }
+
+  @Override
+  public Stub deserializeStub(@NotNull byte[] bytes, int length, int stubIndex, boolean withChildren) throws SerializerNotFoundException {
+    initSerializers();
+
+    try {
+      return myStubSerializationHelper.deserializeStub(bytes, length, stubIndex, withChildren);
+    }
+    catch (IOException e) {
+      nameStorageCrashed();
+      LOG.info(e);
+      throw new RuntimeException(e);
+    }
+  }
 }
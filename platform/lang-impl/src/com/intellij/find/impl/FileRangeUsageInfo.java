@@ -0,0 +1,109 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.find.impl;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Segment;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.SmartPointerManager;
+import com.intellij.psi.SmartPsiElementPointer;
+import com.intellij.psi.SmartPsiFileRange;
+import com.intellij.usageView.UsageInfo;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Occurrence in a file which has no document. Unlike {@link UsageInfo#UsageInfo(com.intellij.psi.PsiElement, int, int)},
+ * it doesn't create a range pointer, which would load the document of the file, but keeps the offsets as is,
+ * so they aren't updated if the file is changed after the search.
+ */
+class FileRangeUsageInfo extends UsageInfo {
+  private final TextRange myRange;
+
+  FileRangeUsageInfo(@NotNull PsiFile file, int startOffset, int endOffset) {
+    this(SmartPointerManager.getInstance(file.getProject()).createSmartPsiElementPointer(file), new TextRange(startOffset, endOffset));
+  }
+
+  private FileRangeUsageInfo(@NotNull SmartPsiElementPointer<PsiFile> filePointer, @NotNull TextRange range) {
+    super(filePointer, new FixedFileRange(filePointer, range), false, false);
+    myRange = range;
+  }
+
+  @Nullable
+  @Override
+  public Segment getSegment() {
+    return getElement() == null ? null : myRange;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return super.equals(o) && myRange.equals(((FileRangeUsageInfo)o).myRange);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * super.hashCode() + myRange.hashCode();
+  }
+
+  private static class FixedFileRange implements SmartPsiFileRange {
+    private final SmartPsiElementPointer<PsiFile> myFilePointer;
+    private final TextRange myRange;
+
+    private FixedFileRange(@NotNull SmartPsiElementPointer<PsiFile> filePointer, @NotNull TextRange range) {
+      myFilePointer = filePointer;
+      myRange = range;
+    }
+
+    @Override
+    public PsiFile getElement() {
+      return myFilePointer.getElement();
+    }
+
+    @Override
+    public PsiFile getContainingFile() {
+      return myFilePointer.getContainingFile();
+    }
+
+    @NotNull
+    @Override
+    public Project getProject() {
+      return myFilePointer.getProject();
+    }
+
+    @Override
+    public VirtualFile getVirtualFile() {
+      return myFilePointer.getVirtualFile();
+    }
+
+    @Nullable
+    @Override
+    public Segment getRange() {
+      return getElement() == null ? null : myRange;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof FixedFileRange && myRange.equals(((FixedFileRange)o).myRange) && myFilePointer.equals(((FixedFileRange)o).myFilePointer);
+    }
+
+    @Override
+    public int hashCode() {
+      return myRange.hashCode();
+    }
+  }
+}
@@ -18,6 +18,7 @@ package com.intellij.find.impl;
 
 import com.intellij.BundleBase;
 import com.intellij.find.*;
+import com.intellij.concurrency.JobLauncher;
 import com.intellij.find.ngrams.TrigramIndex;
 import com.intellij.navigation.ItemPresentation;
 import com.intellij.openapi.actionSystem.DataContext;
@@ -29,6 +30,7 @@ import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.fileEditor.FileEditor;
+import com.intellij.openapi.fileEditor.impl.LoadTextUtil;
 import com.intellij.openapi.fileTypes.FileTypeManager;
 import com.intellij.openapi.module.Module;
 import com.intellij.openapi.module.ModuleManager;
@@ -47,7 +49,7 @@ import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.TextRange;
 import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.util.text.StringUtil;
-import com.intellij.openapi.util.text.TrigramBuilder;
+import com.intellij.openapi.util.text.TrigramQuery;
 import com.intellij.openapi.vfs.*;
 import com.intellij.openapi.vfs.ex.VirtualFileManagerEx;
 import com.intellij.openapi.wm.ToolWindowId;
@@ -66,22 +68,25 @@ import com.intellij.util.PatternUtil;
 import com.intellij.util.Processor;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.indexing.FileBasedIndex;
+import com.intellij.util.indexing.FileBasedIndexImpl;
 import gnu.trove.THashSet;
-import gnu.trove.TIntHashSet;
-import gnu.trove.TIntIterator;
 import org.intellij.lang.annotations.Language;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 public class FindInProjectUtil {
   private static final int USAGES_PER_READ_ACTION = 100;
   private static final int FILES_SIZE_LIMIT = 70 * 1024 * 1024; // megabytes.
   private static final int SINGLE_FILE_SIZE_LIMIT = 5 * 1024 * 1024; // megabytes.
+  private static final int FILES_PER_CHUNK = 100;
 
   private FindInProjectUtil() {}
 
@@ -209,50 +214,79 @@ public class FindInProjectUtil {
                                 @NotNull final Processor<UsageInfo> consumer) {
     final ProgressIndicator progress = ProgressManager.getInstance().getProgressIndicator();
 
-    final Collection<PsiFile> psiFiles = getFilesToSearchIn(findModel, project, psiDirectory);
+    final List<PsiFile> psiFiles = new ArrayList<PsiFile>(getFilesToSearchIn(findModel, project, psiDirectory));
+    // files are searched in parallel, while the consumers don't have to be thread-safe
+    final Processor<UsageInfo> synchronizedConsumer = new Processor<UsageInfo>() {
+      @Override
+      public synchronized boolean process(UsageInfo info) {
+        return consumer.process(info);
+      }
+    };
     try {
-      final Set<PsiFile> largeFiles = new THashSet<PsiFile>();
+      final Set<PsiFile> largeFiles = Collections.synchronizedSet(new THashSet<PsiFile>());
+      final boolean canScanLargeFiles = LargeFileScanner.canScan(findModel);
 
-      int i = 0;
-      long totalFilesSize = 0;
-      int count = 0;
-      final boolean[] warningShown = {false};
+      final AtomicInteger processedFiles = new AtomicInteger();
+      final AtomicLong totalFilesSize = new AtomicLong();
+      final AtomicInteger count = new AtomicInteger();
+      boolean warningShown = false;
 
-      for (final PsiFile psiFile : psiFiles) {
-        final VirtualFile virtualFile = psiFile.getVirtualFile();
-        final int index = i++;
-        if (virtualFile == null) continue;
+      final Processor<PsiFile> fileProcessor = new Processor<PsiFile>() {
+        @Override
+        public boolean process(PsiFile psiFile) {
+          final VirtualFile virtualFile = psiFile.getVirtualFile();
+          final int index = processedFiles.getAndIncrement();
+          if (virtualFile == null) return true;
 
-        long fileLength = getFileLength(virtualFile);
-        if (fileLength == -1) continue; // Binary or invalid
+          long fileLength = getFileLength(virtualFile);
+          if (fileLength == -1) return true; // Binary or invalid
 
-        if (ProjectCoreUtil.isProjectOrWorkspaceFile(virtualFile) && !Registry.is("find.search.in.project.files")) continue;
+          if (ProjectCoreUtil.isProjectOrWorkspaceFile(virtualFile) && !Registry.is("find.search.in.project.files")) return true;
 
-        if (fileLength > SINGLE_FILE_SIZE_LIMIT) {
-          largeFiles.add(psiFile);
-          continue;
-        }
+          boolean large = fileLength > SINGLE_FILE_SIZE_LIMIT;
+          if (large && (!canScanLargeFiles || fileLength > PersistentFSConstants.FILE_LENGTH_TO_CACHE_THRESHOLD)) {
+            largeFiles.add(psiFile);
+            return true;
+          }
 
-        if (progress != null) {
-          progress.checkCanceled();
-          progress.setFraction((double)index / psiFiles.size());
-          String text = FindBundle.message("find.searching.for.string.in.file.progress",
-                                           findModel.getStringToFind(), virtualFile.getPresentableUrl());
-          progress.setText(text);
-          progress.setText2(FindBundle.message("find.searching.for.string.in.file.occurrences.progress", count));
-        }
+          if (progress != null) {
+            progress.checkCanceled();
+            progress.setFraction((double)index / psiFiles.size());
+            String text = FindBundle.message("find.searching.for.string.in.file.progress",
+                                             findModel.getStringToFind(), virtualFile.getPresentableUrl());
+            progress.setText(text);
+            progress.setText2(FindBundle.message("find.searching.for.string.in.file.occurrences.progress", count.get()));
+          }
 
-        int countInFile = processUsagesInFile(psiFile, findModel, consumer);
+          int countInFile;
+          try {
+            countInFile = processUsagesInFile(psiFile, findModel, synchronizedConsumer, large);
+          }
+          catch (ProcessCanceledException e) {
+            if (progress != null && progress.isCanceled()) throw e;
+            // the consumer asked to stop
+            return false;
+          }
 
-        count += countInFile;
-        if (countInFile > 0) {
-          totalFilesSize += fileLength;
-          if (totalFilesSize > FILES_SIZE_LIMIT && !warningShown[0]) {
-            warningShown[0] = true;
-            String message = FindBundle.message("find.excessive.total.size.prompt", presentableSize(totalFilesSize),
-                                                ApplicationNamesInfo.getInstance().getProductName());
-            UsageLimitUtil.showAndCancelIfAborted(project, message);
+          count.addAndGet(countInFile);
+          if (countInFile > 0) {
+            totalFilesSize.addAndGet(fileLength);
           }
+          return true;
+        }
+      };
+
+      // the files are searched in chunks, so that the total size of the files with occurrences is checked on this thread
+      for (int start = 0; start < psiFiles.size(); start += FILES_PER_CHUNK) {
+        List<PsiFile> chunk = psiFiles.subList(start, Math.min(psiFiles.size(), start + FILES_PER_CHUNK));
+        if (!JobLauncher.getInstance().invokeConcurrentlyUnderProgress(chunk, progress, false, fileProcessor)) break;
+
+        long size = totalFilesSize.get();
+        if (size > FILES_SIZE_LIMIT && !warningShown) {
+          warningShown = true;
+          String message = FindBundle.message("find.excessive.total.size.prompt", presentableSize(size),
+                                              ApplicationNamesInfo.getInstance().getProductName());
+          UsageLimitUtil.showAndCancelIfAborted(project, message);
         }
       }
 
@@ -306,7 +340,8 @@ public class FindInProjectUtil {
 
   private static int processUsagesInFile(@NotNull final PsiFile psiFile,
                                          @NotNull final FindModel findModel,
-                                         @NotNull final Processor<UsageInfo> consumer) {
+                                         @NotNull final Processor<UsageInfo> consumer,
+                                         boolean large) {
     if (findModel.getStringToFind().isEmpty()) {
       if (!ApplicationManager.getApplication().runReadAction(new Computable<Boolean>() {
               @Override
@@ -321,8 +356,31 @@ public class FindInProjectUtil {
     final VirtualFile virtualFile = psiFile.getVirtualFile();
     if (virtualFile == null) return 0;
     if (virtualFile.getFileType().isBinary()) return 0; // do not decompile .class files
-    final Document document = FileDocumentManager.getInstance().getDocument(virtualFile);
-    if (document == null) return 0;
+
+    // documents aren't created for the files which aren't open, the content is searched as is
+    final Document document = FileDocumentManager.getInstance().getCachedDocument(virtualFile);
+    final CharSequence content;
+    if (document != null) {
+      content = null;
+    }
+    else if (large) {
+      try {
+        return new LargeFileScanner(psiFile, virtualFile, findModel, consumer).scan();
+      }
+      catch (IOException e) {
+        return 0;
+      }
+    }
+    else {
+      content = ApplicationManager.getApplication().runReadAction(new Computable<CharSequence>() {
+        @Override
+        public CharSequence compute() {
+          return virtualFile.isValid() ? LoadTextUtil.loadText(virtualFile) : null;
+        }
+      });
+      if (content == null) return 0;
+    }
+
     final int[] offset = {0};
     int count = 0;
     int found;
@@ -332,7 +390,8 @@ public class FindInProjectUtil {
         @NotNull
         public Integer compute() {
           if (!psiFile.isValid()) return 0;
-          return addToUsages(document, consumer, findModel, psiFile, offset, USAGES_PER_READ_ACTION);
+          CharSequence text = document != null ? document.getCharsSequence() : content;
+          return addToUsages(text, consumer, findModel, psiFile, document == null, offset, USAGES_PER_READ_ACTION);
         }
       });
       count += found;
@@ -501,32 +560,35 @@ public class FindInProjectUtil {
       scope = ProjectScope.getContentScope(project);
     }
 
-    Set<Integer> keys = new THashSet<Integer>(30);
     final Set<PsiFile> resultFiles = new THashSet<PsiFile>();
     boolean fast = false;
 
     String stringToFind = findModel.getStringToFind();
+    boolean filteredByTrigrams = false;
+    Collection<PsiFile> notIndexedFiles = Collections.emptyList();
     if (TrigramIndex.ENABLED) {
-      TIntHashSet trigrams = TrigramBuilder.buildTrigram(stringToFind);
-      TIntIterator it = trigrams.iterator();
-      while (it.hasNext()) {
-        keys.add(it.next());
-      }
-
-      if (!keys.isEmpty()) {
-        fast = true;
-        List<VirtualFile> hits = new ArrayList<VirtualFile>();
-        FileBasedIndex.getInstance().getFilesWithKey(TrigramIndex.INDEX_ID, keys, new CommonProcessors.CollectProcessor<VirtualFile>(hits), scope);
-
+      TrigramQuery query = findModel.isRegularExpressions()
+                           ? TrigramQuery.forRegExp(stringToFind)
+                           : TrigramQuery.forText(stringToFind);
+      Set<VirtualFile> hits = TrigramIndex.getFilesMatching(query, scope);
+      if (hits != null) {
+        fast = filteredByTrigrams = true;
         for (VirtualFile hit : hits) {
-          resultFiles.add(pm.findFile(hit));
+          ContainerUtil.addIfNotNull(resultFiles, pm.findFile(hit));
         }
+        notIndexedFiles = getFilesTooLargeForIndexing(project, scope);
 
         filterMaskedFiles(resultFiles, fileMaskRegExp);
-        if (resultFiles.isEmpty()) return new Pair<Boolean, Collection<PsiFile>>(true, resultFiles);
+        if (resultFiles.isEmpty() || findModel.isRegularExpressions()) {
+          resultFiles.addAll(notIndexedFiles);
+          filterMaskedFiles(resultFiles, fileMaskRegExp);
+          return new Pair<Boolean, Collection<PsiFile>>(true, resultFiles);
+        }
       }
     }
 
+    // words of a regular expression aren't necessarily in the text
+    if (findModel.isRegularExpressions()) return new Pair<Boolean, Collection<PsiFile>>(false, Collections.<PsiFile>emptyList());
 
     // $ is used to separate words when indexing plain-text files but not when indexing
     // Java identifiers, so we can't consistently break a string containing $ characters into words
@@ -546,7 +608,7 @@ public class FindInProjectUtil {
 
       final List<PsiFile> psiFiles = Arrays.asList(files);
 
-      if (i == 0 && keys.isEmpty()) {
+      if (i == 0 && !filteredByTrigrams) {
         resultFiles.addAll(psiFiles);
       }
       else {
@@ -576,6 +638,7 @@ public class FindInProjectUtil {
       PsiFile[] allWordsFiles =
         cacheManager.getFilesWithWord(stringToFind, UsageSearchContext.ANY, scope, findModel.isCaseSensitive());
       ContainerUtil.addAll(resultFiles, allWordsFiles);
+      resultFiles.addAll(notIndexedFiles);
 
       filterMaskedFiles(resultFiles, fileMaskRegExp);
     }
@@ -583,6 +646,21 @@ public class FindInProjectUtil {
     return new Pair<Boolean, Collection<PsiFile>>(fast, resultFiles);
   }
 
+  /**
+   * Files too large to be indexed are never found by the trigram index, yet they may contain the string to find.
+   */
+  @NotNull
+  private static Collection<PsiFile> getFilesTooLargeForIndexing(@NotNull Project project, @NotNull GlobalSearchScope scope) {
+    PsiManager psiManager = PsiManager.getInstance(project);
+    List<PsiFile> result = new ArrayList<PsiFile>();
+    for (VirtualFile file : ((FileBasedIndexImpl)FileBasedIndex.getInstance()).getFilesTooLargeForIndexing()) {
+      if (scope.contains(file)) {
+        ContainerUtil.addIfNotNull(result, psiManager.findFile(file));
+      }
+    }
+    return result;
+  }
+
   private static void filterMaskedFiles(@NotNull final Set<PsiFile> resultFiles, @Nullable final Pattern fileMaskRegExp) {
     if (fileMaskRegExp != null) {
       for (Iterator<PsiFile> iterator = resultFiles.iterator(); iterator.hasNext();) {
@@ -595,15 +673,17 @@ public class FindInProjectUtil {
   }
 
   private static boolean canOptimizeForFastWordSearch(@NotNull final FindModel findModel) {
-    return !findModel.isRegularExpressions()
-           && (findModel.getCustomScope() == null || findModel.getCustomScope() instanceof GlobalSearchScope);
+    // regular expressions are only optimized with the trigram index, which doesn't depend on the word splitting
+    return findModel.getCustomScope() == null || findModel.getCustomScope() instanceof GlobalSearchScope;
   }
 
-  private static int addToUsages(@NotNull Document document, @NotNull Processor<UsageInfo> consumer, @NotNull FindModel findModel,
-                                 @NotNull final PsiFile psiFile, int[] offsetRef, int maxUsages) {
+  /**
+   * @param noDocument whether the text is loaded from the file without creating a document, then the usages don't create it either
+   */
+  private static int addToUsages(@NotNull CharSequence text, @NotNull Processor<UsageInfo> consumer, @NotNull FindModel findModel,
+                                 @NotNull final PsiFile psiFile, boolean noDocument, int[] offsetRef, int maxUsages) {
     int count = 0;
-    CharSequence text = document.getCharsSequence();
-    int textLength = document.getTextLength();
+    int textLength = text.length();
     int offset = offsetRef[0];
 
     Project project = psiFile.getProject();
@@ -618,7 +698,9 @@ public class FindInProjectUtil {
         final TextRange range = new TextRange(result.getStartOffset(), result.getEndOffset());
         if (!((LocalSearchScope)customScope).containsRange(psiFile, range)) break;
       }
-      UsageInfo info = new UsageInfo(psiFile, result.getStartOffset(), result.getEndOffset());
+      UsageInfo info = noDocument
+                       ? new FileRangeUsageInfo(psiFile, result.getStartOffset(), result.getEndOffset())
+                       : new UsageInfo(psiFile, result.getStartOffset(), result.getEndOffset());
       if (!consumer.process(info)){
         throw new ProcessCanceledException();
       }
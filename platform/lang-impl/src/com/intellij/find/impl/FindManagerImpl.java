@@ -335,7 +335,7 @@ public class FindManagerImpl extends FindManager implements PersistentStateCompo
     myPreviousFindModel = previousFindModel;
   }
 
-  private static boolean isWholeWord(CharSequence text, int startOffset, int endOffset) {
+  static boolean isWholeWord(CharSequence text, int startOffset, int endOffset) {
     boolean isWordStart = startOffset == 0 ||
                           !Character.isJavaIdentifierPart(text.charAt(startOffset - 1)) ||
                           !Character.isJavaIdentifierPart(text.charAt(startOffset)) ||
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.find.impl;
+
+import com.intellij.find.FindManager;
+import com.intellij.find.FindModel;
+import com.intellij.find.FindResult;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.search.LocalSearchScope;
+import com.intellij.usageView.UsageInfo;
+import com.intellij.util.Processor;
+import com.intellij.util.text.CharArrayCharSequence;
+import gnu.trove.TIntArrayList;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Searches a file which is too large to be loaded into a document by reading its content through a window of a fixed size.
+ * Line separators are converted to '\n' on the fly, so the offsets of the occurrences are the same as in the document.
+ * Consecutive windows overlap, so an occurrence is found if it's not longer than {@link #OVERLAP} characters,
+ * which is checked by {@link #canScan(FindModel)} for plain text and can't be checked for regular expressions.
+ * Every window but the first one also starts with {@link #OVERLAP} characters of the text already searched, which aren't searched again
+ * but are seen by lookbehinds, word boundaries and the whole words check of the occurrences after them.
+ */
+class LargeFileScanner {
+  private static final int WINDOW_SIZE = 1024 * 1024;
+  private static final int OVERLAP = 16 * 1024;
+
+  private final PsiFile myPsiFile;
+  private final VirtualFile myFile;
+  private final FindModel myFindModel;
+  private final Processor<UsageInfo> myConsumer;
+
+  private final char[] myWindow = new char[WINDOW_SIZE];
+  private final char[] myReadBuffer = new char[8192];
+  private int myReadBufferStart;
+  private int myReadBufferEnd;
+  private boolean myAfterCR;
+  private boolean myStarted;
+
+  LargeFileScanner(@NotNull PsiFile psiFile, @NotNull VirtualFile file, @NotNull FindModel findModel, @NotNull Processor<UsageInfo> consumer) {
+    myPsiFile = psiFile;
+    myFile = file;
+    myFindModel = findModel;
+    myConsumer = consumer;
+  }
+
+  /**
+   * Occurrences inside comments or string literals can't be found without parsing the whole file, nor can ones in a local scope.
+   */
+  static boolean canScan(@NotNull FindModel findModel) {
+    return !findModel.isInCommentsOnly() &&
+           !findModel.isInStringLiteralsOnly() &&
+           !(findModel.getCustomScope() instanceof LocalSearchScope) &&
+           findModel.getStringToFind().length() < OVERLAP;
+  }
+
+  /**
+   * @return number of occurrences passed to the consumer
+   * @throws ProcessCanceledException if the consumer asked to stop
+   */
+  int scan() throws IOException {
+    FindManager findManager = FindManager.getInstance(myPsiFile.getProject());
+    Pattern pattern = myFindModel.isRegularExpressions() ? myFindModel.compileRegExp() : null;
+    if (myFindModel.isRegularExpressions() && pattern == null) return 0;
+
+    Reader reader = new InputStreamReader(myFile.getInputStream(), myFile.getCharset());
+    try {
+      int count = 0;
+      int windowOffset = 0; // offset of the window start in the file
+      int length = 0;
+      int searchFrom = 0; // the text before is the context left from the previous window
+      boolean eof = false;
+      while (!eof) {
+        ProgressManager.checkCanceled();
+        int read = fill(reader, length);
+        eof = length + read < WINDOW_SIZE;
+        length += read;
+
+        // occurrences starting in the overlap are found again in the next window, which contains the text after them
+        int limit = eof ? length : length - OVERLAP;
+        CharArrayCharSequence text = new CharArrayCharSequence(myWindow, 0, length);
+        TIntArrayList ranges = new TIntArrayList();
+        int offset = pattern != null ? findMatches(pattern, text, searchFrom, limit, windowOffset, ranges)
+                                     : findOccurrences(findManager, text, searchFrom, limit, windowOffset, ranges);
+        count += report(ranges);
+
+        if (!eof) {
+          int contextStart = limit - OVERLAP;
+          System.arraycopy(myWindow, contextStart, myWindow, 0, length - contextStart);
+          windowOffset += contextStart;
+          searchFrom = Math.max(offset, limit) - contextStart;
+          length -= contextStart;
+        }
+      }
+      return count;
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * @return offset the search in the next window should start from
+   */
+  private int findOccurrences(@NotNull FindManager findManager, @NotNull CharSequence text, int from, int limit, int windowOffset,
+                              @NotNull TIntArrayList ranges) {
+    int offset = from;
+    while (offset < limit) {
+      FindResult result = findManager.findString(text, offset, myFindModel, myFile);
+      if (!result.isStringFound() || result.getStartOffset() >= limit) break;
+      ranges.add(windowOffset + result.getStartOffset());
+      ranges.add(windowOffset + result.getEndOffset());
+      offset = result.getEndOffset();
+    }
+    return offset;
+  }
+
+  /**
+   * Matches the regular expression in the region after the context, the bounds of the region are transparent for lookarounds
+   * and word boundaries and aren't matched by anchors, since they aren't the bounds of the file.
+   * @return offset the search in the next window should start from
+   */
+  private int findMatches(@NotNull Pattern pattern, @NotNull CharSequence text, int from, int limit, int windowOffset,
+                          @NotNull TIntArrayList ranges) {
+    Matcher matcher = pattern.matcher(text);
+    matcher.region(from, text.length());
+    matcher.useTransparentBounds(true);
+    matcher.useAnchoringBounds(false);
+    int offset = from;
+    while (matcher.find()) {
+      if (matcher.start() >= limit) break;
+      if (myFindModel.isWholeWordsOnly() && !FindManagerImpl.isWholeWord(text, matcher.start(), matcher.end())) {
+        // like FindManager, look for a whole word match starting inside the rejected one
+        matcher.region(matcher.start() + 1, text.length());
+        continue;
+      }
+      ranges.add(windowOffset + matcher.start());
+      ranges.add(windowOffset + matcher.end());
+      // the match could be empty
+      offset = Math.max(matcher.end(), matcher.start() + 1);
+    }
+    return offset;
+  }
+
+  private int report(@NotNull final TIntArrayList ranges) {
+    if (ranges.isEmpty()) return 0;
+    boolean proceed = ApplicationManager.getApplication().runReadAction(new Computable<Boolean>() {
+      @Override
+      public Boolean compute() {
+        if (!myPsiFile.isValid()) return true;
+        for (int i = 0; i < ranges.size(); i += 2) {
+          if (!myConsumer.process(new FileRangeUsageInfo(myPsiFile, ranges.get(i), ranges.get(i + 1)))) return false;
+        }
+        return true;
+      }
+    });
+    if (!proceed) throw new ProcessCanceledException();
+    return ranges.size() / 2;
+  }
+
+  /**
+   * Reads characters into the window starting from the given position converting line separators to '\n'
+   * and skipping the byte order mark.
+   * @return number of characters read, less than the free space in the window only at the end of the file
+   */
+  private int fill(@NotNull Reader reader, int from) throws IOException {
+    int pos = from;
+    while (pos < WINDOW_SIZE) {
+      if (myReadBufferStart == myReadBufferEnd) {
+        int read = reader.read(myReadBuffer);
+        if (read < 0) break;
+        myReadBufferStart = 0;
+        myReadBufferEnd = read;
+        if (!myStarted && read > 0) {
+          myStarted = true;
+          if (myReadBuffer[0] == '\uFEFF') myReadBufferStart++;
+        }
+        continue;
+      }
+      char c = myReadBuffer[myReadBufferStart++];
+      if (c == '\n' && myAfterCR) {
+        myAfterCR = false;
+        continue;
+      }
+      myAfterCR = c == '\r';
+      myWindow[pos++] = myAfterCR ? '\n' : c;
+    }
+    return pos - from;
+  }
+}
@@ -20,18 +20,22 @@
 package com.intellij.find.ngrams;
 
 import com.intellij.openapi.util.text.TrigramBuilder;
+import com.intellij.openapi.util.text.TrigramQuery;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.util.CommonProcessors;
 import com.intellij.util.indexing.*;
-import com.intellij.util.io.EnumeratorIntegerDescriptor;
-import com.intellij.util.io.KeyDescriptor;
-import gnu.trove.THashMap;
+import gnu.trove.THashSet;
 import gnu.trove.TIntHashSet;
-import gnu.trove.TIntProcedure;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 
-public class TrigramIndex extends ScalarIndexExtension<Integer> {
+public class TrigramIndex extends IntScalarIndexExtension {
+  // opt-in, since the index has to be built for every text file in the project before it helps Find in Path
   public static final boolean ENABLED = "true".equals(System.getProperty("idea.internal.trigramindex.enabled"));
 
   public static final ID<Integer,Void> INDEX_ID = ID.create("Trigram.Index");
@@ -57,30 +61,16 @@ public class TrigramIndex extends ScalarIndexExtension<Integer> {
 
   @NotNull
   @Override
-  public DataIndexer<Integer, Void, FileContent> getIndexer() {
-    return new DataIndexer<Integer, Void, FileContent>() {
+  public IntDataIndexer<FileContent> getIndexer() {
+    return new IntDataIndexer<FileContent>() {
       @Override
       @NotNull
-      public Map<Integer, Void> map(FileContent inputData) {
-        final Map<Integer, Void> result = new THashMap<Integer, Void>();
-        TIntHashSet built = TrigramBuilder.buildTrigram(inputData.getContentAsText());
-        built.forEach(new TIntProcedure() {
-          @Override
-          public boolean execute(int value) {
-            result.put(value, null);
-            return true;
-          }
-        });
-        return result;
+      public TIntHashSet mapToInts(FileContent inputData) {
+        return TrigramBuilder.buildTrigram(inputData.getContentAsText());
       }
     };
   }
 
-  @Override
-  public KeyDescriptor<Integer> getKeyDescriptor() {
-    return EnumeratorIntegerDescriptor.INSTANCE;
-  }
-
   @Override
   public FileBasedIndex.InputFilter getInputFilter() {
     if (ENABLED) {
@@ -91,6 +81,47 @@ public class TrigramIndex extends ScalarIndexExtension<Integer> {
     }
   }
 
+  /**
+   * @return files in the scope satisfying the query according to the index, or null if the query doesn't restrict the files
+   */
+  @Nullable
+  public static Set<VirtualFile> getFilesMatching(@NotNull TrigramQuery query, @NotNull GlobalSearchScope scope) {
+    if (query.isAll()) return null;
+    if (query.isOr()) {
+      Set<VirtualFile> result = new THashSet<VirtualFile>();
+      for (TrigramQuery child : query.getChildren()) {
+        Set<VirtualFile> files = getFilesMatching(child, scope);
+        if (files == null) return null;
+        result.addAll(files);
+      }
+      return result;
+    }
+
+    Set<VirtualFile> result = null;
+    int[] trigrams = query.getTrigrams();
+    if (trigrams.length > 0) {
+      Set<Integer> keys = new THashSet<Integer>(trigrams.length);
+      for (int trigram : trigrams) {
+        keys.add(trigram);
+      }
+      List<VirtualFile> hits = new ArrayList<VirtualFile>();
+      FileBasedIndex.getInstance().getFilesWithKey(INDEX_ID, keys, new CommonProcessors.CollectProcessor<VirtualFile>(hits), scope);
+      result = new THashSet<VirtualFile>(hits);
+    }
+    for (TrigramQuery child : query.getChildren()) {
+      if (result != null && result.isEmpty()) break;
+      Set<VirtualFile> files = getFilesMatching(child, scope);
+      if (files == null) continue;
+      if (result == null) {
+        result = files;
+      }
+      else {
+        result.retainAll(files);
+      }
+    }
+    return result;
+  }
+
   @Override
   public boolean dependsOnFileContent() {
     return true;
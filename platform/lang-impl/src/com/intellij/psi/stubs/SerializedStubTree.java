@@ -59,6 +59,18 @@ public class SerializedStubTree {
     return SerializationManagerEx.getInstanceEx().deserialize(new UnsyncByteArrayInputStream(myBytes));
   }
 
+  /**
+   * Deserializes a single stub with its ancestors instead of the whole tree.
+   *
+   * @param stubIndex index of the stub in {@link ObjectStubTree#getPlainList()}
+   * @param withChildren whether the subtree of the stub is needed too
+   * @see StubSerializationHelper#deserializeStub
+   */
+  @Nullable
+  public Stub getStub(int stubIndex, boolean withChildren) throws SerializerNotFoundException {
+    return SerializationManagerEx.getInstanceEx().deserializeStub(myBytes, myLength, stubIndex, withChildren);
+  }
+
   public boolean equals(final Object that) {
     if (this == that) {
       return true;
@@ -42,6 +42,7 @@ import com.intellij.util.SmartList;
 import com.intellij.util.indexing.*;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.KeyDescriptor;
 import gnu.trove.THashMap;
 import gnu.trove.TObjectIntHashMap;
 import org.jetbrains.annotations.NotNull;
@@ -67,7 +68,9 @@ import java.util.concurrent.locks.Lock;
 public class StubIndexImpl extends StubIndex implements ApplicationComponent, PersistentStateComponent<StubIndexState> {
   private static final AtomicReference<Boolean> ourForcedClean = new AtomicReference<Boolean>(null);
   private static final Logger LOG = Logger.getInstance("#com.intellij.psi.stubs.StubIndexImpl");
-  private final Map<StubIndexKey<?,?>, MyIndex<?>> myIndices = new THashMap<StubIndexKey<?,?>, MyIndex<?>>();
+  private final Map<StubIndexKey<?,?>, ShardedIndex<?>> myIndices = new THashMap<StubIndexKey<?,?>, ShardedIndex<?>>();
+  // shards are write-locked in the order of their creation to avoid deadlocks
+  private int myShardCount;
   private final TObjectIntHashMap<ID<?, ?>> myIndexIdToVersionMap = new TObjectIntHashMap<ID<?, ?>>();
 
   private final StubProcessingHelper myStubProcessingHelper;
@@ -107,6 +110,7 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
   private <K> boolean registerIndexer(@NotNull StubIndexExtension<K, ?> extension, final boolean forceClean) throws IOException {
     final StubIndexKey<K, ?> indexKey = extension.getKey();
     final int version = extension.getVersion();
+    final int shardCount = extension instanceof AbstractStubIndex ? Math.max(1, ((AbstractStubIndex)extension).getShardCount()) : 1;
     myIndexIdToVersionMap.put(indexKey, version);
     final File versionFile = IndexInfrastructure.getVersionFile(indexKey);
     final boolean versionFileExisted = versionFile.exists();
@@ -125,14 +129,19 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
 
     for (int attempt = 0; attempt < 2; attempt++) {
       try {
-        final MapIndexStorage<K, StubIdList> storage = new MapIndexStorage<K, StubIdList>(
-          IndexInfrastructure.getStorageFile(indexKey),
-          extension.getKeyDescriptor(),
-          new StubIdExternalizer(),
-          extension.getCacheSize()
-        );
-        final MemoryIndexStorage<K, StubIdList> memStorage = new MemoryIndexStorage<K, StubIdList>(storage);
-        myIndices.put(indexKey, new MyIndex<K>(memStorage));
+        final File storageFile = IndexInfrastructure.getStorageFile(indexKey);
+        @SuppressWarnings("unchecked") final MyIndex<K>[] shards = new MyIndex[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+          final MapIndexStorage<K, StubIdList> storage = new MapIndexStorage<K, StubIdList>(
+            shardCount == 1 ? storageFile : new File(storageFile.getPath() + "_" + i),
+            extension.getKeyDescriptor(),
+            new StubIdExternalizer(),
+            Math.max(16, extension.getCacheSize() / shardCount)
+          );
+          shards[i] = new MyIndex<K>(new MemoryIndexStorage<K, StubIdList>(storage), myShardCount + i);
+        }
+        myShardCount += shardCount;
+        myIndices.put(indexKey, new ShardedIndex<K>(shards, extension.getKeyDescriptor()));
         break;
       }
       catch (IOException e) {
@@ -207,7 +216,7 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
     final PersistentFS fs = (PersistentFS)ManagingFS.getInstance();
     final PsiManager psiManager = PsiManager.getInstance(project);
 
-    final MyIndex<Key> index = (MyIndex<Key>)myIndices.get(indexKey);
+    final MyIndex<Key> index = this.<Key>getIndex(indexKey).getShard(key);
 
     try {
       try {
@@ -266,7 +275,7 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
   public <K> Collection<K> getAllKeys(@NotNull StubIndexKey<K, ?> indexKey, @NotNull Project project) {
     FileBasedIndex.getInstance().ensureUpToDate(StubUpdatingIndex.INDEX_ID, project, GlobalSearchScope.allScope(project));
 
-    final MyIndex<K> index = (MyIndex<K>)myIndices.get(indexKey);
+    final ShardedIndex<K> index = getIndex(indexKey);
     try {
       return index.getAllKeys();
     }
@@ -301,40 +310,46 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
   }
 
   public void dispose() {
-    for (UpdatableIndex index : myIndices.values()) {
-      index.dispose();
+    for (ShardedIndex<?> index : myIndices.values()) {
+      for (MyIndex<?> shard : index.myShards) {
+        shard.dispose();
+      }
     }
   }
 
   public void setDataBufferingEnabled(final boolean enabled) {
-    for (UpdatableIndex index : myIndices.values()) {
-      final IndexStorage indexStorage = ((MapReduceIndex)index).getStorage();
-      ((MemoryIndexStorage)indexStorage).setBufferingEnabled(enabled);
+    for (ShardedIndex<?> index : myIndices.values()) {
+      for (MyIndex<?> shard : index.myShards) {
+        ((MemoryIndexStorage)shard.getStorage()).setBufferingEnabled(enabled);
+      }
     }
   }
 
   public void cleanupMemoryStorage() {
-    for (UpdatableIndex index : myIndices.values()) {
-      final IndexStorage indexStorage = ((MapReduceIndex)index).getStorage();
-      index.getWriteLock().lock();
-      try {
-        ((MemoryIndexStorage)indexStorage).clearMemoryMap();
-      }
-      finally {
-        index.getWriteLock().unlock();
+    for (ShardedIndex<?> index : myIndices.values()) {
+      for (MyIndex<?> shard : index.myShards) {
+        shard.getWriteLock().lock();
+        try {
+          ((MemoryIndexStorage)shard.getStorage()).clearMemoryMap();
+        }
+        finally {
+          shard.getWriteLock().unlock();
+        }
       }
     }
   }
 
 
   public void clearAllIndices() {
-    for (UpdatableIndex index : myIndices.values()) {
-      try {
-        index.clear();
-      }
-      catch (StorageException e) {
-        LOG.error(e);
-        throw new RuntimeException(e);
+    for (ShardedIndex<?> index : myIndices.values()) {
+      for (MyIndex<?> shard : index.myShards) {
+        try {
+          shard.clear();
+        }
+        catch (StorageException e) {
+          LOG.error(e);
+          throw new RuntimeException(e);
+        }
       }
     }
   }
@@ -361,8 +376,54 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
     myPreviouslyRegistered = state;
   }
 
-  public final Lock getWriteLock(StubIndexKey indexKey) {
-    return myIndices.get(indexKey).getWriteLock();
+  /**
+   * @return write locks of all shards of all stub indices, in the order they must be acquired
+   */
+  @NotNull
+  public List<Lock> getWriteLocks() {
+    List<MyIndex<?>> shards = new ArrayList<MyIndex<?>>();
+    for (ShardedIndex<?> index : myIndices.values()) {
+      shards.addAll(Arrays.asList(index.myShards));
+    }
+    return getWriteLocks(shards);
+  }
+
+  /**
+   * @return write locks of the shards that hold the keys of the given stub trees of a file, in the order they must be acquired
+   */
+  @NotNull
+  public List<Lock> getWriteLocks(@NotNull Map<StubIndexKey, Map<Object, StubIdList>> oldStubTree,
+                                  @NotNull Map<StubIndexKey, Map<Object, StubIdList>> newStubTree) {
+    Set<MyIndex<?>> shards = new HashSet<MyIndex<?>>();
+    collectShards(oldStubTree, shards);
+    collectShards(newStubTree, shards);
+    return getWriteLocks(shards);
+  }
+
+  private void collectShards(@NotNull Map<StubIndexKey, Map<Object, StubIdList>> stubTree, @NotNull Set<MyIndex<?>> shards) {
+    for (Map.Entry<StubIndexKey, Map<Object, StubIdList>> entry : stubTree.entrySet()) {
+      final ShardedIndex<Object> index = getIndex(entry.getKey());
+      if (index == null) continue;
+      for (Object key : entry.getValue().keySet()) {
+        shards.add(index.getShard(key));
+      }
+    }
+  }
+
+  @NotNull
+  private static List<Lock> getWriteLocks(@NotNull Collection<MyIndex<?>> shards) {
+    List<MyIndex<?>> sorted = new ArrayList<MyIndex<?>>(shards);
+    Collections.sort(sorted, new Comparator<MyIndex<?>>() {
+      @Override
+      public int compare(MyIndex<?> o1, MyIndex<?> o2) {
+        return o1.myOrdinal - o2.myOrdinal;
+      }
+    });
+    List<Lock> locks = new ArrayList<Lock>(sorted.size());
+    for (MyIndex<?> shard : sorted) {
+      locks.add(shard.getWriteLock());
+    }
+    return locks;
   }
 
   public Collection<StubIndexKey> getAllStubIndexKeys() {
@@ -370,19 +431,45 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
   }
 
   public void flush(StubIndexKey key) throws StorageException {
-    final MyIndex<?> index = myIndices.get(key);
-    index.flush();
+    final ShardedIndex<?> index = myIndices.get(key);
+    for (MyIndex<?> shard : index.myShards) {
+      shard.flush();
+    }
   }
 
+  /**
+   * Updates only the shards that hold the old or new keys of the file, the caller must hold their write locks.
+   * @see #getWriteLocks(Map, Map)
+   */
   public <K> void updateIndex(@NotNull StubIndexKey key, int fileId, @NotNull final Map<K, StubIdList> oldValues, @NotNull Map<K, StubIdList> newValues) {
     try {
-      final MyIndex<K> index = (MyIndex<K>)myIndices.get(key);
-      index.updateWithMap(fileId, newValues, new Callable<Collection<K>>() {
-        @Override
-        public Collection<K> call() throws Exception {
-          return oldValues.keySet();
-        }
-      });
+      final ShardedIndex<K> index = getIndex(key);
+      final Map<MyIndex<K>, Map<K, StubIdList>> newValuesByShard = new THashMap<MyIndex<K>, Map<K, StubIdList>>();
+      final Map<MyIndex<K>, List<K>> oldKeysByShard = new THashMap<MyIndex<K>, List<K>>();
+      for (Map.Entry<K, StubIdList> entry : newValues.entrySet()) {
+        final MyIndex<K> shard = index.getShard(entry.getKey());
+        Map<K, StubIdList> values = newValuesByShard.get(shard);
+        if (values == null) newValuesByShard.put(shard, values = new THashMap<K, StubIdList>());
+        values.put(entry.getKey(), entry.getValue());
+      }
+      for (K oldKey : oldValues.keySet()) {
+        final MyIndex<K> shard = index.getShard(oldKey);
+        List<K> keys = oldKeysByShard.get(shard);
+        if (keys == null) oldKeysByShard.put(shard, keys = new ArrayList<K>());
+        keys.add(oldKey);
+      }
+
+      for (MyIndex<K> shard : index.myShards) {
+        final Map<K, StubIdList> shardNewValues = newValuesByShard.get(shard);
+        final List<K> shardOldKeys = oldKeysByShard.get(shard);
+        if (shardNewValues == null && shardOldKeys == null) continue;
+        shard.updateWithMap(fileId, shardNewValues != null ? shardNewValues : Collections.<K, StubIdList>emptyMap(), new Callable<Collection<K>>() {
+          @Override
+          public Collection<K> call() throws Exception {
+            return shardOldKeys != null ? shardOldKeys : Collections.<K>emptyList();
+          }
+        });
+      }
     }
     catch (StorageException e) {
       LOG.info(e);
@@ -390,9 +477,50 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
     }
   }
 
+  @SuppressWarnings("unchecked")
+  private <K> ShardedIndex<K> getIndex(@NotNull StubIndexKey indexKey) {
+    return (ShardedIndex<K>)myIndices.get(indexKey);
+  }
+
+  /**
+   * @return index of the shard of the key with the given hash, it must be the same between sessions since it decides
+   * which storage the key is in
+   */
+  static int getShardIndex(int keyHash, int shardCount) {
+    keyHash ^= keyHash >>> 16;
+    return (keyHash & Integer.MAX_VALUE) % shardCount;
+  }
+
+  private static class ShardedIndex<K> {
+    private final MyIndex<K>[] myShards;
+    private final KeyDescriptor<K> myKeyDescriptor;
+
+    private ShardedIndex(@NotNull MyIndex<K>[] shards, @NotNull KeyDescriptor<K> keyDescriptor) {
+      myShards = shards;
+      myKeyDescriptor = keyDescriptor;
+    }
+
+    @NotNull
+    private MyIndex<K> getShard(@NotNull K key) {
+      return myShards.length == 1 ? myShards[0] : myShards[getShardIndex(myKeyDescriptor.getHashCode(key), myShards.length)];
+    }
+
+    @NotNull
+    private Collection<K> getAllKeys() throws StorageException {
+      Set<K> allKeys = new HashSet<K>();
+      for (MyIndex<K> shard : myShards) {
+        shard.processAllKeys(new CommonProcessors.CollectProcessor<K>(allKeys));
+      }
+      return allKeys;
+    }
+  }
+
   private static class MyIndex<K> extends MapReduceIndex<K, StubIdList, Void> {
-    public MyIndex(final IndexStorage<K, StubIdList> storage) {
+    private final int myOrdinal;
+
+    public MyIndex(final IndexStorage<K, StubIdList> storage, int ordinal) {
       super(null, null, storage);
+      myOrdinal = ordinal;
     }
 
     @Override
@@ -31,13 +31,16 @@ import com.intellij.util.indexing.*;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.IntInlineKeyDescriptor;
 import com.intellij.util.io.KeyDescriptor;
+import gnu.trove.TIntObjectHashMap;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.locks.Lock;
 
 /*
  * @author max
@@ -47,7 +50,7 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
 
   public static final ID<Integer, SerializedStubTree> INDEX_ID = ID.create("Stubs");
 
-  private static final int VERSION = 21;
+  private static final int VERSION = 24;
 
   private static final DataExternalizer<SerializedStubTree> KEY_EXTERNALIZER = new DataExternalizer<SerializedStubTree>() {
     @Override
@@ -228,6 +231,85 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
     return allIndices;
   }
 
+  /**
+   * Update of the stub index shards which hold the old and new keys of a file. The shards are write-locked before
+   * {@link StubUpdatingIndex} itself to avoid deadlocks with queries, which hold a shard while loading stubs, so the old data,
+   * which decides the shards, is read before they are locked and read again after that. If it has changed in the meantime
+   * and needs other shards, the update is retried with them.
+   */
+  abstract static class ShardedUpdate<D> {
+    @NotNull
+    protected abstract Lock getReadLock();
+
+    @NotNull
+    protected abstract Lock getWriteLock();
+
+    /**
+     * @param previous the old data read last time, which should be returned if it hasn't changed
+     */
+    @NotNull
+    protected abstract D readOldData(@Nullable D previous) throws StorageException;
+
+    /**
+     * @return write locks of the shards to be updated, in the order they must be acquired
+     */
+    @NotNull
+    protected abstract List<Lock> getShardLocks(@NotNull D oldData);
+
+    protected abstract void update(@NotNull D oldData) throws StorageException;
+
+    /**
+     * @return number of attempts the update took
+     */
+    final int run() throws StorageException {
+      D guessedOldData;
+      getReadLock().lock();
+      try {
+        guessedOldData = readOldData(null);
+      }
+      finally {
+        getReadLock().unlock();
+      }
+
+      for (int attempt = 1; ; attempt++) {
+        final List<Lock> shardLocks = getShardLocks(guessedOldData);
+        for (Lock lock : shardLocks) {
+          lock.lock();
+        }
+        try {
+          getWriteLock().lock();
+          try {
+            final D oldData = readOldData(guessedOldData);
+            if (!shardLocks.containsAll(getShardLocks(oldData))) {
+              guessedOldData = oldData;
+              continue;
+            }
+            update(oldData);
+            return attempt;
+          }
+          finally {
+            getWriteLock().unlock();
+          }
+        }
+        finally {
+          for (int i = shardLocks.size() - 1; i >= 0; i--) {
+            shardLocks.get(i).unlock();
+          }
+        }
+      }
+    }
+  }
+
+  private static class OldStubTree {
+    private final Map<Integer, SerializedStubTree> data;
+    private final Map<StubIndexKey, Map<Object, StubIdList>> stubTree;
+
+    private OldStubTree(@NotNull Map<Integer, SerializedStubTree> data, @NotNull Map<StubIndexKey, Map<Object, StubIdList>> stubTree) {
+      this.data = data;
+      this.stubTree = stubTree;
+    }
+  }
+
   private static class MyIndex extends MapReduceIndex<Integer, SerializedStubTree, FileContent> {
     private StubIndexImpl myStubIndex;
 
@@ -250,51 +332,56 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
     }
 
     @Override
-    protected void updateWithMap(final int inputId, @NotNull final Map<Integer, SerializedStubTree> newData, @NotNull Callable<Collection<Integer>> oldKeysGetter)
+    protected void updateWithMaps(@NotNull TIntObjectHashMap<Map<Integer, SerializedStubTree>> newData) throws StorageException {
+      // stub indices are updated from the old and new stub trees of every single input
+      final int[] inputIds = newData.keys();
+      Arrays.sort(inputIds);
+      for (int inputId : inputIds) {
+        updateWithMap(inputId, newData.get(inputId), createOldKeysGetter(inputId));
+      }
+    }
+
+    @Override
+    protected void updateWithMap(final int inputId, @NotNull final Map<Integer, SerializedStubTree> newData, @NotNull final Callable<Collection<Integer>> oldKeysGetter)
       throws StorageException {
 
       checkNameStorage();
-      final Map<StubIndexKey, Map<Object, StubIdList>> newStubTree;
-      try {
-        newStubTree = getStubTree(newData);
-      }
-      catch (SerializerNotFoundException e) {
-        throw new StorageException(e);
-      }
+      final Map<StubIndexKey, Map<Object, StubIdList>> newStubTree = getStubTree(newData);
 
       final StubIndexImpl stubIndex = getStubIndex();
-      final Collection<StubIndexKey> allStubIndices = stubIndex.getAllStubIndexKeys();
-      try {
-        // first write-lock affected stub indices to avoid deadlocks
-        for (StubIndexKey key : allStubIndices) {
-          stubIndex.getWriteLock(key).lock();
+      new ShardedUpdate<OldStubTree>() {
+        @NotNull
+        @Override
+        protected Lock getReadLock() {
+          return MyIndex.this.getReadLock();
         }
 
-        try {
-          getWriteLock().lock();
-
-          final Map<Integer, SerializedStubTree> oldData = readOldData(inputId);
-          final Map<StubIndexKey, Map<Object, StubIdList>> oldStubTree;
-          try {
-            oldStubTree = getStubTree(oldData);
-          }
-          catch (SerializerNotFoundException e) {
-            throw new StorageException(e);
-          }
-
-          super.updateWithMap(inputId, newData, oldKeysGetter);
+        @NotNull
+        @Override
+        protected Lock getWriteLock() {
+          return MyIndex.this.getWriteLock();
+        }
 
-          updateStubIndices(getAffectedIndices(oldStubTree, newStubTree), inputId, oldStubTree, newStubTree);
+        @NotNull
+        @Override
+        protected OldStubTree readOldData(@Nullable OldStubTree previous) throws StorageException {
+          final Map<Integer, SerializedStubTree> oldData = MyIndex.this.readOldData(inputId);
+          return previous != null && previous.data.equals(oldData) ? previous : new OldStubTree(oldData, getStubTree(oldData));
         }
-        finally {
-          getWriteLock().unlock();
+
+        @NotNull
+        @Override
+        protected List<Lock> getShardLocks(@NotNull OldStubTree oldData) {
+          return stubIndex.getWriteLocks(oldData.stubTree, newStubTree);
         }
-      }
-      finally {
-        for (StubIndexKey key : allStubIndices) {
-          stubIndex.getWriteLock(key).unlock();
+
+        @Override
+        protected void update(@NotNull OldStubTree oldData) throws StorageException {
+          MyIndex.super.updateWithMap(inputId, newData, oldKeysGetter);
+
+          updateStubIndices(getAffectedIndices(oldData.stubTree, newStubTree), inputId, oldData.stubTree, newStubTree);
         }
-      }
+      }.run();
     }
 
     private StubIndexImpl getStubIndex() {
@@ -315,11 +402,17 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
     }
 
     private static Map<StubIndexKey, Map<Object, StubIdList>> getStubTree(@NotNull final Map<Integer, SerializedStubTree> data)
-      throws SerializerNotFoundException {
+      throws StorageException {
       final Map<StubIndexKey, Map<Object, StubIdList>> stubTree;
       if (!data.isEmpty()) {
         final SerializedStubTree stub = data.values().iterator().next();
-        Map<StubIndexKey, Map<Object, int[]>> map = new ObjectStubTree((ObjectStubBase)stub.getStub(true), false).indexStubTree();
+        Map<StubIndexKey, Map<Object, int[]>> map;
+        try {
+          map = new ObjectStubTree((ObjectStubBase)stub.getStub(true), false).indexStubTree();
+        }
+        catch (SerializerNotFoundException e) {
+          throw new StorageException(e);
+        }
 
         // xxx:fix refs inplace
         stubTree = (Map)map;
@@ -338,7 +431,7 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
       return stubTree;
     }
 
-    /*MUST be called under the WriteLock*/
+    /*MUST be called under the WriteLock, or under the ReadLock if the result is checked again under the WriteLock*/
     @NotNull
     private Map<Integer, SerializedStubTree> readOldData(final int key) throws StorageException {
       final Map<Integer, SerializedStubTree> result = new HashMap<Integer, SerializedStubTree>();
@@ -375,11 +468,10 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
     @Override
     public void clear() throws StorageException {
       final StubIndexImpl stubIndex = StubIndexImpl.getInstanceOrInvalidate();
-      final Collection<StubIndexKey> allStubIndexKeys = stubIndex != null? stubIndex.getAllStubIndexKeys() : Collections.<StubIndexKey>emptyList();
+      final List<Lock> shardLocks = stubIndex != null ? stubIndex.getWriteLocks() : Collections.<Lock>emptyList();
       try {
-        for (StubIndexKey key : allStubIndexKeys) {
-          //noinspection ConstantConditions
-          stubIndex.getWriteLock(key).lock();
+        for (Lock lock : shardLocks) {
+          lock.lock();
         }
         getWriteLock().lock();
         if (stubIndex != null) {
@@ -389,9 +481,8 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
       }
       finally {
         getWriteLock().unlock();
-        for (StubIndexKey key : allStubIndexKeys) {
-          //noinspection ConstantConditions
-          stubIndex.getWriteLock(key).unlock();
+        for (int i = shardLocks.size() - 1; i >= 0; i--) {
+          shardLocks.get(i).unlock();
         }
       }
     }
@@ -97,6 +97,11 @@ class ChangeTrackingValueContainer<Value> extends UpdatableValueContainer<Value>
     return getMergedData().getInputIdsIterator(value);
   }
 
+  @Override
+  IdBitSet getInputIds(Value value) {
+    return getMergedData().getInputIds(value);
+  }
+
   public void dropMergedData() {
     myMerged = null;
   }
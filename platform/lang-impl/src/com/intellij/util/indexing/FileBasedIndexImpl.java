@@ -17,6 +17,7 @@
 package com.intellij.util.indexing;
 
 import com.intellij.AppTopics;
+import com.intellij.concurrency.JobLauncher;
 import com.intellij.history.LocalHistory;
 import com.intellij.ide.caches.CacheUpdater;
 import com.intellij.ide.util.DelegatingProgressIndicator;
@@ -128,6 +129,8 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   private volatile int myFilesModCount;
   private final AtomicInteger myUpdatingFiles = new AtomicInteger();
   private final ConcurrentHashSet<Project> myProjectsBeingUpdated = new ConcurrentHashSet<Project>();
+  // files the indices requiring content skip because of their size, updated whenever the size is checked
+  private final ConcurrentHashSet<VirtualFile> myFilesTooLarge = new ConcurrentHashSet<VirtualFile>();
 
   @SuppressWarnings({"FieldCanBeLocal", "UnusedDeclaration"}) private volatile boolean myInitialized;
   // need this variable for memory barrier
@@ -491,6 +494,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     }
 
     final KeyDescriptor<K> keyDescriptor = extension.getKeyDescriptor();
+    index.setKeyDescriptor(keyDescriptor);
     index.setInputIdToDataKeysIndex(new Factory<PersistentHashMap<Integer, Collection<K>>>() {
       @Override
       public PersistentHashMap<Integer, Collection<K>> create() {
@@ -520,6 +524,13 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       public void save(DataOutput out, @NotNull Collection<K> value) throws IOException {
         try {
           DataInputOutputUtil.writeINT(out, value.size());
+          if (value instanceof IntKeyMap.IntKeySet && keyDescriptor instanceof EnumeratorIntegerDescriptor) {
+            // the keys of int keyed indices are written as the descriptor writes them, but without boxing
+            for (TIntIterator iterator = ((IntKeyMap.IntKeySet)value).getKeys().iterator(); iterator.hasNext(); ) {
+              out.writeInt(iterator.next());
+            }
+            return;
+          }
           for (K key : value) {
             keyDescriptor.save(out, key);
           }
@@ -531,9 +542,17 @@ public class FileBasedIndexImpl extends FileBasedIndex {
 
       @NotNull
       @Override
+      @SuppressWarnings("unchecked")
       public Collection<K> read(DataInput in) throws IOException {
         try {
           final int size = DataInputOutputUtil.readINT(in);
+          if (keyDescriptor instanceof EnumeratorIntegerDescriptor) {
+            final TIntHashSet keys = new TIntHashSet(size);
+            for (int idx = 0; idx < size; idx++) {
+              keys.add(in.readInt());
+            }
+            return (Collection<K>)new IntKeyMap.IntKeySet(keys);
+          }
           final List<K> list = new ArrayList<K>(size);
           for (int idx = 0; idx < size; idx++) {
             list.add(keyDescriptor.read(in));
@@ -964,7 +983,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
                                                       @Nullable Condition<V> valueChecker,
                                                       @NotNull final Processor<VirtualFile> processor) {
     ProjectIndexableFilesFilter filesSet = projectIndexableFiles(filter.getProject());
-    final TIntHashSet set = collectFileIdsContainingAllKeys(indexId, dataKeys, filter, valueChecker, filesSet);
+    final IdBitSet set = collectFileIdsContainingAllKeys(indexId, dataKeys, filter, valueChecker, filesSet);
     return set != null && processVirtualFiles(set, filter, processor);
   }
 
@@ -1063,57 +1082,51 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   }
 
   @Nullable
-  private <K, V> TIntHashSet collectFileIdsContainingAllKeys(@NotNull final ID<K, V> indexId,
-                                                             @NotNull final Collection<K> dataKeys,
-                                                             @NotNull final GlobalSearchScope filter,
-                                                             @Nullable final Condition<V> valueChecker,
-                                                             @Nullable final ProjectIndexableFilesFilter projectFilesFilter) {
-    final ThrowableConvertor<UpdatableIndex<K, V, FileContent>, TIntHashSet, StorageException> convertor =
-      new ThrowableConvertor<UpdatableIndex<K, V, FileContent>, TIntHashSet, StorageException>() {
+  private <K, V> IdBitSet collectFileIdsContainingAllKeys(@NotNull final ID<K, V> indexId,
+                                                          @NotNull final Collection<K> dataKeys,
+                                                          @NotNull final GlobalSearchScope filter,
+                                                          @Nullable final Condition<V> valueChecker,
+                                                          @Nullable final ProjectIndexableFilesFilter projectFilesFilter) {
+    final ThrowableConvertor<UpdatableIndex<K, V, FileContent>, IdBitSet, StorageException> convertor =
+      new ThrowableConvertor<UpdatableIndex<K, V, FileContent>, IdBitSet, StorageException>() {
         @Nullable
         @Override
-        public TIntHashSet convert(@NotNull UpdatableIndex<K, V, FileContent> index) throws StorageException {
-          TIntHashSet mainIntersection = null;
+        public IdBitSet convert(@NotNull UpdatableIndex<K, V, FileContent> index) throws StorageException {
+          IdBitSet mainIntersection = null;
 
           for (K dataKey : dataKeys) {
             ProgressManager.checkCanceled();
-            final TIntHashSet copy = new TIntHashSet();
             final ValueContainer<V> container = index.getData(dataKey);
 
+            // id sets of large containers are shared with the index, they are combined into new sets but never modified
+            IdBitSet keyIds = null;
+            boolean ownKeyIds = false;
             for (final Iterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
               final V value = valueIt.next();
               if (valueChecker != null && !valueChecker.value(value)) {
                 continue;
               }
 
-              ValueContainer.IntIterator iterator = container.getInputIdsIterator(value);
-
-              if (mainIntersection == null || iterator.size() < mainIntersection.size()) {
-                while (iterator.hasNext()) {
-                  final int id = iterator.next();
-                  if (mainIntersection == null && (projectFilesFilter == null || projectFilesFilter.contains(id)) ||
-                      mainIntersection != null && mainIntersection.contains(id)
-                    ) {
-                    copy.add(id);
-                  }
-                }
+              final IdBitSet valueIds = container.getInputIds(value);
+              if (keyIds == null) {
+                keyIds = valueIds;
+              }
+              else if (ownKeyIds) {
+                keyIds.addAll(valueIds);
               }
               else {
-                mainIntersection.forEach(new TIntProcedure() {
-                  final ValueContainer.IntPredicate predicate = container.getValueAssociationPredicate(value);
-
-                  @Override
-                  public boolean execute(int id) {
-                    if (predicate.contains(id)) copy.add(id);
-                    return true;
-                  }
-                });
+                keyIds = IdBitSet.union(keyIds, valueIds);
+                ownKeyIds = true;
               }
             }
 
-            mainIntersection = copy;
+            if (keyIds == null) {
+              return new IdBitSet();
+            }
+            mainIntersection = mainIntersection == null ? copyProjectFileIds(keyIds, projectFilesFilter)
+                                                        : IdBitSet.intersection(mainIntersection, keyIds);
             if (mainIntersection.isEmpty()) {
-              return new TIntHashSet();
+              return mainIntersection;
             }
           }
 
@@ -1125,7 +1138,25 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     return processExceptions(indexId, null, filter, convertor);
   }
 
-  private static boolean processVirtualFiles(@NotNull TIntHashSet ids,
+  @NotNull
+  private static IdBitSet copyProjectFileIds(@NotNull IdBitSet ids, @Nullable final ProjectIndexableFilesFilter projectFilesFilter) {
+    if (projectFilesFilter == null) {
+      return ids.clone();
+    }
+    final IdBitSet result = new IdBitSet();
+    ids.forEach(new TIntProcedure() {
+      @Override
+      public boolean execute(int id) {
+        if (projectFilesFilter.contains(id)) {
+          result.add(id);
+        }
+        return true;
+      }
+    });
+    return result;
+  }
+
+  private static boolean processVirtualFiles(@NotNull IdBitSet ids,
                                              @NotNull final GlobalSearchScope filter,
                                              @NotNull final Processor<VirtualFile> processor) {
     final PersistentFS fs = (PersistentFS)ManagingFS.getInstance();
@@ -1631,6 +1662,12 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   }
 
   public void indexFileContent(@Nullable Project project, @NotNull com.intellij.ide.caches.FileContent content) {
+    indexFileContent(project, content, null);
+  }
+
+  private void indexFileContent(@Nullable Project project,
+                                @NotNull com.intellij.ide.caches.FileContent content,
+                                @Nullable final IndexUpdateBatch batch) {
     myChangedFilesCollector.ensureAllInvalidateTasksCompleted();
     final VirtualFile file = content.getVirtualFile();
 
@@ -1638,6 +1675,8 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     try {
       PsiFile psiFile = null;
       FileContentImpl fc = null;
+      final boolean parallel = Registry.is("caches.pipelinedIndexing");
+      final List<ID<?, ?>> affectedIndices = new ArrayList<ID<?, ?>>();
       for (final ID<?, ?> indexId : myIndices.keySet()) {
         if (shouldIndexFile(file, indexId)) {
           if (fc == null) {
@@ -1648,7 +1687,10 @@ public class FileBasedIndexImpl extends FileBasedIndex {
             catch (IOException e) {
               currentBytes = ArrayUtil.EMPTY_BYTE_ARRAY;
             }
-            fc = new FileContentImpl(file, currentBytes);
+            final CharSequence decodedText = content.getDecodedText();
+            fc = decodedText != null
+                 ? new FileContentImpl(file, currentBytes, decodedText, content.getCharset())
+                 : new FileContentImpl(file, currentBytes);
 
             psiFile = content.getUserData(IndexingDataKeys.PSI_FILE);
             if (psiFile != null) {
@@ -1661,21 +1703,35 @@ public class FileBasedIndexImpl extends FileBasedIndex {
             fc.putUserData(IndexingDataKeys.PROJECT, project);
           }
 
-          try {
-            ProgressManager.checkCanceled();
-            updateSingleIndex(indexId, file, fc);
+          if (parallel) {
+            affectedIndices.add(indexId);
           }
-          catch (ProcessCanceledException e) {
-            myChangedFilesCollector.scheduleForUpdate(file);
-            throw e;
-          }
-          catch (StorageException e) {
-            requestRebuild(indexId);
-            LOG.info(e);
+          else {
+            updateIndexWithContent(indexId, file, fc, batch);
           }
         }
       }
 
+      if (!affectedIndices.isEmpty()) {
+        // every index is updated under its own lock, so the mappers of different indices don't need to wait for each other,
+        // except for the ones using PSI
+        final FileContentImpl sharedContent = fc;
+        sharedContent.setShared();
+        JobLauncher.getInstance().invokeConcurrentlyUnderProgress(affectedIndices, ProgressManager.getInstance().getProgressIndicator(), false,
+                                                                  new Processor<ID<?, ?>>() {
+                                                                    @Override
+                                                                    public boolean process(ID<?, ?> indexId) {
+                                                                      try {
+                                                                        updateIndexWithContent(indexId, file, sharedContent, batch);
+                                                                      }
+                                                                      finally {
+                                                                        sharedContent.releasePsiFile();
+                                                                      }
+                                                                      return true;
+                                                                    }
+                                                                  });
+      }
+
       if (psiFile != null) {
         psiFile.putUserData(PsiFileImpl.BUILDING_STUB, null);
       }
@@ -1685,6 +1741,27 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     }
   }
 
+  private void updateIndexWithContent(@NotNull ID<?, ?> indexId,
+                                      @NotNull VirtualFile file,
+                                      @NotNull FileContentImpl fc,
+                                      @Nullable IndexUpdateBatch batch) {
+    try {
+      ProgressManager.checkCanceled();
+      if (batch != null && batch.add(indexId, file, fc)) {
+        return;
+      }
+      updateSingleIndex(indexId, file, fc);
+    }
+    catch (ProcessCanceledException e) {
+      myChangedFilesCollector.scheduleForUpdate(file);
+      throw e;
+    }
+    catch (StorageException e) {
+      requestRebuild(indexId);
+      LOG.info(e);
+    }
+  }
+
   private void updateSingleIndex(final ID<?, ?> indexId, @NotNull final VirtualFile file, @Nullable final FileContent currentFC)
     throws StorageException {
     if (ourRebuildStatus.get(indexId).get() == REQUIRES_REBUILD) {
@@ -1720,11 +1797,15 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       throw storageException;
     }
 
+    updateIndexingStamp(indexId, file, currentFC != null);
+  }
+
+  private static void updateIndexingStamp(@NotNull final ID<?, ?> indexId, @NotNull final VirtualFile file, final boolean indexed) {
     ApplicationManager.getApplication().runReadAction(new Runnable() {
       @Override
       public void run() {
         if (file.isValid()) {
-          if (currentFC != null) {
+          if (indexed) {
             IndexingStamp.update(file, indexId, IndexInfrastructure.getIndexCreationStamp(indexId));
           }
           else {
@@ -1736,6 +1817,103 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     });
   }
 
+  /**
+   * Collects updates of many files to apply them to every {@link MapReduceIndex} at once, see {@link MapReduceIndex.BatchUpdate}.
+   * Indexing stamps of the files are updated only after the data is applied, so an interrupted batch leaves the files unindexed.
+   * Other indices are updated right away.
+   */
+  private class IndexUpdateBatch {
+    private static final int MAX_FILES = 100;
+
+    private final Map<ID<?, ?>, MapReduceIndex.BatchUpdate> myUpdates = new THashMap<ID<?, ?>, MapReduceIndex.BatchUpdate>();
+    private final Map<ID<?, ?>, List<VirtualFile>> myFiles = new THashMap<ID<?, ?>, List<VirtualFile>>();
+    private final Set<VirtualFile> myAllFiles = new THashSet<VirtualFile>();
+
+    /**
+     * @return false if the index doesn't support batch updates and has to be updated directly
+     */
+    @SuppressWarnings("unchecked")
+    boolean add(@NotNull ID<?, ?> indexId, @NotNull VirtualFile file, @NotNull FileContent content) {
+      if (ourRebuildStatus.get(indexId).get() == REQUIRES_REBUILD) {
+        return true; // the index is scheduled for rebuild, no need to update
+      }
+      final UpdatableIndex<?, ?, FileContent> index = getIndex(indexId);
+      if (!(index instanceof MapReduceIndex)) {
+        return false;
+      }
+      myLocalModCount++;
+
+      MapReduceIndex.BatchUpdate update;
+      synchronized (this) {
+        update = myUpdates.get(indexId);
+        if (update == null) {
+          update = ((MapReduceIndex<?, ?, FileContent>)index).startBatchUpdate();
+          myUpdates.put(indexId, update);
+          myFiles.put(indexId, new ArrayList<VirtualFile>());
+        }
+      }
+      // different indices of the same file may be updated concurrently, but each batch is filled by one thread at a time
+      update.update(Math.abs(getFileId(file)), content);
+      synchronized (this) {
+        myFiles.get(indexId).add(file);
+        myAllFiles.add(file);
+      }
+      return true;
+    }
+
+    synchronized void apply() {
+      if (myAllFiles.isEmpty()) {
+        return;
+      }
+      try {
+        for (Map.Entry<ID<?, ?>, MapReduceIndex.BatchUpdate> entry : myUpdates.entrySet()) {
+          applyUpdate(entry.getKey(), entry.getValue(), myFiles.get(entry.getKey()));
+        }
+        for (VirtualFile file : myAllFiles) {
+          IndexingStamp.flushCache(file);
+        }
+      }
+      finally {
+        myUpdates.clear();
+        myFiles.clear();
+        myAllFiles.clear();
+      }
+    }
+
+    private void applyUpdate(@NotNull ID<?, ?> indexId, @NotNull final MapReduceIndex.BatchUpdate update, @NotNull List<VirtualFile> files) {
+      if (ourRebuildStatus.get(indexId).get() == REQUIRES_REBUILD) {
+        return;
+      }
+      final Ref<StorageException> exRef = new Ref<StorageException>(null);
+      final StorageGuard.Holder lock = setDataBufferingEnabled(false);
+      try {
+        ProgressManager.getInstance().executeNonCancelableSection(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              update.apply();
+            }
+            catch (StorageException e) {
+              exRef.set(e);
+            }
+          }
+        });
+      }
+      finally {
+        lock.leave();
+      }
+
+      if (exRef.get() != null) {
+        requestRebuild(indexId);
+        LOG.info(exRef.get());
+        return;
+      }
+      for (VirtualFile file : files) {
+        updateIndexingStamp(indexId, file, true);
+      }
+    }
+  }
+
   private boolean needsFileContentLoading(ID<?, ?> indexId) {
     return !myNotRequiringContentIndices.contains(indexId);
   }
@@ -1786,6 +1964,9 @@ public class FileBasedIndexImpl extends FileBasedIndex {
 
   private final class ChangedFilesCollector extends VirtualFileAdapter {
     private final Set<VirtualFile> myFilesToUpdate = new ConcurrentHashSet<VirtualFile>();
+    // files taken by a batch of forceUpdate(), they stay in myFilesToUpdate until the batch is applied;
+    // the value tells whether the file was scheduled for update again meanwhile
+    private final Map<VirtualFile, Boolean> myFilesInBatches = new THashMap<VirtualFile, Boolean>();
     private final Queue<InvalidationTask> myFutureInvalidations = new ConcurrentLinkedQueue<InvalidationTask>();
 
     private final ManagingFS myManagingFS = ManagingFS.getInstance();
@@ -1799,6 +1980,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     @Override
     public void fileDeleted(@NotNull final VirtualFileEvent event) {
       myFilesToUpdate.remove(event.getFile()); // no need to update it anymore
+      myFilesTooLarge.remove(event.getFile());
     }
 
     @Override
@@ -1892,7 +2074,12 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     }
 
     public void scheduleForUpdate(VirtualFile file) {
-      myFilesToUpdate.add(file);
+      synchronized (myFilesInBatches) {
+        if (myFilesInBatches.containsKey(file)) {
+          myFilesInBatches.put(file, Boolean.TRUE);
+        }
+        myFilesToUpdate.add(file);
+      }
     }
 
     private void invalidateIndices(@NotNull final VirtualFile file, final boolean markForReindex) {
@@ -2077,24 +2264,41 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       myChangedFilesCollector.ensureAllInvalidateTasksCompleted();
       ProjectIndexableFilesFilter indexableFilesFilter = projectIndexableFiles(project);
 
-      for (VirtualFile file : getAllFilesToUpdate()) {
-        if (indexableFilesFilter != null &&
-            file instanceof VirtualFileWithId &&
-            !indexableFilesFilter.contains(((VirtualFileWithId)file).getId())) {
-          continue;
-        }
-
-        if (filter == null || filter.accept(file) || Comparing.equal(file, restrictedTo)) {
-          try {
-            myForceUpdateSemaphore.down();
-            // process only files that can affect result
-            processFileImpl(project, new com.intellij.ide.caches.FileContent(file), onlyRemoveOutdatedData);
+      // the semaphore is held from the first file of a batch until the batch is applied,
+      // so that the threads waiting for it below see the data of the files taken by other threads
+      final IndexUpdateBatch batch = new IndexUpdateBatch();
+      final List<VirtualFile> batchFiles = new ArrayList<VirtualFile>();
+      try {
+        for (VirtualFile file : getAllFilesToUpdate()) {
+          if (indexableFilesFilter != null &&
+              file instanceof VirtualFileWithId &&
+              !indexableFilesFilter.contains(((VirtualFileWithId)file).getId())) {
+            continue;
           }
-          finally {
-            myForceUpdateSemaphore.up();
+
+          if (filter == null || filter.accept(file) || Comparing.equal(file, restrictedTo)) {
+            if (batchFiles.isEmpty()) {
+              myForceUpdateSemaphore.down();
+            }
+            if (takeForBatch(file)) {
+              batchFiles.add(file);
+              // process only files that can affect result
+              doProcessFile(project, new com.intellij.ide.caches.FileContent(file), onlyRemoveOutdatedData, batch);
+              if (batchFiles.size() >= IndexUpdateBatch.MAX_FILES) {
+                applyBatch(batch, batchFiles);
+              }
+            }
+            else if (batchFiles.isEmpty()) {
+              myForceUpdateSemaphore.up();
+            }
           }
         }
       }
+      finally {
+        if (!batchFiles.isEmpty()) {
+          applyBatch(batch, batchFiles);
+        }
+      }
 
       // If several threads entered the method at the same time and there were files to update,
       // all the threads should leave the method synchronously after all the files scheduled for update are reindexed,
@@ -2108,12 +2312,56 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       }
     }
 
+    private void applyBatch(@NotNull IndexUpdateBatch batch, @NotNull List<VirtualFile> batchFiles) {
+      boolean applied = false;
+      try {
+        batch.apply();
+        applied = true;
+      }
+      finally {
+        synchronized (myFilesInBatches) {
+          for (VirtualFile file : batchFiles) {
+            // the files whose data wasn't stored or that were changed again stay scheduled for update
+            if (!myFilesInBatches.remove(file).booleanValue() && applied) {
+              myFilesToUpdate.remove(file);
+            }
+          }
+        }
+        batchFiles.clear();
+        myForceUpdateSemaphore.up();
+      }
+    }
+
     private void processFileImpl(Project project,
                                  @NotNull final com.intellij.ide.caches.FileContent fileContent,
                                  boolean onlyRemoveOutdatedData) {
       final VirtualFile file = fileContent.getVirtualFile();
-      final boolean reallyRemoved = myFilesToUpdate.remove(file);
-      if (reallyRemoved && file.isValid()) {
+      if (myFilesToUpdate.remove(file)) {
+        doProcessFile(project, fileContent, onlyRemoveOutdatedData, null);
+      }
+    }
+
+    /**
+     * Takes the file for a batch, it's removed from the files to update once the batch is applied.
+     *
+     * @return false if the file isn't scheduled for update or is taken by a batch of another thread
+     */
+    private boolean takeForBatch(@NotNull VirtualFile file) {
+      synchronized (myFilesInBatches) {
+        if (!myFilesToUpdate.contains(file) || myFilesInBatches.containsKey(file)) {
+          return false;
+        }
+        myFilesInBatches.put(file, Boolean.FALSE);
+        return true;
+      }
+    }
+
+    private void doProcessFile(Project project,
+                               @NotNull final com.intellij.ide.caches.FileContent fileContent,
+                               boolean onlyRemoveOutdatedData,
+                               @Nullable IndexUpdateBatch batch) {
+      final VirtualFile file = fileContent.getVirtualFile();
+      if (file.isValid()) {
         if (onlyRemoveOutdatedData || isTooLarge(file)) {
           // on shutdown there is no need to re-index the file, just remove outdated data from indices
           final List<ID<?, ?>> affected = new ArrayList<ID<?, ?>>();
@@ -2125,7 +2373,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
           removeFileDataFromIndices(affected, file);
         }
         else {
-          indexFileContent(project, fileContent);
+          indexFileContent(project, fileContent, batch);
         }
         IndexingStamp.flushCache(file);
       }
@@ -2242,19 +2490,47 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   }
 
   private boolean isTooLarge(@NotNull VirtualFile file) {
+    boolean tooLarge = false;
     if (SingleRootFileViewProvider.isTooLargeForIntelligence(file)) {
       final FileType type = file.getFileType();
-      return !myNoLimitCheckTypes.contains(type);
+      tooLarge = !myNoLimitCheckTypes.contains(type);
     }
-    return false;
+    return rememberTooLarge(file, tooLarge);
   }
 
   private boolean isTooLarge(@NotNull VirtualFile file, long contentSize) {
+    boolean tooLarge = false;
     if (SingleRootFileViewProvider.isTooLargeForIntelligence(file, contentSize)) {
       final FileType type = file.getFileType();
-      return !myNoLimitCheckTypes.contains(type);
+      tooLarge = !myNoLimitCheckTypes.contains(type);
     }
-    return false;
+    return rememberTooLarge(file, tooLarge);
+  }
+
+  private boolean rememberTooLarge(@NotNull VirtualFile file, boolean tooLarge) {
+    if (tooLarge) {
+      myFilesTooLarge.add(file);
+    }
+    else {
+      myFilesTooLarge.remove(file);
+    }
+    return tooLarge;
+  }
+
+  /**
+   * @return the files which the indices requiring content skip because of their size, so they can't be found by words or trigrams.
+   * All the indexable files are checked when the indices are updated on startup and after root changes, the changed ones are checked
+   * again when they are scheduled for update.
+   */
+  @NotNull
+  public List<VirtualFile> getFilesTooLargeForIndexing() {
+    List<VirtualFile> result = new ArrayList<VirtualFile>();
+    for (VirtualFile file : myFilesTooLarge) {
+      if (file.isValid()) {
+        result.add(file);
+      }
+    }
+    return result;
   }
 
   @NotNull
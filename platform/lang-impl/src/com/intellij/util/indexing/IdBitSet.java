@@ -0,0 +1,625 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.util.ArrayUtil;
+import com.intellij.util.io.DataInputOutputUtil;
+import gnu.trove.TIntProcedure;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compressed set of non-negative input ids (a roaring bitmap). Ids are split into chunks of 2^16 by their high bits,
+ * every chunk keeps the low bits either as a sorted array while it's sparse or as a plain bitmap once it's dense,
+ * so large id sets of frequent keys take 2 bytes per id at most instead of 5+ bytes in a <code>TIntHashSet</code>.
+ * Ids are iterated in ascending order, intersection and union of sets are done chunk by chunk.
+ */
+final class IdBitSet implements Cloneable {
+  private static final int CHUNK_BITS = 16;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  // sorted array of this size takes as much memory as the bitmap for the whole chunk
+  private static final int MAX_ARRAY_SIZE = 4096;
+
+  private char[] myKeys;
+  private Chunk[] myChunks;
+  private int myChunkCount;
+  private int mySize;
+
+  IdBitSet() {
+    myKeys = new char[1];
+    myChunks = new Chunk[1];
+  }
+
+  int size() {
+    return mySize;
+  }
+
+  boolean isEmpty() {
+    return mySize == 0;
+  }
+
+  boolean contains(int id) {
+    int index = chunkIndex(highBits(id));
+    return index >= 0 && myChunks[index].contains((char)id);
+  }
+
+  boolean add(int id) {
+    assert id >= 0 : id;
+    char key = highBits(id);
+    int index = chunkIndex(key);
+    if (index < 0) {
+      index = -index - 1;
+      insertChunk(index, key, new ArrayChunk());
+    }
+    Chunk chunk = myChunks[index];
+    int sizeBefore = chunk.size();
+    myChunks[index] = chunk = chunk.add((char)id);
+    if (chunk.size() == sizeBefore) return false;
+    mySize++;
+    return true;
+  }
+
+  boolean remove(int id) {
+    int index = chunkIndex(highBits(id));
+    if (index < 0) return false;
+    Chunk chunk = myChunks[index];
+    int sizeBefore = chunk.size();
+    chunk = chunk.remove((char)id);
+    if (chunk.size() == sizeBefore) return false;
+    mySize--;
+    if (chunk.size() == 0) {
+      removeChunk(index);
+    }
+    else {
+      myChunks[index] = chunk;
+    }
+    return true;
+  }
+
+  void addAll(@NotNull IdBitSet set) {
+    for (int i = 0; i < set.myChunkCount; i++) {
+      char key = set.myKeys[i];
+      int index = chunkIndex(key);
+      if (index < 0) {
+        insertChunk(-index - 1, key, set.myChunks[i].copy());
+        mySize += set.myChunks[i].size();
+      }
+      else {
+        Chunk chunk = myChunks[index];
+        mySize -= chunk.size();
+        myChunks[index] = chunk = chunk.or(set.myChunks[i]);
+        mySize += chunk.size();
+      }
+    }
+  }
+
+  @NotNull
+  static IdBitSet intersection(@NotNull IdBitSet set1, @NotNull IdBitSet set2) {
+    IdBitSet result = new IdBitSet();
+    int i = 0;
+    int j = 0;
+    while (i < set1.myChunkCount && j < set2.myChunkCount) {
+      char key1 = set1.myKeys[i];
+      char key2 = set2.myKeys[j];
+      if (key1 < key2) {
+        i++;
+      }
+      else if (key1 > key2) {
+        j++;
+      }
+      else {
+        Chunk chunk = set1.myChunks[i++].and(set2.myChunks[j++]);
+        if (chunk.size() > 0) {
+          result.insertChunk(result.myChunkCount, key1, chunk);
+          result.mySize += chunk.size();
+        }
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  static IdBitSet union(@NotNull IdBitSet set1, @NotNull IdBitSet set2) {
+    IdBitSet result = set1.clone();
+    result.addAll(set2);
+    return result;
+  }
+
+  boolean forEach(@NotNull TIntProcedure procedure) {
+    for (int i = 0; i < myChunkCount; i++) {
+      if (!myChunks[i].forEach(myKeys[i] << CHUNK_BITS, procedure)) return false;
+    }
+    return true;
+  }
+
+  @NotNull
+  ValueContainer.IntIterator iterator() {
+    return new IdIterator();
+  }
+
+  @NotNull
+  int[] toArray() {
+    final int[] result = new int[mySize];
+    forEach(new TIntProcedure() {
+      int myIndex;
+
+      @Override
+      public boolean execute(int id) {
+        result[myIndex++] = id;
+        return true;
+      }
+    });
+    return result;
+  }
+
+  @Override
+  public IdBitSet clone() {
+    try {
+      IdBitSet clone = (IdBitSet)super.clone();
+      clone.myKeys = myKeys.clone();
+      clone.myChunks = new Chunk[myChunks.length];
+      for (int i = 0; i < myChunkCount; i++) {
+        clone.myChunks[i] = myChunks[i].copy();
+      }
+      return clone;
+    }
+    catch (CloneNotSupportedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  void save(@NotNull DataOutput out) throws IOException {
+    DataInputOutputUtil.writeINT(out, myChunkCount);
+    for (int i = 0; i < myChunkCount; i++) {
+      DataInputOutputUtil.writeINT(out, myKeys[i]);
+      myChunks[i].save(out);
+    }
+  }
+
+  @NotNull
+  static IdBitSet read(@NotNull DataInput in) throws IOException {
+    IdBitSet set = new IdBitSet();
+    int chunkCount = DataInputOutputUtil.readINT(in);
+    for (int i = 0; i < chunkCount; i++) {
+      char key = (char)DataInputOutputUtil.readINT(in);
+      Chunk chunk = Chunk.read(in);
+      set.insertChunk(i, key, chunk);
+      set.mySize += chunk.size();
+    }
+    return set;
+  }
+
+  private static char highBits(int id) {
+    return (char)(id >>> CHUNK_BITS);
+  }
+
+  private int chunkIndex(char key) {
+    return Arrays.binarySearch(myKeys, 0, myChunkCount, key);
+  }
+
+  private void insertChunk(int index, char key, @NotNull Chunk chunk) {
+    if (myChunkCount == myKeys.length) {
+      int newLength = myChunkCount * 2;
+      myKeys = Arrays.copyOf(myKeys, newLength);
+      myChunks = Arrays.copyOf(myChunks, newLength);
+    }
+    System.arraycopy(myKeys, index, myKeys, index + 1, myChunkCount - index);
+    System.arraycopy(myChunks, index, myChunks, index + 1, myChunkCount - index);
+    myKeys[index] = key;
+    myChunks[index] = chunk;
+    myChunkCount++;
+  }
+
+  private void removeChunk(int index) {
+    myChunkCount--;
+    System.arraycopy(myKeys, index + 1, myKeys, index, myChunkCount - index);
+    System.arraycopy(myChunks, index + 1, myChunks, index, myChunkCount - index);
+    myChunks[myChunkCount] = null;
+  }
+
+  private class IdIterator implements ValueContainer.IntIterator {
+    private int myChunkIndex;
+    private int myPosition;
+
+    private IdIterator() {
+      advance(0);
+    }
+
+    private void advance(int from) {
+      while (myChunkIndex < myChunkCount) {
+        myPosition = myChunks[myChunkIndex].nextPosition(from);
+        if (myPosition >= 0) return;
+        myChunkIndex++;
+        from = 0;
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return myChunkIndex < myChunkCount;
+    }
+
+    @Override
+    public int next() {
+      int id = myKeys[myChunkIndex] << CHUNK_BITS | myChunks[myChunkIndex].valueAt(myPosition);
+      advance(myPosition + 1);
+      return id;
+    }
+
+    @Override
+    public int size() {
+      return mySize;
+    }
+  }
+
+  /**
+   * Low 16 bits of the ids which have the same high bits. Modifications return the chunk which should replace this one,
+   * since the chunk changes its representation when it becomes dense or sparse.
+   */
+  private abstract static class Chunk {
+    abstract int size();
+
+    abstract boolean contains(char value);
+
+    @NotNull
+    abstract Chunk add(char value);
+
+    @NotNull
+    abstract Chunk remove(char value);
+
+    @NotNull
+    abstract Chunk and(@NotNull Chunk chunk);
+
+    @NotNull
+    abstract Chunk or(@NotNull Chunk chunk);
+
+    @NotNull
+    abstract Chunk copy();
+
+    abstract boolean forEach(int base, @NotNull TIntProcedure procedure);
+
+    /**
+     * @return position of the first value at or after the given position or -1 if there are no more values
+     */
+    abstract int nextPosition(int position);
+
+    abstract char valueAt(int position);
+
+    abstract void save(@NotNull DataOutput out) throws IOException;
+
+    @NotNull
+    static Chunk read(@NotNull DataInput in) throws IOException {
+      int size = DataInputOutputUtil.readINT(in);
+      if (size > MAX_ARRAY_SIZE) {
+        long[] words = new long[BitmapChunk.WORDS];
+        for (int i = 0; i < words.length; i++) {
+          words[i] = in.readLong();
+        }
+        return new BitmapChunk(words, size);
+      }
+      char[] values = new char[size];
+      int value = 0;
+      for (int i = 0; i < size; i++) {
+        value += DataInputOutputUtil.readINT(in);
+        values[i] = (char)value;
+      }
+      return new ArrayChunk(values, size);
+    }
+  }
+
+  private static final class ArrayChunk extends Chunk {
+    private char[] myValues;
+    private int mySize;
+
+    private ArrayChunk() {
+      this(ArrayUtil.EMPTY_CHAR_ARRAY, 0);
+    }
+
+    private ArrayChunk(@NotNull char[] values, int size) {
+      myValues = values;
+      mySize = size;
+    }
+
+    @Override
+    int size() {
+      return mySize;
+    }
+
+    @Override
+    boolean contains(char value) {
+      return Arrays.binarySearch(myValues, 0, mySize, value) >= 0;
+    }
+
+    @NotNull
+    @Override
+    Chunk add(char value) {
+      int index = Arrays.binarySearch(myValues, 0, mySize, value);
+      if (index >= 0) return this;
+      if (mySize == MAX_ARRAY_SIZE) {
+        return toBitmap().add(value);
+      }
+      index = -index - 1;
+      if (mySize == myValues.length) {
+        myValues = Arrays.copyOf(myValues, Math.min(MAX_ARRAY_SIZE, Math.max(4, mySize * 2)));
+      }
+      System.arraycopy(myValues, index, myValues, index + 1, mySize - index);
+      myValues[index] = value;
+      mySize++;
+      return this;
+    }
+
+    @NotNull
+    @Override
+    Chunk remove(char value) {
+      int index = Arrays.binarySearch(myValues, 0, mySize, value);
+      if (index < 0) return this;
+      mySize--;
+      System.arraycopy(myValues, index + 1, myValues, index, mySize - index);
+      if (mySize < myValues.length / 4) {
+        myValues = Arrays.copyOf(myValues, mySize * 2);
+      }
+      return this;
+    }
+
+    @NotNull
+    @Override
+    Chunk and(@NotNull Chunk chunk) {
+      char[] result = new char[Math.min(mySize, chunk.size())];
+      int size = 0;
+      if (chunk instanceof ArrayChunk) {
+        ArrayChunk other = (ArrayChunk)chunk;
+        int i = 0;
+        int j = 0;
+        while (i < mySize && j < other.mySize) {
+          char value1 = myValues[i];
+          char value2 = other.myValues[j];
+          if (value1 < value2) {
+            i++;
+          }
+          else if (value1 > value2) {
+            j++;
+          }
+          else {
+            result[size++] = value1;
+            i++;
+            j++;
+          }
+        }
+      }
+      else {
+        for (int i = 0; i < mySize; i++) {
+          if (chunk.contains(myValues[i])) result[size++] = myValues[i];
+        }
+      }
+      return new ArrayChunk(result, size);
+    }
+
+    @NotNull
+    @Override
+    Chunk or(@NotNull Chunk chunk) {
+      if (!(chunk instanceof ArrayChunk)) {
+        return chunk.or(this);
+      }
+      ArrayChunk other = (ArrayChunk)chunk;
+      char[] result = new char[mySize + other.mySize];
+      int size = 0;
+      int i = 0;
+      int j = 0;
+      while (i < mySize || j < other.mySize) {
+        if (j == other.mySize || i < mySize && myValues[i] < other.myValues[j]) {
+          result[size++] = myValues[i++];
+        }
+        else if (i == mySize || other.myValues[j] < myValues[i]) {
+          result[size++] = other.myValues[j++];
+        }
+        else {
+          result[size++] = myValues[i++];
+          j++;
+        }
+      }
+      ArrayChunk union = new ArrayChunk(result, size);
+      return size > MAX_ARRAY_SIZE ? union.toBitmap() : union;
+    }
+
+    @NotNull
+    @Override
+    Chunk copy() {
+      return new ArrayChunk(Arrays.copyOf(myValues, mySize), mySize);
+    }
+
+    @Override
+    boolean forEach(int base, @NotNull TIntProcedure procedure) {
+      for (int i = 0; i < mySize; i++) {
+        if (!procedure.execute(base | myValues[i])) return false;
+      }
+      return true;
+    }
+
+    @Override
+    int nextPosition(int position) {
+      return position < mySize ? position : -1;
+    }
+
+    @Override
+    char valueAt(int position) {
+      return myValues[position];
+    }
+
+    @Override
+    void save(@NotNull DataOutput out) throws IOException {
+      DataInputOutputUtil.writeINT(out, mySize);
+      int previous = 0;
+      for (int i = 0; i < mySize; i++) {
+        DataInputOutputUtil.writeINT(out, myValues[i] - previous);
+        previous = myValues[i];
+      }
+    }
+
+    @NotNull
+    private BitmapChunk toBitmap() {
+      long[] words = new long[BitmapChunk.WORDS];
+      for (int i = 0; i < mySize; i++) {
+        char value = myValues[i];
+        words[value >>> 6] |= 1L << value;
+      }
+      return new BitmapChunk(words, mySize);
+    }
+  }
+
+  private static final class BitmapChunk extends Chunk {
+    private static final int WORDS = CHUNK_SIZE / 64;
+    private final long[] myWords;
+    private int mySize;
+
+    private BitmapChunk(@NotNull long[] words, int size) {
+      myWords = words;
+      mySize = size;
+    }
+
+    @Override
+    int size() {
+      return mySize;
+    }
+
+    @Override
+    boolean contains(char value) {
+      return (myWords[value >>> 6] & 1L << value) != 0;
+    }
+
+    @NotNull
+    @Override
+    Chunk add(char value) {
+      long word = myWords[value >>> 6];
+      long bit = 1L << value;
+      if ((word & bit) == 0) {
+        myWords[value >>> 6] = word | bit;
+        mySize++;
+      }
+      return this;
+    }
+
+    @NotNull
+    @Override
+    Chunk remove(char value) {
+      long word = myWords[value >>> 6];
+      long bit = 1L << value;
+      if ((word & bit) == 0) return this;
+      myWords[value >>> 6] = word & ~bit;
+      mySize--;
+      return mySize > MAX_ARRAY_SIZE ? this : toArray();
+    }
+
+    @NotNull
+    @Override
+    Chunk and(@NotNull Chunk chunk) {
+      if (!(chunk instanceof BitmapChunk)) {
+        return chunk.and(this);
+      }
+      long[] otherWords = ((BitmapChunk)chunk).myWords;
+      long[] words = new long[WORDS];
+      int size = 0;
+      for (int i = 0; i < WORDS; i++) {
+        words[i] = myWords[i] & otherWords[i];
+        size += Long.bitCount(words[i]);
+      }
+      BitmapChunk result = new BitmapChunk(words, size);
+      return size > MAX_ARRAY_SIZE ? result : result.toArray();
+    }
+
+    @NotNull
+    @Override
+    Chunk or(@NotNull Chunk chunk) {
+      BitmapChunk result = new BitmapChunk(myWords.clone(), mySize);
+      if (chunk instanceof BitmapChunk) {
+        long[] otherWords = ((BitmapChunk)chunk).myWords;
+        int size = 0;
+        for (int i = 0; i < WORDS; i++) {
+          result.myWords[i] |= otherWords[i];
+          size += Long.bitCount(result.myWords[i]);
+        }
+        result.mySize = size;
+      }
+      else {
+        ArrayChunk other = (ArrayChunk)chunk;
+        for (int i = 0; i < other.mySize; i++) {
+          result.add(other.myValues[i]);
+        }
+      }
+      return result;
+    }
+
+    @NotNull
+    @Override
+    Chunk copy() {
+      return new BitmapChunk(myWords.clone(), mySize);
+    }
+
+    @Override
+    boolean forEach(int base, @NotNull TIntProcedure procedure) {
+      for (int i = 0; i < WORDS; i++) {
+        long word = myWords[i];
+        while (word != 0) {
+          if (!procedure.execute(base | i << 6 | Long.numberOfTrailingZeros(word))) return false;
+          word &= word - 1;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    int nextPosition(int position) {
+      if (position >= CHUNK_SIZE) return -1;
+      int index = position >>> 6;
+      long word = myWords[index] & -1L << position;
+      while (true) {
+        if (word != 0) return index << 6 | Long.numberOfTrailingZeros(word);
+        if (++index == WORDS) return -1;
+        word = myWords[index];
+      }
+    }
+
+    @Override
+    char valueAt(int position) {
+      return (char)position;
+    }
+
+    @Override
+    void save(@NotNull DataOutput out) throws IOException {
+      DataInputOutputUtil.writeINT(out, mySize);
+      for (long word : myWords) {
+        out.writeLong(word);
+      }
+    }
+
+    @NotNull
+    private ArrayChunk toArray() {
+      char[] values = new char[mySize];
+      int size = 0;
+      for (int i = 0; i < WORDS; i++) {
+        long word = myWords[i];
+        while (word != 0) {
+          values[size++] = (char)(i << 6 | Long.numberOfTrailingZeros(word));
+          word &= word - 1;
+        }
+      }
+      return new ArrayChunk(values, size);
+    }
+  }
+}
@@ -17,6 +17,7 @@
 package com.intellij.util.indexing;
 
 import com.intellij.util.Processor;
+import gnu.trove.TIntObjectHashMap;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.Flushable;
@@ -33,6 +34,12 @@ public interface IndexStorage<Key, Value> extends Flushable {
 
   void removeAllValues(Key key, int inputId) throws StorageException;
 
+  /**
+   * Applies changes made by several inputs to the values of the key at once: values associated with removed inputs are removed first,
+   * then added values are associated with their inputs.
+   */
+  void updateValues(Key key, @NotNull int[] removedInputIds, @NotNull TIntObjectHashMap<Value> addedValues) throws StorageException;
+
   void clear() throws StorageException;
   
   @NotNull
@@ -22,8 +22,7 @@ import com.intellij.openapi.vfs.newvfs.FileAttribute;
 import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
 import com.intellij.util.containers.ConcurrentHashMap;
 import com.intellij.util.io.DataInputOutputUtil;
-import gnu.trove.TObjectLongHashMap;
-import gnu.trove.TObjectLongProcedure;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.DataInputStream;
@@ -40,26 +39,33 @@ public class IndexingStamp {
   }
 
   /**
-   * The class is meant to be accessed from synchronized block only 
+   * Index stamps of a file, indexed by {@link #getOrdinal(ID)}, 0 means no stamp.
+   * The array is replaced on every change, so stamps are read without locking.
+   * Changes are made under the lock of the file's stripe only, see {@link #getStripeLock(int)}.
    */
   private static class Timestamps {
     private static final FileAttribute PERSISTENCE = new FileAttribute("__index_stamps__", 1, false);
-    private TObjectLongHashMap<ID<?, ?>> myIndexStamps;
+    private static final long[] EMPTY = new long[0];
+    private volatile long[] myIndexStamps = EMPTY;
     private boolean myIsDirty = false;
 
     private Timestamps(@Nullable DataInputStream stream) throws IOException {
       if (stream != null) {
         try {
-
+          long[] stamps = EMPTY;
           long dominatingIndexStamp = DataInputOutputUtil.readTIME(stream);
           while(stream.available() > 0) {
             ID<?, ?> id = ID.findById(DataInputOutputUtil.readINT(stream));
             if (id != null) {
               long stamp = IndexInfrastructure.getIndexCreationStamp(id);
-              if (myIndexStamps == null) myIndexStamps = new TObjectLongHashMap<ID<?, ?>>(5, 0.98f);
-              if (stamp <= dominatingIndexStamp) myIndexStamps.put(id, stamp);
+              if (stamp <= dominatingIndexStamp) {
+                int ordinal = getOrdinal(id);
+                stamps = ensureCapacity(stamps, ordinal);
+                stamps[ordinal] = stamp;
+              }
             }
           }
+          myIndexStamps = stamps;
         }
         finally {
           stream.close();
@@ -67,54 +73,47 @@ public class IndexingStamp {
       }
     }
 
+    private static long[] ensureCapacity(long[] stamps, int index) {
+      if (index < stamps.length) return stamps;
+      long[] newStamps = new long[index + 1];
+      System.arraycopy(stamps, 0, newStamps, 0, stamps.length);
+      return newStamps;
+    }
+
     private void writeToStream(final DataOutputStream stream) throws IOException {
-      if (myIndexStamps != null && !myIndexStamps.isEmpty()) {
-        final long[] dominatingIndexStamp = new long[1];
-        myIndexStamps.forEachEntry(
-          new TObjectLongProcedure<ID<?, ?>>() {
-            @Override
-            public boolean execute(ID<?, ?> a, long b) {
-              dominatingIndexStamp[0] = Math.max(dominatingIndexStamp[0], b);
-              return true;
-            }
-          }
-        );
-        DataInputOutputUtil.writeTIME(stream, dominatingIndexStamp[0]);
-        myIndexStamps.forEachEntry(new TObjectLongProcedure<ID<?, ?>>() {
-          @Override
-          public boolean execute(final ID<?, ?> id, final long timestamp) {
-            try {
-              DataInputOutputUtil.writeINT(stream, id.getUniqueId());
-              return true;
-            }
-            catch (IOException e) {
-              throw new RuntimeException(e);
-            }
-          }
-        });
+      long[] stamps = myIndexStamps;
+      long dominatingIndexStamp = 0;
+      for (long stamp : stamps) {
+        dominatingIndexStamp = Math.max(dominatingIndexStamp, stamp);
+      }
+      if (dominatingIndexStamp > 0) {
+        DataInputOutputUtil.writeTIME(stream, dominatingIndexStamp);
+        ID<?, ?>[] ids = ourIdsByOrdinal;
+        for (int ordinal = 0; ordinal < stamps.length; ordinal++) {
+          if (stamps[ordinal] != 0) DataInputOutputUtil.writeINT(stream, ids[ordinal].getUniqueId());
+        }
       } else {
         DataInputOutputUtil.writeTIME(stream, DataInputOutputUtil.timeBase);
       }
     }
 
     public long get(ID<?, ?> id) {
-      return myIndexStamps != null? myIndexStamps.get(id) : 0L;
+      long[] stamps = myIndexStamps;
+      int index = getOrdinal(id);
+      return index < stamps.length ? stamps[index] : 0L;
     }
 
     public void set(ID<?, ?> id, long tmst) {
-      try {
-        if (tmst < 0) {
-          if (myIndexStamps == null) return;
-          myIndexStamps.remove(id);
-          return;
-        }
-        if (myIndexStamps == null) myIndexStamps = new TObjectLongHashMap<ID<?, ?>>(5, 0.98f);
-
-        myIndexStamps.put(id, tmst);
-      }
-      finally {
-        myIsDirty = true;
+      int index = getOrdinal(id);
+      long[] stamps = myIndexStamps;
+      if (tmst < 0) {
+        if (index >= stamps.length || stamps[index] == 0) return;
+        tmst = 0;
       }
+      long[] newStamps = index < stamps.length ? stamps.clone() : ensureCapacity(stamps, index);
+      newStamps[index] = tmst;
+      myIndexStamps = newStamps;
+      myIsDirty = true;
     }
 
     public boolean isDirty() {
@@ -122,10 +121,57 @@ public class IndexingStamp {
     }
   }
 
+  // keyed by the file rather than its id, since ids of deleted files are reused by the new ones
   private static final ConcurrentHashMap<VirtualFile, Timestamps> myTimestampsCache = new ConcurrentHashMap<VirtualFile, Timestamps>();
+  private static final Object[] ourStripeLocks = new Object[16];
+  static {
+    for (int i = 0; i < ourStripeLocks.length; i++) {
+      ourStripeLocks[i] = new Object();
+    }
+  }
+  // ordinals of index ids plus one, indexed by ID.getUniqueId(), which is shared with stub indices and may be sparse
+  private static volatile int[] ourOrdinals = new int[0];
+  private static volatile ID<?, ?>[] ourIdsByOrdinal = new ID<?, ?>[0];
+  private static final Object ourOrdinalsLock = new Object();
   private static final int CAPACITY = 100;
   private static final ArrayBlockingQueue<VirtualFile> myFinishedFiles = new ArrayBlockingQueue<VirtualFile>(CAPACITY);
 
+  /**
+   * Guards loading, changing and flushing of the stamps of files whose ids fall into the same stripe,
+   * so that stamps are never read from the attribute while they are being written to it.
+   */
+  private static Object getStripeLock(int fileId) {
+    return ourStripeLocks[fileId & (ourStripeLocks.length - 1)];
+  }
+
+  /**
+   * @return dense number of the index, so that the stamps of a file take as many slots as there are indices the file has stamps for
+   */
+  private static int getOrdinal(@NotNull ID<?, ?> id) {
+    int uniqueId = id.getUniqueId();
+    int[] ordinals = ourOrdinals;
+    if (uniqueId < ordinals.length && ordinals[uniqueId] != 0) return ordinals[uniqueId] - 1;
+
+    synchronized (ourOrdinalsLock) {
+      ordinals = ourOrdinals;
+      if (uniqueId < ordinals.length && ordinals[uniqueId] != 0) return ordinals[uniqueId] - 1;
+
+      ID<?, ?>[] ids = ourIdsByOrdinal;
+      int ordinal = ids.length;
+      ID<?, ?>[] newIds = new ID<?, ?>[ordinal + 1];
+      System.arraycopy(ids, 0, newIds, 0, ordinal);
+      newIds[ordinal] = id;
+      // published before the ordinal, so that whoever sees the ordinal finds the id by it
+      ourIdsByOrdinal = newIds;
+
+      int[] newOrdinals = new int[Math.max(ordinals.length, uniqueId + 1)];
+      System.arraycopy(ordinals, 0, newOrdinals, 0, ordinals.length);
+      newOrdinals[uniqueId] = ordinal + 1;
+      ourOrdinals = newOrdinals;
+      return ordinal;
+    }
+  }
+
   public static boolean isFileIndexed(VirtualFile file, ID<?, ?> indexName, final long indexCreationStamp) {
     try {
       return getIndexStamp(file, indexName) == indexCreationStamp;
@@ -141,18 +187,16 @@ public class IndexingStamp {
   }
 
   public static long getIndexStamp(VirtualFile file, ID<?, ?> indexName) {
-    synchronized (myTimestampsCache) {
-      Timestamps stamp = createOrGetTimeStamp(file);
-      if (stamp != null) return stamp.get(indexName);
-      return 0;
-    }
+    Timestamps stamp = createOrGetTimeStamp(file);
+    if (stamp != null) return stamp.get(indexName);
+    return 0;
   }
 
   private static Timestamps createOrGetTimeStamp(VirtualFile file) {
     if (file instanceof NewVirtualFile && file.isValid()) {
       Timestamps timestamps = myTimestampsCache.get(file);
       if (timestamps == null) {
-        synchronized (myTimestampsCache) { // avoid synchroneous reads TODO:
+        synchronized (getStripeLock(((NewVirtualFile)file).getId())) {
           timestamps = myTimestampsCache.get(file);
           if (timestamps == null) {
             final DataInputStream stream = Timestamps.PERSISTENCE.readAttribute(file);
@@ -172,7 +216,8 @@ public class IndexingStamp {
   }
 
   public static void update(final VirtualFile file, final ID<?, ?> indexName, final long indexCreationStamp) {
-    synchronized (myTimestampsCache) {
+    if (!(file instanceof NewVirtualFile)) return;
+    synchronized (getStripeLock(((NewVirtualFile)file).getId())) {
       try {
         Timestamps stamp = createOrGetTimeStamp(file);
         if (stamp != null) stamp.set(indexName, indexCreationStamp);
@@ -195,21 +240,20 @@ public class IndexingStamp {
 
       if (files != null) {
         for(VirtualFile file:files) {
-          synchronized (myTimestampsCache) {
+          if (!(file instanceof NewVirtualFile)) continue;
+          synchronized (getStripeLock(((NewVirtualFile)file).getId())) {
             Timestamps timestamp = myTimestampsCache.remove(file);
             if (timestamp == null) continue;
-            synchronized (myTimestampsCache) {
-              try {
-                if (timestamp.isDirty() && file.isValid()) {
-                  final DataOutputStream sink = Timestamps.PERSISTENCE.writeAttribute(file);
-                  timestamp.writeToStream(sink);
-                  sink.close();
-                }
-              }
-              catch (IOException e) {
-                throw new RuntimeException(e);
+            try {
+              if (timestamp.isDirty() && file.isValid()) {
+                final DataOutputStream sink = Timestamps.PERSISTENCE.writeAttribute(file);
+                timestamp.writeToStream(sink);
+                sink.close();
               }
             }
+            catch (IOException e) {
+              throw new RuntimeException(e);
+            }
           }
         }
       }
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.util.indexing;
+
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntIterator;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Read-only {@code Map<Integer, Void>} view of keys produced by {@link IntDataIndexer}, which lets
+ * {@link MapReduceIndex} iterate the primitive set directly and box keys only when someone asks for the map view.
+ */
+class IntKeyMap extends AbstractMap<Integer, Void> {
+  private final TIntHashSet myKeys;
+
+  IntKeyMap(@NotNull TIntHashSet keys) {
+    myKeys = keys;
+  }
+
+  @NotNull
+  TIntHashSet getKeys() {
+    return myKeys;
+  }
+
+  @Override
+  public int size() {
+    return myKeys.size();
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return key instanceof Integer && myKeys.contains(((Integer)key).intValue());
+  }
+
+  @Override
+  public Void get(Object key) {
+    return null;
+  }
+
+  @NotNull
+  @Override
+  public Set<Integer> keySet() {
+    return new IntKeySet(myKeys);
+  }
+
+  @NotNull
+  @Override
+  public Set<Entry<Integer, Void>> entrySet() {
+    return new AbstractSet<Entry<Integer, Void>>() {
+      @Override
+      public Iterator<Entry<Integer, Void>> iterator() {
+        final Iterator<Integer> keys = keySet().iterator();
+        return new Iterator<Entry<Integer, Void>>() {
+          @Override
+          public boolean hasNext() {
+            return keys.hasNext();
+          }
+
+          @Override
+          public Entry<Integer, Void> next() {
+            return new SimpleImmutableEntry<Integer, Void>(keys.next(), null);
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return myKeys.size();
+      }
+    };
+  }
+
+  /**
+   * Read-only {@code Set<Integer>} view of int keys, which the inputs index of {@link MapReduceIndex} stores and reads
+   * without boxing them.
+   */
+  static class IntKeySet extends AbstractSet<Integer> {
+    private final TIntHashSet myKeys;
+
+    IntKeySet(@NotNull TIntHashSet keys) {
+      myKeys = keys;
+    }
+
+    @NotNull
+    TIntHashSet getKeys() {
+      return myKeys;
+    }
+
+    @Override
+    public Iterator<Integer> iterator() {
+      final TIntIterator iterator = myKeys.iterator();
+      return new Iterator<Integer>() {
+        @Override
+        public boolean hasNext() {
+          return iterator.hasNext();
+        }
+
+        @Override
+        public Integer next() {
+          return iterator.next();
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return o instanceof Integer && myKeys.contains(((Integer)o).intValue());
+    }
+
+    @Override
+    public int size() {
+      return myKeys.size();
+    }
+  }
+}
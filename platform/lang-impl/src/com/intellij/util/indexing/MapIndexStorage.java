@@ -24,6 +24,8 @@ import com.intellij.util.containers.SLRUCache;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.KeyDescriptor;
 import com.intellij.util.io.PersistentMap;
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TIntObjectProcedure;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -261,6 +263,40 @@ public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Valu
     }
   }
 
+  @Override
+  public void updateValues(Key key, @NotNull int[] removedInputIds, @NotNull TIntObjectHashMap<Value> addedValues) throws StorageException {
+    try {
+      myMap.markDirty();
+      if (myHighKeySelectivity && removedInputIds.length == 0 && myCache.getIfCached(key) == null) {
+        // do not pollute the cache with highly selective data
+        ChangeTrackingValueContainer<Value> valueContainer = new ChangeTrackingValueContainer<Value>(null);
+        addValues(valueContainer, addedValues);
+        myMap.put(key, valueContainer);
+        return;
+      }
+
+      // important: assuming the key exists in the index if there are removed inputs
+      ChangeTrackingValueContainer<Value> valueContainer = read(key);
+      for (int inputId : removedInputIds) {
+        valueContainer.removeAssociatedValue(inputId);
+      }
+      addValues(valueContainer, addedValues);
+    }
+    catch (IOException e) {
+      throw new StorageException(e);
+    }
+  }
+
+  static <Value> void addValues(@NotNull final UpdatableValueContainer<Value> valueContainer, @NotNull TIntObjectHashMap<Value> addedValues) {
+    addedValues.forEachEntry(new TIntObjectProcedure<Value>() {
+      @Override
+      public boolean execute(int inputId, Value value) {
+        valueContainer.addValue(inputId, value);
+        return true;
+      }
+    });
+  }
+
   @Override
   public void removeAllValues(Key key, int inputId) throws StorageException {
     try {
@@ -22,9 +22,9 @@ import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.CommonProcessors;
 import com.intellij.util.Processor;
+import com.intellij.util.io.EqualityPolicy;
 import com.intellij.util.io.PersistentHashMap;
-import gnu.trove.THashMap;
-import gnu.trove.TObjectObjectProcedure;
+import gnu.trove.*;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -49,6 +49,7 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
   private final ReentrantReadWriteLock myLock = new ReentrantReadWriteLock();
   
   private Factory<PersistentHashMap<Integer, Collection<Key>>> myInputsIndexFactory;
+  @Nullable private Comparator<Key> myKeyHashComparator;
 
 
   public MapReduceIndex(@Nullable final ID<Key, Value> indexId, DataIndexer<Key, Value, Input> indexer, @NotNull IndexStorage<Key, Value> storage) {
@@ -211,16 +212,154 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
   @Override
   public final void update(final int inputId, @Nullable Input content) throws StorageException {
     assert myInputsIndex != null;
+    updateWithMap(inputId, mapInput(content), createOldKeysGetter(inputId));
+  }
 
-    final Map<Key, Value> data = content != null ? myIndexer.map(content) : Collections.<Key, Value>emptyMap();
+  @NotNull
+  @SuppressWarnings("unchecked")
+  private Map<Key, Value> mapInput(@Nullable Input content) {
+    if (content == null) {
+      return Collections.emptyMap();
+    }
+    if (myIndexer instanceof IntDataIndexer) {
+      return (Map<Key, Value>)new IntKeyMap(((IntDataIndexer<Input>)myIndexer).mapToInts(content));
+    }
+    return myIndexer.map(content);
+  }
 
-    updateWithMap(inputId, data, new Callable<Collection<Key>>() {
+  @NotNull
+  protected Callable<Collection<Key>> createOldKeysGetter(final int inputId) {
+    return new Callable<Collection<Key>>() {
       @Override
       public Collection<Key> call() throws Exception {
         final Collection<Key> oldKeys = myInputsIndex.get(inputId);
         return oldKeys == null? Collections.<Key>emptyList() : oldKeys;
       }
-    });
+    };
+  }
+
+  /**
+   * Persistent maps locate keys by the hash the key descriptor computes, so a batch update visits the keys in the order of
+   * these hashes to improve locality of storage access. Without the descriptor the keys are visited in no particular order.
+   */
+  public void setKeyDescriptor(@NotNull final EqualityPolicy<Key> keyDescriptor) {
+    myKeyHashComparator = new Comparator<Key>() {
+      @Override
+      public int compare(Key o1, Key o2) {
+        final int h1 = keyDescriptor.getHashCode(o1);
+        final int h2 = keyDescriptor.getHashCode(o2);
+        return h1 < h2 ? -1 : h1 == h2 ? 0 : 1;
+      }
+    };
+  }
+
+  /**
+   * Starts accumulating changes of many inputs which are then applied to the storage at once, see {@link BatchUpdate}.
+   */
+  @NotNull
+  public BatchUpdate startBatchUpdate() {
+    assert myInputsIndex != null;
+    return new BatchUpdate();
+  }
+
+  /**
+   * Inputs are mapped as soon as they are added to the batch, but the index isn't touched until {@link #apply()}.
+   * Then changes of all the inputs are grouped by key and each key's value container is read and modified only once,
+   * in the order of key hashes (see {@link #setKeyDescriptor(EqualityPolicy)}), instead of once per input.
+   * <p/>
+   * Not thread safe, the batch is supposed to be filled and applied by a single thread.
+   */
+  public class BatchUpdate {
+    private final TIntObjectHashMap<Map<Key, Value>> myNewData = new TIntObjectHashMap<Map<Key, Value>>();
+
+    private BatchUpdate() {
+    }
+
+    public void update(int inputId, @Nullable Input content) {
+      myNewData.put(inputId, mapInput(content));
+    }
+
+    public int size() {
+      return myNewData.size();
+    }
+
+    public void apply() throws StorageException {
+      try {
+        updateWithMaps(myNewData);
+      }
+      finally {
+        myNewData.clear();
+      }
+    }
+  }
+
+  protected void updateWithMaps(@NotNull TIntObjectHashMap<Map<Key, Value>> newData) throws StorageException {
+    final int[] inputIds = newData.keys();
+    Arrays.sort(inputIds);
+
+    getWriteLock().lock();
+    try {
+      final Map<Key, KeyDelta<Value>> deltas = new THashMap<Key, KeyDelta<Value>>();
+      for (int inputId : inputIds) {
+        final Collection<Key> oldKeys;
+        try {
+          oldKeys = createOldKeysGetter(inputId).call();
+        }
+        catch (Exception e) {
+          throw new StorageException(e);
+        }
+        for (Key key : oldKeys) {
+          getDelta(deltas, key).removed.add(inputId);
+        }
+        for (Map.Entry<Key, Value> entry : newData.get(inputId).entrySet()) {
+          getDelta(deltas, entry.getKey()).added.put(inputId, entry.getValue());
+        }
+      }
+
+      final List<Key> keys = new ArrayList<Key>(deltas.keySet());
+      if (myKeyHashComparator != null) {
+        Collections.sort(keys, myKeyHashComparator);
+      }
+      for (Key key : keys) {
+        final KeyDelta<Value> delta = deltas.get(key);
+        myStorage.updateValues(key, delta.removed.toNativeArray(), delta.added);
+      }
+
+      if (myInputsIndex != null) {
+        try {
+          for (int inputId : inputIds) {
+            final Set<Key> newKeys = newData.get(inputId).keySet();
+            if (newKeys.size() > 0) {
+              myInputsIndex.put(inputId, newKeys);
+            }
+            else {
+              myInputsIndex.remove(inputId);
+            }
+          }
+        }
+        catch (IOException e) {
+          throw new StorageException(e);
+        }
+      }
+    }
+    finally {
+      getWriteLock().unlock();
+    }
+  }
+
+  @NotNull
+  private static <Key, Value> KeyDelta<Value> getDelta(@NotNull Map<Key, KeyDelta<Value>> deltas, Key key) {
+    KeyDelta<Value> delta = deltas.get(key);
+    if (delta == null) {
+      delta = new KeyDelta<Value>();
+      deltas.put(key, delta);
+    }
+    return delta;
+  }
+
+  private static class KeyDelta<Value> {
+    final TIntArrayList removed = new TIntArrayList(1);
+    final TIntObjectHashMap<Value> added = new TIntObjectHashMap<Value>(1);
   }
 
   protected void updateWithMap(final int inputId, @NotNull Map<Key, Value> newData, @NotNull Callable<Collection<Key>> oldKeysGetter) throws StorageException {
@@ -252,6 +391,24 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
           }
         });
         if (!b) throw exceptionRef.get();
+      } else if (newData instanceof IntKeyMap) {
+        // int keyed scalar indices (e.g. TrigramIndex) produce thousands of keys per file, iterate them without building a map
+        final Ref<StorageException> exceptionRef = new Ref<StorageException>();
+        final boolean b = ((IntKeyMap)newData).getKeys().forEach(new TIntProcedure() {
+          @Override
+          @SuppressWarnings("unchecked")
+          public boolean execute(int key) {
+            try {
+              myStorage.addValue((Key)(Object)key, inputId, null);
+            }
+            catch (StorageException ex) {
+              exceptionRef.set(ex);
+              return false;
+            }
+            return true;
+          }
+        });
+        if (!b) throw exceptionRef.get();
       } else {
         for (Map.Entry<Key, Value> entry : newData.entrySet()) {
           myStorage.addValue(entry.getKey(), inputId, entry.getValue());
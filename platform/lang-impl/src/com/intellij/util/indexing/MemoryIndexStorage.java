@@ -19,6 +19,7 @@ package com.intellij.util.indexing;
 import com.intellij.util.CommonProcessors;
 import com.intellij.util.Processor;
 import com.intellij.util.containers.ContainerUtil;
+import gnu.trove.TIntObjectHashMap;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
@@ -159,6 +160,24 @@ public class MemoryIndexStorage<Key, Value> implements IndexStorage<Key, Value>
     myBackendStorage.removeAllValues(key, inputId);
   }
 
+  @Override
+  public void updateValues(Key key, @NotNull int[] removedInputIds, @NotNull TIntObjectHashMap<Value> addedValues) throws StorageException {
+    if (myBufferingEnabled.get()) {
+      final UpdatableValueContainer<Value> valueContainer = getMemValueContainer(key);
+      for (int inputId : removedInputIds) {
+        valueContainer.removeAssociatedValue(inputId);
+      }
+      MapIndexStorage.addValues(valueContainer, addedValues);
+      return;
+    }
+    final ChangeTrackingValueContainer<Value> valueContainer = myMap.get(key);
+    if (valueContainer != null) {
+      valueContainer.dropMergedData();
+    }
+
+    myBackendStorage.updateValues(key, removedInputIds, addedValues);
+  }
+
   private UpdatableValueContainer<Value> getMemValueContainer(final Key key) {
     ChangeTrackingValueContainer<Value> valueContainer = myMap.get(key);
     if (valueContainer == null) {
@@ -38,6 +38,17 @@ public abstract class ValueContainer<Value> {
   
   public abstract IntIterator getInputIdsIterator(Value value);
 
+  /**
+   * @return ids of the inputs associated with the value. The set may be shared with the container, so it must not be modified
+   */
+  IdBitSet getInputIds(Value value) {
+    final IdBitSet result = new IdBitSet();
+    for (IntIterator iterator = getInputIdsIterator(value); iterator.hasNext(); ) {
+      result.add(iterator.next());
+    }
+    return result;
+  }
+
   public abstract boolean isAssociated(Value value, int inputId);
 
   public abstract IntPredicate getValueAssociationPredicate(Value value);
@@ -23,6 +23,7 @@ import com.intellij.util.containers.EmptyIterator;
 import gnu.trove.THashMap;
 import gnu.trove.TIntHashSet;
 import gnu.trove.TIntIterator;
+import gnu.trove.TIntProcedure;
 import gnu.trove.TObjectObjectProcedure;
 
 import java.util.*;
@@ -37,6 +38,8 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
   // there is no volatile as we modify under write lock and read under read lock
   // Most often (80%) we store 0 or one mapping, then we store them in two fields: myInputIdMapping, myInputIdMappingValue
   // when there are several value mapped, myInputIdMapping is THashMap<Value, Data>, myInputIdMappingValue = null
+  // input ids of a value are kept as Integer, then as IdSet and finally as IdBitSet when there are more than this number of them
+  static final int ID_BIT_SET_THRESHOLD = 64;
   private Object myInputIdMapping;
   private Object myInputIdMappingValue;
 
@@ -45,34 +48,86 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     final Object input = getInput(value);
 
     if (input == null) {
-      if (myInputIdMapping != null) {
-        if (!(myInputIdMapping instanceof THashMap)) {
-          Object oldMapping = myInputIdMapping;
-          myInputIdMapping = new THashMap<Value, Object>(2);
-          ((THashMap<Value, Object>)myInputIdMapping).put((Value)oldMapping, myInputIdMappingValue);
-          myInputIdMappingValue = null;
-        }
-        ((THashMap<Value, Object>)myInputIdMapping).put(value, inputId);
-      } else {
-        myInputIdMapping = value != null ? value:(Value)myNullValue;
-        myInputIdMappingValue = inputId;
-      }
+      putInput(value, inputId);
+    }
+    else if (input instanceof IdBitSet) {
+      ((IdBitSet)input).add(inputId);
     }
     else {
       final TIntHashSet idSet;
       if (input instanceof Integer) {
         idSet = new IdSet(3, 0.98f);
         idSet.add(((Integer)input).intValue());
-        if (!(myInputIdMapping instanceof THashMap)) myInputIdMappingValue = idSet;
-        else ((THashMap<Value, Object>)myInputIdMapping).put(value, idSet);
+        putInput(value, idSet);
       }
       else {
         idSet = (TIntHashSet)input;
       }
-      idSet.add(inputId);
+      if (idSet.add(inputId) && idSet.size() > ID_BIT_SET_THRESHOLD) {
+        putInput(value, toIdBitSet(idSet));
+      }
     }
   }
 
+  /**
+   * Associates all the ids with the value, the set is owned by the container afterwards.
+   */
+  void addValues(IdBitSet inputIds, Value value) {
+    final Object input = getInput(value);
+    if (input == null) {
+      putInput(value, inputIds);
+    }
+    else if (input instanceof IdBitSet) {
+      ((IdBitSet)input).addAll(inputIds);
+    }
+    else {
+      final IdBitSet idSet;
+      if (input instanceof Integer) {
+        idSet = new IdBitSet();
+        idSet.add(((Integer)input).intValue());
+      }
+      else {
+        idSet = toIdBitSet((TIntHashSet)input);
+      }
+      idSet.addAll(inputIds);
+      putInput(value, idSet);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void putInput(Value value, Object input) {
+    value = value != null ? value:(Value)myNullValue;
+    if (myInputIdMapping == null) {
+      myInputIdMapping = value;
+      myInputIdMappingValue = input;
+    }
+    else if (myInputIdMapping instanceof THashMap) {
+      ((THashMap<Value, Object>)myInputIdMapping).put(value, input);
+    }
+    else if (myInputIdMapping == value || myInputIdMapping.equals(value)) {
+      myInputIdMappingValue = input;
+    }
+    else {
+      Object oldMapping = myInputIdMapping;
+      myInputIdMapping = new THashMap<Value, Object>(2);
+      ((THashMap<Value, Object>)myInputIdMapping).put((Value)oldMapping, myInputIdMappingValue);
+      ((THashMap<Value, Object>)myInputIdMapping).put(value, input);
+      myInputIdMappingValue = null;
+    }
+  }
+
+  private static IdBitSet toIdBitSet(TIntHashSet idSet) {
+    final IdBitSet result = new IdBitSet();
+    idSet.forEach(new TIntProcedure() {
+      @Override
+      public boolean execute(int id) {
+        result.add(id);
+        return true;
+      }
+    });
+    return result;
+  }
+
   @Override
   public int size() {
     return myInputIdMapping != null ? myInputIdMapping instanceof THashMap ? ((THashMap)myInputIdMapping).size(): 1 : 0;
@@ -106,7 +161,14 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
       return false;
     }
 
-    if (input instanceof TIntHashSet) {
+    if (input instanceof IdBitSet) {
+      final IdBitSet idSet = (IdBitSet)input;
+      final boolean reallyRemoved = idSet.remove(inputId);
+      if (!idSet.isEmpty()) {
+        return reallyRemoved;
+      }
+    }
+    else if (input instanceof TIntHashSet) {
       final TIntHashSet idSet = (TIntHashSet)input;
       final boolean reallyRemoved = idSet.remove(inputId);
       if (reallyRemoved) {
@@ -127,7 +189,7 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
       myInputIdMappingValue = null;
     } else {
       THashMap<Value, Object> mapping = (THashMap<Value, Object>)myInputIdMapping;
-      mapping.remove(value);
+      mapping.remove(value != null ? value:myNullValue);
       if (mapping.size() == 1) {
         myInputIdMapping = mapping.keySet().iterator().next();
         myInputIdMappingValue = mapping.get((Value)myInputIdMapping);
@@ -202,6 +264,9 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
   @Override
   public boolean isAssociated(Value value, final int inputId) {
     final Object input = getInput(value);
+    if (input instanceof IdBitSet) {
+      return ((IdBitSet)input).contains(inputId);
+    }
     if (input instanceof TIntHashSet) {
       return ((TIntHashSet)input).contains(inputId);
     }
@@ -224,6 +289,15 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
         }
       };
     }
+    if (input instanceof IdBitSet) {
+      return new IntPredicate() {
+        final IdBitSet mySet = (IdBitSet)input;
+        @Override
+        boolean contains(int id) {
+          return mySet.contains(id);
+        }
+      };
+    }
     return new IntPredicate() {
       final TIntHashSet mySet = (TIntHashSet)input;
       @Override
@@ -237,7 +311,10 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
   public IntIterator getInputIdsIterator(Value value) {
     final Object input = getInput(value);
     final IntIterator it;
-    if (input instanceof TIntHashSet) {
+    if (input instanceof IdBitSet) {
+      it = ((IdBitSet)input).iterator();
+    }
+    else if (input instanceof TIntHashSet) {
       it = new IntSetIterator((TIntHashSet)input);
     }
     else if (input instanceof Integer ){
@@ -249,6 +326,12 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     return it;
   }
 
+  @Override
+  IdBitSet getInputIds(Value value) {
+    final Object input = getInput(value);
+    return input instanceof IdBitSet ? (IdBitSet)input : super.getInputIds(value);
+  }
+
   private Object getInput(Value value) {
     if (myInputIdMapping == null) return null;
 
@@ -270,8 +353,8 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
       final ValueContainerImpl clone = (ValueContainerImpl)super.clone();
       if (myInputIdMapping instanceof THashMap) {
         clone.myInputIdMapping = mapCopy((THashMap<Value, Object>)myInputIdMapping);
-      } else if (myInputIdMappingValue instanceof TIntHashSet) {
-        clone.myInputIdMappingValue = ((TIntHashSet)myInputIdMappingValue).clone();
+      } else {
+        clone.myInputIdMappingValue = copyInput(myInputIdMappingValue);
       }
       return clone;
     }
@@ -308,23 +391,23 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
       mapping.forEachEntry(new TObjectObjectProcedure<Value, Object>() {
         @Override
         public boolean execute(Value key, Object val) {
-          if (val instanceof TIntHashSet) {
-            newMapping.put(key, ((TIntHashSet)val).clone());
-          }
-          else {
-            newMapping.put(key, val);
-          }
+          newMapping.put(key, copyInput(val));
           return true;
         }
       });
     } else {
       container.myInputIdMapping = myInputIdMapping;
-      container.myInputIdMappingValue = myInputIdMappingValue instanceof TIntHashSet ?
-                                        ((TIntHashSet)myInputIdMappingValue).clone():myInputIdMappingValue;
+      container.myInputIdMappingValue = copyInput(myInputIdMappingValue);
     }
     return container;
   }
 
+  private static Object copyInput(Object input) {
+    if (input instanceof IdBitSet) return ((IdBitSet)input).clone();
+    if (input instanceof TIntHashSet) return ((TIntHashSet)input).clone();
+    return input;
+  }
+
   private static class SingleValueIterator implements IntIterator {
     private final int myValue;
     private boolean myValueRead = false;
@@ -384,9 +467,7 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     cloned.forEachEntry(new TObjectObjectProcedure<Value, Object>() {
       @Override
       public boolean execute(Value key, Object val) {
-        if (val instanceof TIntHashSet) {
-          cloned.put(key, ((TIntHashSet)val).clone());
-        }
+        cloned.put(key, copyInput(val));
         return true;
       }
     });
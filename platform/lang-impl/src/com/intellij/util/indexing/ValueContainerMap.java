@@ -86,7 +86,12 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
         myExternalizer.save(out, value);
 
         final ValueContainer.IntIterator ids = container.getInputIdsIterator(value);
-        if (ids != null) {
+        if (ids != null && ids.size() > ValueContainerImpl.ID_BIT_SET_THRESHOLD) {
+          // negative count marks compressed id set
+          DataInputOutputUtil.writeSINT(out, -ids.size());
+          container.getInputIds(value).save(out);
+        }
+        else if (ids != null) {
           DataInputOutputUtil.writeSINT(out, ids.size());
           while (ids.hasNext()) {
             final int id = ids.next();
@@ -115,6 +120,13 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
           for (int valueIdx = 0; valueIdx < valueCount; valueIdx++) {
             final T value = myExternalizer.read(in);
             final int idCount = DataInputOutputUtil.readSINT(in);
+            if (idCount < 0) {
+              final IdBitSet ids = IdBitSet.read(in);
+              if (ids.size() != -idCount) {
+                throw new IOException("Corrupted id set: " + ids.size() + " ids instead of " + -idCount);
+              }
+              valueContainer.addValues(ids, value);
+            }
             for (int i = 0; i < idCount; i++) {
               final int id = DataInputOutputUtil.readSINT(in);
               valueContainer.addValue(id, value);
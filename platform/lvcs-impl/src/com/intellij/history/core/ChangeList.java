@@ -171,6 +171,32 @@ public class ChangeList {
     v.finished();
   }
 
+  /**
+   * Visits only the change sets which may be relevant to the visitor's path, skipping the rest without reading them, if possible.
+   */
+  public void acceptForPath(ChangeCollectingVisitor v) {
+    TIntHashSet recursionGuard = new TIntHashSet(1000);
+    try {
+      ChangeSet current;
+      synchronized (this) {
+        current = myCurrentChangeSet;
+      }
+      if (current != null) current.accept(v);
+
+      ChangeSetHolder currentBlock = null;
+      while (true) {
+        synchronized (this) {
+          currentBlock = myStorage.readPreviousAffecting(currentBlock, v.getPath(), recursionGuard);
+        }
+        if (currentBlock == null) break;
+        currentBlock.changeSet.accept(v);
+      }
+    }
+    catch (ChangeVisitor.StopVisitingException e) {
+    }
+    v.finished();
+  }
+
   public synchronized void purgeObsolete(long period) {
     myStorage.purge(period, myIntervalBetweenActivities, new Consumer<ChangeSet>() {
       public void consume(ChangeSet changeSet) {
@@ -19,6 +19,7 @@ package com.intellij.history.core;
 import com.intellij.history.core.changes.ChangeSet;
 import com.intellij.util.Consumer;
 import gnu.trove.TIntHashSet;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 public interface ChangeListStorage {
@@ -29,6 +30,13 @@ public interface ChangeListStorage {
   @Nullable
   ChangeSetHolder readPrevious(int id, TIntHashSet recursionGuard);
 
+  /**
+   * Same as {@link #readPrevious(int, TIntHashSet)}, but may skip the change sets that don't affect the path, its parents or children,
+   * unless they have labels.
+   */
+  @Nullable
+  ChangeSetHolder readPreviousAffecting(@Nullable ChangeSetHolder holder, @NotNull String path, TIntHashSet recursionGuard);
+
   void purge(long period, int intervalBetweenActivities, Consumer<ChangeSet> processor);
 
   void writeNextSet(ChangeSet changeSet);
@@ -27,9 +27,13 @@ import com.intellij.notification.Notifications;
 import com.intellij.openapi.application.PathManager;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.vfs.newvfs.ManagingFS;
+import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.Consumer;
+import com.intellij.util.io.PersistentHashMap;
 import com.intellij.util.io.storage.AbstractStorage;
+import gnu.trove.THashMap;
 import gnu.trove.TIntHashSet;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -40,15 +44,38 @@ import java.io.File;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.text.MessageFormat;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class ChangeListStorageImpl implements ChangeListStorage {
   private static final int VERSION = 5;
   private static final String STORAGE_FILE = "changes";
+  private static final String PATH_INDEX_FILE = "changes.paths";
+  private static final String JOURNAL_FILE = "changes.journal";
+
+  /**
+   * Change sets are written to the storage as they come, but the storage is forced only after this many ones
+   * or after the delay set by the {@code localHistory.flushDelay} registry key, whichever comes first.
+   * The change sets in between are kept in the {@link ChangeSetsJournal journal}.
+   */
+  private static final int MAX_UNFLUSHED_CHANGE_SETS = 1000;
+  private static final ScheduledThreadPoolExecutor ourFlusher = ConcurrencyUtil.newSingleScheduledThreadExecutor("Local history flusher");
 
   private final File myStorageDir;
   private LocalHistoryStorage myStorage;
+  @Nullable private ChangeSetsPathIndex myPathIndex;
   private long myLastId;
 
+  private String myLastQueriedPath;
+  private long[] myLastQueriedChangeSets;
+
+  @Nullable private ChangeSetsJournal myJournal;
+  private int myUnflushedChangeSets;
+  @Nullable private ScheduledFuture<?> myScheduledFlush;
+  private final FlushStatistics myFlushStatistics = new FlushStatistics();
+
   private boolean isCompletelyBroken = false;
 
   public ChangeListStorageImpl(File storageDir) throws IOException {
@@ -83,6 +110,110 @@ public class ChangeListStorageImpl implements ChangeListStorage {
 
     myLastId = result.getLastId();
     myStorage = result;
+    File journalFile = new File(storageDir, JOURNAL_FILE);
+    ChangeSetsJournal.Contents unforced = readJournal(journalFile);
+    // the index is opened after the storage is rolled back and before the change sets from the journal are written again,
+    // so that they are indexed as well
+    myPathIndex = openPathIndex(new File(storageDir, PATH_INDEX_FILE), result);
+    myJournal = openJournal(journalFile, unforced);
+    resetPathQuery();
+    myUnflushedChangeSets = 0;
+  }
+
+  /**
+   * Reads the change sets which didn't reach the storage before the IDE crashed. The storage may contain any part of them then,
+   * so it's rolled back to the state it had when it was forced last time, which is kept in the journal header.
+   * The last record of that state can't be purged, since purging always keeps the last record.
+   */
+  @Nullable
+  private ChangeSetsJournal.Contents readJournal(File file) {
+    try {
+      ChangeSetsJournal.Contents contents = ChangeSetsJournal.read(file);
+      if (contents != null && (myStorage.getLastId() != contents.forcedLastId || myStorage.getLastRecord() != contents.forcedLastRecord)) {
+        LocalHistoryLog.LOG.info("local history storage wasn't forced before the IDE was closed, rolling back to the last forced state");
+        myStorage.deleteRecordsAfter(contents.forcedLastRecord);
+        myStorage.setLastId(contents.forcedLastId);
+        myLastId = contents.forcedLastId;
+        // the index may refer to the deleted records
+        PersistentHashMap.deleteFilesStartingWith(new File(myStorageDir, PATH_INDEX_FILE));
+      }
+      return contents;
+    }
+    catch (IOException e) {
+      LocalHistoryLog.LOG.warn("cannot read local history journal, the change sets in it are lost", e);
+      FileUtil.delete(file);
+      return null;
+    }
+  }
+
+  /**
+   * Writes the change sets read from the journal again and starts a new journal.
+   */
+  @Nullable
+  private ChangeSetsJournal openJournal(File file, @Nullable ChangeSetsJournal.Contents unforced) {
+    try {
+      if (unforced != null) {
+        for (ChangeSetsJournal.Entry each : unforced.entries) {
+          myLastId = each.lastId;
+          doWriteNextSet(each.changeSet);
+        }
+        if (!unforced.entries.isEmpty()) {
+          LocalHistoryLog.LOG.info(unforced.entries.size() + " change sets restored from local history journal");
+        }
+        forceStorage();
+      }
+
+      return new ChangeSetsJournal(file, myStorage.getLastId(), myStorage.getLastRecord());
+    }
+    catch (IOException e) {
+      LocalHistoryLog.LOG.warn("cannot open local history journal, the storage will be forced after every change", e);
+      FileUtil.delete(file);
+      return null;
+    }
+  }
+
+  private void dropJournal(Throwable e) {
+    LocalHistoryLog.LOG.warn("local history journal is broken, the storage will be forced after every change", e);
+    closeJournal();
+    FileUtil.delete(new File(myStorageDir, JOURNAL_FILE));
+  }
+
+  private void closeJournal() {
+    if (myJournal != null) {
+      try {
+        myJournal.close();
+      }
+      catch (IOException e) {
+        LocalHistoryLog.LOG.warn("cannot close local history journal", e);
+      }
+      myJournal = null;
+    }
+  }
+
+  @Nullable
+  private static ChangeSetsPathIndex openPathIndex(File file, LocalHistoryStorage storage) {
+    try {
+      return ChangeSetsPathIndex.open(file, storage);
+    }
+    catch (IOException e) {
+      LocalHistoryLog.LOG.warn("cannot open path index, history of files will be collected by reading all the changes", e);
+      return null;
+    }
+  }
+
+  private void dropPathIndex(Throwable e) {
+    LocalHistoryLog.LOG.warn("path index is broken, history of files will be collected by reading all the changes", e);
+    if (myPathIndex != null) {
+      myPathIndex.closeSafely();
+      PersistentHashMap.deleteFilesStartingWith(new File(myStorageDir, PATH_INDEX_FILE));
+      myPathIndex = null;
+    }
+    resetPathQuery();
+  }
+
+  private void resetPathQuery() {
+    myLastQueriedPath = null;
+    myLastQueriedChangeSets = null;
   }
 
   private static long getVFSTimestamp() {
@@ -108,7 +239,13 @@ public class ChangeListStorageImpl implements ChangeListStorage {
                               ",storage timestamp:" + DateFormat.getDateTimeInstance().format(storageTimestamp) +
                               ",vfs timestamp:" + DateFormat.getDateTimeInstance().format(vfsTimestamp) + ")\n" + message, e);
 
+    if (myScheduledFlush != null) {
+      myScheduledFlush.cancel(false);
+      myScheduledFlush = null;
+    }
+    closeJournal();
     myStorage.dispose();
+    if (myPathIndex != null) myPathIndex.closeSafely();
     try {
       FileUtil.delete(myStorageDir);
       initStorage(myStorageDir);
@@ -150,7 +287,11 @@ public class ChangeListStorageImpl implements ChangeListStorage {
   }
 
   public synchronized void close() {
+    flush();
+    closeJournal();
+    if (LocalHistoryLog.LOG.isDebugEnabled()) LocalHistoryLog.LOG.debug("local history flushes: " + myFlushStatistics);
     myStorage.dispose();
+    if (myPathIndex != null) myPathIndex.closeSafely();
   }
 
   public synchronized long nextId() {
@@ -193,6 +334,73 @@ public class ChangeListStorageImpl implements ChangeListStorage {
     }
   }
 
+  /**
+   * Reads the change sets which may be relevant to the path using the path index, if possible:
+   * the ones changing the path, its parents or children, and the ones with labels.
+   * The path may differ from call to call, since it changes when renames and moves are reverted.
+   */
+  @Nullable
+  public synchronized ChangeSetHolder readPreviousAffecting(@Nullable ChangeSetHolder holder, @NotNull String path, TIntHashSet recursionGuard) {
+    if (isCompletelyBroken) return null;
+
+    int id = holder == null ? -1 : holder.id;
+    if (myPathIndex == null || holder != null && holder.changeSet.getId() < myPathIndex.getFirstIndexedChangeSet()) {
+      return readPrevious(id, recursionGuard);
+    }
+
+    try {
+      long[] refs = getChangeSetsAffecting(path);
+      if (refs == null) return readPrevious(id, recursionGuard);
+      long bound = holder == null ? Long.MAX_VALUE : holder.changeSet.getId();
+      for (int i = findLastBefore(refs, bound); i >= 0; i--) {
+        long changeSetId = ChangeSetsPathIndex.getChangeSetId(refs[i]);
+        int record = ChangeSetsPathIndex.getRecord(refs[i]);
+        ChangeSetHolder result = doReadBlock(record);
+        if (result.changeSet.getId() == changeSetId) return result;
+        LocalHistoryLog.LOG.info("record " + record + " contains change set " + result.changeSet.getId() + " instead of " + changeSetId);
+      }
+    }
+    catch (Throwable e) {
+      dropPathIndex(e);
+      return readPrevious(id, recursionGuard);
+    }
+
+    // all the change sets written before the index was created are candidates
+    int lastNotIndexed = myPathIndex.getLastNotIndexedRecord();
+    if (lastNotIndexed == 0) return null;
+    try {
+      return doReadBlock(lastNotIndexed);
+    }
+    catch (Throwable e) {
+      handleError(e, "cannot read record " + lastNotIndexed);
+      return null;
+    }
+  }
+
+  @Nullable
+  private long[] getChangeSetsAffecting(@NotNull String path) throws IOException {
+    if (!path.equals(myLastQueriedPath)) {
+      myLastQueriedChangeSets = myPathIndex.getChangeSets(path);
+      myLastQueriedPath = path;
+    }
+    return myLastQueriedChangeSets;
+  }
+
+  private static int findLastBefore(long[] refs, long changeSetId) {
+    int lo = 0;
+    int hi = refs.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (ChangeSetsPathIndex.getChangeSetId(refs[mid]) < changeSetId) {
+        lo = mid + 1;
+      }
+      else {
+        hi = mid;
+      }
+    }
+    return lo - 1;
+  }
+
   @NotNull
   private ChangeSetHolder doReadBlock(int id) throws IOException {
     DataInputStream in = myStorage.readStream(id);
@@ -207,25 +415,152 @@ public class ChangeListStorageImpl implements ChangeListStorage {
   public synchronized void writeNextSet(ChangeSet changeSet) {
     if (isCompletelyBroken) return;
 
-    try {
-      AbstractStorage.StorageDataOutput out = myStorage.writeStream(myStorage.createNextRecord(), true);
+    if (myJournal != null) {
       try {
-        changeSet.write(out);
+        myJournal.append(changeSet, myLastId);
       }
-      finally {
-        out.close();
+      catch (IOException e) {
+        dropJournal(e);
       }
-      myStorage.setLastId(myLastId);
-      myStorage.force();
+    }
+
+    try {
+      doWriteNextSet(changeSet);
     }
     catch (IOException e) {
       handleError(e, null);
+      return;
+    }
+
+    myUnflushedChangeSets++;
+    int delay = Registry.intValue("localHistory.flushDelay");
+    if (myJournal == null || delay <= 0 || myUnflushedChangeSets >= MAX_UNFLUSHED_CHANGE_SETS) {
+      flush();
+    }
+    else if (myScheduledFlush == null) {
+      myScheduledFlush = ourFlusher.schedule(new Runnable() {
+        @Override
+        public void run() {
+          flush();
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void doWriteNextSet(ChangeSet changeSet) throws IOException {
+    int record = myStorage.createNextRecord();
+    AbstractStorage.StorageDataOutput out = myStorage.writeStream(record, true);
+    try {
+      changeSet.write(out);
+    }
+    finally {
+      out.close();
+    }
+    myStorage.setLastId(myLastId);
+
+    if (myPathIndex != null) {
+      resetPathQuery();
+      try {
+        myPathIndex.add(record, changeSet);
+        myPathIndex.setLastId(myLastId);
+      }
+      catch (Throwable e) {
+        dropPathIndex(e);
+      }
+    }
+  }
+
+  /**
+   * Forces the change sets written since the last flush to the disk, after that they are not needed in the journal.
+   */
+  public synchronized void flush() {
+    if (myScheduledFlush != null) {
+      myScheduledFlush.cancel(false);
+      myScheduledFlush = null;
+    }
+    if (isCompletelyBroken || myUnflushedChangeSets == 0) return;
+
+    long started = System.nanoTime();
+    forceStorage();
+    if (myJournal != null) {
+      try {
+        myJournal.clear(myStorage.getLastId(), myStorage.getLastRecord());
+      }
+      catch (IOException e) {
+        dropJournal(e);
+      }
+    }
+    myFlushStatistics.record(myUnflushedChangeSets, System.nanoTime() - started);
+    myUnflushedChangeSets = 0;
+  }
+
+  private void forceStorage() {
+    myStorage.force();
+    if (myPathIndex != null) {
+      try {
+        myPathIndex.force();
+      }
+      catch (Throwable e) {
+        dropPathIndex(e);
+      }
+    }
+  }
+
+  @NotNull
+  public FlushStatistics getFlushStatistics() {
+    return myFlushStatistics;
+  }
+
+  /**
+   * Number of change sets forced to the disk at once and time spent on it.
+   */
+  public static class FlushStatistics {
+    private int myFlushCount;
+    private long myChangeSetCount;
+    private int myMaxBatchSize;
+    private long myTotalNanos;
+    private long myMaxNanos;
+
+    private synchronized void record(int batchSize, long nanos) {
+      myFlushCount++;
+      myChangeSetCount += batchSize;
+      myMaxBatchSize = Math.max(myMaxBatchSize, batchSize);
+      myTotalNanos += nanos;
+      myMaxNanos = Math.max(myMaxNanos, nanos);
+    }
+
+    public synchronized int getFlushCount() {
+      return myFlushCount;
+    }
+
+    public synchronized long getChangeSetCount() {
+      return myChangeSetCount;
+    }
+
+    public synchronized int getMaxBatchSize() {
+      return myMaxBatchSize;
+    }
+
+    public synchronized long getTotalNanos() {
+      return myTotalNanos;
+    }
+
+    public synchronized long getMaxNanos() {
+      return myMaxNanos;
+    }
+
+    public synchronized String toString() {
+      return myFlushCount + " flushes of " + myChangeSetCount + " change sets, " + myMaxBatchSize + " change sets max, " +
+             myTotalNanos / 1000000 + " ms total, " + myMaxNanos / 1000000 + " ms max";
     }
   }
 
   public synchronized void purge(long period, int intervalBetweenActivities, Consumer<ChangeSet> processor) {
     if (isCompletelyBroken) return;
 
+    // the journal shouldn't contain the change sets which are not in the storage anymore
+    flush();
+
     TIntHashSet recursionGuard = new TIntHashSet(1000);
 
     try {
@@ -233,11 +568,16 @@ public class ChangeListStorageImpl implements ChangeListStorage {
       if (firstObsoleteId == 0) return;
 
       int eachBlockId = firstObsoleteId;
+      Map<Integer, ChangeSet> purged = new THashMap<Integer, ChangeSet>();
 
       while (eachBlockId != 0) {
-        processor.consume(doReadBlock(eachBlockId).changeSet);
+        ChangeSet changeSet = doReadBlock(eachBlockId).changeSet;
+        processor.consume(changeSet);
+        purged.put(eachBlockId, changeSet);
         eachBlockId = doReadPrevSafely(eachBlockId, recursionGuard);
       }
+      // the index shouldn't refer to the deleted records, even if the purge is interrupted
+      removeFromPathIndex(purged);
       myStorage.deleteRecordsUpTo(firstObsoleteId);
       myStorage.force();
     }
@@ -246,6 +586,18 @@ public class ChangeListStorageImpl implements ChangeListStorage {
     }
   }
 
+  private void removeFromPathIndex(Map<Integer, ChangeSet> purged) {
+    if (myPathIndex == null) return;
+    resetPathQuery();
+    try {
+      myPathIndex.remove(purged);
+      myPathIndex.force();
+    }
+    catch (Throwable e) {
+      dropPathIndex(e);
+    }
+  }
+
   private int findFirstObsoleteBlock(long period, int intervalBetweenActivities, TIntHashSet recursionGuard) throws IOException {
     long prevTimestamp = 0;
     long length = 0;
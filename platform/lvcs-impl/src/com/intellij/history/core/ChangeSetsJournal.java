@@ -0,0 +1,155 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.history.core;
+
+import com.intellij.history.core.changes.ChangeSet;
+import com.intellij.history.utils.LocalHistoryLog;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the change sets written to the storage since it was forced last time, so that they survive a crash of the IDE
+ * and can be written to the storage again on the next start.
+ * <p/>
+ * The header of the journal holds the last id and the last record of the storage at the moment it was forced,
+ * since the storage may contain any part of the later changes after a crash and has to be rolled back to that state
+ * before the change sets are written again.
+ * <p/>
+ * The journal is not synced, the data reaches the OS right away, which is enough to survive a crash of the process
+ * (the storage isn't synced when it's forced either), but not a crash of the OS.
+ * Not thread-safe.
+ */
+public class ChangeSetsJournal {
+  private static final int HEADER_SIZE = 12;
+
+  private final RandomAccessFile myFile;
+  private final BufferExposingByteArrayOutputStream myBuffer = new BufferExposingByteArrayOutputStream();
+
+  /**
+   * Starts a new journal, the previous content of the file is dropped.
+   */
+  public ChangeSetsJournal(@NotNull File file, long forcedLastId, int forcedLastRecord) throws IOException {
+    myFile = new RandomAccessFile(file, "rw");
+    clear(forcedLastId, forcedLastRecord);
+  }
+
+  public static class Contents {
+    public final long forcedLastId;
+    public final int forcedLastRecord;
+    public final List<Entry> entries;
+
+    private Contents(long forcedLastId, int forcedLastRecord, @NotNull List<Entry> entries) {
+      this.forcedLastId = forcedLastId;
+      this.forcedLastRecord = forcedLastRecord;
+      this.entries = entries;
+    }
+  }
+
+  public static class Entry {
+    public final ChangeSet changeSet;
+    public final long lastId;
+
+    private Entry(@NotNull ChangeSet changeSet, long lastId) {
+      this.changeSet = changeSet;
+      this.lastId = lastId;
+    }
+  }
+
+  /**
+   * @param lastId last id of the storage after the change set is written
+   */
+  public void append(@NotNull ChangeSet changeSet, long lastId) throws IOException {
+    myBuffer.reset();
+    DataOutputStream out = new DataOutputStream(myBuffer);
+    out.writeInt(0); // size placeholder
+    out.writeLong(lastId);
+    changeSet.write(out);
+    out.close();
+
+    byte[] bytes = myBuffer.getInternalBuffer();
+    int size = myBuffer.size();
+    int recordSize = size - 4;
+    bytes[0] = (byte)(recordSize >>> 24);
+    bytes[1] = (byte)(recordSize >>> 16);
+    bytes[2] = (byte)(recordSize >>> 8);
+    bytes[3] = (byte)recordSize;
+    myFile.write(bytes, 0, size);
+  }
+
+  /**
+   * Drops the entries after the storage is forced.
+   * @param forcedLastId last id of the forced storage
+   * @param forcedLastRecord last record of the forced storage
+   */
+  public void clear(long forcedLastId, int forcedLastRecord) throws IOException {
+    myFile.setLength(0);
+    myFile.writeLong(forcedLastId);
+    myFile.writeInt(forcedLastRecord);
+  }
+
+  public void close() throws IOException {
+    myFile.close();
+  }
+
+  /**
+   * @return the entries in the order they were appended, an entry which was being written during a crash is skipped;
+   * null if there is no journal
+   */
+  @Nullable
+  public static Contents read(@NotNull File file) throws IOException {
+    if (!file.exists() || file.length() < HEADER_SIZE) return null;
+
+    List<Entry> result = new ArrayList<Entry>();
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      long forcedLastId = in.readLong();
+      int forcedLastRecord = in.readInt();
+      while (true) {
+        int size;
+        try {
+          size = in.readInt();
+        }
+        catch (EOFException ignore) {
+          break;
+        }
+        if (size < 8 || size > file.length()) {
+          LocalHistoryLog.LOG.info("local history journal is corrupted, the rest of it is skipped");
+          break;
+        }
+        byte[] bytes = new byte[size];
+        try {
+          in.readFully(bytes);
+        }
+        catch (EOFException e) {
+          LocalHistoryLog.LOG.info("incomplete local history journal entry is skipped");
+          break;
+        }
+        DataInputStream entry = new DataInputStream(new ByteArrayInputStream(bytes));
+        long lastId = entry.readLong();
+        result.add(new Entry(new ChangeSet(entry), lastId));
+      }
+      return new Contents(forcedLastId, forcedLastRecord, result);
+    }
+    finally {
+      in.close();
+    }
+  }
+}
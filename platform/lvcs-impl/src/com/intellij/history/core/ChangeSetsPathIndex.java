@@ -0,0 +1,354 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.history.core;
+
+import com.intellij.history.core.changes.Change;
+import com.intellij.history.core.changes.ChangeSet;
+import com.intellij.history.core.changes.StructuralChange;
+import com.intellij.history.utils.LocalHistoryLog;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.PersistentHashMap;
+import gnu.trove.THashMap;
+import gnu.trove.THashSet;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TLongArrayList;
+import gnu.trove.TLongHashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Maps paths to the records of the change sets which change them, so that the history of a file or a directory
+ * can be collected without reading all the change sets.
+ * <p/>
+ * A change of a path is stored under the path itself and under its parents as a change in the subtree,
+ * while the change sets with labels are stored under a separate key since they are relevant to every path.
+ * The subtrees of the shallow directories, like the file system root or the user home, contain every project,
+ * so they aren't indexed: their keys would reference almost every change set and grow with every change.
+ * The history of such directories has to be collected by reading the change sets one by one.
+ * Every reference packs the id of the change set and the id of the record, since record ids are reused after purging
+ * and don't reflect the order of the change sets.
+ * <p/>
+ * The index is built from all the change sets in the storage when it's created or doesn't match the storage.
+ * If some change set can't be read then, the index only covers the change sets written after it was created
+ * and the older ones have to be read one by one.
+ * Not thread-safe.
+ */
+public class ChangeSetsPathIndex {
+  private static final int VERSION = 3;
+  // the number of names in the shortest path whose subtree is indexed, e.g. /home/user/project or C:/work/project
+  private static final int MIN_SUBTREE_DEPTH = 3;
+  private static final String LABELS_KEY = "#labels";
+  private static final String LAST_ID_KEY = "#lastId";
+  private static final char PATH_PREFIX = '=';
+  private static final char SUBTREE_PREFIX = '*';
+
+  private final File myMetaFile;
+  private final PersistentHashMap<String, long[]> myMap;
+  private final long myFirstIndexedChangeSet;
+  private int myLastNotIndexedRecord;
+
+  private ChangeSetsPathIndex(@NotNull File file, long firstIndexedChangeSet, int lastNotIndexedRecord) throws IOException {
+    myMetaFile = new File(file.getPath() + ".meta");
+    myMap = new PersistentHashMap<String, long[]>(file, new EnumeratorStringDescriptor(), new RefsExternalizer());
+    myFirstIndexedChangeSet = firstIndexedChangeSet;
+    myLastNotIndexedRecord = lastNotIndexedRecord;
+  }
+
+  /**
+   * Opens the index or builds a new one from the storage, if the index is broken or doesn't match the storage.
+   */
+  @NotNull
+  public static ChangeSetsPathIndex open(@NotNull File file, @NotNull LocalHistoryStorage storage) throws IOException {
+    File metaFile = new File(file.getPath() + ".meta");
+    if (metaFile.exists()) {
+      ChangeSetsPathIndex index = null;
+      try {
+        DataInputStream in = new DataInputStream(new FileInputStream(metaFile));
+        try {
+          if (in.readInt() == VERSION) {
+            index = new ChangeSetsPathIndex(file, in.readLong(), in.readInt());
+          }
+        }
+        finally {
+          in.close();
+        }
+        if (index != null) {
+          if (index.getLastId() == storage.getLastId()) return index;
+          LocalHistoryLog.LOG.info("path index is out of date, rebuilding...");
+          index.close();
+        }
+      }
+      catch (IOException e) {
+        LocalHistoryLog.LOG.info("path index is broken, rebuilding...", e);
+        if (index != null) index.closeSafely();
+      }
+    }
+
+    PersistentHashMap.deleteFilesStartingWith(file);
+    ChangeSetsPathIndex index = new ChangeSetsPathIndex(file, 0, 0);
+    try {
+      index.addAll(storage);
+    }
+    catch (Throwable e) {
+      LocalHistoryLog.LOG.info("cannot index local history storage, only new change sets will be indexed", e);
+      index.closeSafely();
+      PersistentHashMap.deleteFilesStartingWith(file);
+      index = new ChangeSetsPathIndex(file, storage.getLastId() + 1, storage.getLastRecord());
+    }
+    index.saveMeta();
+    return index;
+  }
+
+  private void addAll(@NotNull LocalHistoryStorage storage) throws IOException {
+    TIntHashSet visited = new TIntHashSet();
+    for (int record = storage.getFirstRecord(); record != 0; record = storage.getNextRecord(record)) {
+      if (!visited.add(record)) throw new IOException("Recursive records found");
+      DataInputStream in = storage.readStream(record);
+      try {
+        add(record, new ChangeSet(in));
+      }
+      finally {
+        in.close();
+      }
+    }
+    setLastId(storage.getLastId());
+  }
+
+  private void saveMeta() throws IOException {
+    DataOutputStream out = new DataOutputStream(new FileOutputStream(myMetaFile));
+    try {
+      out.writeInt(VERSION);
+      out.writeLong(myFirstIndexedChangeSet);
+      out.writeInt(myLastNotIndexedRecord);
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  /**
+   * @return id of the first change set the index knows about, the earlier ones have to be read from the storage one by one
+   */
+  public long getFirstIndexedChangeSet() {
+    return myFirstIndexedChangeSet;
+  }
+
+  /**
+   * @return last id of the storage at the moment of the last update of the index
+   */
+  private long getLastId() throws IOException {
+    long[] last = myMap.get(LAST_ID_KEY);
+    return last == null ? myFirstIndexedChangeSet - 1 : last[0];
+  }
+
+  /**
+   * Should be updated along with the storage, so that on the next start it's possible to check that no change set
+   * was written to the storage without being indexed.
+   */
+  public void setLastId(long lastId) throws IOException {
+    myMap.put(LAST_ID_KEY, new long[]{lastId});
+  }
+
+  /**
+   * @return record of the last change set written before the index was created, 0 if there is none or it was purged
+   */
+  public int getLastNotIndexedRecord() {
+    return myLastNotIndexedRecord;
+  }
+
+  public void add(int record, @NotNull ChangeSet changeSet) throws IOException {
+    final long ref = pack(changeSet.getId(), record);
+    for (String key : getKeys(changeSet)) {
+      myMap.appendData(key, new PersistentHashMap.ValueDataAppender() {
+        @Override
+        public void append(DataOutput out) throws IOException {
+          RefsExternalizer.writeChunk(out, new long[]{ref});
+        }
+      });
+    }
+  }
+
+  /**
+   * Removes the purged change sets, all of them are written before the remaining ones.
+   */
+  public void remove(@NotNull Map<Integer, ChangeSet> recordsToChangeSets) throws IOException {
+    Map<String, TLongHashSet> removed = new THashMap<String, TLongHashSet>();
+    for (Map.Entry<Integer, ChangeSet> entry : recordsToChangeSets.entrySet()) {
+      ChangeSet changeSet = entry.getValue();
+      if (entry.getKey() == myLastNotIndexedRecord) {
+        // all the change sets the index doesn't know about are gone
+        myLastNotIndexedRecord = 0;
+        saveMeta();
+      }
+      if (changeSet.getId() < myFirstIndexedChangeSet) continue;
+
+      long ref = pack(changeSet.getId(), entry.getKey());
+      for (String key : getKeys(changeSet)) {
+        TLongHashSet refs = removed.get(key);
+        if (refs == null) removed.put(key, refs = new TLongHashSet());
+        refs.add(ref);
+      }
+    }
+
+    for (Map.Entry<String, TLongHashSet> entry : removed.entrySet()) {
+      long[] refs = myMap.get(entry.getKey());
+      if (refs == null) continue;
+      TLongArrayList remaining = new TLongArrayList(refs.length);
+      for (long ref : refs) {
+        if (!entry.getValue().contains(ref)) remaining.add(ref);
+      }
+      if (remaining.isEmpty()) {
+        myMap.remove(entry.getKey());
+      }
+      else {
+        myMap.put(entry.getKey(), remaining.toNativeArray());
+      }
+    }
+  }
+
+  /**
+   * @return references to the change sets which may affect the path, its parents or children, or have labels,
+   * sorted by the change set id; use {@link #getChangeSetId(long)} and {@link #getRecord(long)} to unpack them.
+   * Null if the subtree of the path is too shallow to be indexed.
+   */
+  @Nullable
+  public long[] getChangeSets(@NotNull String path) throws IOException {
+    if (getDepth(path) < MIN_SUBTREE_DEPTH) return null;
+
+    TLongHashSet result = new TLongHashSet();
+    addRefs(LABELS_KEY, result);
+    addRefs(SUBTREE_PREFIX + normalize(path), result);
+    for (String each = path; each.length() > 0; ) {
+      addRefs(PATH_PREFIX + normalize(each), result);
+      String parent = Paths.getParentOf(each);
+      if (parent.equals(each)) break;
+      each = parent;
+    }
+    long[] refs = result.toArray();
+    Arrays.sort(refs);
+    return refs;
+  }
+
+  private void addRefs(@NotNull String key, @NotNull TLongHashSet result) throws IOException {
+    long[] refs = myMap.get(key);
+    if (refs != null) result.addAll(refs);
+  }
+
+  @NotNull
+  private static Set<String> getKeys(@NotNull ChangeSet changeSet) {
+    Set<String> result = new THashSet<String>();
+    for (Change each : changeSet.getChanges()) {
+      if (!(each instanceof StructuralChange)) {
+        result.add(LABELS_KEY);
+        continue;
+      }
+      for (String path : ((StructuralChange)each).getAffectedPaths()) {
+        result.add(PATH_PREFIX + normalize(path));
+        for (String parent = Paths.getParentOf(path); getDepth(parent) >= MIN_SUBTREE_DEPTH; ) {
+          if (!result.add(SUBTREE_PREFIX + normalize(parent))) break;
+          String grandParent = Paths.getParentOf(parent);
+          if (grandParent.equals(parent)) break;
+          parent = grandParent;
+        }
+      }
+    }
+    return result;
+  }
+
+  private static int getDepth(@NotNull String path) {
+    int depth = 0;
+    for (String name : Paths.split(path)) {
+      if (name.length() > 0 && !name.equals(String.valueOf(Paths.DELIM))) depth++;
+    }
+    return depth;
+  }
+
+  @NotNull
+  private static String normalize(@NotNull String path) {
+    return Paths.isCaseSensitive() ? path : path.toLowerCase();
+  }
+
+  private static long pack(long changeSetId, int record) {
+    return changeSetId << 32 | record & 0xFFFFFFFFL;
+  }
+
+  public static long getChangeSetId(long ref) {
+    return ref >>> 32;
+  }
+
+  public static int getRecord(long ref) {
+    return (int)ref;
+  }
+
+  public void force() {
+    myMap.force();
+  }
+
+  public void close() throws IOException {
+    myMap.close();
+  }
+
+  public void closeSafely() {
+    try {
+      close();
+    }
+    catch (IOException e) {
+      LocalHistoryLog.LOG.warn("cannot close path index", e);
+    }
+  }
+
+  /**
+   * The references are appended in chunks prefixed with their count, the value lasts till the end of the last chunk.
+   */
+  private static class RefsExternalizer implements DataExternalizer<long[]> {
+    @Override
+    public void save(DataOutput out, long[] refs) throws IOException {
+      writeChunk(out, refs);
+    }
+
+    private static void writeChunk(DataOutput out, long[] refs) throws IOException {
+      DataInputOutputUtil.writeINT(out, refs.length);
+      for (long ref : refs) {
+        out.writeLong(ref);
+      }
+    }
+
+    @Override
+    public long[] read(DataInput in) throws IOException {
+      TLongArrayList result = new TLongArrayList();
+      while (true) {
+        int count;
+        try {
+          count = DataInputOutputUtil.readINT(in);
+        }
+        catch (EOFException ignore) {
+          break;
+        }
+        for (int i = 0; i < count; i++) {
+          result.add(in.readLong());
+        }
+      }
+      return result.toNativeArray();
+    }
+  }
+}
@@ -153,6 +153,10 @@ public class LocalHistoryFacade {
     myChangeList.accept(v);
   }
 
+  public void acceptForPath(ChangeCollectingVisitor v) {
+    myChangeList.acceptForPath(v);
+  }
+
   public String revertUpTo(@NotNull final RootEntry root,
                            @NotNull String path,
                            final ChangeSet targetChangeSet,
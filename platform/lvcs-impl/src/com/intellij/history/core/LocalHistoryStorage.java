@@ -20,6 +20,7 @@ import com.intellij.openapi.util.Pair;
 import com.intellij.util.io.PagePool;
 import com.intellij.util.io.storage.AbstractRecordsTable;
 import com.intellij.util.io.storage.AbstractStorage;
+import gnu.trove.TIntHashSet;
 
 import java.io.File;
 import java.io.IOException;
@@ -147,4 +148,34 @@ public class LocalHistoryStorage extends AbstractStorage {
       }
     }
   }
+
+  /**
+   * Rolls the storage back to the state when the given record was the last one: deletes the records created after it,
+   * or all the records if it's 0. The links between the records may be broken after a crash, so the records which can't
+   * be created after the given one (don't exist, are visited twice or have an earlier timestamp) stop the deletion.
+   */
+  public void deleteRecordsAfter(int record) throws IOException {
+    synchronized (myLock) {
+      LocalHistoryRecordsTable table = (LocalHistoryRecordsTable)myRecordsTable;
+      int recordsCount = table.getRecordsCount();
+      long timestamp = record == 0 ? 0 : table.getTimestamp(record);
+
+      TIntHashSet deleted = new TIntHashSet();
+      int each = record == 0 ? table.getFirstRecord() : table.getNextRecord(record);
+      while (each > 0 && each <= recordsCount && each != record && table.getTimestamp(each) >= timestamp && deleted.add(each)) {
+        int next = table.getNextRecord(each);
+        doDeleteRecord(each);
+        each = next;
+      }
+
+      if (record == 0) {
+        table.setFirstRecord(0);
+        table.setLastRecord(0);
+      }
+      else {
+        table.setNextRecord(record, 0);
+        table.setLastRecord(record);
+      }
+    }
+  }
 }
@@ -99,7 +99,7 @@ public abstract class StructuralChange extends Change {
     return false;
   }
 
-  protected String[] getAffectedPaths() {
+  public String[] getAffectedPaths() {
     return new String[]{myPath};
   }
 
@@ -30,6 +30,7 @@ import java.lang.reflect.Method;
 import java.net.URL;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Eugene Zhuravlev
@@ -37,10 +38,16 @@ import java.util.List;
  */
 @SuppressWarnings({"UseOfSystemOutOrSystemErr"})
 public class PluginClassLoader extends UrlClassLoader {
+  static {
+    markParallelCapable(PluginClassLoader.class);
+  }
+
   private final ClassLoader[] myParents;
   private final PluginId myPluginId;
   private final String myPluginVersion;
   private final File myLibDirectory;
+  // classes of different names are loaded in parallel, like ClassLoader.getClassLoadingLock() does on Java 7
+  private final ConcurrentHashMap<String, Object> myClassLoadingLocks = new ConcurrentHashMap<String, Object>();
 
   public PluginClassLoader(final List<URL> urls,
                            final ClassLoader[] parents,
@@ -92,26 +99,34 @@ public class PluginClassLoader extends UrlClassLoader {
   }
 
   @Nullable
-  private synchronized Class loadClassInsideSelf(final String name) {
-    Class c = findLoadedClass(name);
-    if (c != null) {
-      return c;
-    }
+  private Class loadClassInsideSelf(final String name) {
+    synchronized (getLoadingLock(name)) {
+      Class c = findLoadedClass(name);
+      if (c != null) {
+        return c;
+      }
 
-    try {
-      c = _findClass(name);
-    }
-    catch (IncompatibleClassChangeError e) {
-      throw new PluginException(e, myPluginId);
-    }
-    catch (UnsupportedClassVersionError e) {
-      throw new PluginException(e, myPluginId);
-    }
-    if (c != null) {
-      PluginManager.addPluginClass(c.getName(), myPluginId);
+      try {
+        c = _findClass(name);
+      }
+      catch (IncompatibleClassChangeError e) {
+        throw new PluginException(e, myPluginId);
+      }
+      catch (UnsupportedClassVersionError e) {
+        throw new PluginException(e, myPluginId);
+      }
+      if (c != null) {
+        PluginManager.addPluginClass(c.getName(), myPluginId);
+      }
+
+      return c;
     }
+  }
 
-    return c;
+  private Object getLoadingLock(String className) {
+    Object lock = new Object();
+    Object existing = myClassLoadingLocks.putIfAbsent(className, lock);
+    return existing != null ? existing : lock;
   }
 
   public URL findResource(final String name) {
@@ -79,17 +79,15 @@ import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 @SuppressWarnings({"AssignmentToStaticFieldFromInstanceMethod"})
 public class ApplicationImpl extends ComponentManagerImpl implements ApplicationEx {
   private static final Logger LOG = Logger.getInstance("#com.intellij.application.impl.ApplicationImpl");
   private final ModalityState MODALITY_STATE_NONE = ModalityState.NON_MODAL;
 
-  // about writer preference: the way the java.util.concurrent.locks.ReentrantReadWriteLock.NonfairSync is implemented, the
-  // writer thread will be always at the queue head and therefore, java.util.concurrent.locks.ReentrantReadWriteLock.NonfairSync.readerShouldBlock()
-  // will return true if the write action is pending, exactly as we need
-  private final ReentrantReadWriteLock myLock = new ReentrantReadWriteLock(false);
+  // about writer preference: as soon as the write action is requested, ReadMostlyRWLock makes new readers wait until it is finished,
+  // the same way the non-fair java.util.concurrent.locks.ReentrantReadWriteLock did with a writer at the queue head
+  private final ReadMostlyRWLock myLock = new ReadMostlyRWLock();
 
   private final ModalityInvokator myInvokator = new ModalityInvokatorImpl();
 
@@ -931,7 +929,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
     else {
       assertReadActionAllowed();
       try {
-        myLock.readLock().lockInterruptibly();
+        myLock.readLock();
       }
       catch (InterruptedException e) {
         throw new RuntimeInterruptedException(e);
@@ -940,7 +938,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
         action.run();
       }
       finally {
-        myLock.readLock().unlock();
+        myLock.readUnlock();
       }
     }
   }
@@ -952,7 +950,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
     else {
       assertReadActionAllowed();
       try {
-        myLock.readLock().lockInterruptibly();
+        myLock.readLock();
       }
       catch (InterruptedException e) {
         throw new RuntimeInterruptedException(e);
@@ -961,7 +959,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
         return computation.compute();
       }
       finally {
-        myLock.readLock().unlock();
+        myLock.readUnlock();
       }
     }
   }
@@ -974,7 +972,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
     else {
       assertReadActionAllowed();
       try {
-        myLock.readLock().lockInterruptibly();
+        myLock.readLock();
       }
       catch (InterruptedException e) {
         throw new RuntimeInterruptedException(e);
@@ -983,7 +981,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
         return computation.compute();
       }
       finally {
-        myLock.readLock().unlock();
+        myLock.readUnlock();
       }
     }
   }
@@ -1169,13 +1167,8 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
 
     if (mustAcquire) {
       LOG.assertTrue(myTestModeFlag || !Thread.holdsLock(PsiLock.LOCK), "Thread must not hold PsiLock while performing readAction");
-      try {
-        // timed version of tryLock() respects fairness unlike the no-args method
-        if (!myLock.readLock().tryLock(0, TimeUnit.MILLISECONDS)) return false;
-      }
-      catch (InterruptedException e) {
-        throw new RuntimeInterruptedException(e);
-      }
+      // fails if the write action is pending, to respect writer preference
+      if (!myLock.tryReadLock()) return false;
     }
 
     try {
@@ -1183,7 +1176,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
     }
     finally {
       if (mustAcquire) {
-        myLock.readLock().unlock();
+        myLock.readUnlock();
       }
     }
     return true;
@@ -1249,7 +1242,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
 
       LOG.assertTrue(isWriteAccessAllowed() || !Thread.holdsLock(PsiLock.LOCK), "Thread must not hold PsiLock while performing writeAction");
       try {
-        if (!myLock.writeLock().tryLock()) {
+        if (!myLock.tryWriteLock()) {
           if (ourDumpThreadsOnLongWriteActionWaiting > 0) {
             executeOnPooledThread(new Runnable() {
               @Override
@@ -1267,7 +1260,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
               }
             });
           }
-          myLock.writeLock().lockInterruptibly();
+          myLock.writeLock();
         }
         acquired();
       }
@@ -1289,7 +1282,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
         myWriteActionsStack.pop();
       }
       finally {
-        myLock.writeLock().unlock();
+        myLock.writeUnlock();
         released();
       }
     }
@@ -1337,7 +1330,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
     private ReadAccessToken() {
       assertReadActionAllowed();
       try {
-        myLock.readLock().lockInterruptibly();
+        myLock.readLock();
         acquired();
       }
       catch (InterruptedException e) {
@@ -1347,7 +1340,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
 
     @Override
     public void finish() {
-      myLock.readLock().unlock();
+      myLock.readUnlock();
       released();
     }
   }
@@ -1364,7 +1357,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
 
   @Override
   public boolean isWriteAccessAllowed() {
-    return myLock.writeLock().isHeldByCurrentThread();
+    return myLock.isWriteLockedByCurrentThread();
   }
 
   public void editorPaintStart() {
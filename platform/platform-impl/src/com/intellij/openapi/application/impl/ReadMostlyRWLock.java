@@ -0,0 +1,225 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.application.impl;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Read-write lock optimised for the case of many concurrent read actions and rare write actions.
+ * <p/>
+ * Every reader thread owns a {@link Reader} slot and acquires the lock by raising a volatile flag in its own slot, so readers
+ * don't contend on a shared state word. The writer announces itself via {@link #writeRequested} and then waits until it has scanned
+ * all slots with no reader inside.
+ * <p/>
+ * Writer preference: once the write is requested, new readers wait until the write lock is released, exactly like
+ * the non-fair {@link java.util.concurrent.locks.ReentrantReadWriteLock} with a writer at the queue head.
+ * The write lock is reentrant, and the thread holding it may take read lock as well. A thread holding the read lock may not take
+ * the write lock, as it would deadlock with another thread doing the same.
+ */
+class ReadMostlyRWLock {
+  private static final long WRITER_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final CopyOnWriteArrayList<Reader> myReaders = new CopyOnWriteArrayList<Reader>();
+  private final ThreadLocal<Reader> myReader = new ThreadLocal<Reader>() {
+    @Override
+    protected Reader initialValue() {
+      Reader reader = new Reader(Thread.currentThread());
+      myReaders.add(reader);
+      return reader;
+    }
+  };
+
+  private final Object myWriterMonitor = new Object(); // guards writer hand-off and wakes up waiting readers
+  private volatile boolean writeRequested;
+  private volatile Thread myWriteThread;
+  private volatile Thread myWaitingWriter; // the writer which waits for the readers to leave
+  private int myWriteHoldCount; // accessed by the write thread only
+
+  private static class Reader {
+    @NotNull private final Thread thread;
+    private volatile boolean readRequested;
+    private int holdCount; // accessed by the owner thread only
+
+    private Reader(@NotNull Thread thread) {
+      this.thread = thread;
+    }
+  }
+
+  void readLock() throws InterruptedException {
+    Reader reader = myReader.get();
+    if (reader.holdCount > 0) {
+      reader.holdCount++;
+      return;
+    }
+    if (myWriteThread == Thread.currentThread()) {
+      // the writer is reentrant, but its read is published, so that it's still seen by other writers after the write lock is released
+      reader.readRequested = true;
+      reader.holdCount = 1;
+      return;
+    }
+    while (true) {
+      reader.readRequested = true;
+      if (!writeRequested) {
+        reader.holdCount = 1;
+        return;
+      }
+      reader.readRequested = false;
+      wakeWriter();
+
+      synchronized (myWriterMonitor) {
+        while (writeRequested) {
+          myWriterMonitor.wait();
+        }
+      }
+    }
+  }
+
+  boolean tryReadLock() {
+    Reader reader = myReader.get();
+    if (reader.holdCount > 0) {
+      reader.holdCount++;
+      return true;
+    }
+    if (myWriteThread == Thread.currentThread()) {
+      // see readLock()
+      reader.readRequested = true;
+      reader.holdCount = 1;
+      return true;
+    }
+    reader.readRequested = true;
+    if (!writeRequested) {
+      reader.holdCount = 1;
+      return true;
+    }
+    reader.readRequested = false;
+    wakeWriter();
+    return false;
+  }
+
+  void readUnlock() {
+    Reader reader = myReader.get();
+    if (reader.holdCount <= 0) {
+      throw new IllegalMonitorStateException("Read lock is not held by " + Thread.currentThread());
+    }
+    if (--reader.holdCount == 0 && reader.readRequested) {
+      reader.readRequested = false;
+      if (writeRequested) {
+        wakeWriter();
+      }
+    }
+  }
+
+  int getReadHoldCount() {
+    return myReader.get().holdCount;
+  }
+
+  void writeLock() throws InterruptedException {
+    if (myWriteThread == Thread.currentThread()) {
+      myWriteHoldCount++;
+      return;
+    }
+    checkNoReadLockHeld();
+    synchronized (myWriterMonitor) {
+      while (writeRequested) {
+        myWriterMonitor.wait();
+      }
+      writeRequested = true;
+    }
+    myWaitingWriter = Thread.currentThread();
+    try {
+      while (!noReadersInside()) {
+        LockSupport.parkNanos(this, WRITER_PARK_NANOS);
+        if (Thread.interrupted()) throw new InterruptedException();
+      }
+    }
+    catch (InterruptedException e) {
+      releaseWriteRequest();
+      throw e;
+    }
+    finally {
+      myWaitingWriter = null;
+    }
+    myWriteThread = Thread.currentThread();
+    myWriteHoldCount = 1;
+  }
+
+  boolean tryWriteLock() {
+    if (myWriteThread == Thread.currentThread()) {
+      myWriteHoldCount++;
+      return true;
+    }
+    checkNoReadLockHeld();
+    synchronized (myWriterMonitor) {
+      if (writeRequested) return false;
+      writeRequested = true;
+    }
+    if (!noReadersInside()) {
+      releaseWriteRequest();
+      return false;
+    }
+    myWriteThread = Thread.currentThread();
+    myWriteHoldCount = 1;
+    return true;
+  }
+
+  void writeUnlock() {
+    if (myWriteThread != Thread.currentThread()) {
+      throw new IllegalMonitorStateException("Write lock is not held by " + Thread.currentThread());
+    }
+    if (--myWriteHoldCount == 0) {
+      myWriteThread = null;
+      releaseWriteRequest();
+    }
+  }
+
+  boolean isWriteLockedByCurrentThread() {
+    return myWriteThread == Thread.currentThread();
+  }
+
+  private void checkNoReadLockHeld() {
+    if (myReader.get().holdCount > 0) {
+      throw new IllegalMonitorStateException("Read lock can't be upgraded to write lock by " + Thread.currentThread());
+    }
+  }
+
+  private boolean noReadersInside() {
+    for (Reader reader : myReaders) {
+      if (reader.readRequested) return false;
+      if (!reader.thread.isAlive()) {
+        myReaders.remove(reader);
+      }
+    }
+    return true;
+  }
+
+  private void releaseWriteRequest() {
+    synchronized (myWriterMonitor) {
+      writeRequested = false;
+      myWriterMonitor.notifyAll();
+    }
+  }
+
+  private void wakeWriter() {
+    Thread writer = myWaitingWriter;
+    if (writer != null) {
+      LockSupport.unpark(writer);
+    }
+  }
+}
@@ -28,12 +28,15 @@ import com.intellij.openapi.editor.ex.PrioritizedDocumentListener;
 import com.intellij.openapi.editor.highlighter.EditorHighlighter;
 import com.intellij.openapi.editor.highlighter.HighlighterClient;
 import com.intellij.openapi.editor.highlighter.HighlighterIterator;
+import com.intellij.openapi.editor.impl.DocumentImpl;
 import com.intellij.openapi.editor.impl.EditorDocumentPriorities;
 import com.intellij.openapi.editor.markup.TextAttributes;
 import com.intellij.openapi.fileTypes.PlainSyntaxHighlighter;
 import com.intellij.openapi.fileTypes.SyntaxHighlighter;
 import com.intellij.openapi.project.DumbAwareRunnable;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.util.ArrayUtil;
 import com.intellij.util.ui.UIUtil;
@@ -52,6 +55,11 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
   private final SyntaxHighlighter myHighlighter;
   private EditorColorsScheme myScheme;
   private final int myInitialState;
+  private Boolean myCanRelexInBackground;
+  // changes whenever the segments are recomputed, so that the background relexing started before that is dropped
+  private volatile int myRelexGeneration;
+  // segments after this offset may be stale until the background relexing is done, -1 if they aren't
+  private int myStaleOffset = -1;
 
   public LexerEditorHighlighter(@NotNull SyntaxHighlighter highlighter, @NotNull EditorColorsScheme scheme) {
     myScheme = scheme;
@@ -143,6 +151,7 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
 
     if (document instanceof DocumentEx && ((DocumentEx)document).isInBulkUpdate()) {
       mySegments.removeAll();
+      dropBackgroundRelexing();
       return;
     }
 
@@ -176,6 +185,7 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     int newEndOffset = e.getOffset() + e.getNewLength();
 
     myLexer.start(text, startOffset, text.length(), myInitialState);
+    final int syncRelexLimit = canRelexInBackground() ? Registry.intValue("editor.lexer.sync.relex.limit") : 0;
 
     int lastTokenStart = -1;
     int lastLexerState = -1;
@@ -207,6 +217,7 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     int repaintEnd = -1;
     int insertSegmentCount = 0;
     int oldEndIndex = -1;
+    boolean relexRest = false;
     SegmentArrayWithData insertSegments = new SegmentArrayWithData();
 
     while(myLexer.getTokenType() != null) {
@@ -231,6 +242,17 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
           break;
         }
       }
+      if (syncRelexLimit > 0 && tokenStart >= newEndOffset + syncRelexLimit) {
+        // keep the old segments from the nearest token boundary, they are relexed in background
+        int shiftedTokenStart = tokenStart - e.getNewLength() + e.getOldLength();
+        int index = mySegments.findSegmentIndex(shiftedTokenStart);
+        if (mySegments.getSegmentStart(index) == shiftedTokenStart) {
+          repaintEnd = tokenStart;
+          oldEndIndex = index;
+          relexRest = true;
+          break;
+        }
+      }
       insertSegments.setElementAt(insertSegmentCount, tokenStart, tokenEnd, data);
       insertSegmentCount++;
       myLexer.advance();
@@ -259,6 +281,16 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     mySegments.shiftSegments(oldEndIndex, shift);
     mySegments.replace(startIndex, oldEndIndex, insertSegments);
 
+    if (myStaleOffset >= 0) {
+      myStaleOffset = myStaleOffset >= e.getOffset() + e.getOldLength() ? myStaleOffset + shift : Math.min(myStaleOffset, e.getOffset());
+    }
+    if (relexRest) {
+      myStaleOffset = myStaleOffset >= 0 ? Math.min(myStaleOffset, repaintEnd) : repaintEnd;
+    }
+    if (myStaleOffset >= 0) {
+      relexInBackground(document);
+    }
+
     if (insertSegmentCount == 0 ||
         oldEndIndex == startIndex + 1 && insertSegmentCount == 1 && data == mySegments.getSegmentData(startIndex)) {
       return;
@@ -303,6 +335,7 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
   }
 
   private void doSetText(final CharSequence text) {
+    dropBackgroundRelexing();
     final TokenProcessor processor = createTokenProcessor(0);
     myLexer.start(text, 0, text.length(),myInitialState);
     mySegments.removeAll();
@@ -328,6 +361,86 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     }
   }
 
+  /**
+   * Background relexing needs a separate lexer and can't maintain any additional data of the segments subclasses may have.
+   */
+  private boolean canRelexInBackground() {
+    if (myEditor == null) return false;
+    if (myCanRelexInBackground == null) {
+      myCanRelexInBackground = mySegments.getClass() == SegmentArrayWithData.class &&
+                               myHighlighter.getHighlightingLexer() != myLexer;
+    }
+    return myCanRelexInBackground;
+  }
+
+  private void dropBackgroundRelexing() {
+    myStaleOffset = -1;
+    myRelexGeneration++;
+  }
+
+  /**
+   * Relexes the text after {@link #myStaleOffset} in a pooled thread and replaces the segments there in the EDT,
+   * unless the document is changed in the meantime, in which case the next change starts relexing again.
+   * The relexing restarts from the nearest initial state segment before the stale offset, which is kept at the earliest
+   * segment which may be changed.
+   * The text isn't copied in the EDT: the pooled thread takes its snapshot under read action, provided the document
+   * isn't changed yet, which is O(1) for the documents kept in a rope.
+   */
+  private void relexInBackground(@NotNull final Document document) {
+    final int generation = ++myRelexGeneration;
+    if (document.getTextLength() == 0) {
+      myStaleOffset = -1;
+      return;
+    }
+    // the lexer state of the segment at the stale offset may be stale as well, so the restart point is searched before it
+    int index = Math.max(0, mySegments.findSegmentIndex(Math.min(myStaleOffset, document.getTextLength() - 1)) - 1);
+    while (index > 0 && !isInitialState(mySegments.getSegmentData(index))) {
+      index--;
+    }
+    final int startIndex = index;
+    final int startOffset = mySegments.getSegmentStart(startIndex);
+    final long modificationStamp = document.getModificationStamp();
+    final Lexer lexer = myHighlighter.getHighlightingLexer();
+
+    ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        CharSequence text = ApplicationManager.getApplication().runReadAction(new Computable<CharSequence>() {
+          @Override
+          public CharSequence compute() {
+            if (generation != myRelexGeneration || document.getModificationStamp() != modificationStamp) return null;
+            return document instanceof DocumentImpl ? ((DocumentImpl)document).getImmutableCharSequence() : document.getText();
+          }
+        });
+        if (text == null) return;
+
+        final SegmentArrayWithData segments = new SegmentArrayWithData();
+        lexer.start(text, startOffset, text.length(), myInitialState);
+        int i = 0;
+        while (true) {
+          IElementType tokenType = lexer.getTokenType();
+          if (tokenType == null) break;
+          if (i % 1000 == 0 && generation != myRelexGeneration) return;
+          segments.setElementAt(i++, lexer.getTokenStart(), lexer.getTokenEnd(), packData(tokenType, lexer.getState()));
+          lexer.advance();
+        }
+
+        UIUtil.invokeLaterIfNeeded(new DumbAwareRunnable() {
+          @Override
+          public void run() {
+            synchronized (LexerEditorHighlighter.this) {
+              if (generation != myRelexGeneration || document.getModificationStamp() != modificationStamp) return;
+              if (startIndex >= mySegments.getSegmentCount() || mySegments.getSegmentStart(startIndex) != startOffset) return;
+              mySegments.replace(startIndex, mySegments.getSegmentCount(), segments);
+              myStaleOffset = -1;
+            }
+            myEditor.repaint(startOffset, document.getTextLength());
+          }
+        });
+      }
+    });
+  }
+
   protected TokenProcessor createTokenProcessor(final int startIndex) {
     return new TokenProcessor();
   }
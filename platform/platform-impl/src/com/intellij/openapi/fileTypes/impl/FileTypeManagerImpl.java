@@ -34,17 +34,18 @@ import com.intellij.openapi.options.SchemesManagerFactory;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.*;
 import com.intellij.openapi.util.io.ByteSequence;
-import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.CharsetToolkit;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.VirtualFileSystem;
+import com.intellij.openapi.vfs.newvfs.FileAttribute;
 import com.intellij.openapi.vfs.newvfs.FileSystemInterface;
+import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
 import com.intellij.psi.SingleRootFileViewProvider;
 import com.intellij.testFramework.LightVirtualFile;
 import com.intellij.util.ArrayUtil;
 import com.intellij.util.PlatformUtils;
-import com.intellij.util.Processor;
+import com.intellij.util.io.IOUtil;
 import com.intellij.util.messages.MessageBus;
 import com.intellij.util.messages.MessageBusConnection;
 import gnu.trove.THashMap;
@@ -54,12 +55,10 @@ import org.jdom.Element;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
 import javax.swing.*;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.*;
 import java.nio.charset.Charset;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -339,7 +338,11 @@ public class FileTypeManagerImpl extends FileTypeManagerEx implements NamedJDOME
     if (file.isDirectory() || !file.isValid() || file.isSpecialFile()) return UnknownFileType.INSTANCE;
     FileType fileType = file.getUserData(DETECTED_FROM_CONTENT_FILE_TYPE_KEY);
     if (fileType == null) {
-      fileType = detectFromContent(file);
+      fileType = readDetectedFileType(file);
+      if (fileType == null) {
+        fileType = detectFromContent(file);
+        writeDetectedFileType(file, fileType);
+      }
       file.putUserData(DETECTED_FROM_CONTENT_FILE_TYPE_KEY, fileType);
     }
     return fileType;
@@ -347,10 +350,82 @@ public class FileTypeManagerImpl extends FileTypeManagerEx implements NamedJDOME
 
   private static class FileTypeDetectorHolder {
     private static final FileTypeDetector[] FILE_TYPE_DETECTORS = Extensions.getExtensions(FileTypeDetector.EP_NAME);
+    private static final int PREFIX_LENGTH;
+    // detection results saved with another set of detectors are not reused
+    private static final int DETECTORS_HASH;
+
+    static {
+      int prefixLength = TEXT_GUESS_PREFIX_LENGTH;
+      int hash = 0;
+      for (FileTypeDetector detector : FILE_TYPE_DETECTORS) {
+        prefixLength = Math.max(prefixLength, detector instanceof FileTypeDetectorWithPrefixLength
+                                              ? ((FileTypeDetectorWithPrefixLength)detector).getDesiredContentPrefixLength()
+                                              : DETECT_BUFFER_SIZE);
+        hash = 31 * hash + detector.getClass().getName().hashCode();
+      }
+      PREFIX_LENGTH = Math.min(prefixLength, DETECT_BUFFER_SIZE);
+      DETECTORS_HASH = hash;
+    }
   }
 
   private static final AtomicInteger DETECTED_COUNT = new AtomicInteger();
   private static final int DETECT_BUFFER_SIZE = 8192;
+  // the number of first bytes enough to tell text from binary content
+  private static final int TEXT_GUESS_PREFIX_LENGTH = 1024;
+
+  /**
+   * Type detected from the file content, kept between sessions for files whose length and timestamp are unchanged.
+   */
+  private static final FileAttribute DETECTED_FILE_TYPE = new FileAttribute("__detected_file_type__", 1, false);
+
+  @Nullable
+  private FileType readDetectedFileType(@NotNull VirtualFile file) {
+    if (!(file instanceof NewVirtualFile)) return null;
+    DataInputStream stream = DETECTED_FILE_TYPE.readAttribute(file);
+    if (stream == null) return null;
+    try {
+      try {
+        if (stream.readInt() != FileTypeDetectorHolder.DETECTORS_HASH ||
+            stream.readLong() != file.getLength() ||
+            stream.readLong() != file.getTimeStamp()) {
+          return null;
+        }
+        String name = IOUtil.readString(stream);
+        return UnknownFileType.INSTANCE.getName().equals(name) ? UnknownFileType.INSTANCE : getFileTypeByName(name);
+      }
+      finally {
+        stream.close();
+      }
+    }
+    catch (IOException e) {
+      return null;
+    }
+  }
+
+  @TestOnly
+  @Nullable
+  public FileType getPersistedDetectedFileType(@NotNull VirtualFile file) {
+    return readDetectedFileType(file);
+  }
+
+  private static void writeDetectedFileType(@NotNull VirtualFile file, @NotNull FileType fileType) {
+    if (!(file instanceof NewVirtualFile) || !file.isValid()) return;
+    DataOutputStream stream = DETECTED_FILE_TYPE.writeAttribute(file);
+    try {
+      try {
+        stream.writeInt(FileTypeDetectorHolder.DETECTORS_HASH);
+        stream.writeLong(file.getLength());
+        stream.writeLong(file.getTimeStamp());
+        IOUtil.writeString(fileType.getName(), stream);
+      }
+      finally {
+        stream.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.info(e);
+    }
+  }
 
   @NotNull
   private static FileType detectFromContent(@NotNull final VirtualFile file) {
@@ -366,39 +441,27 @@ public class FileTypeManagerImpl extends FileTypeManagerEx implements NamedJDOME
       }
 
       final InputStream inputStream = ((FileSystemInterface)fileSystem).getInputStream(file);
-      final Ref<FileType> result;
+      final byte[] bytes;
       try {
-        result = new Ref<FileType>(UnknownFileType.INSTANCE);
-        FileUtil.processFirstBytes(inputStream, DETECT_BUFFER_SIZE, new Processor<ByteSequence>() {
-          @Override
-          public boolean process(ByteSequence byteSequence) {
-            boolean isText = guessIfText(file, byteSequence);
-            CharSequence text;
-            if (isText) {
-              byte[] bytes = Arrays.copyOf(byteSequence.getBytes(), byteSequence.getLength());
-              text = LoadTextUtil.getTextByBinaryPresentation(bytes, file);
-            }
-            else {
-              text = null;
-            }
-            FileType detected = null;
-            for (FileTypeDetector detector : FileTypeDetectorHolder.FILE_TYPE_DETECTORS) {
-              detected = detector.detect(file, byteSequence, text);
-              if (detected != null) break;
-            }
-
-            if (detected == null) {
-              detected = isText ? PlainTextFileType.INSTANCE : UnknownFileType.INSTANCE;
-            }
-            result.set(detected);
-            return true;
-          }
-        });
+        bytes = readPrefix(inputStream, (int)Math.min(length, FileTypeDetectorHolder.PREFIX_LENGTH));
       }
       finally {
         inputStream.close();
       }
-      FileType fileType = result.get();
+      if (bytes.length == 0) return UnknownFileType.INSTANCE;
+
+      ByteSequence byteSequence = new ByteSequence(bytes);
+      boolean isText = guessIfText(file, byteSequence);
+      CharSequence text = isText ? LoadTextUtil.getTextByBinaryPresentation(bytes, file) : null;
+      FileType fileType = null;
+      for (FileTypeDetector detector : FileTypeDetectorHolder.FILE_TYPE_DETECTORS) {
+        fileType = detector.detect(file, byteSequence, text);
+        if (fileType != null) break;
+      }
+
+      if (fileType == null) {
+        fileType = isText ? PlainTextFileType.INSTANCE : UnknownFileType.INSTANCE;
+      }
 
       if (LOG.isDebugEnabled()) {
         LOG.debug(file + "; type=" + fileType.getDescription() + "; " + DETECTED_COUNT.incrementAndGet());
@@ -414,6 +477,21 @@ public class FileTypeManagerImpl extends FileTypeManagerEx implements NamedJDOME
     }
   }
 
+  /**
+   * Reads the first bytes of the stream into an array of the exact size, which is copied only if the stream is shorter than expected.
+   */
+  @NotNull
+  private static byte[] readPrefix(@NotNull InputStream stream, int length) throws IOException {
+    byte[] bytes = new byte[length];
+    int count = 0;
+    while (count < length) {
+      int n = stream.read(bytes, count, length - count);
+      if (n <= 0) break;
+      count += n;
+    }
+    return count == length ? bytes : Arrays.copyOf(bytes, count);
+  }
+
   private static boolean guessIfText(VirtualFile file, ByteSequence byteSequence) {
     byte[] bytes = byteSequence.getBytes();
     Trinity<Charset, CharsetToolkit.GuessedEncoding, byte[]> guessed = LoadTextUtil.guessFromContent(file, bytes, byteSequence.getLength());
@@ -18,8 +18,11 @@ package com.intellij.openapi.project;
 import com.intellij.ide.caches.FileContent;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.fileEditor.impl.LoadTextUtil;
+import com.intellij.openapi.fileTypes.FileType;
 import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.vfs.InvalidVirtualFileAccessException;
 import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
@@ -27,10 +30,12 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -50,23 +55,26 @@ public class FileContentQueue {
   private final ArrayBlockingQueue<FileContent> myQueue = new ArrayBlockingQueue<FileContent>(256);
   private final Queue<FileContent> myPushbackBuffer = new ArrayDeque<FileContent>();
   private volatile boolean myContentLoadingThreadTerminated = false;
+  private volatile boolean myBytesLoadingThreadTerminated = false;
 
+  /**
+   * Loads content of the files on a pooled thread. With <code>caches.pipelinedIndexing</code> enabled there is one more stage
+   * which detects file type and charset and decodes text on its own thread, so the consumers get ready-to-index content.
+   */
   public void queue(final Collection<VirtualFile> files, @NotNull final ProgressIndicator indicator) {
+    final boolean decode = Registry.is("caches.pipelinedIndexing");
+    final BlockingQueue<FileContent> loadedQueue = decode ? new ArrayBlockingQueue<FileContent>(256) : myQueue;
+
     final Runnable contentLoadingRunnable = new Runnable() {
       public void run() {
         try {
           for (VirtualFile file : files) {
             indicator.checkCanceled();
-            addLast(file, indicator);
+            addLast(loadedQueue, file, indicator);
           }
 
           // put end-of-queue marker only if not canceled
-          try {
-            myQueue.put(new FileContent(null));
-          }
-          catch (InterruptedException e) {
-            LOG.error(e);
-          }
+          offer(loadedQueue, new FileContent(null), indicator);
         }
         catch (ProcessCanceledException e) {
           // Do nothing, exit the thread.
@@ -75,15 +83,91 @@ public class FileContentQueue {
           LOG.error(e);
         }
         finally {
-          myContentLoadingThreadTerminated = true;
+          if (decode) {
+            myBytesLoadingThreadTerminated = true;
+          }
+          else {
+            myContentLoadingThreadTerminated = true;
+          }
         }
       }
     };
 
     ApplicationManager.getApplication().executeOnPooledThread(contentLoadingRunnable);
+    if (decode) {
+      ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            while (true) {
+              final FileContent content = loadedQueue.poll(300L, TimeUnit.MILLISECONDS);
+              if (content == null) {
+                if (myBytesLoadingThreadTerminated && loadedQueue.isEmpty()) return;
+                continue;
+              }
+              if (content.getVirtualFile() == null) {
+                offer(myQueue, content, indicator);
+                return;
+              }
+              indicator.checkCanceled();
+              decodeContent(content);
+              offer(myQueue, content, indicator);
+            }
+          }
+          catch (ProcessCanceledException e) {
+            // Do nothing, exit the thread.
+          }
+          catch (InterruptedException e) {
+            LOG.error(e);
+          }
+          finally {
+            myContentLoadingThreadTerminated = true;
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Waits until there is space in the queue, unless the indexing is canceled or there is no one left to take the content.
+   */
+  private void offer(@NotNull BlockingQueue<FileContent> queue, @NotNull FileContent content, @NotNull ProgressIndicator indicator)
+    throws InterruptedException {
+    while (!queue.offer(content, 300L, TimeUnit.MILLISECONDS)) {
+      indicator.checkCanceled();
+      if (myContentLoadingThreadTerminated) {
+        throw new ProcessCanceledException();
+      }
+    }
   }
 
-  private void addLast(VirtualFile file, @NotNull final ProgressIndicator indicator) throws InterruptedException {
+  private void decodeContent(@NotNull FileContent content) {
+    final VirtualFile file = content.getVirtualFile();
+    try {
+      if (!file.isValid()) return;
+      final FileType fileType = file.getFileType();
+      if (fileType.isBinary()) return;
+
+      final byte[] bytes = content.getBytes();
+      final Charset charset = LoadTextUtil.detectCharsetAndSetBOM(file, bytes);
+      final CharSequence text = LoadTextUtil.getTextByBinaryPresentation(bytes, charset);
+      synchronized (this) {
+        // the loading thread limits the size of the bytes only, so the decoded text may exceed the limit a bit
+        myTotalSize += getTextSize(text);
+      }
+      content.setDecodedText(text, charset);
+    }
+    catch (ProcessCanceledException e) {
+      throw e;
+    }
+    catch (Throwable e) {
+      // consumers decode the content themselves
+      LOG.info(e);
+    }
+  }
+
+  private void addLast(@NotNull BlockingQueue<FileContent> queue, VirtualFile file, @NotNull final ProgressIndicator indicator)
+    throws InterruptedException {
     FileContent content = new FileContent(file);
 
     if (file.isValid() && !file.isDirectory() && !file.isSpecialFile() && !VfsUtilCore.isBrokenLink(file)) {
@@ -95,7 +179,19 @@ public class FileContentQueue {
       content.setEmptyContent();
     }
 
-    myQueue.put(content);
+    offer(queue, content, indicator);
+  }
+
+  private static long getTextSize(@NotNull CharSequence text) {
+    return text.length() * 2L;
+  }
+
+  /**
+   * @return size of the bytes of the content and of its text, if it's decoded
+   */
+  private static long getMemorySize(@NotNull FileContent content) {
+    final CharSequence text = content.getDecodedText();
+    return content.getLength() + (text == null ? 0 : getTextSize(text));
   }
 
   @SuppressWarnings("InstanceofCatchParameter")
@@ -149,7 +245,7 @@ public class FileContentQueue {
   public FileContent take(@NotNull ProgressIndicator indicator) throws ProcessCanceledException{
     final FileContent content = doTake();
     if (content != null) {
-      final long length = content.getLength();
+      final long length = getMemorySize(content);
       while (true) {
         try {
           indicator.checkCanceled();
@@ -217,7 +313,7 @@ public class FileContentQueue {
     }
     synchronized (this) {
       try {
-        myTotalSize -= result.getLength();
+        myTotalSize -= getMemorySize(result);
       }
       finally {
         notifyAll();
@@ -228,7 +324,7 @@ public class FileContentQueue {
   }
 
   public synchronized void release(@NotNull FileContent content) {
-    myTakenSize -= content.getLength();
+    myTakenSize -= getMemorySize(content);
     notifyAll();
   }
 
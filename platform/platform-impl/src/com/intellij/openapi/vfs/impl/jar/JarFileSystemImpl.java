@@ -26,11 +26,10 @@ import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.*;
 import com.intellij.openapi.vfs.newvfs.*;
 import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
-import com.intellij.util.ArrayUtil;
 import com.intellij.util.SystemProperties;
+import com.intellij.util.containers.ConcurrentHashMap;
 import com.intellij.util.containers.ConcurrentHashSet;
 import com.intellij.util.messages.MessageBus;
-import gnu.trove.THashMap;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -41,18 +40,14 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 public class JarFileSystemImpl extends JarFileSystem implements ApplicationComponent {
-  private static final class JarFileSystemImplLock { }
-  private static final JarFileSystemImplLock LOCK = new JarFileSystemImplLock();
-
   private final Set<String> myNoCopyJarPaths =
     SystemProperties.getBooleanProperty("idea.jars.nocopy", false) ? null : new ConcurrentHashSet<String>(FileUtil.PATH_HASHING_STRATEGY);
   private File myNoCopyJarDir;
-  private final Map<String, JarHandler> myHandlers = new THashMap<String, JarHandler>(FileUtil.PATH_HASHING_STRATEGY);
-  private String[] jarPathsCache;
+  private final ConcurrentMap<String, JarHandler> myHandlers = new ConcurrentHashMap<String, JarHandler>(FileUtil.PATH_HASHING_STRATEGY);
 
   public JarFileSystemImpl(MessageBus bus) {
     bus.connect().subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener.Adapter() {
@@ -64,15 +59,7 @@ public class JarFileSystemImpl extends JarFileSystem implements ApplicationCompo
           if (event.getFileSystem() instanceof LocalFileSystem) {
             String path = event.getPath();
 
-            String[] jarPaths;
-            synchronized (LOCK) {
-              jarPaths = jarPathsCache;
-              if (jarPaths == null) {
-                jarPathsCache = jarPaths = ArrayUtil.toStringArray(myHandlers.keySet());
-              }
-            }
-
-            for (String jarPath : jarPaths) {
+            for (String jarPath : myHandlers.keySet()) {
               final String jarFile = jarPath.substring(0, jarPath.length() - JAR_SEPARATOR.length());
               if (FileUtil.startsWith(jarFile, path)) {
                 VirtualFile jarRootToRefresh = markDirty(jarPath);
@@ -111,11 +98,7 @@ public class JarFileSystemImpl extends JarFileSystem implements ApplicationCompo
 
   @Nullable
   private VirtualFile markDirty(@NotNull String path) {
-    final JarHandler handler;
-    synchronized (LOCK) {
-      handler = myHandlers.remove(path);
-      jarPathsCache = null;
-    }
+    final JarHandler handler = myHandlers.remove(path);
 
     if (handler != null) {
       return handler.markDirty();
@@ -178,23 +161,15 @@ public class JarFileSystemImpl extends JarFileSystem implements ApplicationCompo
   private JarHandler getHandler(@NotNull VirtualFile entryVFile) {
     final String jarRootPath = extractRootPath(entryVFile.getPath());
 
-    JarHandler handler;
-    final JarHandler freshHandler;
+    JarHandler handler = myHandlers.get(jarRootPath);
+    if (handler != null) return handler;
 
-    synchronized (LOCK) {
-      handler = myHandlers.get(jarRootPath);
-      if (handler == null) {
-        freshHandler = handler = new JarHandler(this, jarRootPath.substring(0, jarRootPath.length() - JAR_SEPARATOR.length()));
-        myHandlers.put(jarRootPath, handler);
-        jarPathsCache = null;
-      }
-      else {
-        freshHandler = null;
-      }
-    }
+    final JarHandler freshHandler = new JarHandler(this, jarRootPath.substring(0, jarRootPath.length() - JAR_SEPARATOR.length()));
+    handler = myHandlers.putIfAbsent(jarRootPath, freshHandler);
+    if (handler == null) {
+      handler = freshHandler;
 
-    if (freshHandler != null) {
-      // Refresh must be outside of the lock, since it potentially requires write action.
+      // Refresh is postponed, since it potentially requires write action.
       ApplicationManager.getApplication().invokeLater(new Runnable() {
         @Override
         public void run() {
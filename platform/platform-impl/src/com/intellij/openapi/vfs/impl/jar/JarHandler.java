@@ -45,6 +45,7 @@ public class JarHandler extends JarHandlerBase {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.vfs.impl.jar.JarHandler");
 
   @NonNls private static final String JARS_FOLDER = "jars";
+  @NonNls private static final String ENTRIES_SUFFIX = ".entries";
 
   private final JarFileSystemImpl myFileSystem;
 
@@ -71,6 +72,51 @@ public class JarHandler extends JarHandlerBase {
     return root;
   }
 
+  /**
+   * Reuses the entries saved for the same jar (path, length and timestamp) by the previous sessions,
+   * so that the central directory of library jars isn't parsed again in every session.
+   */
+  @Nullable
+  @Override
+  protected ZipCentralDirectory getCentralDirectory(@NotNull File file) {
+    final File indexFile = getEntriesFile(getOriginalFile());
+    final FileAttributes attributes = FileSystemUtil.getAttributes(file);
+    if (attributes == null) {
+      FileUtil.delete(indexFile);
+      return null;
+    }
+
+    ZipCentralDirectory directory = ZipCentralDirectory.load(indexFile);
+    if (directory == null || !directory.isUpToDate(attributes.length, attributes.lastModified)) {
+      directory = ZipCentralDirectory.read(file);
+      if (directory == null) {
+        FileUtil.delete(indexFile);
+        return null;
+      }
+
+      try {
+        if (indexFile.getParentFile().isDirectory() || indexFile.getParentFile().mkdirs()) {
+          directory.save(indexFile);
+        }
+      }
+      catch (IOException e) {
+        LOG.info(e);
+        FileUtil.delete(indexFile);
+      }
+    }
+    return directory;
+  }
+
+  @NotNull
+  private static File getEntriesFile(@NotNull File originalFile) {
+    return new File(getJarsDir(), getMirrorName(originalFile) + ENTRIES_SUFFIX);
+  }
+
+  @NotNull
+  private static String getMirrorName(@NotNull File originalFile) {
+    return originalFile.getName() + "." + Integer.toHexString(originalFile.getPath().hashCode());
+  }
+
   @Override
   public File getMirrorFile(@NotNull File originalFile) {
     if (!myFileSystem.isMakeCopyOfJar(originalFile)) return originalFile;
@@ -83,8 +129,7 @@ public class JarHandler extends JarHandlerBase {
       return originalFile;
     }
 
-    final String mirrorName = originalFile.getName() + "." + Integer.toHexString(originalFile.getPath().hashCode());
-    final File mirrorFile = new File(folderPath, mirrorName);
+    final File mirrorFile = new File(folderPath, getMirrorName(originalFile));
     final FileAttributes mirrorAttributes = FileSystemUtil.getAttributes(mirrorFile);
 
     if (mirrorAttributes == null ||
@@ -111,6 +156,8 @@ public class JarHandler extends JarHandlerBase {
       progress.setFraction(0);
     }
 
+    // the saved entries belong to the previous copy
+    FileUtil.delete(getEntriesFile(original));
     try {
       FileUtil.copy(original, mirror);
     }
@@ -29,6 +29,7 @@ import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.ByteSequence;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.ArrayUtil;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.ConcurrentHashMap;
 import com.intellij.util.containers.IntArrayList;
 import com.intellij.util.io.*;
@@ -37,11 +38,14 @@ import com.intellij.util.io.storage.*;
 import gnu.trove.TIntArrayList;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
 import javax.swing.*;
 import java.awt.*;
 import java.io.*;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 @SuppressWarnings({"PointlessArithmeticExpression", "HardCodedStringLiteral"})
@@ -87,6 +91,18 @@ public class FSRecords implements Forceable {
   private static final ReentrantReadWriteLock.ReadLock r;
   private static final ReentrantReadWriteLock.WriteLock w;
 
+  // Optimistic (seqlock-style) reads of single record fields: every record page has a stamp which writers make odd while
+  // they modify the page and even again afterwards, so a reader that saw the same even stamp before and after
+  // reading the field got a consistent value without taking the read lock
+  private static volatile boolean ourOptimisticReads = SystemProperties.getBooleanProperty("idea.vfs.optimistic.reads", false);
+  private static final int RECORDS_PER_STRIPE = 64;
+  private static final int STRIPE_COUNT = 1024;
+  // stamps of neighbouring stripes are kept in different cache lines, so writes to one stripe don't slow down readers of another
+  private static final int STAMP_PADDING = 16;
+  private static final AtomicIntegerArray ourStripeStamps = new AtomicIntegerArray(STRIPE_COUNT * STAMP_PADDING);
+  // made odd under the write lock while the records file grows, since resizing may remap the last page under optimistic readers
+  private static final AtomicInteger ourResizeStamp = new AtomicInteger();
+
   private static volatile int ourLocalModificationCount = 0;
   private static volatile boolean ourIsDisposed;
 
@@ -409,7 +425,13 @@ public class FSRecords implements Forceable {
     }
 
     static void cleanRecord(int id) {
-      myRecords.put(id * RECORD_SIZE, ZEROES, 0, RECORD_SIZE);
+      beginRecordWrite(id);
+      try {
+        myRecords.put(id * RECORD_SIZE, ZEROES, 0, RECORD_SIZE);
+      }
+      finally {
+        endRecordWrite(id);
+      }
     }
 
     public static PersistentStringEnumerator getNames() {
@@ -534,7 +556,13 @@ public class FSRecords implements Forceable {
         final int filelength = (int)getRecords().length();
         LOG.assertTrue(filelength % RECORD_SIZE == 0);
         int newrecord = filelength / RECORD_SIZE;
-        DbConnection.cleanRecord(newrecord);
+        ourResizeStamp.incrementAndGet();
+        try {
+          DbConnection.cleanRecord(newrecord);
+        }
+        finally {
+          ourResizeStamp.incrementAndGet();
+        }
         assert filelength + RECORD_SIZE == getRecords().length();
         return newrecord;
       }
@@ -905,19 +933,13 @@ public class FSRecords implements Forceable {
 
   public static int getParent(int id) {
     try {
-      r.lock();
-      try {
-        final int parentId = getRecordInt(id, PARENT_OFFSET);
-        if (parentId == id) {
-          LOG.error("Cyclic parent child relations in the database. id = " + id);
-          return 0;
-        }
-
-        return parentId;
-      }
-      finally {
-        r.unlock();
+      final int parentId = readRecordInt(id, PARENT_OFFSET);
+      if (parentId == id) {
+        LOG.error("Cyclic parent child relations in the database. id = " + id);
+        return 0;
       }
+
+      return parentId;
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -945,13 +967,7 @@ public class FSRecords implements Forceable {
 
   public static int getNameId(int id) {
     try {
-      r.lock();
-      try {
-        return getRecordInt(id, NAME_OFFSET);
-      }
-      finally {
-        r.unlock();
-      }
+      return readRecordInt(id, NAME_OFFSET);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -975,6 +991,11 @@ public class FSRecords implements Forceable {
 
   public static String getName(int id) {
     try {
+      if (ourOptimisticReads) {
+        final int nameId = readRecordInt(id, NAME_OFFSET);
+        return nameId != 0 ? getNames().valueOf(nameId) : "";
+      }
+
       r.lock();
       try {
         final int nameId = getRecordInt(id, NAME_OFFSET);
@@ -1004,13 +1025,7 @@ public class FSRecords implements Forceable {
   }
 
   public static int getFlags(int id) {
-    try {
-      r.lock();
-      return getRecordInt(id, FLAGS_OFFSET);
-    }
-    finally {
-      r.unlock();
-    }
+    return readRecordInt(id, FLAGS_OFFSET);
   }
 
   public static void setFlags(int id, int flags, final boolean markAsChange) {
@@ -1030,20 +1045,14 @@ public class FSRecords implements Forceable {
   }
 
   public static long getLength(int id) {
-    try {
-      r.lock();
-      return getRecords().getLong(getOffset(id, LENGTH_OFFSET));
-    }
-    finally {
-      r.unlock();
-    }
+    return readRecordLong(id, LENGTH_OFFSET);
   }
 
   public static void setLength(int id, long len) {
     try {
       w.lock();
       incModCount(id);
-      getRecords().putLong(getOffset(id, LENGTH_OFFSET), len);
+      putRecordLong(id, LENGTH_OFFSET, len);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1054,20 +1063,14 @@ public class FSRecords implements Forceable {
   }
 
   public static long getTimestamp(int id) {
-    try {
-      r.lock();
-      return getRecords().getLong(getOffset(id, TIMESTAMP_OFFSET));
-    }
-    finally {
-      r.unlock();
-    }
+    return readRecordLong(id, TIMESTAMP_OFFSET);
   }
 
   public static void setTimestamp(int id, long value) {
     try {
       w.lock();
       incModCount(id);
-      getRecords().putLong(getOffset(id, TIMESTAMP_OFFSET), value);
+      putRecordLong(id, TIMESTAMP_OFFSET, value);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1078,13 +1081,7 @@ public class FSRecords implements Forceable {
   }
 
   public static int getModCount(int id) {
-    try {
-      r.lock();
-      return getRecordInt(id, MOD_COUNT_OFFSET);
-    }
-    finally {
-      r.unlock();
-    }
+    return readRecordInt(id, MOD_COUNT_OFFSET);
   }
 
   private static void setModCount(int id, int value) {
@@ -1112,7 +1109,92 @@ public class FSRecords implements Forceable {
   }
 
   private static void putRecordInt(int id, int offset, int value) {
-    getRecords().putInt(getOffset(id, offset), value);
+    beginRecordWrite(id);
+    try {
+      getRecords().putInt(getOffset(id, offset), value);
+    }
+    finally {
+      endRecordWrite(id);
+    }
+  }
+
+  private static void putRecordLong(int id, int offset, long value) {
+    beginRecordWrite(id);
+    try {
+      getRecords().putLong(getOffset(id, offset), value);
+    }
+    finally {
+      endRecordWrite(id);
+    }
+  }
+
+  // both are called under write lock, so there is at most one writer per stripe
+  private static void beginRecordWrite(int id) {
+    ourStripeStamps.incrementAndGet(getStripe(id));
+  }
+
+  private static void endRecordWrite(int id) {
+    ourStripeStamps.incrementAndGet(getStripe(id));
+  }
+
+  private static int getStripe(int id) {
+    return (id / RECORDS_PER_STRIPE) % STRIPE_COUNT * STAMP_PADDING;
+  }
+
+  // The stamps are validated with volatile reads, so readers never write the shared stamp cache lines. Without a load fence
+  // the read of the field may still be performed after the validation, but a single aligned field is read with one load,
+  // so such a value is still one the field actually had, either right before or right after a concurrent write.
+  private static boolean validateStamps(int stripe, int stamp, int resizeStamp) {
+    return ourStripeStamps.get(stripe) == stamp && ourResizeStamp.get() == resizeStamp;
+  }
+
+  private static int readRecordInt(int id, int offset) {
+    if (ourOptimisticReads) {
+      final int stripe = getStripe(id);
+      final int resizeStamp = ourResizeStamp.get();
+      final int stamp = ourStripeStamps.get(stripe);
+      if (((stamp | resizeStamp) & 1) == 0) {
+        final int value = getRecords().getIntConcurrently(getOffset(id, offset));
+        if (validateStamps(stripe, stamp, resizeStamp)) {
+          return value;
+        }
+      }
+    }
+
+    r.lock();
+    try {
+      return getRecordInt(id, offset);
+    }
+    finally {
+      r.unlock();
+    }
+  }
+
+  private static long readRecordLong(int id, int offset) {
+    if (ourOptimisticReads) {
+      final int stripe = getStripe(id);
+      final int resizeStamp = ourResizeStamp.get();
+      final int stamp = ourStripeStamps.get(stripe);
+      if (((stamp | resizeStamp) & 1) == 0) {
+        final long value = getRecords().getLongConcurrently(getOffset(id, offset));
+        if (validateStamps(stripe, stamp, resizeStamp)) {
+          return value;
+        }
+      }
+    }
+
+    r.lock();
+    try {
+      return getRecords().getLong(getOffset(id, offset));
+    }
+    finally {
+      r.unlock();
+    }
+  }
+
+  @TestOnly
+  static void setOptimisticReads(boolean optimisticReads) {
+    ourOptimisticReads = optimisticReads;
   }
 
   private static int getOffset(int id, int offset) {
@@ -15,11 +15,13 @@
  */
 package com.intellij.openapi.vfs.newvfs.persistent;
 
+import com.intellij.concurrency.JobLauncher;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Comparing;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.io.FileAttributes;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
@@ -27,6 +29,7 @@ import com.intellij.openapi.vfs.newvfs.NewVirtualFileSystem;
 import com.intellij.openapi.vfs.newvfs.events.*;
 import com.intellij.openapi.vfs.newvfs.impl.FakeVirtualFile;
 import com.intellij.openapi.vfs.newvfs.impl.VirtualDirectoryImpl;
+import com.intellij.util.Processor;
 import com.intellij.util.containers.Queue;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -73,7 +76,7 @@ public class RefreshWorker {
     NewVirtualFileSystem fs = root.getFileSystem();
     FileAttributes rootAttributes = fs.getAttributes(root);
     if (rootAttributes == null) {
-      scheduleDeletion(root);
+      scheduleDeletion(myEvents, root);
       root.markClean();
       return;
     }
@@ -83,25 +86,86 @@ public class RefreshWorker {
     myRefreshQueue.addLast(Pair.create(root, rootAttributes));
     PersistentFS persistence = PersistentFS.getInstance();
 
-    main:
+    if (myIsRecursive && Registry.is("vfs.parallel.refresh")) {
+      scanInParallel(fs, persistence);
+      return;
+    }
+
+    while (!myRefreshQueue.isEmpty() && !myCancelled) {
+      FileCheck check = new FileCheck(myRefreshQueue.pullFirst());
+      boolean completed = check.run(fs, persistence);
+      check.mergeInto(this);
+      if (!completed) break;
+    }
+  }
+
+  /**
+   * Checks the queue level by level: all the files queued so far are checked concurrently, then their events and the files
+   * they have queued are merged in the queue order, so the resulting events are the same as the ones of the sequential scan.
+   */
+  private void scanInParallel(@NotNull final NewVirtualFileSystem fs, @NotNull final PersistentFS persistence) {
     while (!myRefreshQueue.isEmpty() && !myCancelled) {
-      Pair<NewVirtualFile, FileAttributes> pair = myRefreshQueue.pullFirst();
-      NewVirtualFile file = pair.first;
+      List<FileCheck> checks = new ArrayList<FileCheck>(myRefreshQueue.size());
+      while (!myRefreshQueue.isEmpty()) {
+        checks.add(new FileCheck(myRefreshQueue.pullFirst()));
+      }
+
+      boolean completed = JobLauncher.getInstance().invokeConcurrentlyUnderProgress(checks, null, false, new Processor<FileCheck>() {
+        @Override
+        public boolean process(FileCheck check) {
+          return check.run(fs, persistence);
+        }
+      });
+
+      for (FileCheck check : checks) {
+        check.mergeInto(this);
+      }
+      if (!completed) break;
+    }
+  }
+
+  /**
+   * Refresh of a single file, collects the events and the children to be checked further.
+   */
+  private class FileCheck {
+    private final NewVirtualFile myFile;
+    private final FileAttributes myAttributes;
+    private final List<VFileEvent> myFileEvents = new ArrayList<VFileEvent>();
+    private final List<Pair<NewVirtualFile, FileAttributes>> myQueuedChildren = new ArrayList<Pair<NewVirtualFile, FileAttributes>>();
+
+    private FileCheck(@NotNull Pair<NewVirtualFile, FileAttributes> pair) {
+      myFile = pair.first;
+      myAttributes = pair.second;
+    }
+
+    private void mergeInto(@NotNull RefreshWorker worker) {
+      worker.myEvents.addAll(myFileEvents);
+      for (Pair<NewVirtualFile, FileAttributes> child : myQueuedChildren) {
+        worker.myRefreshQueue.addLast(child);
+      }
+    }
+
+    /**
+     * @return false if the refresh was cancelled
+     */
+    private boolean run(@NotNull NewVirtualFileSystem fs, @NotNull PersistentFS persistence) {
+      NewVirtualFile file = myFile;
+      List<VFileEvent> events = myFileEvents;
       boolean fileDirty = file.isDirty();
       debug(LOG, "file=%s dirty=%b", file, fileDirty);
-      if (!fileDirty) continue;
+      if (!fileDirty) return true;
 
-      FileAttributes attributes = pair.second != null ? pair.second : fs.getAttributes(file);
+      FileAttributes attributes = myAttributes != null ? myAttributes : fs.getAttributes(file);
       if (attributes == null) {
-        scheduleDeletion(file);
-        continue;
+        scheduleDeletion(events, file);
+        return true;
       }
 
       boolean checkFurther = true;
       NewVirtualFile parent = file.getParent();
       if (parent != null &&
-          (checkAndScheduleAttributesChange(parent, file, attributes) ||
-           checkAndScheduleSymLinkTargetChange(parent, file, attributes, fs))) {
+          (checkAndScheduleAttributesChange(events, parent, file, attributes) ||
+           checkAndScheduleSymLinkTargetChange(events, parent, file, attributes, fs))) {
         // ignore everything else
         checkFurther = false;
       }
@@ -118,14 +182,14 @@ public class RefreshWorker {
           debug(LOG, "current=%s +%s -%s", currentNames, newNames, deletedNames);
 
           for (String name : deletedNames) {
-            scheduleDeletion(file.findChild(name));
+            scheduleDeletion(events, file.findChild(name));
           }
 
           for (String name : newNames) {
-            if (myCancelled) break main;
+            if (myCancelled) return false;
             FileAttributes childAttributes = fs.getAttributes(new FakeVirtualFile(file, name));
             if (childAttributes != null) {
-              scheduleCreation(file, name, childAttributes.isDirectory());
+              scheduleCreation(events, file, name, childAttributes.isDirectory());
             }
             else {
               LOG.warn("fs=" + fs + " dir=" + file + " name=" + name);
@@ -133,7 +197,7 @@ public class RefreshWorker {
           }
 
           for (VirtualFile child : file.getChildren()) {
-            if (myCancelled) break main;
+            if (myCancelled) return false;
             if (!deletedNames.contains(child.getName())) {
               FileAttributes childAttributes = fs.getAttributes(child);
               if (childAttributes != null) {
@@ -141,7 +205,7 @@ public class RefreshWorker {
               }
               else {
                 LOG.warn("fs=" + fs + " dir=" + file + " name=" + child.getName());
-                scheduleDeletion(child);
+                scheduleDeletion(events, child);
               }
             }
           }
@@ -150,26 +214,26 @@ public class RefreshWorker {
           Collection<VirtualFile> cachedChildren = file.getCachedChildren();
           debug(LOG, "cached=%s", cachedChildren);
           for (VirtualFile child : cachedChildren) {
-            if (myCancelled) break main;
+            if (myCancelled) return false;
             FileAttributes childAttributes = fs.getAttributes(child);
             if (childAttributes != null) {
               checkAndScheduleChildRefresh(file, child, childAttributes);
             }
             else {
-              scheduleDeletion(child);
+              scheduleDeletion(events, child);
             }
           }
 
           List<String> names = dir.getSuspiciousNames();
           debug(LOG, "suspicious=%s", names);
           for (String name : names) {
-            if (myCancelled) break main;
+            if (myCancelled) return false;
             if (name.isEmpty()) continue;
 
             VirtualFile fake = new FakeVirtualFile(file, name);
             FileAttributes childAttributes = fs.getAttributes(fake);
             if (childAttributes != null) {
-              scheduleCreation(file, name, childAttributes.isDirectory());
+              scheduleCreation(events, file, name, childAttributes.isDirectory());
             }
           }
         }
@@ -181,7 +245,7 @@ public class RefreshWorker {
         long upToDateLength = attributes.length;
 
         if (currentTimestamp != upToDateTimestamp || currentLength != upToDateLength) {
-          scheduleUpdateContent(file);
+          scheduleUpdateContent(events, file);
         }
       }
 
@@ -190,28 +254,30 @@ public class RefreshWorker {
         boolean upToDateWritable = attributes.isWritable();
 
         if (currentWritable != upToDateWritable) {
-          scheduleWritableAttributeChange(file, currentWritable, upToDateWritable);
+          scheduleWritableAttributeChange(events, file, currentWritable, upToDateWritable);
         }
       }
 
       file.markClean();
+      return true;
     }
-  }
 
-  private void checkAndScheduleChildRefresh(@NotNull VirtualFile parent,
-                                            @NotNull VirtualFile child,
-                                            @NotNull FileAttributes childAttributes) {
-    if (!checkAndScheduleAttributesChange(parent, child, childAttributes)) {
-      boolean upToDateIsDirectory = childAttributes.isDirectory();
-      if (myIsRecursive || !upToDateIsDirectory) {
-        myRefreshQueue.addLast(Pair.create((NewVirtualFile)child, childAttributes));
+    private void checkAndScheduleChildRefresh(@NotNull VirtualFile parent,
+                                              @NotNull VirtualFile child,
+                                              @NotNull FileAttributes childAttributes) {
+      if (!checkAndScheduleAttributesChange(myFileEvents, parent, child, childAttributes)) {
+        boolean upToDateIsDirectory = childAttributes.isDirectory();
+        if (myIsRecursive || !upToDateIsDirectory) {
+          myQueuedChildren.add(Pair.create((NewVirtualFile)child, childAttributes));
+        }
       }
     }
   }
 
-  private boolean checkAndScheduleAttributesChange(@NotNull VirtualFile parent,
-                                                   @NotNull VirtualFile child,
-                                                   @NotNull FileAttributes childAttributes) {
+  private static boolean checkAndScheduleAttributesChange(@NotNull List<VFileEvent> events,
+                                                          @NotNull VirtualFile parent,
+                                                          @NotNull VirtualFile child,
+                                                          @NotNull FileAttributes childAttributes) {
     boolean currentIsDirectory = child.isDirectory();
     boolean currentIsSymlink = child.isSymLink();
     boolean currentIsSpecial = child.isSpecialFile();
@@ -220,26 +286,27 @@ public class RefreshWorker {
     boolean upToDateIsSpecial = child.isSpecialFile();
 
     if (currentIsDirectory != upToDateIsDirectory || currentIsSymlink != upToDateIsSymlink || currentIsSpecial != upToDateIsSpecial) {
-      scheduleDeletion(child);
-      scheduleReCreation(parent, child.getName(), upToDateIsDirectory);
+      scheduleDeletion(events, child);
+      scheduleReCreation(events, parent, child.getName(), upToDateIsDirectory);
       return true;
     }
 
     return false;
   }
 
-  private boolean checkAndScheduleSymLinkTargetChange(@NotNull VirtualFile parent,
-                                                      @NotNull VirtualFile child,
-                                                      @NotNull FileAttributes childAttributes,
-                                                      @NotNull NewVirtualFileSystem fs) {
+  private static boolean checkAndScheduleSymLinkTargetChange(@NotNull List<VFileEvent> events,
+                                                             @NotNull VirtualFile parent,
+                                                             @NotNull VirtualFile child,
+                                                             @NotNull FileAttributes childAttributes,
+                                                             @NotNull NewVirtualFileSystem fs) {
     if (childAttributes.isSymLink()) {
       String currentTarget = child.getCanonicalPath();
       String upToDateTarget = fs.resolveSymLink(child);
       String upToDateVfsTarget = upToDateTarget != null ? FileUtil.toSystemIndependentName(upToDateTarget) : null;
 
       if (!Comparing.equal(currentTarget, upToDateVfsTarget)) {
-        scheduleDeletion(child);
-        scheduleReCreation(parent, child.getName(), childAttributes.isDirectory());
+        scheduleDeletion(events, child);
+        scheduleReCreation(events, parent, child.getName(), childAttributes.isDirectory());
         return true;
       }
     }
@@ -247,29 +314,38 @@ public class RefreshWorker {
     return false;
   }
 
-  private void scheduleWritableAttributeChange(@NotNull VirtualFile file, boolean currentWritable, boolean upToDateWritable) {
+  private static void scheduleWritableAttributeChange(@NotNull List<VFileEvent> events,
+                                                     @NotNull VirtualFile file,
+                                                     boolean currentWritable,
+                                                     boolean upToDateWritable) {
     debug(LOG, "update r/w file=%s", file);
-    myEvents.add(new VFilePropertyChangeEvent(null, file, VirtualFile.PROP_WRITABLE, currentWritable, upToDateWritable, true));
+    events.add(new VFilePropertyChangeEvent(null, file, VirtualFile.PROP_WRITABLE, currentWritable, upToDateWritable, true));
   }
 
-  private void scheduleUpdateContent(@NotNull VirtualFile file) {
+  private static void scheduleUpdateContent(@NotNull List<VFileEvent> events, @NotNull VirtualFile file) {
     debug(LOG, "update file=%s", file);
-    myEvents.add(new VFileContentChangeEvent(null, file, file.getModificationStamp(), -1, true));
+    events.add(new VFileContentChangeEvent(null, file, file.getModificationStamp(), -1, true));
   }
 
-  private void scheduleCreation(@NotNull VirtualFile parent, @NotNull String childName, boolean isDirectory) {
+  private static void scheduleCreation(@NotNull List<VFileEvent> events,
+                                       @NotNull VirtualFile parent,
+                                       @NotNull String childName,
+                                       boolean isDirectory) {
     debug(LOG, "create parent=%s name=%s dir=%b", parent, childName, isDirectory);
-    myEvents.add(new VFileCreateEvent(null, parent, childName, isDirectory, true, false));
+    events.add(new VFileCreateEvent(null, parent, childName, isDirectory, true, false));
   }
 
-  private void scheduleReCreation(@NotNull VirtualFile parent, @NotNull String childName, boolean isDirectory) {
+  private static void scheduleReCreation(@NotNull List<VFileEvent> events,
+                                         @NotNull VirtualFile parent,
+                                         @NotNull String childName,
+                                         boolean isDirectory) {
     debug(LOG, "re-create parent=%s name=%s dir=%b", parent, childName, isDirectory);
-    myEvents.add(new VFileCreateEvent(null, parent, childName, isDirectory, true, true));
+    events.add(new VFileCreateEvent(null, parent, childName, isDirectory, true, true));
   }
 
-  private void scheduleDeletion(@Nullable VirtualFile file) {
+  private static void scheduleDeletion(@NotNull List<VFileEvent> events, @Nullable VirtualFile file) {
     if (file == null) return;
     debug(LOG, "delete file=%s", file);
-    myEvents.add(new VFileDeleteEvent(null, file, true));
+    events.add(new VFileDeleteEvent(null, file, true));
   }
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2000-2009 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.history.core;
+
+import com.intellij.history.core.changes.Change;
+import com.intellij.history.core.changes.ChangeSet;
+import com.intellij.history.core.changes.CreateFileChange;
+import com.intellij.history.core.changes.RenameChange;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+public class ChangeSetsJournalTest extends TempDirTestCase {
+  @Test
+  public void testReadingAppended() throws IOException {
+    File file = new File(myTempDir, "journal");
+    ChangeSetsJournal journal = new ChangeSetsJournal(file, 0, 0);
+    journal.append(changeSet(1, new CreateFileChange(2, "f")), 2);
+    journal.append(changeSet(3, new RenameChange(4, "f2", "f")), 4);
+    journal.close();
+
+    List<ChangeSetsJournal.Entry> entries = ChangeSetsJournal.read(file).entries;
+    assertEquals(2, entries.size());
+    assertEquals(1, entries.get(0).changeSet.getId());
+    assertEquals(2, entries.get(0).lastId);
+    assertEquals(3, entries.get(1).changeSet.getId());
+    assertEquals(4, entries.get(1).lastId);
+    assertEquals("f2", ((RenameChange)entries.get(1).changeSet.getChanges().get(0)).getPath());
+  }
+
+  @Test
+  public void testReopeningStartsNewJournal() throws IOException {
+    File file = new File(myTempDir, "journal");
+    ChangeSetsJournal journal = new ChangeSetsJournal(file, 0, 0);
+    journal.append(changeSet(1, new CreateFileChange(2, "f")), 2);
+    journal.close();
+
+    journal = new ChangeSetsJournal(file, 2, 5);
+    journal.append(changeSet(3, new CreateFileChange(4, "f2")), 4);
+    journal.close();
+
+    ChangeSetsJournal.Contents contents = ChangeSetsJournal.read(file);
+    assertEquals(2, contents.forcedLastId);
+    assertEquals(5, contents.forcedLastRecord);
+    assertEquals(1, contents.entries.size());
+    assertEquals(3, contents.entries.get(0).changeSet.getId());
+  }
+
+  @Test
+  public void testClearing() throws IOException {
+    File file = new File(myTempDir, "journal");
+    ChangeSetsJournal journal = new ChangeSetsJournal(file, 0, 0);
+    journal.append(changeSet(1, new CreateFileChange(2, "f")), 2);
+    journal.clear(2, 7);
+    journal.append(changeSet(3, new CreateFileChange(4, "f2")), 4);
+    journal.close();
+
+    ChangeSetsJournal.Contents contents = ChangeSetsJournal.read(file);
+    assertEquals(2, contents.forcedLastId);
+    assertEquals(7, contents.forcedLastRecord);
+    assertEquals(1, contents.entries.size());
+    assertEquals(3, contents.entries.get(0).changeSet.getId());
+  }
+
+  @Test
+  public void testSkippingIncompleteEntry() throws IOException {
+    File file = new File(myTempDir, "journal");
+    ChangeSetsJournal journal = new ChangeSetsJournal(file, 0, 0);
+    journal.append(changeSet(1, new CreateFileChange(2, "f")), 2);
+    journal.append(changeSet(3, new CreateFileChange(4, "f2")), 4);
+    journal.close();
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(raf.length() - 3);
+    raf.close();
+
+    List<ChangeSetsJournal.Entry> entries = ChangeSetsJournal.read(file).entries;
+    assertEquals(1, entries.size());
+    assertEquals(1, entries.get(0).changeSet.getId());
+  }
+
+  @Test
+  public void testReadingAbsentJournal() throws IOException {
+    assertNull(ChangeSetsJournal.read(new File(myTempDir, "journal")));
+  }
+
+  private static ChangeSet changeSet(long id, Change change) {
+    ChangeSet result = new ChangeSet(id, 0);
+    result.addChange(change);
+    return result;
+  }
+}
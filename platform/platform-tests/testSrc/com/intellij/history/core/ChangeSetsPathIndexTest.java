@@ -0,0 +1,133 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.history.core;
+
+import com.intellij.history.core.changes.ChangeSet;
+import com.intellij.history.core.changes.CreateFileChange;
+import com.intellij.util.io.storage.AbstractStorage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+public class ChangeSetsPathIndexTest extends TempDirTestCase {
+  private LocalHistoryStorage myStorage;
+  private ChangeSetsPathIndex myIndex;
+
+  @Before
+  public void setUp() throws IOException {
+    myStorage = new LocalHistoryStorage(new File(myTempDir, "storage").getPath());
+    myIndex = ChangeSetsPathIndex.open(new File(myTempDir, "index"), myStorage);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    myIndex.close();
+    myStorage.dispose();
+  }
+
+  @Test
+  public void testChangesOfPathAndItsSubtree() throws IOException {
+    myIndex.add(1, changeSet(1, "/a/b/c/f"));
+    myIndex.add(2, changeSet(2, "/a/b/c/d/f"));
+    myIndex.add(3, changeSet(3, "/a/b/e/f"));
+
+    assertChangeSets(myIndex.getChangeSets("/a/b/c/f"), 1);
+    assertChangeSets(myIndex.getChangeSets("/a/b/c/d/f/g"), 2);
+    assertChangeSets(myIndex.getChangeSets("/a/b/c"), 1, 2);
+  }
+
+  @Test
+  public void testShallowSubtreesAreNotIndexed() throws IOException {
+    myIndex.add(1, changeSet(1, "/a/b/c/f"));
+
+    assertNull(myIndex.getChangeSets("/"));
+    assertNull(myIndex.getChangeSets("/a"));
+    assertNull(myIndex.getChangeSets("/a/b"));
+    assertChangeSets(myIndex.getChangeSets("/a/b/c"), 1);
+  }
+
+  @Test
+  public void testAppendedChangeSetsOfSameKey() throws IOException {
+    for (int i = 1; i <= 100; i++) {
+      myIndex.add(i, changeSet(i, "/a/b/c/f" + i % 2));
+    }
+    myIndex.close();
+    myIndex = ChangeSetsPathIndex.open(new File(myTempDir, "index"), myStorage);
+
+    long[] refs = myIndex.getChangeSets("/a/b/c");
+    assertNotNull(refs);
+    assertEquals(100, refs.length);
+    long[] odd = new long[50];
+    for (int i = 0; i < odd.length; i++) {
+      odd[i] = 2 * i + 1;
+    }
+    assertChangeSets(myIndex.getChangeSets("/a/b/c/f1"), odd);
+  }
+
+  @Test
+  public void testBuildingFromStorage() throws IOException {
+    myIndex.close();
+    int r1 = writeToStorage(changeSet(10, "/a/b/c/f"));
+    int r2 = writeToStorage(changeSet(11, "/a/b/e/f"));
+    int r3 = writeToStorage(changeSet(12, "/a/b/c/d"));
+
+    myIndex = ChangeSetsPathIndex.open(new File(myTempDir, "index"), myStorage);
+    assertEquals(0, myIndex.getLastNotIndexedRecord());
+    long[] refs = myIndex.getChangeSets("/a/b/c");
+    assertNotNull(refs);
+    assertEquals(2, refs.length);
+    assertEquals(10, ChangeSetsPathIndex.getChangeSetId(refs[0]));
+    assertEquals(r1, ChangeSetsPathIndex.getRecord(refs[0]));
+    assertEquals(12, ChangeSetsPathIndex.getChangeSetId(refs[1]));
+    assertEquals(r3, ChangeSetsPathIndex.getRecord(refs[1]));
+    refs = myIndex.getChangeSets("/a/b/e/f");
+    assertNotNull(refs);
+    assertEquals(1, refs.length);
+    assertEquals(r2, ChangeSetsPathIndex.getRecord(refs[0]));
+  }
+
+  private int writeToStorage(ChangeSet changeSet) throws IOException {
+    int record = myStorage.createNextRecord();
+    AbstractStorage.StorageDataOutput out = myStorage.writeStream(record, true);
+    try {
+      changeSet.write(out);
+    }
+    finally {
+      out.close();
+    }
+    myStorage.setLastId(changeSet.getId());
+    return record;
+  }
+
+  private static void assertChangeSets(long[] refs, long... expected) {
+    assertNotNull(refs);
+    long[] actual = new long[refs.length];
+    for (int i = 0; i < refs.length; i++) {
+      actual[i] = ChangeSetsPathIndex.getChangeSetId(refs[i]);
+      assertEquals(actual[i], ChangeSetsPathIndex.getRecord(refs[i]));
+    }
+    assertArrayEquals(expected, actual);
+  }
+
+  private static ChangeSet changeSet(long id, String path) {
+    ChangeSet result = new ChangeSet(id, 0);
+    result.addChange(new CreateFileChange(id, path));
+    return result;
+  }
+}
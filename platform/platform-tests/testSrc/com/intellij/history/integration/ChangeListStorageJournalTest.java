@@ -0,0 +1,141 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.history.integration;
+
+import com.intellij.history.core.ChangeListStorageImpl;
+import com.intellij.history.core.ChangeSetHolder;
+import com.intellij.history.core.changes.ChangeSet;
+import com.intellij.history.core.changes.CreateFileChange;
+import com.intellij.openapi.util.Clock;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.registry.Registry;
+import gnu.trove.TIntHashSet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The crash of the IDE is simulated by copying the files of an open storage.
+ */
+public class ChangeListStorageJournalTest extends IntegrationTestCase {
+  private static final String JOURNAL_FILE = "changes.journal";
+
+  private File myStorageDir;
+  private File myCrashedStorageDir;
+  private String myFile1;
+  private String myFile2;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    // only explicit flushes force the storage
+    Registry.get("localHistory.flushDelay").setValue(Integer.MAX_VALUE);
+    myStorageDir = createTempDirectory();
+    myCrashedStorageDir = createTempDirectory();
+    myFile1 = myRoot.getPath() + "/dir/f1.txt";
+    myFile2 = myRoot.getPath() + "/dir/f2.txt";
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Registry.get("localHistory.flushDelay").resetToDefault();
+    super.tearDown();
+  }
+
+  public void testReplayingUnforcedChangeSets() throws Exception {
+    ChangeListStorageImpl storage = new ChangeListStorageImpl(myStorageDir);
+    long forced1, forced2, unforced1, unforced2;
+    try {
+      forced1 = writeChangeSet(storage, myFile1);
+      forced2 = writeChangeSet(storage, myFile2);
+      storage.flush();
+      unforced1 = writeChangeSet(storage, myFile1);
+      unforced2 = writeChangeSet(storage, myFile2);
+
+      FileUtil.copyDir(myStorageDir, myCrashedStorageDir);
+    }
+    finally {
+      storage.close();
+    }
+
+    assertRestored(forced1, forced2, unforced1, unforced2);
+  }
+
+  public void testRollingBackStorageForcedAfterJournal() throws Exception {
+    ChangeListStorageImpl storage = new ChangeListStorageImpl(myStorageDir);
+    long forced1, forced2, unforced1, unforced2;
+    try {
+      forced1 = writeChangeSet(storage, myFile1);
+      forced2 = writeChangeSet(storage, myFile2);
+      storage.flush();
+      unforced1 = writeChangeSet(storage, myFile1);
+      unforced2 = writeChangeSet(storage, myFile2);
+      File journal = new File(myCrashedStorageDir, JOURNAL_FILE + ".copy");
+      FileUtil.copy(new File(myStorageDir, JOURNAL_FILE), journal);
+
+      // the IDE crashes after the storage is forced, but before the journal is cleared
+      storage.flush();
+      FileUtil.copyDir(myStorageDir, myCrashedStorageDir);
+      FileUtil.rename(journal, new File(myCrashedStorageDir, JOURNAL_FILE));
+    }
+    finally {
+      storage.close();
+    }
+
+    assertRestored(forced1, forced2, unforced1, unforced2);
+  }
+
+  private void assertRestored(long forced1, long forced2, long unforced1, long unforced2) throws Exception {
+    ChangeListStorageImpl restored = new ChangeListStorageImpl(myCrashedStorageDir);
+    try {
+      assertEquals(Arrays.asList(forced1, forced2, unforced1, unforced2), readAll(restored));
+
+      // the path index has to know about the restored change sets, otherwise the last change set would be read first
+      TIntHashSet recursionGuard = new TIntHashSet();
+      ChangeSetHolder holder = restored.readPreviousAffecting(null, myFile1, recursionGuard);
+      assertEquals(unforced1, holder.changeSet.getId());
+      holder = restored.readPreviousAffecting(holder, myFile1, recursionGuard);
+      assertEquals(forced1, holder.changeSet.getId());
+      assertNull(restored.readPreviousAffecting(holder, myFile1, recursionGuard));
+
+      long next = writeChangeSet(restored, myFile2);
+      assertTrue(next > unforced2);
+    }
+    finally {
+      restored.close();
+    }
+  }
+
+  private static long writeChangeSet(ChangeListStorageImpl storage, String path) {
+    ChangeSet changeSet = new ChangeSet(storage.nextId(), Clock.getTime());
+    changeSet.addChange(new CreateFileChange(storage.nextId(), path));
+    storage.writeNextSet(changeSet);
+    return changeSet.getId();
+  }
+
+  private static List<Long> readAll(ChangeListStorageImpl storage) {
+    List<Long> result = new ArrayList<Long>();
+    TIntHashSet recursionGuard = new TIntHashSet();
+    ChangeSetHolder each = storage.readPrevious(-1, recursionGuard);
+    while (each != null) {
+      result.add(0, each.changeSet.getId());
+      each = storage.readPrevious(each.id, recursionGuard);
+    }
+    return result;
+  }
+}
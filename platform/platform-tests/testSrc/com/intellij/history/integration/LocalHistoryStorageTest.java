@@ -118,6 +118,29 @@ public class LocalHistoryStorageTest extends IntegrationTestCase {
     assertRecord(r5, r4, 0);
   }
 
+  public void testRollingBack() throws Exception {
+    int r1 = createRecord();
+    int r2 = createRecord();
+    createRecord();
+    createRecord();
+
+    myStorage.deleteRecordsAfter(r2);
+
+    assertFirstAndLast(r1, r2);
+    assertRecord(r1, 0, r2);
+    assertRecord(r2, r1, 0);
+
+    int r5 = createRecord();
+
+    assertFirstAndLast(r1, r5);
+    assertRecord(r2, r1, r5);
+    assertRecord(r5, r2, 0);
+
+    myStorage.deleteRecordsAfter(0);
+
+    assertFirstAndLast(0, 0);
+  }
+
   public void testWritingChangesOfDifferentSize() throws Exception {
     final int MAX = 100;
     List<Integer> records = new ArrayList<Integer>(MAX);
@@ -112,6 +112,25 @@ public class PurgingTest extends IntegrationTestCase {
     assertEquals(2, LocalHistoryTestCase.collectChanges(getVcs(), f.getPath(), myProject.getLocationHash(), null).size());
   }
 
+  @Test
+  public void testChangesOfOtherFilesAfterPurge() throws IOException {
+    Clock.setTime(1);
+    VirtualFile f = createFile("file.txt");
+    VirtualFile other = createFile("other.txt");
+    Clock.setTime(2);
+    setContent(other, "1");
+    Clock.setTime(3);
+    setContent(f, "1");
+    Clock.setTime(4);
+    setContent(other, "2");
+
+    // the creation of the other file is the last purged change set
+    getVcs().getChangeListInTests().purgeObsolete(3);
+
+    assertEquals(1, LocalHistoryTestCase.collectChanges(getVcs(), f.getPath(), myProject.getLocationHash(), null).size());
+    assertEquals(2, LocalHistoryTestCase.collectChanges(getVcs(), other.getPath(), myProject.getLocationHash(), null).size());
+  }
+
   @Test
   public void testLabelsAfterPurge() throws IOException {
     Clock.setTime(1);
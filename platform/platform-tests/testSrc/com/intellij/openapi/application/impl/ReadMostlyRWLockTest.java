@@ -0,0 +1,235 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.application.impl;
+
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class ReadMostlyRWLockTest extends TestCase {
+  private static final int[] THREAD_COUNTS = {1, 4, 16, 32};
+  private static final int READS_PER_THREAD = 1000000;
+  private static final int EXPECTED_MS_PER_THREAD = 200;
+
+  public void testReentrancy() throws Exception {
+    ReadMostlyRWLock lock = new ReadMostlyRWLock();
+    lock.readLock();
+    lock.readLock();
+    assertEquals(2, lock.getReadHoldCount());
+    lock.readUnlock();
+    lock.readUnlock();
+    assertEquals(0, lock.getReadHoldCount());
+
+    lock.writeLock();
+    assertTrue(lock.tryWriteLock());
+    assertTrue(lock.isWriteLockedByCurrentThread());
+    lock.readLock();
+    lock.readUnlock();
+    lock.writeUnlock();
+    assertTrue(lock.isWriteLockedByCurrentThread());
+    lock.writeUnlock();
+    assertFalse(lock.isWriteLockedByCurrentThread());
+  }
+
+  public void testReadLockIsNotUpgraded() throws Exception {
+    ReadMostlyRWLock lock = new ReadMostlyRWLock();
+    lock.readLock();
+    try {
+      lock.writeLock();
+      fail("read lock must not be upgraded");
+    }
+    catch (IllegalMonitorStateException ignored) {
+    }
+    try {
+      lock.tryWriteLock();
+      fail("read lock must not be upgraded");
+    }
+    catch (IllegalMonitorStateException ignored) {
+    }
+    assertFalse(lock.isWriteLockedByCurrentThread());
+    lock.readUnlock();
+
+    // the failed attempts must not leave the write requested
+    assertTrue(lock.tryWriteLock());
+    lock.writeUnlock();
+    assertTrue(lock.tryReadLock());
+    lock.readUnlock();
+  }
+
+  public void testReadLockTakenByWriterOutlivesWriteLock() throws Exception {
+    ReadMostlyRWLock lock = new ReadMostlyRWLock();
+    lock.writeLock();
+    lock.readLock();
+    lock.writeUnlock();
+    assertFalse("the read lock is still held", tryWriteLockInOtherThread(lock));
+
+    lock.readUnlock();
+    assertTrue(tryWriteLockInOtherThread(lock));
+  }
+
+  private static boolean tryWriteLockInOtherThread(final ReadMostlyRWLock lock) throws InterruptedException {
+    final AtomicBoolean locked = new AtomicBoolean();
+    Thread writer = new Thread("writer") {
+      @Override
+      public void run() {
+        locked.set(lock.tryWriteLock());
+        if (locked.get()) lock.writeUnlock();
+      }
+    };
+    writer.start();
+    writer.join();
+    return locked.get();
+  }
+
+  public void testWriterWaitsForReaders() throws Exception {
+    final ReadMostlyRWLock lock = new ReadMostlyRWLock();
+    final CountDownLatch readerInside = new CountDownLatch(1);
+    final CountDownLatch releaseReader = new CountDownLatch(1);
+    Thread reader = new Thread("reader") {
+      @Override
+      public void run() {
+        try {
+          lock.readLock();
+          readerInside.countDown();
+          releaseReader.await();
+          lock.readUnlock();
+        }
+        catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    reader.start();
+    assertTrue(readerInside.await(10, TimeUnit.SECONDS));
+
+    assertFalse(lock.tryWriteLock());
+    releaseReader.countDown();
+    lock.writeLock();
+    assertTrue(lock.isWriteLockedByCurrentThread());
+    lock.writeUnlock();
+    reader.join();
+  }
+
+  public void testWriterPreference() throws Exception {
+    final ReadMostlyRWLock lock = new ReadMostlyRWLock();
+    final CountDownLatch readerInside = new CountDownLatch(1);
+    final CountDownLatch releaseReader = new CountDownLatch(1);
+    final AtomicBoolean writerGotLock = new AtomicBoolean();
+
+    Thread reader = new Thread("reader") {
+      @Override
+      public void run() {
+        try {
+          lock.readLock();
+          readerInside.countDown();
+          releaseReader.await();
+          lock.readUnlock();
+        }
+        catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    Thread writer = new Thread("writer") {
+      @Override
+      public void run() {
+        try {
+          lock.writeLock();
+          writerGotLock.set(true);
+          lock.writeUnlock();
+        }
+        catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    reader.start();
+    assertTrue(readerInside.await(10, TimeUnit.SECONDS));
+    writer.start();
+    while (writer.getState() != Thread.State.TIMED_WAITING && writer.getState() != Thread.State.WAITING) {
+      Thread.sleep(1);
+    }
+
+    // write action is pending, so new read actions must not start
+    assertFalse(lock.tryReadLock());
+    releaseReader.countDown();
+    writer.join();
+    reader.join();
+    assertTrue(writerGotLock.get());
+    assertTrue(lock.tryReadLock());
+    lock.readUnlock();
+  }
+
+  public void testReadThroughputPerformance() throws Exception {
+    for (int threads : THREAD_COUNTS) {
+      final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock(false);
+      assertReadTiming("ReentrantReadWriteLock", threads, new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < READS_PER_THREAD; i++) {
+            rwLock.readLock().lock();
+            rwLock.readLock().unlock();
+          }
+        }
+      });
+
+      final ReadMostlyRWLock lock = new ReadMostlyRWLock();
+      assertReadTiming("ReadMostlyRWLock", threads, new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < READS_PER_THREAD; i++) {
+              lock.readLock();
+              lock.readUnlock();
+            }
+          }
+          catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      });
+    }
+  }
+
+  private static void assertReadTiming(String lockName, final int threads, final Runnable readers) {
+    PlatformTestUtil.startPerformanceTest(lockName + " reads, " + threads + " threads", EXPECTED_MS_PER_THREAD * threads, new ThrowableRunnable() {
+      @Override
+      public void run() throws Exception {
+        runConcurrently(threads, readers);
+      }
+    }).cpuBound().assertTiming();
+  }
+
+  private static void runConcurrently(int threadCount, Runnable runnable) throws InterruptedException {
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < threadCount; i++) {
+      threads.add(new Thread(runnable, "reader " + i));
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+  }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.ex.util;
+
+import com.intellij.lang.Language;
+import com.intellij.lexer.Lexer;
+import com.intellij.lexer.LexerBase;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.colors.EditorColorsManager;
+import com.intellij.openapi.editor.colors.TextAttributesKey;
+import com.intellij.openapi.editor.highlighter.HighlighterClient;
+import com.intellij.openapi.editor.impl.DocumentImpl;
+import com.intellij.openapi.fileTypes.SyntaxHighlighterBase;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.testFramework.LightPlatformTestCase;
+import com.intellij.util.ui.UIUtil;
+import org.jetbrains.annotations.NotNull;
+
+public class LexerEditorHighlighterTest extends LightPlatformTestCase {
+  private static final IElementType TEXT = new IElementType("TEXT", Language.ANY);
+  private static final IElementType HASH = new IElementType("HASH", Language.ANY);
+  private static final IElementType COMMENT = new IElementType("COMMENT", Language.ANY);
+  private static final int SYNC_RELEX_LIMIT = 100;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Registry.get("editor.lexer.sync.relex.limit").setValue(SYNC_RELEX_LIMIT);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Registry.get("editor.lexer.sync.relex.limit").resetToDefault();
+    super.tearDown();
+  }
+
+  public void testSynchronousRelexingIsBounded() {
+    Document document = new DocumentImpl(StringUtil.repeat("a", 10000), true);
+    LexerEditorHighlighter highlighter = createHighlighter(document);
+
+    document.insertString(0, "#");
+
+    assertEquals(HASH, getTokenType(highlighter, 0));
+    assertEquals(COMMENT, getTokenType(highlighter, SYNC_RELEX_LIMIT / 2));
+    // the rest of the text keeps the old segments until it's relexed in background
+    assertEquals(TEXT, getTokenType(highlighter, 5000));
+    assertEquals(document.getTextLength(), highlighter.getSegments().getSegmentEnd(highlighter.getSegments().getSegmentCount() - 1));
+  }
+
+  public void testBackgroundRelexingResultIsMerged() throws InterruptedException {
+    Document document = new DocumentImpl(StringUtil.repeat("a", 10000), true);
+    LexerEditorHighlighter highlighter = createHighlighter(document);
+
+    document.insertString(0, "#");
+
+    waitForBackgroundRelexing(highlighter, document);
+    assertEquals(COMMENT, getTokenType(highlighter, 5000));
+  }
+
+  public void testChangesDuringBackgroundRelexing() throws InterruptedException {
+    Document document = new DocumentImpl(StringUtil.repeat("a", 10000), true);
+    LexerEditorHighlighter highlighter = createHighlighter(document);
+
+    document.insertString(0, "#");
+    document.insertString(5000, "#");
+    document.insertString(7000, "#");
+    document.deleteString(5000, 5001);
+
+    waitForBackgroundRelexing(highlighter, document);
+    assertEquals(COMMENT, getTokenType(highlighter, 5000));
+    assertEquals(TEXT, getTokenType(highlighter, 8000));
+  }
+
+  private LexerEditorHighlighter createHighlighter(@NotNull Document document) {
+    LexerEditorHighlighter highlighter = new LexerEditorHighlighter(new HashCommentHighlighter(),
+                                                                    EditorColorsManager.getInstance().getGlobalScheme());
+    highlighter.setEditor(new MyHighlighterClient(document));
+    highlighter.setText(document.getCharsSequence());
+    document.addDocumentListener(highlighter);
+    return highlighter;
+  }
+
+  private static IElementType getTokenType(@NotNull LexerEditorHighlighter highlighter, int offset) {
+    return highlighter.createIterator(offset).getTokenType();
+  }
+
+  private static void waitForBackgroundRelexing(@NotNull LexerEditorHighlighter highlighter, @NotNull Document document)
+    throws InterruptedException {
+    LexerEditorHighlighter expected = new LexerEditorHighlighter(new HashCommentHighlighter(),
+                                                                 EditorColorsManager.getInstance().getGlobalScheme());
+    expected.setText(document.getCharsSequence());
+
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!segmentsEqual(expected.getSegments(), highlighter.getSegments())) {
+      if (System.currentTimeMillis() > deadline) fail("background relexing result wasn't merged");
+      Thread.sleep(10);
+      UIUtil.dispatchAllInvocationEvents();
+    }
+  }
+
+  private static boolean segmentsEqual(@NotNull SegmentArrayWithData expected, @NotNull SegmentArrayWithData actual) {
+    if (expected.getSegmentCount() != actual.getSegmentCount()) return false;
+    for (int i = 0; i < expected.getSegmentCount(); i++) {
+      if (expected.getSegmentStart(i) != actual.getSegmentStart(i) ||
+          expected.getSegmentEnd(i) != actual.getSegmentEnd(i) ||
+          expected.getSegmentData(i) != actual.getSegmentData(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static class MyHighlighterClient implements HighlighterClient {
+    private final Document myDocument;
+
+    private MyHighlighterClient(@NotNull Document document) {
+      myDocument = document;
+    }
+
+    @Override
+    public Project getProject() {
+      return LightPlatformTestCase.getProject();
+    }
+
+    @Override
+    public void repaint(int start, int end) {
+    }
+
+    @Override
+    public Document getDocument() {
+      return myDocument;
+    }
+  }
+
+  private static class HashCommentHighlighter extends SyntaxHighlighterBase {
+    @NotNull
+    @Override
+    public Lexer getHighlightingLexer() {
+      return new HashCommentLexer();
+    }
+
+    @NotNull
+    @Override
+    public TextAttributesKey[] getTokenHighlights(IElementType tokenType) {
+      return EMPTY;
+    }
+  }
+
+  /**
+   * Every character is a token; the text between '#' characters is a comment, so a single '#' changes the tokens
+   * till the end of the text.
+   */
+  private static class HashCommentLexer extends LexerBase {
+    private CharSequence myBuffer;
+    private int myTokenStart;
+    private int myEnd;
+    private int myState;
+
+    @Override
+    public void start(@NotNull CharSequence buffer, int startOffset, int endOffset, int initialState) {
+      myBuffer = buffer;
+      myTokenStart = startOffset;
+      myEnd = endOffset;
+      myState = initialState;
+    }
+
+    @Override
+    public int getState() {
+      return myState;
+    }
+
+    @Override
+    public IElementType getTokenType() {
+      if (myTokenStart >= myEnd) return null;
+      if (myBuffer.charAt(myTokenStart) == '#') return HASH;
+      return myState == 0 ? TEXT : COMMENT;
+    }
+
+    @Override
+    public int getTokenStart() {
+      return myTokenStart;
+    }
+
+    @Override
+    public int getTokenEnd() {
+      return myTokenStart + 1;
+    }
+
+    @Override
+    public void advance() {
+      if (myBuffer.charAt(myTokenStart) == '#') myState ^= 1;
+      myTokenStart++;
+    }
+
+    @NotNull
+    @Override
+    public CharSequence getBufferSequence() {
+      return myBuffer;
+    }
+
+    @Override
+    public int getBufferEnd() {
+      return myEnd;
+    }
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.testFramework.LightPlatformTestCase;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+
+import java.util.Random;
+
+/**
+ * Compares documents backed by a rope with the ones backed by a plain char array and with a string builder.
+ */
+public class DocumentRopeTest extends LightPlatformTestCase {
+  private static final int MB = 1024 * 1024;
+  private static final int EDITS = 1000;
+
+  public void testRandomEditsMatchArrayDocument() {
+    String text = createText(100000);
+    DocumentImpl array = new DocumentImpl(text, true, false);
+    DocumentImpl rope = new DocumentImpl(text, true, true);
+    StringBuilder expected = new StringBuilder(text);
+
+    Random random = new Random(42);
+    for (int i = 0; i < 20000; i++) {
+      applyRandomEdit(random, expected, array, rope);
+
+      if (i % 1000 == 0) {
+        assertEquals(expected.toString(), rope.getText());
+        assertEquals(array.getText(), rope.getText());
+        assertEquals(array.getLineCount(), rope.getLineCount());
+        int start = random.nextInt(array.getTextLength() / 2);
+        TextRange range = new TextRange(start, start + random.nextInt(array.getTextLength() - start));
+        assertEquals(array.getText(range), rope.getText(range));
+        assertEquals(array.getCharsSequence().charAt(start), rope.getCharsSequence().charAt(start));
+        assertEquals(array.getCharsSequence().subSequence(start, range.getEndOffset()).toString(),
+                     rope.getCharsSequence().subSequence(start, range.getEndOffset()).toString());
+        assertEquals(new String(array.getChars()), new String(rope.getChars()));
+      }
+    }
+    assertEquals(array.getText(), rope.getText());
+    assertEquals(expected.toString(), rope.getText());
+  }
+
+  public void testCharsRequestedAfterEveryEditStayUpToDate() {
+    String text = createText(10000);
+    DocumentImpl rope = new DocumentImpl(text, true, true);
+    StringBuilder expected = new StringBuilder(text);
+
+    Random random = new Random(239);
+    for (int i = 0; i < 2000; i++) {
+      applyRandomEdit(random, expected, rope);
+      // the flattened text is built from the rope again after every modification
+      assertEquals(expected.toString(), new String(rope.getRawChars(), 0, rope.getTextLength()));
+      if (i % 100 == 0) {
+        // a few edits without requests for the flattened text drop it
+        applyRandomEdit(random, expected, rope);
+        applyRandomEdit(random, expected, rope);
+        assertEquals(expected.toString(), rope.getText());
+      }
+    }
+  }
+
+  public void testImmutableCharSequenceIsNotAffectedByModifications() {
+    String text = createText(10000);
+    for (boolean useRope : new boolean[]{false, true}) {
+      DocumentImpl document = new DocumentImpl(text, true, useRope);
+      CharSequence snapshot = document.getImmutableCharSequence();
+      document.insertString(0, "abc");
+      document.deleteString(100, 200);
+      assertEquals(text, snapshot.toString());
+      assertEquals(document.getText(), document.getImmutableCharSequence().toString());
+    }
+  }
+
+  public void testEditsOfLargeDocumentPerformance() {
+    // the text, the string it's created from and the rope take about 6 bytes per char
+    int largeSize = (int)Math.min(100L * MB, Runtime.getRuntime().maxMemory() / 16);
+    for (int size : new int[]{MB, 10 * MB, largeSize}) {
+      final DocumentImpl document = new DocumentImpl(createText(size), true, true);
+      PlatformTestUtil.startPerformanceTest("edits of " + size / MB + "MB document", 3000, new ThrowableRunnable() {
+        @Override
+        public void run() throws Exception {
+          applyEdits(document);
+        }
+      }).cpuBound().assertTiming();
+    }
+  }
+
+  private static void applyRandomEdit(Random random, StringBuilder expected, DocumentImpl... documents) {
+    int offset = random.nextInt(expected.length() + 1);
+    int length = random.nextInt(30);
+    int end = Math.min(expected.length(), offset + length);
+    switch (random.nextInt(3)) {
+      case 0:
+        String inserted = StringUtil.repeatSymbol('x', length) + (length % 3 == 0 ? "\n" : "");
+        expected.insert(offset, inserted);
+        for (DocumentImpl document : documents) {
+          document.insertString(offset, inserted);
+        }
+        break;
+      case 1:
+        expected.delete(offset, end);
+        for (DocumentImpl document : documents) {
+          document.deleteString(offset, end);
+        }
+        break;
+      default:
+        expected.replace(offset, end, "yy");
+        for (DocumentImpl document : documents) {
+          document.replaceString(offset, end, "yy");
+        }
+    }
+  }
+
+  private static void applyEdits(DocumentImpl document) {
+    Random random = new Random(239);
+    for (int i = 0; i < EDITS; i++) {
+      int offset = random.nextInt(document.getTextLength());
+      if (i % 2 == 0) {
+        document.insertString(offset, "a");
+      }
+      else {
+        document.deleteString(offset, offset + 1);
+      }
+    }
+  }
+
+  private static String createText(int size) {
+    StringBuilder builder = new StringBuilder(size);
+    String line = StringUtil.repeatSymbol('a', 99) + "\n";
+    while (builder.length() + line.length() <= size) {
+      builder.append(line);
+    }
+    return builder.toString();
+  }
+}
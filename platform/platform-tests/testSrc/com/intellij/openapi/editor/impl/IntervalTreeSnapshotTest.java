@@ -0,0 +1,180 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.openapi.editor.RangeMarker;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.testFramework.LightPlatformTestCase;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.Processor;
+import com.intellij.util.ThrowableRunnable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays edit/query traces against range marker trees with and without snapshot reads.
+ * A snapshot is built only by a query which follows another query of the same tree version, so every query of the trace is run twice.
+ */
+public class IntervalTreeSnapshotTest extends LightPlatformTestCase {
+  private static final int INSERT = 0;
+  private static final int DELETE = 1;
+  private static final int QUERY = 2;
+
+  private static final int MARKERS = 20000;
+  private static final int TEXT_LENGTH = 200000;
+
+  @Override
+  protected void tearDown() throws Exception {
+    IntervalTreeImpl.setUseSnapshots(false);
+    super.tearDown();
+  }
+
+  public void testSnapshotQueriesMatchLockedQueries() {
+    int[] trace = createTrace(new Random(42), 5000);
+
+    IntervalTreeImpl.setUseSnapshots(false);
+    List<String> expected = replay(trace);
+    IntervalTreeImpl.setUseSnapshots(true);
+    List<String> actual = replay(trace);
+
+    assertEquals(expected, actual);
+  }
+
+  public void testSnapshotIsRebuiltAfterEdits() {
+    List<RangeMarker> markers = new ArrayList<RangeMarker>();
+    DocumentImpl document = createDocument(markers);
+    IntervalTreeImpl.setUseSnapshots(true);
+    String before = query(document, 1000, 2000);
+    assertEquals(before, query(document, 1000, 2000));
+
+    document.deleteString(1500, 1600);
+    markers.get(0).dispose();
+    String locked = query(document, 1000, 2000);
+    assertEquals(locked, query(document, 1000, 2000));
+    assertFalse(before.equals(locked));
+  }
+
+  public void testEditsUnderConcurrentQueriesPerformance() throws Exception {
+    final int[] trace = createTrace(new Random(239), 20000);
+    IntervalTreeImpl.setUseSnapshots(true);
+    PlatformTestUtil.startPerformanceTest("edits under concurrent interval tree queries", 3000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Exception {
+        replayEditsAgainstQueryThread(trace);
+      }
+    }).assertTiming();
+  }
+
+  private static DocumentImpl createDocument(List<RangeMarker> markers) {
+    DocumentImpl document = new DocumentImpl(StringUtil.repeatSymbol(' ', TEXT_LENGTH), true);
+    Random random = new Random(0);
+    for (int i = 0; i < MARKERS; i++) {
+      int start = random.nextInt(TEXT_LENGTH);
+      int end = Math.min(TEXT_LENGTH, start + random.nextInt(100));
+      markers.add(document.createRangeMarker(start, end));
+    }
+    return document;
+  }
+
+  // stands for a recorded trace: triples of (operation, offset, length)
+  private static int[] createTrace(Random random, int size) {
+    int[] trace = new int[size * 3];
+    for (int i = 0; i < size; i++) {
+      int op = random.nextInt(10);
+      trace[3 * i] = op < 3 ? INSERT : op < 5 ? DELETE : QUERY;
+      trace[3 * i + 1] = random.nextInt(TEXT_LENGTH / 2);
+      trace[3 * i + 2] = 1 + random.nextInt(op < 5 ? 10 : 1000);
+    }
+    return trace;
+  }
+
+  private static List<String> replay(int[] trace) {
+    List<RangeMarker> markers = new ArrayList<RangeMarker>();
+    DocumentImpl document = createDocument(markers);
+    final List<String> result = new ArrayList<String>();
+    for (int i = 0; i < trace.length; i += 3) {
+      if (trace[i] == QUERY) {
+        result.add(query(document, trace[i + 1], trace[i + 1] + trace[i + 2]));
+        result.add(query(document, trace[i + 1], trace[i + 1] + trace[i + 2]));
+      }
+      else {
+        applyEdit(document, trace, i);
+      }
+    }
+    return result;
+  }
+
+  private static String query(DocumentImpl document, int start, int end) {
+    final StringBuilder found = new StringBuilder();
+    document.processRangeMarkersOverlappingWith(start, end, new Processor<RangeMarker>() {
+      @Override
+      public boolean process(RangeMarker marker) {
+        found.append(marker.getStartOffset()).append("-").append(marker.getEndOffset()).append(" ");
+        return true;
+      }
+    });
+    return found.toString();
+  }
+
+  private static void applyEdit(DocumentImpl document, int[] trace, int i) {
+    int offset = Math.min(trace[i + 1], document.getTextLength());
+    if (trace[i] == INSERT) {
+      document.insertString(offset, StringUtil.repeatSymbol('x', trace[i + 2]));
+    }
+    else {
+      document.deleteString(offset, Math.min(document.getTextLength(), offset + trace[i + 2]));
+    }
+  }
+
+  private static void replayEditsAgainstQueryThread(final int[] trace) throws InterruptedException {
+    List<RangeMarker> markers = new ArrayList<RangeMarker>();
+    final DocumentImpl document = createDocument(markers);
+    final AtomicBoolean stop = new AtomicBoolean();
+    final AtomicLong found = new AtomicLong();
+    Thread queries = new Thread("interval tree queries") {
+      @Override
+      public void run() {
+        Processor<RangeMarker> counter = new Processor<RangeMarker>() {
+          @Override
+          public boolean process(RangeMarker marker) {
+            found.incrementAndGet();
+            return true;
+          }
+        };
+        while (!stop.get()) {
+          for (int i = 0; i < trace.length && !stop.get(); i += 3) {
+            if (trace[i] == QUERY) {
+              document.processRangeMarkersOverlappingWith(trace[i + 1], trace[i + 1] + trace[i + 2], counter);
+            }
+          }
+        }
+      }
+    };
+    queries.start();
+    for (int i = 0; i < trace.length; i += 3) {
+      if (trace[i] != QUERY) {
+        applyEdit(document, trace, i);
+      }
+    }
+    stop.set(true);
+    queries.join();
+    assertTrue(found.get() > 0);
+  }
+}
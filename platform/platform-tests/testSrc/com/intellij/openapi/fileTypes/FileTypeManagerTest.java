@@ -15,6 +15,7 @@
  */
 package com.intellij.openapi.fileTypes;
 
+import com.intellij.openapi.fileTypes.impl.FileTypeManagerImpl;
 import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
@@ -38,4 +39,18 @@ public class FileTypeManagerTest extends PlatformTestCase {
     assertNotNull(psiFile);
     assertEquals(PlainTextFileType.INSTANCE, vFile.getFileType());
   }
+
+  public void testDetectedFileTypeIsPersisted() throws IOException {
+    VirtualFile temp = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(createTempDirectory());
+    VirtualFile vFile = createChildData(temp, "persisted.yyyyyyy");
+    VfsUtil.saveText(vFile, "text");
+
+    FileTypeManagerImpl manager = (FileTypeManagerImpl)FileTypeManager.getInstance();
+    assertNull(manager.getPersistedDetectedFileType(vFile));
+    assertEquals(PlainTextFileType.INSTANCE, manager.detectFileTypeFromContent(vFile));
+    assertEquals(PlainTextFileType.INSTANCE, manager.getPersistedDetectedFileType(vFile));
+
+    VfsUtil.saveText(vFile, "changed text");
+    assertNull(manager.getPersistedDetectedFileType(vFile));
+  }
 }
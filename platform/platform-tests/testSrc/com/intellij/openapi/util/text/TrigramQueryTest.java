@@ -0,0 +1,224 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.util.text;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+public class TrigramQueryTest extends TestCase {
+  private static final String[] TEXTS = {
+    "public class FindInProjectUtil {}",
+    "private static final int SINGLE_FILE_SIZE_LIMIT = 5 * 1024 * 1024;",
+    "getFilesWithKey(TrigramIndex.INDEX_ID, keys, processor, scope)",
+    "colour and color",
+    "foo.bar(baz)\nqux",
+    "x = a[i] + b[j];",
+  };
+
+  public void testRequiredTrigrams() {
+    // trigrams like "def" are too common to be indexed
+    assertEquals("jkq & kqz", TrigramQuery.forRegExp("jkqz").toString());
+    assertEquals("jkq & kqz", TrigramQuery.forRegExp("JKqz").toString());
+    assertEquals("(jkq) | (xzw)", TrigramQuery.forRegExp("jkq|xzw").toString());
+    assertEquals("(jkq & kqw) | (jkq & kqx)", TrigramQuery.forRegExp("jkq[wx]").toString());
+    assertEquals("jkq & xzw", TrigramQuery.forRegExp("jkq.*xzw").toString());
+    assertEquals("jkq & xzw", TrigramQuery.forRegExp("(?i)jkq\\s+xzw").toString());
+    assertEquals("jkq", TrigramQuery.forRegExp("(jkq)+x?").toString());
+    assertEquals("j.k", TrigramQuery.forRegExp("j\\.k").toString());
+    assertEquals("j.k", TrigramQuery.forRegExp("\\Qj.k\\E").toString());
+    assertTrue(TrigramQuery.forRegExp("def").isAll());
+  }
+
+  public void testNothingRequired() {
+    for (String regexp : new String[]{"", "ab", ".*", "a*bc", "(abc)*", "abc|d", "[^abc]", "\\w+", "ab(", "(?x)a b c", "\\d{3}"}) {
+      assertTrue(regexp, TrigramQuery.forRegExp(regexp).isAll());
+    }
+  }
+
+  public void testMatchedTextsSatisfyQuery() {
+    String[] regexps = {
+      "class\\s+\\w+", "SINGLE_FILE_\\w+", "colou?r", "(foo|baz)\\.bar", "a\\[i\\]", "\\bINDEX_ID\\b", "getFiles(With|Without)Key",
+      "[Ff]ind[Ii]n", "Trigram[A-Z][a-z]+", "qu[xyz]", "\\(baz\\)\\nqux", "1024 \\* 1024;$", "(?i)PROCESSOR", "b\\[j\\]",
+    };
+    for (String regexp : regexps) {
+      Pattern pattern = Pattern.compile(regexp, Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
+      TrigramQuery query = TrigramQuery.forRegExp(regexp);
+      int matched = 0;
+      for (String text : TEXTS) {
+        if (pattern.matcher(text).find()) {
+          matched++;
+          assertTrue(regexp + " in " + text, query.matches(TrigramBuilder.buildTrigram(text)));
+        }
+      }
+      assertTrue(regexp, matched > 0);
+    }
+  }
+
+  public void testAlternation() {
+    TrigramQuery query = TrigramQuery.forRegExp("jkq|xzw");
+    assertQuery(query, new String[]{"a jkq b", "xzw", "jkqxzw"}, new String[]{"jk qxz w", "jkxzq", ""});
+    assertQuery(TrigramQuery.forRegExp("(jkq|xzw)vvb"), new String[]{"jkqvvb", "xzwvvb"}, new String[]{"jkq vvb", "jkqxzw"});
+    // an alternative without trigrams makes the whole alternation unrestricted
+    assertTrue(TrigramQuery.forRegExp("jkq|xz").isAll());
+    assertTrue(TrigramQuery.forRegExp("jkq|.*").isAll());
+  }
+
+  public void testCharacterClasses() {
+    TrigramQuery query = TrigramQuery.forRegExp("[jk]qz");
+    assertQuery(query, new String[]{"jqz", "kqz", "KQZ"}, new String[]{"qz", "xqz", "j qz"});
+    assertQuery(TrigramQuery.forRegExp("jk\\x71"), new String[]{"jkq"}, new String[]{"jk"});
+    // negated, large and predefined classes are not expanded
+    assertEquals("jkq", TrigramQuery.forRegExp("[a-z]jkq").toString());
+    assertEquals("jkq", TrigramQuery.forRegExp("jkq\\d").toString());
+    assertTrue(TrigramQuery.forRegExp("[^j]kq").isAll());
+  }
+
+  public void testQuantifiers() {
+    assertEquals("jkq", TrigramQuery.forRegExp("jkq+").toString());
+    assertEquals("jkq & xzw", TrigramQuery.forRegExp("jkq+?xzw").toString());
+    assertEquals("jkq & xzw", TrigramQuery.forRegExp("(jkq){2,}xzw").toString());
+    assertEquals("xzw", TrigramQuery.forRegExp("jkq*xzw").toString());
+    assertEquals("xzw", TrigramQuery.forRegExp("(jkq){0,3}xzw").toString());
+    assertQuery(TrigramQuery.forRegExp("jkq?xzw"), new String[]{"jkxzw", "jkqxzw"}, new String[]{"jkq xzw", "xzw"});
+    assertTrue(TrigramQuery.forRegExp("(jkq)*").isAll());
+    assertTrue(TrigramQuery.forRegExp("jkq{").isAll());
+  }
+
+  public void testUnsupportedConstructsDoNotRestrict() {
+    // lookarounds and back references are skipped, the rest of the expression still restricts the texts
+    assertEquals("xzw", TrigramQuery.forRegExp("(?<=jkq)xzw").toString());
+    assertEquals("xzw", TrigramQuery.forRegExp("(?=jkq)xzw").toString());
+    assertEquals("jkq", TrigramQuery.forRegExp("(jkq)\\1").toString());
+    assertEquals("jkq", TrigramQuery.forRegExp("\\p{Alpha}jkq").toString());
+    // comments mode and invalid expressions give no restriction at all
+    for (String regexp : new String[]{"(?x)jkq xzw", "jkq(", "jkq)", "[jkq", "jkq\\", "\\xzz"}) {
+      TrigramQuery query = TrigramQuery.forRegExp(regexp);
+      assertTrue(regexp, query.isAll());
+      assertTrue(regexp, query.matches(new TIntHashSet()));
+    }
+  }
+
+  /**
+   * Checks that filtering the sources of this module by trigrams first doesn't lose any file containing a match.
+   */
+  public void testFilteringDoesNotLoseMatches() throws IOException {
+    File root = new File(PathManager.getHomePath(), "platform/util/src/com/intellij/util/io");
+    if (!root.isDirectory()) return;
+
+    List<String> texts = new ArrayList<String>();
+    List<TIntHashSet> trigrams = new ArrayList<TIntHashSet>();
+    for (File file : FileUtil.findFilesByMask(Pattern.compile(".*\\.java"), root)) {
+      String text = FileUtil.loadFile(file);
+      texts.add(text);
+      trigrams.add(TrigramBuilder.buildTrigram(text));
+    }
+    assertFalse(texts.isEmpty());
+
+    String[] regexps = {"ConcurrentHashMap<\\w+", "(Deflater|Inflater)\\(", "TIntObject(Hash)?Map", "@NotNull\\s+private", "\\bsynchronized\\s*\\("};
+    for (String regexp : regexps) {
+      Pattern pattern = Pattern.compile(regexp, Pattern.CASE_INSENSITIVE);
+      TrigramQuery query = TrigramQuery.forRegExp(regexp);
+      assertFalse(regexp, query.isAll());
+
+      int found = 0;
+      int foundFiltered = 0;
+      int filteredOut = 0;
+      for (int i = 0; i < texts.size(); i++) {
+        boolean matches = pattern.matcher(texts.get(i)).find();
+        if (matches) found++;
+        if (query.matches(trigrams.get(i))) {
+          if (matches) foundFiltered++;
+        }
+        else {
+          filteredOut++;
+        }
+      }
+      assertEquals(regexp, found, foundFiltered);
+      assertTrue(regexp, found == texts.size() || filteredOut > 0);
+    }
+  }
+
+  /**
+   * Compares the number of files scanned and the time spent searching for regular expressions
+   * in the sources of the util module with and without filtering them by trigrams first.
+   */
+  public void testFilteringPerformance() throws IOException {
+    File root = new File(PathManager.getHomePath(), "platform/util/src");
+    if (!root.isDirectory()) return;
+
+    final List<String> texts = new ArrayList<String>();
+    final List<TIntHashSet> trigrams = new ArrayList<TIntHashSet>();
+    for (File file : FileUtil.findFilesByMask(Pattern.compile(".*\\.java"), root)) {
+      String text = FileUtil.loadFile(file);
+      texts.add(text);
+      trigrams.add(TrigramBuilder.buildTrigram(text));
+    }
+
+    String[] regexps = {"ConcurrentHashMap<\\w+", "(Deflater|Inflater)\\(", "TIntObject(Hash)?Map", "@NotNull\\s+private", "\\bsynchronized\\s*\\("};
+    for (String regexp : regexps) {
+      final Pattern pattern = Pattern.compile(regexp, Pattern.CASE_INSENSITIVE);
+      final TrigramQuery query = TrigramQuery.forRegExp(regexp);
+      final int[] found = new int[2];
+      final int[] scanned = new int[1];
+
+      PlatformTestUtil.startPerformanceTest(regexp + " in " + texts.size() + " files", 2000, new ThrowableRunnable() {
+        @Override
+        public void run() throws Exception {
+          found[0] = 0;
+          for (String text : texts) {
+            if (pattern.matcher(text).find()) found[0]++;
+          }
+        }
+      }).cpuBound().assertTiming();
+
+      PlatformTestUtil.startPerformanceTest(regexp + " in files filtered by trigrams", 500, new ThrowableRunnable() {
+        @Override
+        public void run() throws Exception {
+          found[1] = 0;
+          scanned[0] = 0;
+          for (int i = 0; i < texts.size(); i++) {
+            if (!query.matches(trigrams.get(i))) continue;
+            scanned[0]++;
+            if (pattern.matcher(texts.get(i)).find()) found[1]++;
+          }
+        }
+      }).cpuBound().assertTiming();
+
+      System.out.println(regexp + ": " + found[0] + " files found, " + scanned[0] + " of " + texts.size() + " files scanned");
+      assertEquals(regexp, found[0], found[1]);
+      assertTrue(regexp, scanned[0] < texts.size());
+    }
+  }
+
+  private static void assertQuery(TrigramQuery query, String[] matching, String[] notMatching) {
+    for (String text : matching) {
+      assertTrue(query + " should match " + text, query.matches(TrigramBuilder.buildTrigram(text)));
+    }
+    for (String text : notMatching) {
+      assertFalse(query + " shouldn't match " + text, query.matches(TrigramBuilder.buildTrigram(text)));
+    }
+  }
+}
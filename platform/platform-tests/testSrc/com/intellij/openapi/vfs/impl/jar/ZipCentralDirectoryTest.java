@@ -0,0 +1,124 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.impl.jar;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class ZipCentralDirectoryTest extends TestCase {
+  private File myDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("zip", "directory");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testSameEntriesAsZipFile() throws IOException {
+    File zip = createZip("archive comment");
+
+    ZipCentralDirectory directory = ZipCentralDirectory.read(zip);
+    assertNotNull(directory);
+    assertTrue(directory.isUpToDate(zip.length(), zip.lastModified()));
+    assertSameEntries(zip, directory);
+  }
+
+  public void testSaveAndLoad() throws IOException {
+    File zip = createZip(null);
+    ZipCentralDirectory directory = ZipCentralDirectory.read(zip);
+    assertNotNull(directory);
+
+    File index = new File(myDir, "test.entries");
+    directory.save(index);
+    ZipCentralDirectory loaded = ZipCentralDirectory.load(index);
+    assertNotNull(loaded);
+    assertTrue(loaded.isUpToDate(zip.length(), zip.lastModified()));
+    assertFalse(loaded.isUpToDate(zip.length() + 1, zip.lastModified()));
+    assertSameEntries(zip, loaded);
+  }
+
+  public void testNotZip() throws IOException {
+    File file = new File(myDir, "not.jar");
+    FileUtil.writeToFile(file, "definitely not a zip file, but long enough to have the end header");
+    assertNull(ZipCentralDirectory.read(file));
+    assertNull(ZipCentralDirectory.load(new File(myDir, "missing.entries")));
+  }
+
+  private File createZip(String comment) throws IOException {
+    File zip = new File(myDir, "test.jar");
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+    try {
+      if (comment != null) {
+        out.setComment(comment);
+      }
+      out.putNextEntry(new ZipEntry("META-INF/"));
+      out.closeEntry();
+      String[] names = {"META-INF/MANIFEST.MF", "a/b/C.class", "a/D.class", "тест.txt", "empty.txt"};
+      for (int i = 0; i < names.length; i++) {
+        ZipEntry entry = new ZipEntry(names[i]);
+        entry.setTime(1300000000000L + i * 60000L);
+        entry.setComment(i % 2 == 0 ? "entry comment" : null);
+        out.putNextEntry(entry);
+        for (int j = 0; j < i * 100; j++) {
+          out.write(j);
+        }
+        out.closeEntry();
+      }
+    }
+    finally {
+      out.close();
+    }
+    return zip;
+  }
+
+  private static void assertSameEntries(File zip, ZipCentralDirectory directory) throws IOException {
+    Map<String, ZipCentralDirectory.Entry> actual = new HashMap<String, ZipCentralDirectory.Entry>();
+    for (ZipCentralDirectory.Entry entry : directory.getEntries()) {
+      actual.put(entry.name, entry);
+    }
+
+    ZipFile zipFile = new ZipFile(zip);
+    try {
+      Set<String> expectedNames = new HashSet<String>();
+      for (Enumeration<? extends ZipEntry> entries = zipFile.entries(); entries.hasMoreElements(); ) {
+        ZipEntry expected = entries.nextElement();
+        expectedNames.add(expected.getName());
+        ZipCentralDirectory.Entry entry = actual.get(expected.getName());
+        assertNotNull(expected.getName(), entry);
+        assertEquals(expected.getSize(), entry.length);
+        assertEquals(expected.getTime(), entry.timestamp);
+      }
+      assertEquals(expectedNames, actual.keySet());
+    }
+    finally {
+      zipFile.close();
+    }
+  }
+}
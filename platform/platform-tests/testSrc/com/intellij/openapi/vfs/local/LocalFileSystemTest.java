@@ -20,21 +20,28 @@ import com.intellij.openapi.util.SystemInfo;
 import com.intellij.openapi.util.io.FileAttributes;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.io.IoTestUtil;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.openapi.util.registry.RegistryValue;
 import com.intellij.openapi.vfs.*;
 import com.intellij.openapi.vfs.newvfs.ManagingFS;
+import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
 import com.intellij.openapi.vfs.newvfs.NewVirtualFileSystem;
 import com.intellij.openapi.vfs.newvfs.RefreshQueue;
 import com.intellij.openapi.vfs.newvfs.events.VFileDeleteEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
 import com.intellij.openapi.vfs.newvfs.impl.VirtualDirectoryImpl;
 import com.intellij.openapi.vfs.newvfs.impl.VirtualFileSystemEntry;
 import com.intellij.openapi.vfs.newvfs.persistent.PersistentFS;
 import com.intellij.openapi.vfs.newvfs.persistent.PersistentFSImpl;
+import com.intellij.openapi.vfs.newvfs.persistent.RefreshWorker;
 import com.intellij.testFramework.PlatformLangTestCase;
 import com.intellij.testFramework.PlatformTestUtil;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 
 public class LocalFileSystemTest extends PlatformLangTestCase {
@@ -295,6 +302,56 @@ public class LocalFileSystemTest extends PlatformLangTestCase {
     checkChildCount(virtualDir, 2);
   }
 
+  public void testParallelRefreshEventsSameAsSequential() throws Exception {
+    File testDir = FileUtil.createTempDirectory("ParallelRefreshTest." + getName(), null);
+    for (int i = 0; i < 5; i++) {
+      File dir = new File(testDir, "dir" + i);
+      for (int j = 0; j < 5; j++) {
+        FileUtil.writeToFile(new File(dir, "sub" + j + "/File" + j + ".java"), "class File" + j + " {}");
+        FileUtil.writeToFile(new File(dir, "File" + j + ".txt"), "text");
+      }
+    }
+
+    VirtualFile virtualDir = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(testDir);
+    assertNotNull(virtualDir);
+    VfsUtilCore.visitChildrenRecursively(virtualDir, new VirtualFileVisitor() { });
+
+    for (int i = 0; i < 5; i++) {
+      File dir = new File(testDir, "dir" + i);
+      FileUtil.writeToFile(new File(dir, "New" + i + ".txt"), "new");
+      File changed = new File(dir, "sub" + i + "/File" + i + ".java");
+      FileUtil.writeToFile(changed, "class File" + i + " { int changed; }");
+      assertTrue(changed.setLastModified(changed.lastModified() + 10000));
+      FileUtil.delete(new File(dir, "File" + i + ".txt"));
+      FileUtil.delete(new File(dir, "sub" + (4 - i)));
+    }
+    FileUtil.writeToFile(new File(testDir, "newDir/New.txt"), "new");
+
+    List<String> sequential = collectRefreshEvents(virtualDir, false);
+    List<String> parallel = collectRefreshEvents(virtualDir, true);
+    assertEquals(sequential.toString(), 20, sequential.size());
+    assertEquals(sequential, parallel);
+  }
+
+  private static List<String> collectRefreshEvents(VirtualFile root, boolean parallel) {
+    RegistryValue value = Registry.get("vfs.parallel.refresh");
+    boolean old = value.asBoolean();
+    value.setValue(parallel);
+    try {
+      ((NewVirtualFile)root).markDirtyRecursively();
+      RefreshWorker worker = new RefreshWorker((NewVirtualFile)root, true);
+      worker.scan();
+      List<String> events = new ArrayList<String>();
+      for (VFileEvent event : worker.getEvents()) {
+        events.add(event.toString());
+      }
+      return events;
+    }
+    finally {
+      value.setValue(old);
+    }
+  }
+
   private static void checkChildCount(VirtualFile virtualDir, int expectedCount) {
     VirtualFile[] children = virtualDir.getChildren();
     if (children.length != expectedCount) {
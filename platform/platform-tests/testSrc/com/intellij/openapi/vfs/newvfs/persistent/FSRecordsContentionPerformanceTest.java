@@ -0,0 +1,131 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.testFramework.LightPlatformLangTestCase;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * N reader threads query record fields while a single writer thread keeps updating records of the same pages.
+ */
+public class FSRecordsContentionPerformanceTest extends LightPlatformLangTestCase {
+  private static final int RECORDS = 10000;
+  private static final int READS_PER_THREAD = 1000000;
+
+  private int[] myRecords;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myRecords = new int[RECORDS];
+    for (int i = 0; i < RECORDS; i++) {
+      myRecords[i] = FSRecords.createRecord();
+      FSRecords.setLength(myRecords[i], pack(i));
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      FSRecords.setOptimisticReads(false);
+      for (int record : myRecords) {
+        FSRecords.deleteRecordRecursively(record);
+      }
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testLockingReads() throws Exception {
+    FSRecords.setOptimisticReads(false);
+    PlatformTestUtil.startPerformanceTest("FSRecords locking reads", 20000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Exception {
+        runReadersAgainstWriter(Runtime.getRuntime().availableProcessors());
+      }
+    }).usesAllCPUCores().assertTiming();
+  }
+
+  public void testOptimisticReads() throws Exception {
+    FSRecords.setOptimisticReads(true);
+    PlatformTestUtil.startPerformanceTest("FSRecords optimistic reads", 10000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Exception {
+        runReadersAgainstWriter(Runtime.getRuntime().availableProcessors());
+      }
+    }).usesAllCPUCores().assertTiming();
+  }
+
+  private void runReadersAgainstWriter(int readers) throws InterruptedException {
+    final AtomicBoolean stop = new AtomicBoolean();
+    final AtomicReference<String> error = new AtomicReference<String>();
+
+    Thread writer = new Thread("FSRecords writer") {
+      @Override
+      public void run() {
+        Random random = new Random();
+        while (!stop.get()) {
+          int i = random.nextInt(RECORDS);
+          FSRecords.setLength(myRecords[i], pack(random.nextInt()));
+          FSRecords.setFlags(myRecords[i], random.nextInt() & PersistentFS.ALL_VALID_FLAGS, false);
+        }
+      }
+    };
+
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < readers; t++) {
+      threads.add(new Thread("FSRecords reader " + t) {
+        @Override
+        public void run() {
+          Random random = new Random();
+          for (int n = 0; n < READS_PER_THREAD; n++) {
+            int record = myRecords[random.nextInt(RECORDS)];
+            long length = FSRecords.getLength(record);
+            if ((int)(length >>> 32) != (int)length) {
+              error.compareAndSet(null, "Torn read of record " + record + ": " + Long.toHexString(length));
+            }
+            FSRecords.getFlags(record);
+            FSRecords.getParent(record);
+          }
+        }
+      });
+    }
+
+    writer.start();
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    stop.set(true);
+    writer.join();
+
+    assertNull(error.get(), error.get());
+  }
+
+  private static long pack(int value) {
+    return ((long)value << 32) | (value & 0xFFFFFFFFL);
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.stubs;
+
+import com.intellij.util.indexing.StorageException;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class StubIndexShardingTest extends TestCase {
+  public void testShardOfKeyDoesNotChange() {
+    EnumeratorStringDescriptor descriptor = new EnumeratorStringDescriptor();
+    // the shards are persistent, so the routing must not depend on anything but the key hash
+    assertEquals(StubIndexImpl.getShardIndex(descriptor.getHashCode("PsiClass"), 4),
+                 StubIndexImpl.getShardIndex(new EnumeratorStringDescriptor().getHashCode("PsiClass"), 4));
+    assertEquals(0, StubIndexImpl.getShardIndex(descriptor.getHashCode("PsiClass"), 1));
+  }
+
+  public void testKeysAreSpreadOverShards() {
+    EnumeratorStringDescriptor descriptor = new EnumeratorStringDescriptor();
+    int shardCount = 4;
+    int[] keysPerShard = new int[shardCount];
+    for (int i = 0; i < 10000; i++) {
+      keysPerShard[StubIndexImpl.getShardIndex(descriptor.getHashCode("name" + i), shardCount)]++;
+    }
+    for (int keys : keysPerShard) {
+      assertTrue(Arrays.toString(keysPerShard), keys > 2000);
+    }
+
+    for (int hash : new int[]{Integer.MIN_VALUE, -1, 0, Integer.MAX_VALUE}) {
+      int shard = StubIndexImpl.getShardIndex(hash, shardCount);
+      assertTrue(String.valueOf(shard), shard >= 0 && shard < shardCount);
+    }
+  }
+
+  public void testUpdateUnderGuessedShards() throws StorageException {
+    MyUpdate update = new MyUpdate(0, 0);
+    assertEquals(1, update.run());
+    assertEquals(Collections.singletonList(0), update.myUpdatedWith);
+  }
+
+  public void testUpdateIsRetriedIfOldDataNeedsOtherShards() throws StorageException {
+    // the old data changes between the read before locking the shards and the read after that
+    MyUpdate update = new MyUpdate(0, 1, 2);
+    assertEquals(3, update.run());
+    assertEquals(Collections.singletonList(2), update.myUpdatedWith);
+    for (Lock lock : update.myShardLocks) {
+      assertFalse(((ReentrantLock)lock).isLocked());
+    }
+    assertFalse(update.myLock.isWriteLocked());
+  }
+
+  public void testOldDataChangedWithinLockedShards() throws StorageException {
+    // the old data needs fewer shards than were guessed
+    MyUpdate update = new MyUpdate(1, 0);
+    assertEquals(1, update.run());
+    assertEquals(Collections.singletonList(0), update.myUpdatedWith);
+  }
+
+  /**
+   * The old data is just a number, which is read from the given sequence, and decides how many shards to lock.
+   */
+  private static class MyUpdate extends StubUpdatingIndex.ShardedUpdate<Integer> {
+    private final ReentrantReadWriteLock myLock = new ReentrantReadWriteLock();
+    private final List<Lock> myShardLocks = new ArrayList<Lock>();
+    private final int[] myOldData;
+    private int myReads;
+    private final List<Integer> myUpdatedWith = new ArrayList<Integer>();
+
+    private MyUpdate(int... oldData) {
+      myOldData = oldData;
+      for (int i = 0; i < 5; i++) {
+        myShardLocks.add(new ReentrantLock());
+      }
+    }
+
+    @NotNull
+    @Override
+    protected Lock getReadLock() {
+      return myLock.readLock();
+    }
+
+    @NotNull
+    @Override
+    protected Lock getWriteLock() {
+      return myLock.writeLock();
+    }
+
+    @NotNull
+    @Override
+    protected Integer readOldData(@Nullable Integer previous) {
+      assertTrue(myLock.getReadHoldCount() > 0 || myLock.isWriteLockedByCurrentThread());
+      return myOldData[Math.min(myReads++, myOldData.length - 1)];
+    }
+
+    @NotNull
+    @Override
+    protected List<Lock> getShardLocks(@NotNull Integer oldData) {
+      return myShardLocks.subList(0, oldData + 1);
+    }
+
+    @Override
+    protected void update(@NotNull Integer oldData) {
+      assertTrue(myLock.isWriteLockedByCurrentThread());
+      for (Lock lock : getShardLocks(oldData)) {
+        assertTrue(((ReentrantLock)lock).isHeldByCurrentThread());
+      }
+      myUpdatedWith.add(oldData);
+    }
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.stubs;
+
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.PersistentStringEnumerator;
+import com.intellij.util.io.UnsyncByteArrayInputStream;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class StubSerializationHelperTest extends TestCase {
+  private File myDir;
+  private PersistentStringEnumerator myNames;
+  private StubSerializationHelper myHelper;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("stub", "serialization");
+    myNames = new PersistentStringEnumerator(new File(myDir, "names"));
+    myHelper = new StubSerializationHelper(myNames);
+    myHelper.assignId(NamedStub.SERIALIZER);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myNames.close();
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testSingleStubs() throws Exception {
+    NamedStub root = new NamedStub(null, "root");
+    List<NamedStub> plain = new ArrayList<NamedStub>();
+    createTree(root, 3, plain);
+    plain.add(0, root);
+
+    BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream();
+    myHelper.serialize(root, out, true);
+    byte[] bytes = out.getInternalBuffer();
+    int length = out.size();
+
+    assertEquals(printTree(root), printTree((NamedStub)myHelper.deserialize(new UnsyncByteArrayInputStream(bytes, 0, length))));
+
+    for (int i = 0; i < plain.size(); i++) {
+      NamedStub expected = plain.get(i);
+
+      NamedStub withChildren = (NamedStub)myHelper.deserializeStub(bytes, length, i, true);
+      assertNotNull(withChildren);
+      assertEquals(printTree(expected), printTree(withChildren));
+      assertSameParents(expected, withChildren);
+
+      NamedStub alone = (NamedStub)myHelper.deserializeStub(bytes, length, i, false);
+      assertNotNull(alone);
+      assertEquals(expected.myName, alone.myName);
+      assertTrue(alone.getChildrenStubs().isEmpty());
+      assertSameParents(expected, alone);
+    }
+
+    assertNull(myHelper.deserializeStub(bytes, length, plain.size(), true));
+  }
+
+  public void testWithoutStubTable() throws Exception {
+    NamedStub root = new NamedStub(null, "root");
+    List<NamedStub> plain = new ArrayList<NamedStub>();
+    createTree(root, 3, plain);
+    plain.add(0, root);
+
+    BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream();
+    myHelper.serialize(root, out);
+    byte[] bytes = out.getInternalBuffer();
+    int length = out.size();
+    BufferExposingByteArrayOutputStream withTable = new BufferExposingByteArrayOutputStream();
+    myHelper.serialize(root, withTable, true);
+    assertTrue(length < withTable.size());
+
+    assertEquals(printTree(root), printTree((NamedStub)myHelper.deserialize(new UnsyncByteArrayInputStream(bytes, 0, length))));
+
+    NamedStub rootAlone = (NamedStub)myHelper.deserializeStub(bytes, length, 0, false);
+    assertNotNull(rootAlone);
+    assertEquals("root", rootAlone.myName);
+    assertTrue(rootAlone.getChildrenStubs().isEmpty());
+
+    for (int i = 0; i < plain.size(); i++) {
+      NamedStub stub = (NamedStub)myHelper.deserializeStub(bytes, length, i, true);
+      assertNotNull(stub);
+      assertEquals(printTree(plain.get(i)), printTree(stub));
+    }
+    assertNull(myHelper.deserializeStub(bytes, length, plain.size(), true));
+  }
+
+  private static void createTree(NamedStub parent, int depth, List<NamedStub> plain) {
+    if (depth == 0) return;
+    for (int i = 0; i < depth + 1; i++) {
+      NamedStub child = new NamedStub(parent, parent.myName + "." + i);
+      plain.add(child);
+      createTree(child, depth - 1, plain);
+    }
+  }
+
+  private static void assertSameParents(NamedStub expected, NamedStub actual) {
+    NamedStub expectedParent = expected.getParentStub();
+    NamedStub actualParent = actual.getParentStub();
+    while (expectedParent != null) {
+      assertNotNull(actualParent);
+      assertEquals(expectedParent.myName, actualParent.myName);
+      // only the chain to the stub is deserialized
+      assertEquals(1, actualParent.getChildrenStubs().size());
+      expectedParent = expectedParent.getParentStub();
+      actualParent = actualParent.getParentStub();
+    }
+    assertNull(actualParent);
+  }
+
+  private static String printTree(NamedStub stub) {
+    StringBuilder builder = new StringBuilder(stub.myName);
+    builder.append('(');
+    for (NamedStub child : stub.getChildrenStubs()) {
+      builder.append(printTree(child));
+    }
+    return builder.append(')').toString();
+  }
+
+  private static class NamedStub extends ObjectStubBase<NamedStub> {
+    private static final ObjectStubSerializer<NamedStub, NamedStub> SERIALIZER = new ObjectStubSerializer<NamedStub, NamedStub>() {
+      @Override
+      public String getExternalId() {
+        return "NamedStub";
+      }
+
+      @Override
+      public void serialize(NamedStub stub, StubOutputStream dataStream) throws IOException {
+        dataStream.writeName(stub.myName);
+      }
+
+      @Override
+      public NamedStub deserialize(StubInputStream dataStream, NamedStub parentStub) throws IOException {
+        return new NamedStub(parentStub, dataStream.readName().getString());
+      }
+
+      @Override
+      public void indexStub(NamedStub stub, IndexSink sink) {
+      }
+    };
+
+    private final String myName;
+    private final List<NamedStub> myChildren = new ArrayList<NamedStub>();
+
+    private NamedStub(NamedStub parent, String name) {
+      super(parent);
+      myName = name;
+      if (parent != null) {
+        parent.myChildren.add(this);
+      }
+    }
+
+    @Override
+    public List<NamedStub> getChildrenStubs() {
+      return myChildren;
+    }
+
+    @Override
+    public ObjectStubSerializer getStubType() {
+      return SERIALIZER;
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+public class IdBitSetTest extends TestCase {
+  public void testRandomOperations() {
+    Random random = new Random(42);
+    // small bound makes chunks dense and switch between the array and bitmap representations
+    for (int bound : new int[]{100, 10000, 300000, Integer.MAX_VALUE}) {
+      IdBitSet set = new IdBitSet();
+      TreeSet<Integer> expected = new TreeSet<Integer>();
+      for (int i = 0; i < 50000; i++) {
+        int id = random.nextInt(bound);
+        if (random.nextInt(3) == 0) {
+          assertEquals(expected.remove(id), set.remove(id));
+        }
+        else {
+          assertEquals(expected.add(id), set.add(id));
+        }
+        assertEquals(expected.contains(id), set.contains(id));
+      }
+      assertEquals(expected, toSet(set));
+      assertEquals(expected.size(), set.size());
+    }
+  }
+
+  public void testDenseChunkSwitchesRepresentation() {
+    IdBitSet set = new IdBitSet();
+    for (int i = 0; i < 10000; i++) {
+      set.add(2 * i);
+    }
+    for (int i = 0; i < 10000; i++) {
+      assertTrue(set.contains(2 * i));
+      assertFalse(set.contains(2 * i + 1));
+    }
+    for (int i = 0; i < 9990; i++) {
+      assertTrue(set.remove(2 * i));
+    }
+    assertEquals(10, set.size());
+    assertEquals(19980, set.iterator().next());
+  }
+
+  public void testIntersectionAndUnion() {
+    Random random = new Random(239);
+    for (int round = 0; round < 20; round++) {
+      int bound = round % 2 == 0 ? 70000 : 1000000;
+      IdBitSet set1 = new IdBitSet();
+      IdBitSet set2 = new IdBitSet();
+      Set<Integer> expected1 = new TreeSet<Integer>();
+      Set<Integer> expected2 = new TreeSet<Integer>();
+      int count1 = random.nextInt(50000);
+      int count2 = random.nextInt(50000);
+      for (int i = 0; i < count1; i++) {
+        int id = random.nextInt(bound);
+        set1.add(id);
+        expected1.add(id);
+      }
+      for (int i = 0; i < count2; i++) {
+        int id = random.nextInt(bound);
+        set2.add(id);
+        expected2.add(id);
+      }
+
+      Set<Integer> intersection = new TreeSet<Integer>(expected1);
+      intersection.retainAll(expected2);
+      IdBitSet actualIntersection = IdBitSet.intersection(set1, set2);
+      assertEquals(intersection, toSet(actualIntersection));
+      assertEquals(intersection.size(), actualIntersection.size());
+
+      Set<Integer> union = new TreeSet<Integer>(expected1);
+      union.addAll(expected2);
+      IdBitSet actualUnion = IdBitSet.union(set1, set2);
+      assertEquals(union, toSet(actualUnion));
+      assertEquals(union.size(), actualUnion.size());
+
+      // operands are not affected
+      assertEquals(expected1, toSet(set1));
+      assertEquals(expected2, toSet(set2));
+    }
+  }
+
+  public void testSaveAndRead() throws IOException {
+    Random random = new Random(1);
+    IdBitSet set = new IdBitSet();
+    for (int i = 0; i < 100000; i++) {
+      set.add(random.nextInt(i < 50000 ? 60000 : 5000000));
+    }
+    BufferExposingByteArrayOutputStream bytes = new BufferExposingByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    set.save(out);
+    out.close();
+
+    IdBitSet read = IdBitSet.read(new DataInputStream(new ByteArrayInputStream(bytes.getInternalBuffer(), 0, bytes.size())));
+    assertEquals(toSet(set), toSet(read));
+    assertEquals(set.size(), read.size());
+    assertTrue(bytes.size() < set.size() * 2);
+  }
+
+  private static Set<Integer> toSet(IdBitSet set) {
+    Set<Integer> result = new LinkedHashSet<Integer>();
+    int previous = -1;
+    for (ValueContainer.IntIterator iterator = set.iterator(); iterator.hasNext(); ) {
+      int id = iterator.next();
+      assertTrue(id > previous);
+      previous = id;
+      result.add(id);
+    }
+    int[] array = set.toArray();
+    assertEquals(result.size(), array.length);
+    int index = 0;
+    for (int id : result) {
+      assertEquals(id, array[index++]);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
+import com.intellij.testFramework.PlatformLangTestCase;
+
+import java.io.IOException;
+
+public class IndexingStampTest extends PlatformLangTestCase {
+  // not a registered index, so that the stamps are changed by the test only
+  private static final ID<String, Void> INDEX = ID.create("IndexingStampTest");
+  private static final long STAMP = 42;
+
+  public void testNewFileReusingIdOfDeletedFileIsNotIndexed() throws IOException {
+    VirtualFile dir = getVirtualFile(createTempDirectory());
+    assertNotNull(dir);
+
+    VirtualFile file = createChildData(dir, "deleted.txt");
+    IndexingStamp.update(file, INDEX, STAMP);
+    assertTrue(IndexingStamp.isFileIndexed(file, INDEX, STAMP));
+    int id = ((NewVirtualFile)file).getId();
+
+    delete(file);
+    VirtualFile newFile = createChildData(dir, "created.txt");
+    assertEquals(id, ((NewVirtualFile)newFile).getId());
+    assertFalse(IndexingStamp.isFileIndexed(newFile, INDEX, STAMP));
+  }
+
+  public void testStampsOfDifferentIndices() throws IOException {
+    VirtualFile dir = getVirtualFile(createTempDirectory());
+    assertNotNull(dir);
+    ID<String, Void> other = ID.create("IndexingStampTest.other");
+
+    VirtualFile file = createChildData(dir, "file.txt");
+    IndexingStamp.update(file, other, STAMP);
+    assertFalse(IndexingStamp.isFileIndexed(file, INDEX, STAMP));
+    assertTrue(IndexingStamp.isFileIndexed(file, other, STAMP));
+
+    IndexingStamp.update(file, INDEX, STAMP + 1);
+    IndexingStamp.update(file, other, -1);
+    assertEquals(STAMP + 1, IndexingStamp.getIndexStamp(file, INDEX));
+    assertEquals(0, IndexingStamp.getIndexStamp(file, other));
+  }
+}
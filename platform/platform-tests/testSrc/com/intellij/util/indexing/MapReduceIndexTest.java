@@ -0,0 +1,182 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.Factory;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.*;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+public class MapReduceIndexTest extends TestCase {
+  private static final DataIndexer<String, Integer, String> WORD_COUNT_INDEXER = new DataIndexer<String, Integer, String>() {
+    @NotNull
+    @Override
+    public Map<String, Integer> map(String inputData) {
+      Map<String, Integer> result = new HashMap<String, Integer>();
+      for (String word : inputData.split(" ")) {
+        if (word.isEmpty()) continue;
+        Integer count = result.get(word);
+        result.put(word, count == null ? 1 : count + 1);
+      }
+      return result;
+    }
+  };
+
+  private File myDir;
+  private final List<MapReduceIndex<String, Integer, String>> myIndices = new ArrayList<MapReduceIndex<String, Integer, String>>();
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("map", "reduce");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (MapReduceIndex<String, Integer, String> index : myIndices) {
+      index.dispose();
+    }
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testBatchUpdateIsEquivalentToSeparateUpdates() throws Exception {
+    MapReduceIndex<String, Integer, String> single = createIndex("single");
+    MapReduceIndex<String, Integer, String> batched = createIndex("batched");
+
+    Random random = new Random(239);
+    for (int round = 0; round < 20; round++) {
+      MapReduceIndex<String, Integer, String>.BatchUpdate batch = batched.startBatchUpdate();
+      for (int i = 0; i < 50; i++) {
+        int inputId = 1 + random.nextInt(100);
+        String content = random.nextInt(10) == 0 ? null : createContent(random);
+        single.update(inputId, content);
+        batch.update(inputId, content);
+      }
+      batch.apply();
+      assertEquals(0, batch.size());
+
+      if (round % 5 == 4) {
+        single.flush();
+        batched.flush();
+      }
+      assertSameData(single, batched);
+    }
+  }
+
+  public void testLargeIdSetsSurviveReopening() throws Exception {
+    MapReduceIndex<String, Integer, String> index = createIndex("large");
+    for (int inputId = 1; inputId <= 100000; inputId += 7) {
+      index.update(inputId, "common " + (inputId % 2 == 0 ? "even" : "odd odd"));
+    }
+    index.flush();
+    for (int inputId = 1; inputId <= 100000; inputId += 14) {
+      index.update(inputId, "rare");
+    }
+    index.flush();
+    index.dispose();
+    myIndices.remove(index);
+
+    index = createIndex("large");
+    Map<Integer, Integer> common = toMap(index.getData("common"));
+    Map<Integer, Integer> even = toMap(index.getData("even"));
+    Map<Integer, Integer> odd = toMap(index.getData("odd"));
+    for (int inputId = 1; inputId <= 100000; inputId += 7) {
+      boolean updated = (inputId - 1) % 14 == 0;
+      assertEquals(updated ? null : Integer.valueOf(1), common.get(inputId));
+      assertEquals(!updated && inputId % 2 == 0 ? Integer.valueOf(1) : null, even.get(inputId));
+      assertEquals(!updated && inputId % 2 == 1 ? Integer.valueOf(2) : null, odd.get(inputId));
+    }
+    assertEquals(7143, toMap(index.getData("rare")).size());
+  }
+
+  private static String createContent(Random random) {
+    StringBuilder builder = new StringBuilder();
+    int words = random.nextInt(20);
+    for (int i = 0; i < words; i++) {
+      builder.append("w").append(random.nextInt(30)).append(' ');
+    }
+    return builder.toString();
+  }
+
+  private static void assertSameData(MapReduceIndex<String, Integer, String> expected, MapReduceIndex<String, Integer, String> actual)
+    throws StorageException {
+    for (int i = 0; i < 30; i++) {
+      String key = "w" + i;
+      assertEquals(key, toMap(expected.getData(key)), toMap(actual.getData(key)));
+    }
+  }
+
+  private static Map<Integer, Integer> toMap(ValueContainer<Integer> container) {
+    Map<Integer, Integer> result = new HashMap<Integer, Integer>();
+    for (Iterator<Integer> iterator = container.getValueIterator(); iterator.hasNext(); ) {
+      Integer value = iterator.next();
+      for (ValueContainer.IntIterator ids = container.getInputIdsIterator(value); ids.hasNext(); ) {
+        assertNull(result.put(ids.next(), value));
+      }
+    }
+    return result;
+  }
+
+  private MapReduceIndex<String, Integer, String> createIndex(String name) throws IOException {
+    EnumeratorStringDescriptor keyDescriptor = new EnumeratorStringDescriptor();
+    MapIndexStorage<String, Integer> storage =
+      new MapIndexStorage<String, Integer>(new File(myDir, name), keyDescriptor, EnumeratorIntegerDescriptor.INSTANCE, 16);
+    MapReduceIndex<String, Integer, String> index = new MapReduceIndex<String, Integer, String>(null, WORD_COUNT_INDEXER, storage);
+    index.setKeyDescriptor(keyDescriptor);
+    final File inputsFile = new File(myDir, name + ".inputs");
+    index.setInputIdToDataKeysIndex(new Factory<PersistentHashMap<Integer, Collection<String>>>() {
+      @Override
+      public PersistentHashMap<Integer, Collection<String>> create() {
+        try {
+          return new PersistentHashMap<Integer, Collection<String>>(inputsFile, EnumeratorIntegerDescriptor.INSTANCE, new KeysExternalizer());
+        }
+        catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    myIndices.add(index);
+    return index;
+  }
+
+  private static class KeysExternalizer implements DataExternalizer<Collection<String>> {
+    @Override
+    public void save(DataOutput out, Collection<String> value) throws IOException {
+      DataInputOutputUtil.writeINT(out, value.size());
+      for (String key : value) {
+        out.writeUTF(key);
+      }
+    }
+
+    @Override
+    public Collection<String> read(DataInput in) throws IOException {
+      int size = DataInputOutputUtil.readINT(in);
+      List<String> result = new ArrayList<String>(size);
+      for (int i = 0; i < size; i++) {
+        result.add(in.readUTF());
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class PagePoolTest extends TestCase {
+  private final List<RandomAccessDataFile> myFiles = new ArrayList<RandomAccessDataFile>();
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (RandomAccessDataFile file : myFiles) {
+      file.dispose();
+      FileUtil.delete(file.getFile());
+    }
+    super.tearDown();
+  }
+
+  private RandomAccessDataFile createFile(PagePool pool) throws IOException {
+    RandomAccessDataFile file = new RandomAccessDataFile(FileUtil.createTempFile("page", "pool"), pool);
+    myFiles.add(file);
+    return file;
+  }
+
+  public void testScanDoesNotEvictFrequentlyUsedPages() throws IOException {
+    PagePool pool = new PagePool(50, 50);
+    RandomAccessDataFile hot = createFile(pool);
+    RandomAccessDataFile scanned = createFile(pool);
+    int hotPages = 20;
+    for (int i = 0; i < hotPages; i++) {
+      hot.putInt((long)i * Page.PAGE_SIZE, i);
+    }
+    for (int round = 0; round < 10; round++) {
+      for (int i = 0; i < hotPages; i++) {
+        assertEquals(i, hot.getInt((long)i * Page.PAGE_SIZE));
+      }
+    }
+    int missesBeforeScan = hot.getPageCacheMisses();
+
+    // one pass over a file much bigger than the pool while the hot pages are still in use
+    for (int i = 0; i < 2000; i++) {
+      scanned.putInt((long)i * Page.PAGE_SIZE, i);
+      if (i % 5 == 0) {
+        int page = i / 5 % hotPages;
+        assertEquals(page, hot.getInt((long)page * Page.PAGE_SIZE));
+      }
+    }
+
+    assertEquals(missesBeforeScan, hot.getPageCacheMisses());
+    assertTrue(hot.getPageCacheHits() > 0);
+    for (int i = 0; i < 2000; i++) {
+      assertEquals(i, scanned.getInt((long)i * Page.PAGE_SIZE));
+    }
+  }
+
+  public void testConcurrentAccess() throws Exception {
+    doTestConcurrentAccess(new PagePool(100, 100));
+  }
+
+  public void testConcurrentAccessToPoolSmallerThanThreadsCount() throws Exception {
+    // pages are evicted all the time between their allocation and access
+    doTestConcurrentAccess(new PagePool(2, 2));
+  }
+
+  private void doTestConcurrentAccess(PagePool pool) throws Exception {
+    final int threadsCount = 8;
+    final int pagesPerThread = 300;
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < threadsCount; t++) {
+      final RandomAccessDataFile file = createFile(pool);
+      Thread thread = new Thread("page pool test " + t) {
+        @Override
+        public void run() {
+          try {
+            for (int round = 0; round < 5; round++) {
+              for (int i = 0; i < pagesPerThread; i++) {
+                long address = (long)i * Page.PAGE_SIZE + round * 8;
+                file.putLong(address, address);
+              }
+              for (int i = 0; i < pagesPerThread; i++) {
+                long address = (long)i * Page.PAGE_SIZE + round * 8;
+                if (file.getLong(address) != address) {
+                  throw new AssertionError("Wrong value at " + address + " in " + file);
+                }
+              }
+            }
+          }
+          catch (Throwable e) {
+            failure.set(e);
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (failure.get() != null) throw new RuntimeException(failure.get());
+
+    for (int t = 0; t < threadsCount; t++) {
+      RandomAccessDataFile file = myFiles.get(t);
+      file.dispose();
+      RandomAccessDataFile reopened = new RandomAccessDataFile(file.getFile(), new PagePool(10, 10));
+      myFiles.set(t, reopened);
+      for (int i = 0; i < pagesPerThread; i++) {
+        for (int round = 0; round < 5; round++) {
+          long address = (long)i * Page.PAGE_SIZE + round * 8;
+          assertEquals(address, reopened.getLong(address));
+        }
+      }
+    }
+  }
+}
@@ -210,6 +210,80 @@ public class PersistentMapTest extends TestCase {
     }
   }
 
+  public void testGarbageBytesAccounting() throws IOException {
+    myMap.setCountReplacedValues(true);
+    myMap.put("AAA", "AAA_VALUE");
+    assertEquals(0, myMap.getGarbageBytes());
+
+    myMap.put("AAA", "ANOTHER_AAA_VALUE");
+    long afterPut = myMap.getGarbageBytes();
+    assertTrue(afterPut > "AAA_VALUE".length());
+
+    myMap.remove("AAA");
+    assertTrue(myMap.getGarbageBytes() > afterPut + "ANOTHER_AAA_VALUE".length());
+
+    myMap.compact();
+    assertEquals(0, myMap.getGarbageBytes());
+  }
+
+  public void testReplacedValuesAreNotCountedByDefault() throws IOException {
+    myMap.put("AAA", "AAA_VALUE");
+    myMap.put("AAA", "ANOTHER_AAA_VALUE");
+    myMap.remove("AAA");
+    assertEquals(0, myMap.getGarbageBytes());
+  }
+
+  public void testConcurrentCompaction() throws Exception {
+    myMap.setCountReplacedValues(true);
+    final int stringsCount = 5000;
+    final Map<String, String> expected = new HashMap<String, String>();
+    for (int i = 0; i < stringsCount; ++i) {
+      String key = "key" + i;
+      myMap.put(key, createRandomString());
+      myMap.put(key, createRandomString());
+      String value = createRandomString();
+      myMap.put(key, value);
+      expected.put(key, value);
+    }
+    long sizeBefore = myMap.getLiveBytes() + myMap.getGarbageBytes();
+    assertTrue(myMap.getGarbageBytes() > myMap.getLiveBytes());
+
+    final Map<String, String> changed = Collections.synchronizedMap(new HashMap<String, String>());
+    Thread writer = new Thread("writer") {
+      @Override
+      public void run() {
+        try {
+          Random random = new Random();
+          for (int i = 0; i < 2000; ++i) {
+            String key = "key" + random.nextInt(stringsCount * 2);
+            String value = createRandomString();
+            myMap.put(key, value);
+            changed.put(key, value);
+            myMap.get("key" + random.nextInt(stringsCount));
+          }
+        }
+        catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    writer.start();
+    myMap.compactConcurrently();
+    writer.join();
+
+    expected.putAll(changed);
+    for (Map.Entry<String, String> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), myMap.get(entry.getKey()));
+    }
+    assertTrue(myMap.getLiveBytes() + myMap.getGarbageBytes() < sizeBefore);
+
+    myMap.close();
+    myMap = new PersistentHashMap<String, String>(myFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+    for (Map.Entry<String, String> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), myMap.get(entry.getKey()));
+    }
+  }
+
   public void testOpeningWithCompact2() throws IOException {
     File file = FileUtil.createTempFile("persistent", "map");
 
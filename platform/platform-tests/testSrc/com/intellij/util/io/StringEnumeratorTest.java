@@ -12,6 +12,7 @@ import junit.framework.TestCase;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class StringEnumeratorTest extends TestCase {
   private static final String COLLISION_1 = "";
@@ -67,6 +68,83 @@ public class StringEnumeratorTest extends TestCase {
     assertEquals(stringsAded, enumerated);
   }
 
+  public void testEnumeratorWithCache() throws Exception {
+    File file = FileUtil.createTempFile("persistent", "enumerator");
+    File otherFile = FileUtil.createTempFile("persistent", "enumerator");
+    PersistentEnumerator<String> enumerator = new PersistentEnumerator<String>(file, new EnumeratorStringDescriptor(), 1024);
+    PersistentEnumerator<String> other = new PersistentEnumerator<String>(otherFile, new EnumeratorStringDescriptor(), 1024);
+    try {
+      int id = enumerator.enumerate("IntelliJ IDEA");
+      assertEquals(id, enumerator.enumerate("IntelliJ IDEA"));
+      assertEquals(1, enumerator.getCacheHits());
+
+      // the cache is shared by the enumerators, but their entries are kept apart
+      other.enumerate("Just another string");
+      assertEquals(other.enumerate("IntelliJ IDEA"), other.enumerate("IntelliJ IDEA"));
+      assertEquals(1, other.getCacheHits());
+
+      PersistentEnumeratorBase.clearCacheForTests();
+      assertEquals(id, enumerator.enumerate("IntelliJ IDEA"));
+      assertEquals(1, enumerator.getCacheHits());
+      assertEquals(id, enumerator.enumerate("IntelliJ IDEA"));
+      assertEquals(2, enumerator.getCacheHits());
+    }
+    finally {
+      enumerator.close();
+      other.close();
+      for (File each : new File[]{file, otherFile}) {
+        FileUtil.delete(each);
+        FileUtil.delete(new File(each.getParentFile(), each.getName() + ".keystream"));
+      }
+    }
+  }
+
+  public void testConcurrentEnumerationWithCache() throws Exception {
+    File file = FileUtil.createTempFile("persistent", "enumerator");
+    final PersistentEnumerator<String> enumerator = new PersistentEnumerator<String>(file, new EnumeratorStringDescriptor(), 1024);
+    try {
+      final int[] ids = new int[1000];
+      for (int i = 0; i < ids.length; i++) {
+        ids[i] = enumerator.enumerate("value" + i);
+      }
+
+      final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int t = 0; t < 4; t++) {
+        final Random random = new Random(t);
+        Thread thread = new Thread() {
+          @Override
+          public void run() {
+            try {
+              for (int i = 0; i < 20000; i++) {
+                // mostly hot values, so that the cache is hit
+                int index = random.nextInt(4) == 0 ? random.nextInt(ids.length) : random.nextInt(50);
+                assertEquals(ids[index], enumerator.enumerate("value" + index));
+              }
+            }
+            catch (Throwable e) {
+              failure.set(e);
+            }
+          }
+        };
+        threads.add(thread);
+        thread.start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      if (failure.get() != null) throw new RuntimeException(failure.get());
+
+      assertEquals(80000, enumerator.getCacheHits() + enumerator.getCacheMisses() - ids.length);
+      assertTrue(enumerator.getCacheHits() > enumerator.getCacheMisses());
+    }
+    finally {
+      enumerator.close();
+      FileUtil.delete(file);
+      FileUtil.delete(new File(file.getParentFile(), file.getName() + ".keystream"));
+    }
+  }
+
   public void testCollision() throws Exception {
     int id1 = myEnumerator.enumerate(COLLISION_1);
     int id2 = myEnumerator.enumerate(COLLISION_2);
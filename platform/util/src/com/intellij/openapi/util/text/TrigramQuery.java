@@ -0,0 +1,573 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.util.text;
+
+import com.intellij.util.ArrayUtil;
+import gnu.trove.THashSet;
+import gnu.trove.TIntHashSet;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Boolean query over the trigrams built by {@link TrigramBuilder}, which a text has to satisfy to contain an occurrence
+ * of a string or a regular expression. The query is conservative: a text which doesn't satisfy it can't contain an occurrence,
+ * while one that does may not.
+ * <p/>
+ * A query either requires all of its trigrams and all of its children to match (AND), or any of its children to match (OR).
+ * {@link #ALL} requires nothing and is matched by every text.
+ */
+public class TrigramQuery {
+  public static final TrigramQuery ALL = new TrigramQuery(false, ArrayUtil.EMPTY_INT_ARRAY, Collections.<TrigramQuery>emptyList());
+
+  // more alternatives make the query as expensive to evaluate as the search it's supposed to avoid
+  private static final int MAX_ALTERNATIVES = 32;
+
+  private final boolean myOr;
+  private final int[] myTrigrams;
+  private final List<TrigramQuery> myChildren;
+
+  private TrigramQuery(boolean or, @NotNull int[] trigrams, @NotNull List<TrigramQuery> children) {
+    myOr = or;
+    myTrigrams = trigrams;
+    myChildren = children;
+  }
+
+  public boolean isAll() {
+    return !myOr && myTrigrams.length == 0 && myChildren.isEmpty();
+  }
+
+  /**
+   * @return true if any of the children is enough for a match, false if all the trigrams and all the children are required
+   */
+  public boolean isOr() {
+    return myOr;
+  }
+
+  /**
+   * @return trigrams required by an AND query, always empty for OR queries
+   */
+  @NotNull
+  public int[] getTrigrams() {
+    return myTrigrams;
+  }
+
+  @NotNull
+  public List<TrigramQuery> getChildren() {
+    return myChildren;
+  }
+
+  /**
+   * @param trigrams trigrams of a text, as built by {@link TrigramBuilder#buildTrigram(CharSequence)}
+   * @return false if the text can't contain an occurrence
+   */
+  public boolean matches(@NotNull TIntHashSet trigrams) {
+    if (myOr) {
+      for (TrigramQuery child : myChildren) {
+        if (child.matches(trigrams)) return true;
+      }
+      return false;
+    }
+    if (!trigrams.containsAll(myTrigrams)) return false;
+    for (TrigramQuery child : myChildren) {
+      if (!child.matches(trigrams)) return false;
+    }
+    return true;
+  }
+
+  @NotNull
+  public static TrigramQuery and(@NotNull TrigramQuery q1, @NotNull TrigramQuery q2) {
+    if (q1.isAll()) return q2;
+    if (q2.isAll()) return q1;
+    TIntHashSet trigrams = new TIntHashSet();
+    List<TrigramQuery> children = new ArrayList<TrigramQuery>();
+    for (TrigramQuery q : new TrigramQuery[]{q1, q2}) {
+      if (q.myOr) {
+        children.add(q);
+      }
+      else {
+        trigrams.addAll(q.myTrigrams);
+        children.addAll(q.myChildren);
+      }
+    }
+    return new TrigramQuery(false, trigrams.toArray(), children);
+  }
+
+  @NotNull
+  public static TrigramQuery or(@NotNull TrigramQuery q1, @NotNull TrigramQuery q2) {
+    if (q1.isAll() || q2.isAll()) return ALL;
+    List<TrigramQuery> children = new ArrayList<TrigramQuery>();
+    for (TrigramQuery q : new TrigramQuery[]{q1, q2}) {
+      if (q.myOr) {
+        children.addAll(q.myChildren);
+      }
+      else {
+        children.add(q);
+      }
+    }
+    return children.size() > MAX_ALTERNATIVES ? ALL : new TrigramQuery(true, ArrayUtil.EMPTY_INT_ARRAY, children);
+  }
+
+  /**
+   * @return query matched by texts containing the given one, ignoring the case
+   */
+  @NotNull
+  public static TrigramQuery forText(@NotNull CharSequence text) {
+    TIntHashSet trigrams = TrigramBuilder.buildTrigram(text);
+    return trigrams.isEmpty() ? ALL : new TrigramQuery(false, trigrams.toArray(), Collections.<TrigramQuery>emptyList());
+  }
+
+  /**
+   * @return query matched by texts containing a match of the given {@link java.util.regex.Pattern} in any case,
+   * or {@link #ALL} if nothing is known about such texts, e.g. if the regular expression is invalid
+   */
+  @NotNull
+  public static TrigramQuery forRegExp(@NotNull String regexp) {
+    try {
+      RegExpParser parser = new RegExpParser(regexp);
+      Info info = parser.parseAlternation();
+      if (parser.myPos < regexp.length()) return ALL; // unbalanced parenthesis
+      return info.toQuery();
+    }
+    catch (UnsupportedSyntaxException e) {
+      return ALL;
+    }
+  }
+
+  @Override
+  public String toString() {
+    if (isAll()) return "ALL";
+    List<String> parts = new ArrayList<String>();
+    for (int trigram : myTrigrams) {
+      parts.add(trigramToString(trigram));
+    }
+    Collections.sort(parts);
+    for (TrigramQuery child : myChildren) {
+      parts.add("(" + child + ")");
+    }
+    return StringUtil.join(parts, myOr ? " | " : " & ");
+  }
+
+  private static String trigramToString(int trigram) {
+    return new String(new char[]{(char)((trigram >> 16) & 0xFF), (char)((trigram >> 8) & 0xFF), (char)(trigram & 0xFF)});
+  }
+
+  /**
+   * What's known about the texts matched by a part of a regular expression.
+   */
+  private static class Info {
+    private static final int MAX_EXACT = 16;
+
+    /**
+     * All the texts the part matches in lower case, null if there are too many of them
+     */
+    private final Set<String> myExact;
+    /**
+     * Additional condition for the texts, usually ALL if the texts are known exactly
+     */
+    private final TrigramQuery myMatch;
+
+    private Info(Set<String> exact, @NotNull TrigramQuery match) {
+      myExact = exact != null && exact.size() > MAX_EXACT ? null : exact;
+      myMatch = exact != null && myExact == null ? and(match, queryForAnyOf(exact)) : match;
+    }
+
+    private static Info exactly(String... texts) {
+      return new Info(new THashSet<String>(Arrays.asList(texts)), ALL);
+    }
+
+    private static Info anything() {
+      return new Info(null, ALL);
+    }
+
+    @NotNull
+    private TrigramQuery toQuery() {
+      return myExact == null ? myMatch : and(myMatch, queryForAnyOf(myExact));
+    }
+
+    private static TrigramQuery queryForAnyOf(@NotNull Set<String> texts) {
+      TrigramQuery result = null;
+      for (String text : texts) {
+        TrigramQuery query = forText(text);
+        if (query.isAll()) return ALL;
+        result = result == null ? query : or(result, query);
+      }
+      return result == null ? ALL : result;
+    }
+
+    @NotNull
+    private Info concat(@NotNull Info next) {
+      if (myExact != null && next.myExact != null && myExact.size() * next.myExact.size() <= MAX_EXACT) {
+        Set<String> exact = new THashSet<String>();
+        for (String s1 : myExact) {
+          for (String s2 : next.myExact) {
+            exact.add(s1 + s2);
+          }
+        }
+        return new Info(exact, and(myMatch, next.myMatch));
+      }
+      return new Info(null, and(toQuery(), next.toQuery()));
+    }
+
+    @NotNull
+    private Info alternate(@NotNull Info other) {
+      if (myExact != null && other.myExact != null) {
+        Set<String> exact = new THashSet<String>(myExact);
+        exact.addAll(other.myExact);
+        return new Info(exact, or(myMatch, other.myMatch));
+      }
+      return new Info(null, or(toQuery(), other.toQuery()));
+    }
+
+    @NotNull
+    private Info optional() {
+      if (myExact == null) return anything();
+      Set<String> exact = new THashSet<String>(myExact);
+      exact.add("");
+      return new Info(exact, ALL);
+    }
+  }
+
+  /**
+   * Thrown by {@link RegExpParser} on the constructs it doesn't understand well enough; no stack trace is collected.
+   */
+  private static class UnsupportedSyntaxException extends RuntimeException {
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+
+  /**
+   * Recursive descent parser of the {@link java.util.regex.Pattern} syntax, which throws {@link UnsupportedSyntaxException}
+   * on the constructs it doesn't understand well enough.
+   */
+  private static class RegExpParser {
+    private static final int MAX_CLASS_SIZE = 8;
+
+    private final String myText;
+    private int myPos;
+    /**
+     * Set when the last repetition occurs at least once: it's parsed as the repeated part followed by an unknown one
+     */
+    private boolean myRepeated;
+
+    private RegExpParser(@NotNull String text) {
+      myText = text;
+    }
+
+    private boolean atEnd() {
+      return myPos >= myText.length();
+    }
+
+    private char peek() {
+      return myText.charAt(myPos);
+    }
+
+    private boolean lookingAt(String s) {
+      return myText.startsWith(s, myPos);
+    }
+
+    private char next() {
+      if (atEnd()) throw new UnsupportedSyntaxException();
+      return myText.charAt(myPos++);
+    }
+
+    private Info parseAlternation() {
+      Info result = parseConcatenation();
+      while (!atEnd() && peek() == '|') {
+        myPos++;
+        result = result.alternate(parseConcatenation());
+      }
+      return result;
+    }
+
+    private Info parseConcatenation() {
+      // the texts matched after the last unknown part are collected separately not to lose the trigrams they share
+      Info current = Info.exactly("");
+      TrigramQuery before = null;
+      while (!atEnd() && peek() != '|' && peek() != ')') {
+        myRepeated = false;
+        Info next = parseRepetition();
+        boolean repeated = myRepeated;
+        for (int i = 0; i < (repeated ? 2 : 1); i++) {
+          if (i == 1) next = Info.anything();
+          Info concatenated = current.concat(next);
+          if (concatenated.myExact != null) {
+            current = concatenated;
+            continue;
+          }
+          TrigramQuery query = current.toQuery();
+          if (next.myExact == null) {
+            query = and(query, next.toQuery());
+            next = Info.exactly("");
+          }
+          before = before == null ? query : and(before, query);
+          current = next;
+        }
+      }
+      return before == null ? current : new Info(null, and(before, current.toQuery()));
+    }
+
+    private Info parseRepetition() {
+      Info atom = parseAtom();
+      while (!atEnd()) {
+        char c = peek();
+        int min;
+        if (c == '*') {
+          myPos++;
+          min = 0;
+        }
+        else if (c == '?') {
+          myPos++;
+          atom = atom.optional();
+          skipQuantifierModifier();
+          continue;
+        }
+        else if (c == '+') {
+          myPos++;
+          min = 1;
+        }
+        else if (c == '{') {
+          int end = myText.indexOf('}', myPos);
+          if (end < 0) throw new UnsupportedSyntaxException();
+          String bounds = myText.substring(myPos + 1, end);
+          myPos = end + 1;
+          int comma = bounds.indexOf(',');
+          try {
+            min = Integer.parseInt((comma < 0 ? bounds : bounds.substring(0, comma)).trim());
+          }
+          catch (NumberFormatException e) {
+            throw new UnsupportedSyntaxException();
+          }
+        }
+        else {
+          break;
+        }
+        skipQuantifierModifier();
+        if (min > 0 && !lookingAtQuantifier()) {
+          // the atom occurs at least once, so it's known to be followed by something unknown
+          myRepeated = true;
+          return atom;
+        }
+        atom = min > 0 ? new Info(null, atom.toQuery()) : Info.anything();
+      }
+      return atom;
+    }
+
+    private boolean lookingAtQuantifier() {
+      return !atEnd() && "*+?{".indexOf(peek()) >= 0;
+    }
+
+    private void skipQuantifierModifier() {
+      if (!atEnd() && (peek() == '?' || peek() == '+')) myPos++;
+    }
+
+    private Info parseAtom() {
+      char c = next();
+      switch (c) {
+        case '(':
+          return parseGroup();
+        case '[':
+          return parseClass();
+        case '.':
+          return Info.anything();
+        case '^':
+        case '$':
+          return Info.exactly("");
+        case '\\':
+          return parseEscape();
+        case '*':
+        case '+':
+        case '?':
+        case '{':
+          throw new UnsupportedSyntaxException();
+        default:
+          return Info.exactly(String.valueOf(StringUtil.toLowerCase(c)));
+      }
+    }
+
+    private Info parseGroup() {
+      boolean ignored = false;
+      if (lookingAt("?")) {
+        myPos++;
+        if (lookingAt("=") || lookingAt("!") || lookingAt("<=") || lookingAt("<!")) {
+          // lookaround doesn't consume any text
+          myPos += peek() == '<' ? 2 : 1;
+          ignored = true;
+        }
+        else if (lookingAt("<")) {
+          int end = myText.indexOf('>', myPos);
+          if (end < 0) throw new UnsupportedSyntaxException();
+          myPos = end + 1;
+        }
+        else if (lookingAt(">") || lookingAt(":")) {
+          myPos++;
+        }
+        else {
+          // flags, which don't matter since the case is ignored anyway, unless they turn on the comments mode
+          while (!atEnd() && peek() != ')' && peek() != ':') {
+            if (next() == 'x') throw new UnsupportedSyntaxException();
+          }
+          if (next() == ')') return Info.exactly("");
+        }
+      }
+      Info result = parseAlternation();
+      if (next() != ')') throw new UnsupportedSyntaxException();
+      return ignored ? Info.exactly("") : result;
+    }
+
+    private Info parseClass() {
+      Set<String> chars = new THashSet<String>();
+      boolean simple = true;
+      if (lookingAt("^")) {
+        myPos++;
+        simple = false;
+      }
+      boolean first = true;
+      while (true) {
+        char c = next();
+        if (c == ']' && !first) break;
+        if (c == '[' || c == '&' || c == ']') {
+          // nested classes, intersections and a leading bracket, which we don't expect in a search string
+          throw new UnsupportedSyntaxException();
+        }
+        first = false;
+        if (c == '\\') {
+          char escaped = next();
+          if (escaped == 'Q') throw new UnsupportedSyntaxException();
+          Character literal = escapedChar(escaped);
+          if (literal == null) {
+            if (escaped == 'p' || escaped == 'P') skipProperty();
+            simple = false;
+            continue;
+          }
+          c = literal;
+        }
+        if (lookingAt("-") && myPos + 1 < myText.length() && myText.charAt(myPos + 1) != ']') {
+          myPos++;
+          char to = next();
+          if (to == '\\') {
+            Character literal = escapedChar(next());
+            if (literal == null) throw new UnsupportedSyntaxException();
+            to = literal;
+          }
+          if (to - c >= MAX_CLASS_SIZE) {
+            simple = false;
+            continue;
+          }
+          for (char r = c; r <= to; r++) {
+            chars.add(String.valueOf(StringUtil.toLowerCase(r)));
+          }
+          continue;
+        }
+        chars.add(String.valueOf(StringUtil.toLowerCase(c)));
+      }
+      return simple && chars.size() <= MAX_CLASS_SIZE ? new Info(chars, ALL) : Info.anything();
+    }
+
+    private Info parseEscape() {
+      char c = next();
+      switch (c) {
+        case 'b':
+        case 'B':
+        case 'A':
+        case 'z':
+        case 'Z':
+        case 'G':
+          return Info.exactly("");
+        case 'Q': {
+          int end = myText.indexOf("\\E", myPos);
+          String quoted = end < 0 ? myText.substring(myPos) : myText.substring(myPos, end);
+          myPos = end < 0 ? myText.length() : end + 2;
+          return Info.exactly(StringUtil.toLowerCase(quoted));
+        }
+        case 'p':
+        case 'P':
+          skipProperty();
+          return Info.anything();
+        case 'k':
+          // named back reference
+          int end = myText.indexOf('>', myPos);
+          if (end < 0) throw new UnsupportedSyntaxException();
+          myPos = end + 1;
+          return Info.anything();
+        default:
+          Character literal = escapedChar(c);
+          return literal == null ? Info.anything() : Info.exactly(String.valueOf(StringUtil.toLowerCase(literal)));
+      }
+    }
+
+    private void skipProperty() {
+      if (lookingAt("{")) {
+        int end = myText.indexOf('}', myPos);
+        if (end < 0) throw new UnsupportedSyntaxException();
+        myPos = end + 1;
+      }
+      else {
+        next();
+      }
+    }
+
+    /**
+     * @return the character denoted by the escape sequence or null if it denotes a class of characters or a back reference
+     */
+    private Character escapedChar(char c) {
+      switch (c) {
+        case 't': return '\t';
+        case 'n': return '\n';
+        case 'r': return '\r';
+        case 'f': return '\f';
+        case 'a': return '\u0007';
+        case 'e': return '\u001B';
+        case 'x': return parseHex(2);
+        case 'u': return parseHex(4);
+        case 'c':
+          // control character
+          next();
+          return null;
+        case '0':
+          // octal escape
+          while (!atEnd() && peek() >= '0' && peek() <= '7') myPos++;
+          return null;
+        default:
+          if (Character.isDigit(c)) {
+            // back reference, the following digits may belong to it
+            while (!atEnd() && Character.isDigit(peek())) myPos++;
+            return null;
+          }
+          // classes of characters and escapes we don't know
+          return Character.isLetter(c) ? null : c;
+      }
+    }
+
+    private Character parseHex(int length) {
+      if (myPos + length > myText.length()) throw new UnsupportedSyntaxException();
+      try {
+        char c = (char)Integer.parseInt(myText.substring(myPos, myPos + length), 16);
+        myPos += length;
+        return c;
+      }
+      catch (NumberFormatException e) {
+        throw new UnsupportedSyntaxException();
+      }
+    }
+  }
+}
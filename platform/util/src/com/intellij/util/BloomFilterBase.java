@@ -33,6 +33,12 @@ public class BloomFilterBase {
     myElementsSet = new long[(bitsCount >> BITS_PER_ELEMENT) + 1];
   }
 
+  protected BloomFilterBase(BloomFilterBase filter) {
+    myHashFunctionCount = filter.myHashFunctionCount;
+    myBitsCount = filter.myBitsCount;
+    myElementsSet = filter.myElementsSet.clone();
+  }
+
   private static boolean isPrime(int bits) {
     if ((bits & 1) == 0 || bits % 3 == 0) return false;
     int sqrt = (int)Math.sqrt(bits);
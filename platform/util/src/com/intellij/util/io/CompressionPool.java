@@ -0,0 +1,96 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Reuses {@link Deflater} and {@link Inflater} instances, which hold native memory and are expensive to create,
+ * between threads. Every acquired instance must be returned with the corresponding release method, it's reset on acquiring.
+ * At most {@link #MAX_POOLED} instances of every kind are kept, the rest are ended on release.
+ */
+public class CompressionPool {
+  private static final int MAX_POOLED = 2 * Runtime.getRuntime().availableProcessors();
+  // compression levels are -1 (default) to 9
+  private static final int LEVELS = 11;
+
+  private static final Pool<Inflater> ourInflaters = new Pool<Inflater>();
+  @SuppressWarnings("unchecked")
+  private static final Pool<Deflater>[] ourDeflaters = new Pool[LEVELS];
+
+  static {
+    for (int i = 0; i < LEVELS; i++) {
+      ourDeflaters[i] = new Pool<Deflater>();
+    }
+  }
+
+  private CompressionPool() {
+  }
+
+  @NotNull
+  public static Deflater acquireDeflater(int level) {
+    Deflater deflater = ourDeflaters[level + 1].acquire();
+    if (deflater == null) return new Deflater(level);
+    deflater.reset();
+    return deflater;
+  }
+
+  public static void releaseDeflater(@NotNull Deflater deflater, int level) {
+    if (!ourDeflaters[level + 1].release(deflater)) {
+      deflater.end();
+    }
+  }
+
+  @NotNull
+  public static Inflater acquireInflater() {
+    Inflater inflater = ourInflaters.acquire();
+    if (inflater == null) return new Inflater();
+    inflater.reset();
+    return inflater;
+  }
+
+  public static void releaseInflater(@NotNull Inflater inflater) {
+    if (!ourInflaters.release(inflater)) {
+      inflater.end();
+    }
+  }
+
+  private static class Pool<T> {
+    private final Queue<T> myInstances = new ConcurrentLinkedQueue<T>();
+    private final AtomicInteger mySize = new AtomicInteger();
+
+    private T acquire() {
+      T instance = myInstances.poll();
+      if (instance != null) mySize.decrementAndGet();
+      return instance;
+    }
+
+    private boolean release(@NotNull T instance) {
+      if (mySize.incrementAndGet() > MAX_POOLED) {
+        mySize.decrementAndGet();
+        return false;
+      }
+      myInstances.offer(instance);
+      return true;
+    }
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.util.SystemProperties;
+import com.intellij.util.containers.SLRUMap;
+import com.intellij.util.containers.ShareableKey;
+import jsr166e.SequenceLock;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.TestOnly;
+
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Value to id cache of a single enumerator. The entries of all enumerators share one budget of {@code idea.enumerationCacheSize}
+ * values, so the memory taken by the caches doesn't grow with the number of enumerators. The entries are split into independently
+ * locked SLRU stripes by value hash code, so threads enumerating different values don't contend for the same lock.
+ */
+final class EnumerationCache<Data> {
+  private static final int CACHE_SIZE = SystemProperties.getIntProperty("idea.enumerationCacheSize", 8192);
+  private static final int STRIPE_POWER = 4;
+  private static final int STRIPE_COUNT = 1 << STRIPE_POWER;
+  private static final int STRIPE_MASK = STRIPE_COUNT - 1;
+
+  private static final SLRUMap<CacheKey, Integer>[] ourStripes;
+  private static final Lock[] ourStripeLocks;
+  // lookup keys, guarded by the corresponding stripe lock
+  private static final FlyweightKey[] ourFlyweights;
+
+  static {
+    int stripeSize = Math.max(1, CACHE_SIZE / STRIPE_COUNT);
+    @SuppressWarnings("unchecked") SLRUMap<CacheKey, Integer>[] stripes = new SLRUMap[STRIPE_COUNT];
+    ourStripes = stripes;
+    ourStripeLocks = new Lock[STRIPE_COUNT];
+    ourFlyweights = new FlyweightKey[STRIPE_COUNT];
+    for (int i = 0; i < STRIPE_COUNT; i++) {
+      ourStripes[i] = new SLRUMap<CacheKey, Integer>(stripeSize, stripeSize);
+      ourStripeLocks[i] = new SequenceLock();
+      ourFlyweights[i] = new FlyweightKey();
+    }
+  }
+
+  // guarded by the corresponding stripe lock
+  private final long[] myHits = new long[STRIPE_COUNT];
+  private final long[] myMisses = new long[STRIPE_COUNT];
+
+  @TestOnly
+  static void clearAll() {
+    for (int i = 0; i < STRIPE_COUNT; i++) {
+      ourStripeLocks[i].lock();
+      try {
+        ourStripes[i].clear();
+      }
+      finally {
+        ourStripeLocks[i].unlock();
+      }
+    }
+  }
+
+  /**
+   * @return cached id of the value or {@link PersistentEnumeratorBase#NULL_ID} if there is none
+   */
+  int get(@NotNull Data value) {
+    int stripe = stripe(value);
+    ourStripeLocks[stripe].lock();
+    try {
+      FlyweightKey key = ourFlyweights[stripe];
+      key.value = value;
+      key.owner = this;
+      Integer id = ourStripes[stripe].get(key);
+      key.value = null;
+      key.owner = null;
+      if (id == null) {
+        myMisses[stripe]++;
+        return PersistentEnumeratorBase.NULL_ID;
+      }
+      myHits[stripe]++;
+      return id.intValue();
+    }
+    finally {
+      ourStripeLocks[stripe].unlock();
+    }
+  }
+
+  void put(@NotNull Data value, int id) {
+    int stripe = stripe(value);
+    ourStripeLocks[stripe].lock();
+    try {
+      ourStripes[stripe].put(new CacheKey(value, this), id);
+    }
+    finally {
+      ourStripeLocks[stripe].unlock();
+    }
+  }
+
+  long getHits() {
+    return sum(myHits);
+  }
+
+  long getMisses() {
+    return sum(myMisses);
+  }
+
+  private static long sum(long[] counters) {
+    long result = 0;
+    for (int i = 0; i < STRIPE_COUNT; i++) {
+      ourStripeLocks[i].lock();
+      try {
+        result += counters[i];
+      }
+      finally {
+        ourStripeLocks[i].unlock();
+      }
+    }
+    return result;
+  }
+
+  private static int stripe(@NotNull Object value) {
+    int h = value.hashCode();
+    h ^= (h >>> 20) ^ (h >>> 12);
+    return (h ^ (h >>> 7) ^ (h >>> 4)) & STRIPE_MASK;
+  }
+
+  private static class CacheKey implements ShareableKey {
+    protected Object value;
+    protected EnumerationCache owner;
+
+    private CacheKey(Object value, EnumerationCache owner) {
+      this.value = value;
+      this.owner = owner;
+    }
+
+    @Override
+    public ShareableKey getStableCopy() {
+      return this;
+    }
+
+    public boolean equals(final Object o) {
+      if (this == o) return true;
+      if (!(o instanceof CacheKey)) return false;
+
+      final CacheKey cacheKey = (CacheKey)o;
+      return owner == cacheKey.owner && value.equals(cacheKey.value);
+    }
+
+    public int hashCode() {
+      return value.hashCode();
+    }
+  }
+
+  private static class FlyweightKey extends CacheKey {
+    private FlyweightKey() {
+      super(null, null);
+    }
+
+    @Override
+    public ShareableKey getStableCopy() {
+      return new CacheKey(value, owner);
+    }
+  }
+}
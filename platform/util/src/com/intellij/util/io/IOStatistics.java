@@ -2,13 +2,31 @@ package com.intellij.util.io;
 
 import com.intellij.openapi.diagnostic.Logger;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 class IOStatistics {
   static final boolean DEBUG = System.getProperty("io.access.debug") != null;
   static final int MIN_IO_TIME_TO_REPORT = 100;
   static final Logger LOG = Logger.getInstance("#com.intellij.io.IOStatistics");
   static final int KEYS_FACTOR_MASK = 0xFFFF;
 
+  static final AtomicLong ourCompactions = new AtomicLong();
+  static final AtomicLong ourCompactedBytes = new AtomicLong(); // bytes written by value storage compactions
+  static final AtomicLong ourReclaimedBytes = new AtomicLong();
+  static final AtomicLong ourCompactionTime = new AtomicLong();
+
   static void dump(String msg) {
     LOG.info(msg);
   }
+
+  static void compactionFinished(long bytesWritten, long bytesReclaimed, long timeMs) {
+    long compactions = ourCompactions.incrementAndGet();
+    long written = ourCompactedBytes.addAndGet(bytesWritten);
+    long reclaimed = ourReclaimedBytes.addAndGet(bytesReclaimed);
+    long time = ourCompactionTime.addAndGet(timeMs);
+    if (DEBUG) {
+      dump("Compactions:" + compactions + ", written:" + written + ", reclaimed:" + reclaimed + ", time:" + time +
+           "ms, throughput:" + (written / Math.max(time, 1)) + " bytes/ms");
+    }
+  }
 }
@@ -46,6 +46,7 @@ public class Page {
   private boolean dirty = false;
   private int myFinalizationId;
   private BitSet myWriteMask;
+  private boolean myEvicted; // removed from PagePool, the page must not be accessed anymore
 
   private static class PageLock {}
   private final PageLock lock = new PageLock();
@@ -180,8 +181,12 @@ public class Page {
     return offset;
   }
 
+  /**
+   * @return number of bytes written or -1 if the page was evicted from the pool after it was allocated, so it should be allocated again
+   */
   public int put(long index, byte[] bytes, int off, int length) {
     synchronized (lock) {
+      if (myEvicted) return -1;
       myFinalizationId = 0;
       ensureReadOrWriteMaskExists();
 
@@ -199,8 +204,12 @@ public class Page {
     }
   }
 
+  /**
+   * @return number of bytes read or -1 if the page was evicted from the pool after it was allocated, so it should be allocated again
+   */
   public int get(long index, byte[] bytes, int off, int length) {
     synchronized (lock) {
+      if (myEvicted) return -1;
       myFinalizationId = 0;
       ensureRead();
 
@@ -218,6 +227,7 @@ public class Page {
   @Nullable
   public FinalizationRequest prepareForFinalization(int finalizationId) {
     synchronized (lock) {
+      myEvicted = true;
       if (dirty) {
         myFinalizationId = finalizationId;
         return new FinalizationRequest(this, finalizationId);
@@ -229,6 +239,15 @@ public class Page {
     }
   }
 
+  /**
+   * Called when the page is returned to the pool from finalization queue.
+   */
+  public void revive() {
+    synchronized (lock) {
+      myEvicted = false;
+    }
+  }
+
   public RandomAccessDataFile getOwner() {
     return owner;
   }
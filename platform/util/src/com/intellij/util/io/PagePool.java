@@ -19,154 +19,141 @@
  */
 package com.intellij.util.io;
 
-import com.intellij.util.containers.hash.LinkedHashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Iterator;
-import java.util.Map;
-import java.util.SortedMap;
-import java.util.TreeMap;
-
-
-@SuppressWarnings({"AssignmentToStaticFieldFromInstanceMethod"})
+import java.util.*;
+
+/**
+ * Page cache shared by {@link RandomAccessDataFile}s.
+ * <p/>
+ * Pages are distributed over independently locked segments. Each segment follows W-TinyLFU policy: new pages get into small LRU
+ * window (sized for the whole pool and split between the segments, so the pool is striped only as far as every segment
+ * gets a window of a few pages), pages evicted from the window compete for the place in the main (probational + protected) queues with the main queues victim,
+ * and the one accessed more frequently recently (according to a compact frequency sketch) wins. Thus one-off scans of big files
+ * pass through the window without evicting frequently used pages.
+ * <p/>
+ * Evicted dirty pages get into per-segment finalization queue and are written to disk in file offset order.
+ */
 public class PagePool {
-  private final Map<PoolPageKey, Page> myProtectedQueue;
-  private final Map<PoolPageKey, Page> myProbationalQueue;
-
-  private int finalizationId = 0;
+  private static final int MAX_SEGMENTS_COUNT = 16;
+  private static final int MIN_PAGES_PER_SEGMENT = 32;
+  private static final int MIN_WINDOW_PAGES = 32;
+  private static final int MIN_WINDOW_PAGES_PER_SEGMENT = 8;
+  private static final int MAX_UNLOCKED_ACCESS_ATTEMPTS = 3;
 
-  private final TreeMap<PoolPageKey, FinalizationRequest> myFinalizationQueue = new TreeMap<PoolPageKey, FinalizationRequest>();
+  private final Segment[] mySegments;
+  private final int mySegmentMask;
 
-  private final Object lock = new Object();
-  private final Object finalizationMonitor = new Object();
-  private final PoolPageKey keyInstance = new PoolPageKey(null, -1);
-
-  private PoolPageKey lastFinalizedKey = null;
+  public final static PagePool SHARED = new PagePool(500, 500);
 
   public PagePool(final int protectedPagesLimit, final int probationalPagesLimit) {
-    myProbationalQueue = new LinkedHashMap<PoolPageKey,Page>(probationalPagesLimit * 2, 0.6f) {
-      @Override
-      protected boolean removeEldestEntry(final Map.Entry<PoolPageKey, Page> eldest) {
-        if (size() > probationalPagesLimit) {
-          scheduleFinalization(eldest.getValue());
-          return true;
-        }
-        return false;
-      }
-    };
-
-    myProtectedQueue = new LinkedHashMap<PoolPageKey, Page>(protectedPagesLimit, 0.6f) {
-      @Override
-      protected boolean removeEldestEntry(final Map.Entry<PoolPageKey, Page> eldest) {
-        if (size() > protectedPagesLimit) {
-          myProbationalQueue.put(eldest.getKey(), eldest.getValue());
-          return true;
-        }
-        return false;
-      }
-    };
+    int capacity = Math.max(2, protectedPagesLimit + probationalPagesLimit);
+    // 1% of the pool is enough for big pools, while small ones need a bigger share to keep the pages which are reused soon
+    int windowLimit = Math.max(1, Math.max(capacity / 100, Math.min(MIN_WINDOW_PAGES, capacity / 10)));
+    int maxSegments = Math.min(MAX_SEGMENTS_COUNT, Math.min(windowLimit / MIN_WINDOW_PAGES_PER_SEGMENT, capacity / MIN_PAGES_PER_SEGMENT));
+    int segmentsCount = Math.max(1, Integer.highestOneBit(maxSegments));
+    mySegments = new Segment[segmentsCount];
+    for (int i = 0; i < segmentsCount; i++) {
+      mySegments[i] = new Segment(capacity / segmentsCount, Math.max(1, windowLimit / segmentsCount));
+    }
+    mySegmentMask = segmentsCount - 1;
   }
 
-  @SuppressWarnings({"FieldAccessedSynchronizedAndUnsynchronized"}) private static int hits = 0;
-  @SuppressWarnings({"FieldAccessedSynchronizedAndUnsynchronized"}) private static int cache_misses = 0;
-  @SuppressWarnings({"FieldAccessedSynchronizedAndUnsynchronized"}) private static int same_page_hits = 0;
-  @SuppressWarnings({"FieldAccessedSynchronizedAndUnsynchronized"}) private static int protected_queue_hits = 0;
-  @SuppressWarnings({"FieldAccessedSynchronizedAndUnsynchronized"}) private static int probational_queue_hits = 0;
-  @SuppressWarnings({"FieldAccessedSynchronizedAndUnsynchronized"}) private static int finalization_queue_hits = 0;
-
-  public final static PagePool SHARED = new PagePool(500, 500);
-
-  private RandomAccessDataFile lastOwner = null;
-  private long lastOffset = 0;
-  private Page lastHit = null;
-
-  @SuppressWarnings({"AssignmentToStaticFieldFromInstanceMethod"})
+  /**
+   * The returned page may be evicted by another thread before it's accessed, use {@link #put} and {@link #get} to access the data.
+   */
   @NotNull
   public Page alloc(RandomAccessDataFile owner, long offset) {
-    synchronized (lock) {
-      offset -= offset % Page.PAGE_SIZE;
-      hits++;
-
-      if (owner == lastOwner && offset == lastOffset) {
-        same_page_hits++;
-        return lastHit;
-      }
-
-      lastOffset = offset;
-      lastOwner = owner;
-      lastHit = hitQueues(owner, offset);
-
-      flushFinalizationQueue(Integer.MAX_VALUE);
+    offset -= offset % Page.PAGE_SIZE;
+    final int hash = hash(owner, offset);
+    final Segment segment = mySegments[hash & mySegmentMask];
 
-      return lastHit;
-    }
+    Page page = segment.alloc(owner, offset, hash);
+    segment.flushFinalizationQueue(Integer.MAX_VALUE);
+    return page;
   }
 
-  private Page hitQueues(final RandomAccessDataFile owner, final long offset) {
-    PoolPageKey key = setupKey(owner, offset);
-
-    Page page = myProtectedQueue.get(key);
-    if (page != null) {
-      protected_queue_hits++;
-      return page;
+  /**
+   * Writes the bytes to the page containing the address.
+   * @return number of bytes written
+   */
+  public int put(RandomAccessDataFile owner, long addr, byte[] bytes, int off, int len) {
+    for (int attempt = 0; attempt < MAX_UNLOCKED_ACCESS_ATTEMPTS; attempt++) {
+      int written = alloc(owner, addr).put(addr, bytes, off, len);
+      if (written >= 0) return written;
     }
+    return accessLocked(owner, addr, bytes, off, len, true);
+  }
 
-    page = myProbationalQueue.remove(key);
-    if (page != null) {
-      probational_queue_hits++;
-      toProtectedQueue(page);
-      return page;
+  /**
+   * Reads the bytes from the page containing the address.
+   * @return number of bytes read
+   */
+  public int get(RandomAccessDataFile owner, long addr, byte[] bytes, int off, int len) {
+    for (int attempt = 0; attempt < MAX_UNLOCKED_ACCESS_ATTEMPTS; attempt++) {
+      int read = alloc(owner, addr).get(addr, bytes, off, len);
+      if (read >= 0) return read;
     }
+    return accessLocked(owner, addr, bytes, off, len, false);
+  }
 
-    final FinalizationRequest request = myFinalizationQueue.remove(key);
-    if (request != null) {
-      page = request.page;
-      finalization_queue_hits++;
-      toProtectedQueue(page);
-      return page;
+  /**
+   * The page keeps being evicted by other threads between its allocation and access, so it's accessed under the lock of the segment
+   * instead, which blocks the other users of the segment, but guarantees that the page isn't evicted in the meantime.
+   */
+  private int accessLocked(RandomAccessDataFile owner, long addr, byte[] bytes, int off, int len, boolean write) {
+    final long offset = addr - addr % Page.PAGE_SIZE;
+    final int hash = hash(owner, offset);
+    final Segment segment = mySegments[hash & mySegmentMask];
+
+    int count;
+    synchronized (segment) {
+      Page page = segment.alloc(owner, offset, hash);
+      count = write ? page.put(addr, bytes, off, len) : page.get(addr, bytes, off, len);
     }
+    segment.flushFinalizationQueue(Integer.MAX_VALUE);
+    assert count >= 0 : "page was evicted under the segment lock";
+    return count;
+  }
 
-    cache_misses++;
-    page = new Page(owner, offset);
-
-    myProbationalQueue.put(keyForPage(page), page);
-
-    return page;
+  private static int hash(RandomAccessDataFile owner, long offset) {
+    int h = owner.hashCode() * 31 + (int)(offset / Page.PAGE_SIZE);
+    h = ((h >>> 16) ^ h) * 0x45d9f3b;
+    return (h >>> 16) ^ h;
   }
 
-  //private long lastFlushTime = 0;
-  
-  private static double percent(int part, int whole) {
-    return ((double)part * 1000 / whole) / 10;
+  private static double percent(long part, long whole) {
+    return ((double)part * 1000 / Math.max(whole, 1)) / 10;
   }
 
   @SuppressWarnings({"ALL"})
   public static void printStatistics() {
+    long windowHits = 0, protectedHits = 0, probationalHits = 0, finalizationHits = 0, misses = 0, rejected = 0;
+    for (Segment segment : SHARED.mySegments) {
+      synchronized (segment) {
+        windowHits += segment.windowHits;
+        protectedHits += segment.protectedQueueHits;
+        probationalHits += segment.probationalQueueHits;
+        finalizationHits += segment.finalizationQueueHits;
+        misses += segment.cacheMisses;
+        rejected += segment.rejectedCandidates;
+      }
+    }
+    long hits = windowHits + protectedHits + probationalHits + finalizationHits + misses;
+
     System.out.println("Total requests: " + hits);
-    System.out.println("Same page hits: " + same_page_hits + " (" + percent(same_page_hits, hits) + "%)");
-    System.out.println("Protected queue hits: " + protected_queue_hits + " (" + percent(protected_queue_hits, hits) + "%)");
-    System.out.println("Probatinonal queue hits: " + probational_queue_hits + " (" + percent(probational_queue_hits, hits) + "%)");
-    System.out.println("Finalization queue hits: " + finalization_queue_hits + " (" + percent(finalization_queue_hits, hits) + "%)");
-    System.out.println("Cache misses: " + cache_misses + " (" + percent(cache_misses, hits) + "%)");
+    System.out.println("Window hits: " + windowHits + " (" + percent(windowHits, hits) + "%)");
+    System.out.println("Protected queue hits: " + protectedHits + " (" + percent(protectedHits, hits) + "%)");
+    System.out.println("Probatinonal queue hits: " + probationalHits + " (" + percent(probationalHits, hits) + "%)");
+    System.out.println("Finalization queue hits: " + finalizationHits + " (" + percent(finalizationHits, hits) + "%)");
+    System.out.println("Cache misses: " + misses + " (" + percent(misses, hits) + "%)");
+    System.out.println("Pages not admitted to main queues: " + rejected);
 
     System.out.println("Total reads: " + RandomAccessDataFile.totalReads + ". Bytes read: " + RandomAccessDataFile.totalReadBytes);
     System.out.println("Total writes: " + RandomAccessDataFile.totalWrites + ". Bytes written: " + RandomAccessDataFile.totalWriteBytes);
   }
 
-  private static PoolPageKey keyForPage(final Page page) {
-    return page.getKey();
-  }
-
-  private void toProtectedQueue(final Page page) {
-    myProtectedQueue.put(keyForPage(page), page);
-  }
-
-  private PoolPageKey setupKey(RandomAccessDataFile owner, long offset) {
-    keyInstance.setup(owner, offset);
-    return keyInstance;
-  }
-
   public void flushPages(final RandomAccessDataFile owner) {
     flushPages(owner, Integer.MAX_VALUE);
   }
@@ -178,99 +165,210 @@ public class PagePool {
    * @return true if all the dirty pages where flushed.
    */
   public boolean flushPages(final RandomAccessDataFile owner, final int maxPagesToFlush) {
-    boolean hasFlushes;
-    synchronized (lock) {
-      if (lastOwner == owner) {
-        scheduleFinalization(lastHit);
-        lastHit = null;
-        lastOwner = null;
-      }
-
-      hasFlushes = scanQueue(owner, myProtectedQueue);
-      hasFlushes |= scanQueue(owner, myProbationalQueue);
+    boolean hasFlushes = false;
+    for (Segment segment : mySegments) {
+      hasFlushes |= segment.finalizePages(owner);
     }
+    if (!hasFlushes) return true;
 
-    return !hasFlushes || flushFinalizationQueue(maxPagesToFlush);
+    int pagesToFlush = maxPagesToFlush;
+    for (Segment segment : mySegments) {
+      pagesToFlush -= segment.flushFinalizationQueue(pagesToFlush);
+    }
+    for (Segment segment : mySegments) {
+      if (segment.hasFinalizationRequests()) return false;
+    }
+    return true;
   }
 
-  private boolean flushFinalizationQueue(final int maxPagesToFlush) {
-    int count = 0;
+  private static class Segment {
+    private final int myWindowLimit;
+    private final int myMainLimit;
+    private final int myProtectedLimit;
+
+    // all the queues are in access order: the eldest entry is the least recently used one
+    private final Map<PoolPageKey, Page> myWindowQueue = new LinkedHashMap<PoolPageKey, Page>(16, 0.75f, true);
+    private final Map<PoolPageKey, Page> myProbationalQueue = new LinkedHashMap<PoolPageKey, Page>(16, 0.75f, true);
+    private final Map<PoolPageKey, Page> myProtectedQueue = new LinkedHashMap<PoolPageKey, Page>(16, 0.75f, true);
+    private final FrequencySketch mySketch;
+
+    private final TreeMap<PoolPageKey, FinalizationRequest> myFinalizationQueue = new TreeMap<PoolPageKey, FinalizationRequest>();
+    private int finalizationId = 0;
+    private PoolPageKey lastFinalizedKey = null;
+
+    private final PoolPageKey keyInstance = new PoolPageKey(null, -1);
+
+    private long windowHits;
+    private long protectedQueueHits;
+    private long probationalQueueHits;
+    private long finalizationQueueHits;
+    private long cacheMisses;
+    private long rejectedCandidates;
+
+    private Segment(int capacity, int windowLimit) {
+      myWindowLimit = windowLimit;
+      myMainLimit = Math.max(1, capacity - myWindowLimit);
+      myProtectedLimit = Math.max(1, myMainLimit * 4 / 5);
+      mySketch = new FrequencySketch(capacity);
+    }
+
+    @NotNull
+    private synchronized Page alloc(RandomAccessDataFile owner, long offset, int hash) {
+      mySketch.increment(hash);
+      keyInstance.setup(owner, offset);
+
+      Page page = myWindowQueue.get(keyInstance);
+      if (page != null) {
+        windowHits++;
+        owner.pageCacheHit();
+        return page;
+      }
+
+      page = myProtectedQueue.get(keyInstance);
+      if (page != null) {
+        protectedQueueHits++;
+        owner.pageCacheHit();
+        return page;
+      }
+
+      page = myProbationalQueue.remove(keyInstance);
+      if (page != null) {
+        probationalQueueHits++;
+        owner.pageCacheHit();
+        toProtectedQueue(page);
+        return page;
+      }
 
-    while (count < maxPagesToFlush) {
-      FinalizationRequest request = retrieveFinalizationRequest();
-      if (request == null) {
-        return true;
+      final FinalizationRequest request = myFinalizationQueue.remove(keyInstance);
+      if (request != null) {
+        finalizationQueueHits++;
+        owner.pageCacheHit();
+        page = request.page;
+        page.revive();
+        toProtectedQueue(page);
+        return page;
       }
 
-      processFinalizationRequest(request);
-      count++;
+      cacheMisses++;
+      owner.pageCacheMiss();
+      page = new Page(owner, offset);
+      myWindowQueue.put(page.getKey(), page);
+      if (myWindowQueue.size() > myWindowLimit) {
+        evictFromWindow();
+      }
+      return page;
     }
 
-    return false;
-  }
+    private void toProtectedQueue(@NotNull Page page) {
+      myProtectedQueue.put(page.getKey(), page);
+      if (myProtectedQueue.size() > myProtectedLimit) {
+        Page demoted = removeEldest(myProtectedQueue);
+        myProbationalQueue.put(demoted.getKey(), demoted);
+      }
+      if (myProtectedQueue.size() + myProbationalQueue.size() > myMainLimit) {
+        scheduleFinalization(removeEldest(myProbationalQueue.isEmpty() ? myProtectedQueue : myProbationalQueue));
+      }
+    }
 
-  private boolean scanQueue(final RandomAccessDataFile owner, final Map<?, Page> queue) {
-    Iterator<Page> iterator = queue.values().iterator();
-    boolean hasFlushes = false;
-    while (iterator.hasNext()) {
-      Page page = iterator.next();
+    private void evictFromWindow() {
+      Page candidate = removeEldest(myWindowQueue);
+      if (myProtectedQueue.size() + myProbationalQueue.size() < myMainLimit) {
+        myProbationalQueue.put(candidate.getKey(), candidate);
+        return;
+      }
 
-      if (page.getOwner() == owner) {
-        scheduleFinalization(page);
-        iterator.remove();
-        hasFlushes = true;
+      Map<PoolPageKey, Page> victimQueue = myProbationalQueue.isEmpty() ? myProtectedQueue : myProbationalQueue;
+      Page victim = victimQueue.values().iterator().next();
+      if (mySketch.frequency(hash(candidate.getOwner(), candidate.getOffset())) >
+          mySketch.frequency(hash(victim.getOwner(), victim.getOffset()))) {
+        victimQueue.remove(victim.getKey());
+        scheduleFinalization(victim);
+        myProbationalQueue.put(candidate.getKey(), candidate);
+      }
+      else {
+        rejectedCandidates++;
+        scheduleFinalization(candidate);
       }
     }
-    return hasFlushes;
-  }
 
-  private boolean scheduleFinalization(final Page page) {
-    final int curFinalizationId;
-    synchronized (lock) {
-      curFinalizationId = ++finalizationId;
+    @NotNull
+    private static Page removeEldest(@NotNull Map<PoolPageKey, Page> queue) {
+      Iterator<Page> iterator = queue.values().iterator();
+      Page page = iterator.next();
+      iterator.remove();
+      return page;
+    }
+
+    private synchronized boolean finalizePages(final RandomAccessDataFile owner) {
+      boolean hasFlushes = scanQueue(owner, myWindowQueue);
+      hasFlushes |= scanQueue(owner, myProtectedQueue);
+      hasFlushes |= scanQueue(owner, myProbationalQueue);
+      return hasFlushes;
     }
 
-    final FinalizationRequest request = page.prepareForFinalization(curFinalizationId);
-    if (request == null) return false;
+    private boolean scanQueue(final RandomAccessDataFile owner, final Map<?, Page> queue) {
+      Iterator<Page> iterator = queue.values().iterator();
+      boolean hasFlushes = false;
+      while (iterator.hasNext()) {
+        Page page = iterator.next();
 
-    synchronized (lock) {
-      /*
-      if (myFinalizerThread == null) {
-        myFinalizerThread = new Thread(new FinalizationThreadWorker(), FINALIZER_THREAD_NAME);
-        myFinalizerThread.start();
+        if (page.getOwner() == owner) {
+          scheduleFinalization(page);
+          iterator.remove();
+          hasFlushes = true;
+        }
       }
-      */
+      return hasFlushes;
+    }
 
-      myFinalizationQueue.put(keyForPage(page), request);
-      if (myFinalizationQueue.size() > 5000) {
-        return true;
+    private void scheduleFinalization(final Page page) {
+      final FinalizationRequest request = page.prepareForFinalization(++finalizationId);
+      if (request != null) {
+        myFinalizationQueue.put(page.getKey(), request);
       }
     }
 
-    synchronized (finalizationMonitor) {
-      finalizationMonitor.notifyAll();
+    private synchronized boolean hasFinalizationRequests() {
+      return !myFinalizationQueue.isEmpty();
     }
 
-    return false;
-  }
+    /**
+     * @return number of processed finalization requests
+     */
+    private int flushFinalizationQueue(final int maxPagesToFlush) {
+      int count = 0;
+
+      while (count < maxPagesToFlush) {
+        FinalizationRequest request = retrieveFinalizationRequest();
+        if (request == null) {
+          break;
+        }
 
-  private void processFinalizationRequest(final FinalizationRequest request) {
-    final Page page = request.page;
-    try {
-      page.flushIfFinalizationIdIsEqualTo(request.finalizationId);
+        processFinalizationRequest(request);
+        count++;
+      }
+
+      return count;
     }
-    finally {
-      synchronized (lock) {
-        myFinalizationQueue.remove(page.getKey());
+
+    private void processFinalizationRequest(final FinalizationRequest request) {
+      final Page page = request.page;
+      try {
+        page.flushIfFinalizationIdIsEqualTo(request.finalizationId);
+      }
+      finally {
+        synchronized (this) {
+          if (myFinalizationQueue.get(page.getKey()) == request) {
+            myFinalizationQueue.remove(page.getKey());
+          }
+        }
+        page.recycleIfFinalizationIdIsEqualTo(request.finalizationId);
       }
-      page.recycleIfFinalizationIdIsEqualTo(request.finalizationId);
     }
-  }
 
-  @Nullable
-  private FinalizationRequest retrieveFinalizationRequest() {
-    FinalizationRequest request = null;
-    synchronized (lock) {
+    @Nullable
+    private synchronized FinalizationRequest retrieveFinalizationRequest() {
+      FinalizationRequest request = null;
       if (!myFinalizationQueue.isEmpty()) {
         final PoolPageKey key;
         if (lastFinalizedKey == null) {
@@ -292,7 +390,59 @@ public class PagePool {
       else {
         lastFinalizedKey = null;
       }
+      return request;
+    }
+  }
+
+  /**
+   * Count-min sketch of 4-bit counters estimating how often a page was requested recently.
+   * All the counters are halved periodically, so that the pages which used to be popular long ago are forgotten eventually.
+   */
+  private static class FrequencySketch {
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final int MAX_FREQUENCY = 15;
+
+    private final byte[] myCounters;
+    private final int myMask;
+    private final int mySampleSize;
+    private int myAdditions;
+
+    private FrequencySketch(int capacity) {
+      int size = Integer.highestOneBit(Math.max(16, capacity) * 8 - 1);
+      myCounters = new byte[size];
+      myMask = size - 1;
+      mySampleSize = 10 * Math.max(16, capacity);
+    }
+
+    private int indexOf(int hash, int i) {
+      long h = (hash + SEEDS[i]) * SEEDS[i];
+      h += h >>> 32;
+      return (int)h & myMask;
+    }
+
+    private int frequency(int hash) {
+      int frequency = MAX_FREQUENCY;
+      for (int i = 0; i < SEEDS.length; i++) {
+        frequency = Math.min(frequency, myCounters[indexOf(hash, i)]);
+      }
+      return frequency;
+    }
+
+    private void increment(int hash) {
+      boolean added = false;
+      for (int i = 0; i < SEEDS.length; i++) {
+        int index = indexOf(hash, i);
+        if (myCounters[index] < MAX_FREQUENCY) {
+          myCounters[index]++;
+          added = true;
+        }
+      }
+      if (added && ++myAdditions == mySampleSize) {
+        for (int i = 0; i < myCounters.length; i++) {
+          myCounters[i] >>= 1;
+        }
+        myAdditions /= 2;
+      }
     }
-    return request;
   }
 }
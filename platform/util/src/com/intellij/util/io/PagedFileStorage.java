@@ -78,6 +78,8 @@ public class PagedFileStorage implements Forceable {
   private int myLastChangeCount2;
   private int myLastChangeCount3;
   private int myStorageIndex;
+  // pages for reads without the storage lock, see getBufferForConcurrentRead()
+  private final ConcurrentHashMap<Integer, ConcurrentReadPage> myConcurrentReadPages = new ConcurrentHashMap<Integer, ConcurrentReadPage>();
 
   private static final int MAX_PAGES_COUNT = 0xFFFF;
   private static final int MAX_LIVE_STORAGES_COUNT = 0xFFFF;
@@ -144,6 +146,58 @@ public class PagedFileStorage implements Forceable {
     }
   }
 
+  /**
+   * Same as {@link #getInt(int)}, but may be called concurrently with other reads and without the storage lock for pages
+   * which were already mapped. The value may be torn if the page is written at the same time, so the caller has to validate it.
+   */
+  public int getIntConcurrently(int addr) {
+    if (!myValuesAreBufferAligned) return getInt(addr);
+    return getBufferForConcurrentRead(addr / myPageSize).getInt(addr % myPageSize);
+  }
+
+  /**
+   * @see #getIntConcurrently(int)
+   */
+  public long getLongConcurrently(int addr) {
+    if (!myValuesAreBufferAligned) return getLong(addr);
+    return getBufferForConcurrentRead(addr / myPageSize).getLong(addr % myPageSize);
+  }
+
+  private ByteBuffer getBufferForConcurrentRead(int page) {
+    StorageLock storageLock = myStorageLockContext.myStorageLock;
+    // a page stays mapped while no segment is removed, the same check as for the last used pages
+    int changeCount = storageLock.myMappingChangeCount;
+    ConcurrentReadPage readPage = myConcurrentReadPages.get(page);
+    if (readPage != null && readPage.myChangeCount == changeCount) {
+      ByteBuffer buf = readPage.myWrapper.getCachedBuffer();
+      if (buf != null) return buf;
+    }
+
+    int storageIndex = myStorageIndex;
+    if (storageIndex == -1) {
+      return getBuffer(page, false);
+    }
+    try {
+      ByteBufferWrapper wrapper = storageLock.get(storageIndex | page);
+      ByteBuffer buf = wrapper.getBuffer();
+      myConcurrentReadPages.put(page, new ConcurrentReadPage(wrapper, changeCount));
+      return buf;
+    }
+    catch (IOException e) {
+      throw new MappingFailedException("Cannot map buffer", e);
+    }
+  }
+
+  private static class ConcurrentReadPage {
+    private final ByteBufferWrapper myWrapper;
+    private final int myChangeCount;
+
+    private ConcurrentReadPage(@NotNull ByteBufferWrapper wrapper, int changeCount) {
+      myWrapper = wrapper;
+      myChangeCount = changeCount;
+    }
+  }
+
   public final void putShort(int addr, short value) {
     if (myValuesAreBufferAligned) {
       int page = addr / myPageSize;
@@ -293,6 +347,7 @@ public class PagedFileStorage implements Forceable {
     myLastBuffer = null;
     myLastBuffer2 = null;
     myLastBuffer3 = null;
+    myConcurrentReadPages.clear();
   }
 
   public void resize(int newSize) throws IOException {
@@ -22,8 +22,6 @@ import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.CommonProcessors;
 import com.intellij.util.IncorrectOperationException;
 import com.intellij.util.Processor;
-import com.intellij.util.containers.SLRUMap;
-import com.intellij.util.containers.ShareableKey;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.TestOnly;
@@ -55,8 +53,6 @@ abstract class PersistentEnumeratorBase<Data> implements Forceable, Closeable {
   private boolean myDirty = false;
   protected final KeyDescriptor<Data> myDataDescriptor;
 
-  private static final CacheKey ourFlyweight = new FlyweightKey();
-
   protected final File myFile;
   private boolean myCorrupted = false;
   private final MyDataIS myKeyReadStream;
@@ -64,7 +60,7 @@ abstract class PersistentEnumeratorBase<Data> implements Forceable, Closeable {
   private RecordBufferHandler<PersistentEnumeratorBase> myRecordHandler;
   private volatile boolean myDirtyStatusUpdateInProgress;
   private Flushable myMarkCleanCallback;
-  private final boolean myDoCaching;
+  @Nullable private final EnumerationCache<Data> myCache;
 
   public static class Version {
     private final int correctlyClosedMagic;
@@ -84,54 +80,9 @@ abstract class PersistentEnumeratorBase<Data> implements Forceable, Closeable {
     abstract void setupRecord(T enumerator, int hashCode, final int dataOffset, final byte[] buf);
   }
 
-  private static class CacheKey implements ShareableKey {
-    public PersistentEnumeratorBase owner;
-    public Object key;
-
-    private CacheKey(Object key, PersistentEnumeratorBase owner) {
-      this.key = key;
-      this.owner = owner;
-    }
-
-    @Override
-    public ShareableKey getStableCopy() {
-      return this;
-    }
-
-    public boolean equals(final Object o) {
-      if (this == o) return true;
-      if (!(o instanceof CacheKey)) return false;
-
-      final CacheKey cacheKey = (CacheKey)o;
-
-      if (!key.equals(cacheKey.key)) return false;
-      if (!owner.equals(cacheKey.owner)) return false;
-
-      return true;
-    }
-
-    public int hashCode() {
-      return key.hashCode();
-    }
-  }
-
-  private static CacheKey sharedKey(Object key, PersistentEnumeratorBase owner) {
-    ourFlyweight.key = key;
-    ourFlyweight.owner = owner;
-    return ourFlyweight;
-  }
-
-  private static final int ENUMERATION_CACHE_SIZE;
-  static {
-    String property = System.getProperty("idea.enumerationCacheSize");
-    ENUMERATION_CACHE_SIZE = property == null ? 8192 : Integer.valueOf(property);
-  }
-
-  private static final SLRUMap<Object, Integer> ourEnumerationCache = new SLRUMap<Object, Integer>(ENUMERATION_CACHE_SIZE, ENUMERATION_CACHE_SIZE);
-
   @TestOnly
   public static void clearCacheForTests() {
-    ourEnumerationCache.clear();
+    EnumerationCache.clearAll();
   }
 
   public static class CorruptedException extends IOException {
@@ -152,7 +103,7 @@ abstract class PersistentEnumeratorBase<Data> implements Forceable, Closeable {
     myFile = file;
     myVersion = version;
     myRecordHandler = (RecordBufferHandler<PersistentEnumeratorBase>)recordBufferHandler;
-    myDoCaching = doCaching;
+    myCache = doCaching ? new EnumerationCache<Data>() : null;
 
     if (!file.exists()) {
       FileUtil.delete(keystreamFile());
@@ -255,11 +206,10 @@ abstract class PersistentEnumeratorBase<Data> implements Forceable, Closeable {
   }
 
   private int doEnumerate(Data value, boolean onlyCheckForExisting, boolean saveNewValue) throws IOException {
-    if (myDoCaching && !saveNewValue) {
-      synchronized (ourEnumerationCache) {
-        final Integer cachedId = ourEnumerationCache.get(sharedKey(value, this));
-        if (cachedId != null) return cachedId.intValue();
-      }
+    final EnumerationCache<Data> cache = value != null ? myCache : null;
+    if (cache != null && !saveNewValue) {
+      final int cachedId = cache.get(value);
+      if (cachedId != NULL_ID) return cachedId;
     }
 
     final int id;
@@ -276,10 +226,8 @@ abstract class PersistentEnumeratorBase<Data> implements Forceable, Closeable {
       throw new IOException(e);
     }
 
-    if (myDoCaching && id != NULL_ID) {
-      synchronized (ourEnumerationCache) {
-        ourEnumerationCache.put(new CacheKey(value, this), id);
-      }
+    if (cache != null && id != NULL_ID) {
+      cache.put(value, id);
     }
 
     return id;
@@ -289,6 +237,17 @@ abstract class PersistentEnumeratorBase<Data> implements Forceable, Closeable {
     return doEnumerate(value, false, false);
   }
 
+  /**
+   * @return number of values found in the enumeration cache, always 0 if the enumerator doesn't cache values
+   */
+  public long getCacheHits() {
+    return myCache != null ? myCache.getHits() : 0;
+  }
+
+  public long getCacheMisses() {
+    return myCache != null ? myCache.getMisses() : 0;
+  }
+
   public interface DataFilter {
     boolean accept(int id);
   }
@@ -691,15 +650,4 @@ abstract class PersistentEnumeratorBase<Data> implements Forceable, Closeable {
       }
     }
   }
-
-  private static class FlyweightKey extends CacheKey {
-    public FlyweightKey() {
-      super(null, null);
-    }
-
-    @Override
-    public ShareableKey getStableCopy() {
-      return new CacheKey(key, owner);
-    }
-  }
 }
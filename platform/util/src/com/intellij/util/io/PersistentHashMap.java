@@ -21,9 +21,11 @@ import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.CommonProcessors;
 import com.intellij.util.Processor;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.LimitedPool;
 import com.intellij.util.containers.SLRUCache;
 import com.intellij.util.containers.hash.EqualityPolicy;
+import gnu.trove.TIntObjectHashMap;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -33,6 +35,7 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.*;
 
 /**
  * @author Eugene Zhuravlev
@@ -46,15 +49,33 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   protected final DataExternalizer<Value> myValueExternalizer;
   private static final long NULL_ADDR = 0;
   private static final int INITIAL_INDEX_SIZE;
+  private static final double GARBAGE_RATIO_TO_COMPACT; // compact when this part of value storage is occupied by garbage
   static {
     String property = System.getProperty("idea.initialIndexSize");
     INITIAL_INDEX_SIZE = property == null ? 4 * 1024 : Integer.valueOf(property);
+    String ratio = System.getProperty("idea.persistent.hash.map.garbage.ratio");
+    GARBAGE_RATIO_TO_COMPACT = ratio == null ? 0.5 : Double.parseDouble(ratio);
   }
+  private static final boolean BACKGROUND_COMPACTION = SystemProperties.getBooleanProperty("idea.persistent.hash.map.background.compaction", false);
+  private static final int MIN_SIZE_TO_COMPACT = 5 * 1024 * 1024;
+
+  private static final ExecutorService ourCompactionExecutor = new ThreadPoolExecutor(0, 1, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+    @Override
+    public Thread newThread(@NotNull Runnable runnable) {
+      Thread thread = new Thread(runnable, "PersistentHashMap compaction");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
 
   @NonNls
   public static final String DATA_FILE_EXTENSION = ".values";
   private long myLiveAndGarbageKeysCounter; // first four bytes contain live keys count (updated via LIVE_KEY_MASK), last four bytes - number of dead keys
-  private int myReadCompactionGarbageSize;
+  private long myGarbageSize; // bytes in value storage occupied by values which are not referenced anymore
+  private boolean myCompactionInProgress; // guarded by myEnumerator
+  // sizes of overwritten and removed values are only needed to schedule background compaction and aren't free to compute,
+  // since the whole chain of chunks of the old value has to be read
+  private boolean myCountReplacedValues = BACKGROUND_COMPACTION;
   private static final long LIVE_KEY_MASK = (1L << 32);
   private static final long USED_LONG_VALUE_MASK = 1L << 62;
   private static final int POSITIVE_VALUE_SHIFT = 1;
@@ -140,7 +161,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
         @Override
         public void flush() throws IOException {
           myEnumerator.putMetaData(myLiveAndGarbageKeysCounter);
-          myEnumerator.putMetaData2(myLargeIndexWatermarkId | ((long)myReadCompactionGarbageSize << 32));
+          myEnumerator.putMetaData2(myLargeIndexWatermarkId | (Math.min(myGarbageSize, Integer.MAX_VALUE) << 32));
         }
       }
     );
@@ -151,7 +172,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       myLiveAndGarbageKeysCounter = myEnumerator.getMetaData();
       long data2 = myEnumerator.getMetaData2();
       myLargeIndexWatermarkId = (int)(data2 & DEAD_KEY_NUMBER_MASK);
-      myReadCompactionGarbageSize = (int)(data2 >>> 32);
+      myGarbageSize = (int)(data2 >>> 32);
       myCanReEnumerate = myEnumerator.canReEnumerate();
 
       if (makesSenseToCompact()) {
@@ -249,16 +270,42 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     return (int)myLiveAndGarbageKeysCounter;
   }
 
+  /**
+   * @return number of bytes in value storage occupied by values which are no longer referenced by any key;
+   * values overwritten by {@link #put} or removed are counted only if background compaction is enabled
+   */
+  public long getGarbageBytes() {
+    synchronized (myEnumerator) {
+      return myGarbageSize;
+    }
+  }
+
+  /**
+   * @return number of bytes in value storage occupied by live values (approximately: headers of the storage are counted too)
+   */
+  public long getLiveBytes() {
+    synchronized (myEnumerator) {
+      return Math.max(0, myValueStorage.getSize() - myGarbageSize);
+    }
+  }
+
   public File getBaseFile() {
     return myEnumerator.myFile;
   }
 
+  @TestOnly
+  void setCountReplacedValues(boolean value) {
+    synchronized (myEnumerator) {
+      myCountReplacedValues = value;
+    }
+  }
+
   @TestOnly // public for tests
   public boolean makesSenseToCompact() {
     final long fileSize = getDataFile(myEnumerator.myFile).length();
     final int megabyte = 1024 * 1024;
 
-    if (fileSize > 5 * megabyte) { // file is longer than 5MB and (more than 50% of keys is garbage or approximate benefit larger than 100M)
+    if (fileSize > MIN_SIZE_TO_COMPACT) { // file is longer than 5MB and (more than 50% of keys is garbage or approximate benefit larger than 100M)
       int liveKeys = (int)(myLiveAndGarbageKeysCounter / LIVE_KEY_MASK);
       int deadKeys = (int)(myLiveAndGarbageKeysCounter & DEAD_KEY_NUMBER_MASK);
 
@@ -270,7 +317,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
 
       return deadKeys > liveKeys ||
              avgValueSize *deadKeys > benefitSize ||
-             myReadCompactionGarbageSize > (fileSize / 2);
+             myGarbageSize > fileSize * GARBAGE_RATIO_TO_COMPACT;
     }
     return false;
   }
@@ -327,6 +374,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       long oldheader = readValueId(id);
       if (oldheader != NULL_ADDR) {
         myLiveAndGarbageKeysCounter++;
+        if (myCountReplacedValues) myGarbageSize += myValueStorage.getValueSize(oldheader);
       }
       else {
         myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
@@ -335,6 +383,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       long header = myValueStorage.appendBytes(bytes.getInternalBuffer(), 0, bytes.size(), 0);
 
       updateValueId(id, header, oldheader, key, 0);
+      scheduleCompactionIfNeeded();
     }
     finally {
       myEnumerator.unlockStorage();
@@ -430,7 +479,8 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
 
         updateValueId(id, readResult.offset, oldHeader, key, 0);
         myLiveAndGarbageKeysCounter++;
-        myReadCompactionGarbageSize += readResult.buffer.length;
+        myGarbageSize += readResult.buffer.length;
+        scheduleCompactionIfNeeded();
       }
 
       final DataInputStream input = new DataInputStream(new UnsyncByteArrayInputStream(readResult.buffer));
@@ -487,9 +537,11 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       if (record != NULL_ADDR) {
         myLiveAndGarbageKeysCounter++;
         myLiveAndGarbageKeysCounter -= LIVE_KEY_MASK;
+        if (myCountReplacedValues) myGarbageSize += myValueStorage.getValueSize(record);
       }
 
       updateValueId(id, NULL_ADDR, record, key, 0);
+      scheduleCompactionIfNeeded();
     }
     finally {
       myEnumerator.unlockStorage();
@@ -560,6 +612,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   static class CompactionRecordInfo {
     final int key;
     final int  address;
+    final long tailAddress; // valueAddress is moved along the chunks chain during compaction
     long valueAddress;
     long newValueAddress;
     byte[] value;
@@ -567,6 +620,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     public CompactionRecordInfo(int _key, long _valueAddress, int _address) {
       key = _key;
       address = _address;
+      tailAddress = _valueAddress;
       valueAddress = _valueAddress;
     }
   }
@@ -577,7 +631,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       LOG.info("Compacting "+myEnumerator.myFile.getPath());
       LOG.info("Live keys:" + ((int)(myLiveAndGarbageKeysCounter  / LIVE_KEY_MASK)) +
                ", dead keys:" + ((int)(myLiveAndGarbageKeysCounter & DEAD_KEY_NUMBER_MASK)) +
-               ", read compaction size:" + myReadCompactionGarbageSize);
+               ", garbage size:" + myGarbageSize);
 
       final long now = System.currentTimeMillis();
       final String newPath = getDataFile(myEnumerator.myFile).getPath() + ".new";
@@ -586,7 +640,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       long sizeBefore = myValueStorage.getSize();
 
       myLiveAndGarbageKeysCounter = 0;
-      myReadCompactionGarbageSize = 0;
+      myGarbageSize = 0;
 
       try {
         if (doNewCompact()) {
@@ -617,12 +671,159 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       FileUtil.rename(new File(newPath), getDataFile(myEnumerator.myFile));
 
       myValueStorage = PersistentHashMapValueStorage.create(getDataFile(myEnumerator.myFile).getPath());
-      LOG.info("Compacted " + myEnumerator.myFile.getPath() + ":" + sizeBefore + " bytes into " + newSize + " bytes in " + (System.currentTimeMillis() - now) + "ms.");
+      long time = System.currentTimeMillis() - now;
+      LOG.info("Compacted " + myEnumerator.myFile.getPath() + ":" + sizeBefore + " bytes into " + newSize + " bytes in " + time + "ms.");
+      IOStatistics.compactionFinished(newSize, sizeBefore - newSize, time);
       myEnumerator.putMetaData(myLiveAndGarbageKeysCounter);
       myEnumerator.putMetaData2( myLargeIndexWatermarkId );
     }
   }
 
+  private void scheduleCompactionIfNeeded() {
+    if (!BACKGROUND_COMPACTION || myCompactionInProgress) return;
+    long size = myValueStorage.getSize();
+    if (size <= MIN_SIZE_TO_COMPACT || myGarbageSize <= size * GARBAGE_RATIO_TO_COMPACT) return;
+
+    myCompactionInProgress = true;
+    ourCompactionExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          doCompactConcurrently();
+        }
+        catch (IOException e) {
+          LOG.info(e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Rewrites live values into a fresh value storage like {@link #compact()} does, but the map stays accessible most of the time:
+   * the lock is held only to collect value addresses and to finally remap values changed meanwhile and switch to the new storage.
+   */
+  public void compactConcurrently() throws IOException {
+    synchronized (myEnumerator) {
+      if (myCompactionInProgress) return;
+      myCompactionInProgress = true;
+    }
+    doCompactConcurrently();
+  }
+
+  private void doCompactConcurrently() throws IOException {
+    try {
+      final long started = System.currentTimeMillis();
+      final List<CompactionRecordInfo> infos = new ArrayList<CompactionRecordInfo>(10000);
+      final PersistentHashMapValueStorage storage;
+      final long snapshotSize;
+
+      synchronized (myEnumerator) {
+        if (isClosed()) return;
+        myEnumerator.lockStorage();
+        try {
+          clearAppenderCaches();
+        }
+        finally {
+          myEnumerator.unlockStorage();
+        }
+        storage = myValueStorage;
+        snapshotSize = storage.getSize();
+        traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
+          @Override
+          public boolean process(final int keyId) throws IOException {
+            final long record = readValueId(keyId);
+            if (record != NULL_ADDR) {
+              infos.add(new CompactionRecordInfo(getCurrentKey(), record, keyId));
+            }
+            return true;
+          }
+        });
+      }
+
+      final File newFile = new File(getDataFile(myEnumerator.myFile).getPath() + ".compacting");
+      FileUtil.delete(newFile);
+      final PersistentHashMapValueStorage newStorage = PersistentHashMapValueStorage.create(newFile.getPath());
+      boolean replaced = false;
+      try {
+        if (infos.size() > 0) {
+          try {
+            storage.compactValuesConcurrently(infos, newStorage, snapshotSize);
+          }
+          catch (Throwable t) {
+            if (!(t instanceof IOException)) throw new IOException("Compaction failed", t);
+            throw (IOException)t;
+          }
+        }
+
+        synchronized (myEnumerator) {
+          if (isClosed() || myValueStorage != storage) return;
+
+          myEnumerator.lockStorage();
+          try {
+            clearAppenderCaches();
+          }
+          finally {
+            myEnumerator.unlockStorage();
+          }
+          storage.switchToCompactionMode();
+          final long sizeBefore = storage.getSize();
+
+          final TIntObjectHashMap<CompactionRecordInfo> compacted = new TIntObjectHashMap<CompactionRecordInfo>(infos.size());
+          for (CompactionRecordInfo info : infos) {
+            compacted.put(info.address, info);
+          }
+          myLiveAndGarbageKeysCounter = 0;
+          traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
+            @Override
+            public boolean process(final int keyId) throws IOException {
+              final long record = readValueId(keyId);
+              if (record != NULL_ADDR) {
+                CompactionRecordInfo info = compacted.get(keyId);
+                long value;
+                if (info != null && info.tailAddress == record) {
+                  value = info.newValueAddress;
+                }
+                else { // value was changed after the addresses were collected
+                  PersistentHashMapValueStorage.ReadResult readResult = storage.readBytes(record);
+                  value = newStorage.appendBytes(readResult.buffer, 0, readResult.buffer.length, 0);
+                }
+                updateValueId(keyId, value, record, null, getCurrentKey());
+                myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
+              }
+              return true;
+            }
+          });
+
+          newStorage.dispose();
+          storage.dispose();
+          final long newSize = newStorage.getSize();
+          FileUtil.rename(newFile, getDataFile(myEnumerator.myFile));
+          replaced = true;
+
+          myValueStorage = PersistentHashMapValueStorage.create(getDataFile(myEnumerator.myFile).getPath());
+          myGarbageSize = 0;
+          myEnumerator.putMetaData(myLiveAndGarbageKeysCounter);
+          myEnumerator.putMetaData2(myLargeIndexWatermarkId);
+
+          long time = System.currentTimeMillis() - started;
+          LOG.info("Compacted concurrently " + myEnumerator.myFile.getPath() + ":" + sizeBefore + " bytes into " + newSize + " bytes in " + time + "ms.");
+          IOStatistics.compactionFinished(newSize, sizeBefore - newSize, time);
+        }
+      }
+      finally {
+        if (!replaced) {
+          newStorage.dispose();
+          FileUtil.delete(newFile);
+        }
+      }
+    }
+    finally {
+      synchronized (myEnumerator) {
+        myCompactionInProgress = false;
+      }
+    }
+  }
+
   private void newCompact(PersistentHashMapValueStorage newStorage) throws IOException {
     long started = System.currentTimeMillis();
     final List<CompactionRecordInfo> infos = new ArrayList<CompactionRecordInfo>(10000);
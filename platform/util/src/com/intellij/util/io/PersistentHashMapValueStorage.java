@@ -37,6 +37,7 @@ public class PersistentHashMapValueStorage {
   @Nullable
   private RAReader myCompactionModeReader = null;
   private long mySize;
+  private long myForcedSize; // all the data below this offset is already written to the file
   private final File myFile;
   private final String myPath;
   private boolean myCompactionMode = false;
@@ -67,6 +68,7 @@ public class PersistentHashMapValueStorage {
     myPath = path;
     myFile = new File(path);
     mySize = myFile.length();
+    myForcedSize = mySize;
 
     if (mySize == 0) {
       appendBytes(new ByteSequence("Header Record For PersistentHashMapValueStorage".getBytes()), 0);
@@ -127,6 +129,29 @@ public class PersistentHashMapValueStorage {
   private final byte[] myBuffer = new byte[1024];
 
   public int compactValues(List<PersistentHashMap.CompactionRecordInfo> infos, PersistentHashMapValueStorage storage) throws IOException {
+    return compactValues(infos, storage, myCompactionModeReader, mySize);
+  }
+
+  /**
+   * Same as {@link #compactValues(List, PersistentHashMapValueStorage)} but doesn't require compaction mode: only the first
+   * <code>size</code> bytes of the storage are read via separate reader, so the storage may be appended by other threads meanwhile.
+   */
+  public int compactValuesConcurrently(List<PersistentHashMap.CompactionRecordInfo> infos,
+                                       PersistentHashMapValueStorage storage,
+                                       long size) throws IOException {
+    FileReader reader = new FileReader(myFile);
+    try {
+      return compactValues(infos, storage, reader, size);
+    }
+    finally {
+      reader.dispose();
+    }
+  }
+
+  private static int compactValues(List<PersistentHashMap.CompactionRecordInfo> infos,
+                                   PersistentHashMapValueStorage storage,
+                                   RAReader reader,
+                                   long size) throws IOException {
     PriorityQueue<PersistentHashMap.CompactionRecordInfo> records = new PriorityQueue<PersistentHashMap.CompactionRecordInfo>(
       infos.size(), new Comparator<PersistentHashMap.CompactionRecordInfo>() {
         @Override
@@ -144,23 +169,23 @@ public class PersistentHashMapValueStorage {
     final byte[] buffer = new byte[fileBufferLength + maxRecordHeader];
     byte[] recordBuffer = {};
 
-    long lastReadOffset = mySize;
+    long lastReadOffset = size;
     long lastConsumedOffset = lastReadOffset;
     long allRecordsStart = 0;
     int fragments = 0;
     int allRecordsLength = 0;
     byte[] stuffFromPreviousRecord = null;
-    int bytesRead = (int)(mySize - (mySize / fileBufferLength) * fileBufferLength);
+    int bytesRead = (int)(size - (size / fileBufferLength) * fileBufferLength);
 
     while(lastReadOffset != 0) {
       final long readStartOffset = lastReadOffset - bytesRead;
-      myCompactionModeReader.get(readStartOffset, buffer, 0, bytesRead); // buffer contains [readStartOffset, readStartOffset + bytesRead)
+      reader.get(readStartOffset, buffer, 0, bytesRead); // buffer contains [readStartOffset, readStartOffset + bytesRead)
 
       while(records.size() > 0) {
         final PersistentHashMap.CompactionRecordInfo info = records.peek();
         if (info.valueAddress >= readStartOffset) {
           if (info.valueAddress >= lastReadOffset) {
-            throw new IOException("Value storage is corrupted: value file size:" + mySize + ", readStartOffset:"+ readStartOffset + ", record address:"+info.valueAddress);
+            throw new IOException("Value storage is corrupted: value file size:" + size + ", readStartOffset:"+ readStartOffset + ", record address:"+info.valueAddress);
           }
           // record start is inside our buffer
 
@@ -173,7 +198,7 @@ public class PersistentHashMapValueStorage {
           if (stuffFromPreviousRecord != null && (fileBufferLength - recordStartInBuffer) < maxRecordHeader) {
             // add additional bytes to read offset / size
             if (allRecordsStart != 0) {
-              myCompactionModeReader.get(allRecordsStart, buffer, bytesRead, maxRecordHeader);
+              reader.get(allRecordsStart, buffer, bytesRead, maxRecordHeader);
             } else {
               final int maxAdditionalBytes = Math.min(stuffFromPreviousRecord.length, maxRecordHeader);
               for(int i = 0; i < maxAdditionalBytes; ++i) {
@@ -215,7 +240,7 @@ public class PersistentHashMapValueStorage {
                                                     Math.max((int)(info.valueAddress + dataOffset + chunkSize - lastReadOffset), 0));
           if (chunkSizeOutOfBuffer > 0) {
             if (allRecordsStart != 0) {
-              myCompactionModeReader.get(allRecordsStart, b, chunkSize - chunkSizeOutOfBuffer, chunkSizeOutOfBuffer);
+              reader.get(allRecordsStart, b, chunkSize - chunkSizeOutOfBuffer, chunkSizeOutOfBuffer);
             } else {
               int offsetInStuffFromPreviousRecord = Math.max((int)(info.valueAddress + dataOffset - lastReadOffset), 0);
               // stuffFromPreviousRecord starts from lastReadOffset
@@ -354,6 +379,53 @@ public class PersistentHashMapValueStorage {
     return mySize;
   }
 
+  /**
+   * Returns number of bytes occupied by all chunks of the value pointed by tailChunkAddress including their headers,
+   * i.e. amount of garbage produced when this value is dropped.
+   */
+  public long getValueSize(long tailChunkAddress) throws IOException {
+    if (tailChunkAddress + INT_LENGTH_LONG_ADDRESS > myForcedSize) {
+      force();
+    }
+
+    long chunk = tailChunkAddress;
+    long result = 0;
+    byte[] header = new byte[INT_LENGTH_LONG_ADDRESS];
+    RAReader reader = myCompactionModeReader;
+    CacheValue<RAReader> readerHandle = null;
+    if (reader == null) {
+      readerHandle = ourReadersCache.get(myPath);
+      reader = readerHandle.get();
+    }
+
+    try {
+      while (chunk != 0) {
+        if (chunk < 0 || chunk > mySize) throw new PersistentEnumeratorBase.CorruptedException(myFile);
+        reader.get(chunk, header, 0, (int)Math.min(header.length, mySize - chunk));
+
+        final int sizePart = header[0];
+        final long prevChunkAddress;
+        if (sizePart < 0) {
+          result += BYTE_LENGTH_INT_ADDRESS - sizePart - POSITIVE_VALUE_SHIFT;
+          prevChunkAddress = Bits.getInt(header, 1);
+        }
+        else {
+          result += INT_LENGTH_LONG_ADDRESS + Bits.getInt(header, 0);
+          prevChunkAddress = Bits.getLong(header, 4);
+        }
+
+        if (prevChunkAddress >= chunk) throw new PersistentEnumeratorBase.CorruptedException(myFile);
+        chunk = prevChunkAddress;
+      }
+    }
+    finally {
+      if (readerHandle != null) {
+        readerHandle.release();
+      }
+    }
+    return result;
+  }
+
   private static void checkPreconditions(final byte[] result, final int chunkSize, final int off) throws IOException {
     if (chunkSize < 0) {
       throw new IOException("Value storage corrupted: negative chunk size");
@@ -371,6 +443,7 @@ public class PersistentHashMapValueStorage {
     if (cached != null) {
       try {
         cached.get().flush();
+        myForcedSize = mySize;
       }
       catch (IOException e) {
         throw new RuntimeException(e);
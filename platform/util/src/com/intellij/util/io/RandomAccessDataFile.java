@@ -25,6 +25,7 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class RandomAccessDataFile implements Forceable, Closeable {
   protected static final Logger LOG = Logger.getInstance("#com.intellij.util.io.RandomAccessDataFile");
@@ -45,6 +46,9 @@ public class RandomAccessDataFile implements Forceable, Closeable {
   private volatile boolean myIsDirty = false;
   private volatile boolean myIsDisposed = false;
 
+  private final AtomicInteger myPageCacheHits = new AtomicInteger();
+  private final AtomicInteger myPageCacheMisses = new AtomicInteger();
+
   private static final boolean DEBUG = false;
 
   public RandomAccessDataFile(final File file) throws IOException {
@@ -79,8 +83,7 @@ public class RandomAccessDataFile implements Forceable, Closeable {
     mySize = Math.max(mySize, addr + len);
 
     while (len > 0) {
-      final Page page = myPool.alloc(this, addr);
-      int written = page.put(addr, bytes, off, len);
+      int written = myPool.put(this, addr, bytes, off, len);
       len -= written;
       addr += written;
       off += written;
@@ -91,8 +94,7 @@ public class RandomAccessDataFile implements Forceable, Closeable {
     assertNotDisposed();
 
     while (len > 0) {
-      final Page page = myPool.alloc(this, addr);
-      int read = page.get(addr, bytes, off, len);
+      int read = myPool.get(this, addr, bytes, off, len);
       len -= read;
       addr += read;
       off += read;
@@ -230,6 +232,25 @@ public class RandomAccessDataFile implements Forceable, Closeable {
     }
   }
 
+  void pageCacheHit() {
+    myPageCacheHits.incrementAndGet();
+  }
+
+  void pageCacheMiss() {
+    myPageCacheMisses.incrementAndGet();
+  }
+
+  /**
+   * @return number of page requests of this file served by {@link PagePool} without reading the file
+   */
+  public int getPageCacheHits() {
+    return myPageCacheHits.get();
+  }
+
+  public int getPageCacheMisses() {
+    return myPageCacheMisses.get();
+  }
+
   public static int totalReads = 0;
   public static long totalReadBytes = 0;
 
@@ -176,6 +176,20 @@ public class ResizeableMappedFile implements Forceable {
     return myStorage.getLong(index);
   }
 
+  /**
+   * @see PagedFileStorage#getIntConcurrently(int)
+   */
+  public int getIntConcurrently(int index) {
+    return myStorage.getIntConcurrently(index);
+  }
+
+  /**
+   * @see PagedFileStorage#getIntConcurrently(int)
+   */
+  public long getLongConcurrently(int index) {
+    return myStorage.getLongConcurrently(index);
+  }
+
   public void putLong(int index, long value) {
     ensureSize(index + 8);
     myStorage.putLong(index, value);
@@ -19,22 +19,23 @@
  */
 package com.intellij.util.io;
 
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import org.jetbrains.annotations.NonNls;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
+/**
+ * Compresses source texts with a dictionary of common source code fragments. The compression runs concurrently,
+ * every call takes its own {@link Deflater}/{@link Inflater} from {@link CompressionPool}.
+ */
 public class SourceCodeCompressor {
-  private final static VaultOutputStream OUTPUT;
   private final static byte[] PRESET_BUF;
-  private final static Deflater DEFLATER;
-  private final static Inflater INFLATER;
-  private final static byte[] INFLATE_BUFFER;
+  private static final int LEVEL = Deflater.BEST_COMPRESSION;
 
   private SourceCodeCompressor() {
   }
@@ -54,89 +55,68 @@ public class SourceCodeCompressor {
       "titleframecaret<a href=\"http://</a><div </div><td </td><tr </tr><p </p><hscripttext/css<img src=" +
       "<!--><link rel=width=height=align=span=centerrightleftstyle=celljsp:rootxmlns:avascript";
     PRESET_BUF = preset_buf_string.getBytes();
-    OUTPUT = new VaultOutputStream();
-    DEFLATER = new Deflater(Deflater.BEST_COMPRESSION);
-    INFLATER = new Inflater();
-    INFLATE_BUFFER = new byte[4096];
   }
 
-  public static synchronized byte[] compress(byte[] source, int off, int len) {
+  public static byte[] compress(byte[] source, int off, int len) {
+    Deflater deflater = CompressionPool.acquireDeflater(LEVEL);
     try {
-      DEFLATER.reset();
-      DEFLATER.setDictionary(PRESET_BUF);
+      deflater.setDictionary(PRESET_BUF);
+      BufferExposingByteArrayOutputStream output = new BufferExposingByteArrayOutputStream(Math.max(32, len / 4));
       try {
-        DeflaterOutputStream output = null;
+        DeflaterOutputStream stream = new DeflaterOutputStream(output, deflater);
         try {
-          output = new DeflaterOutputStream(OUTPUT, DEFLATER);
-          output.write(source, off, len);
+          stream.write(source, off, len);
         }
         finally {
-          if (output != null) {
-            output.close();
-          }
+          stream.close();
         }
       }
       catch (IOException e) {
         return source;
       }
-      return OUTPUT.toByteArray();
+      return output.toByteArray();
     }
     finally {
-      OUTPUT.reset();
+      CompressionPool.releaseDeflater(deflater, LEVEL);
     }
-
   }
 
-  public static synchronized byte[] compress(byte[] source) {
+  public static byte[] compress(byte[] source) {
     return compress(source, 0, source.length);
   }
 
-  public static synchronized byte[] decompress(byte[] compressed) throws IOException {
+  public static byte[] decompress(byte[] compressed) throws IOException {
     final int len = compressed.length;
     final int off = 0;
     return decompress(compressed, len, off);
   }
 
   public static byte[] decompress(final byte[] compressed, final int len, final int off) throws IOException {
-    INFLATER.reset();
-    InflaterInputStream input = null;
+    Inflater inflater = CompressionPool.acquireInflater();
     try {
-      input = new InflaterInputStream(new ByteArrayInputStream(compressed, off, len), INFLATER);
-      final int b = input.read();
-      if (b == -1) {
-        INFLATER.setDictionary(PRESET_BUF);
-      }
-      else {
-        OUTPUT.write(b);
-      }
-      int readBytes;
-      while ((readBytes = input.read(INFLATE_BUFFER)) > 0) {
-        OUTPUT.write(INFLATE_BUFFER, 0, readBytes);
+      BufferExposingByteArrayOutputStream output = new BufferExposingByteArrayOutputStream(Math.max(32, len * 4));
+      InflaterInputStream input = new InflaterInputStream(new ByteArrayInputStream(compressed, off, len), inflater);
+      try {
+        final int b = input.read();
+        if (b == -1) {
+          inflater.setDictionary(PRESET_BUF);
+        }
+        else {
+          output.write(b);
+        }
+        byte[] buffer = new byte[4096];
+        int readBytes;
+        while ((readBytes = input.read(buffer)) > 0) {
+          output.write(buffer, 0, readBytes);
+        }
+        return output.toByteArray();
       }
-      return OUTPUT.toByteArray();
-    }
-    finally {
-      if (input != null) {
+      finally {
         input.close();
       }
-      OUTPUT.reset();
-    }
-  }
-
-  private static class VaultOutputStream extends ByteArrayOutputStream {
-
-    private static final int MIN_BUF_SIZE = 0x10000;
-    private final byte[] MIN_BUFFER;
-
-    public VaultOutputStream() {
-      super(MIN_BUF_SIZE);
-      MIN_BUFFER = buf;
     }
-
-    @SuppressWarnings({"NonSynchronizedMethodOverridesSynchronizedMethod"})
-    public void reset() {
-      count = 0;
-      buf = MIN_BUFFER;
+    finally {
+      CompressionPool.releaseInflater(inflater);
     }
   }
 }
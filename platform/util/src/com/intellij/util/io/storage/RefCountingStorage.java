@@ -24,8 +24,10 @@ import com.intellij.openapi.util.io.ByteSequence;
 import com.intellij.openapi.util.io.StreamUtil;
 import com.intellij.util.IncorrectOperationException;
 import com.intellij.util.containers.ConcurrentHashMap;
+import com.intellij.util.io.CompressionPool;
 import com.intellij.util.io.PagePool;
 import com.intellij.util.io.UnsyncByteArrayInputStream;
+import gnu.trove.TIntIntHashMap;
 
 import java.io.DataInputStream;
 import java.io.EOFException;
@@ -33,13 +35,16 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.*;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
-import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
 public class RefCountingStorage extends AbstractStorage {
   private final Map<Integer, Future<?>> myPendingWriteRequests = new ConcurrentHashMap<Integer, Future<?>>();
   private int myPendingWriteRequestsSize;
+  // the sequence number of the last write of a record whose content isn't written yet, guarded by myLock
+  private final TIntIntHashMap myLastWriteSequences = new TIntIntHashMap();
+  private int myWriteSequence;
   private final ThreadPoolExecutor myPendingWriteRequestsExecutor = new ThreadPoolExecutor(1, 1, Long.MAX_VALUE, TimeUnit.DAYS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
     @Override
     public Thread newThread(Runnable runnable) {
@@ -73,24 +78,22 @@ public class RefCountingStorage extends AbstractStorage {
   private BufferExposingByteArrayOutputStream internalReadStream(int record) throws IOException {
     waitForPendingWriteForRecord(record);
 
-    synchronized (myLock) {
-
-      byte[] result = super.readBytes(record);
-      InflaterInputStream in = new CustomInflaterInputStream(result);
-      try {
-        final BufferExposingByteArrayOutputStream outputStream = new BufferExposingByteArrayOutputStream();
-        StreamUtil.copyStreamContent(in, outputStream);
-        return outputStream;
-      }
-      finally {
-        in.close();
-      }
+    // only reading of the compressed bytes needs the lock, inflating them doesn't block other readers and writers
+    byte[] result = super.readBytes(record);
+    InflaterInputStream in = new CustomInflaterInputStream(result);
+    try {
+      final BufferExposingByteArrayOutputStream outputStream = new BufferExposingByteArrayOutputStream();
+      StreamUtil.copyStreamContent(in, outputStream);
+      return outputStream;
+    }
+    finally {
+      in.close();
     }
   }
 
   private static class CustomInflaterInputStream extends InflaterInputStream {
     public CustomInflaterInputStream(byte[] compressedData) {
-      super(new UnsyncByteArrayInputStream(compressedData), new Inflater(), 1);
+      super(new UnsyncByteArrayInputStream(compressedData), CompressionPool.acquireInflater(), 1);
       // force to directly use compressed data, this ensures less round trips with native extraction code and copy streams
       this.buf = compressedData;
       this.len = -1;
@@ -106,7 +109,7 @@ public class RefCountingStorage extends AbstractStorage {
     @Override
     public void close() throws IOException {
       super.close();
-      inf.end(); // custom inflater need explicit dispose
+      CompressionPool.releaseInflater(inf); // custom inflater isn't disposed by the stream
     }
   }
 
@@ -137,36 +140,53 @@ public class RefCountingStorage extends AbstractStorage {
 
     waitForPendingWriteForRecord(record);
 
+    final boolean writeNow;
+    final int sequence;
     synchronized (myLock) {
       myPendingWriteRequestsSize += bytes.getLength();
-      if (myPendingWriteRequestsSize > MAX_PENDING_WRITE_SIZE) {
-        zipAndWrite(bytes, record, fixedSize);
-      } else {
+      writeNow = myPendingWriteRequestsSize > MAX_PENDING_WRITE_SIZE;
+      sequence = ++myWriteSequence;
+      myLastWriteSequences.put(record, sequence);
+      if (!writeNow) {
         myPendingWriteRequests.put(record, myPendingWriteRequestsExecutor.submit(new Callable<Object>() {
           @Override
           public Object call() throws IOException {
-            zipAndWrite(bytes, record, fixedSize);
+            zipAndWrite(bytes, record, fixedSize, sequence);
             return null;
           }
         }));
       }
     }
+    if (writeNow) {
+      // compress in the calling thread, but without holding the lock
+      zipAndWrite(bytes, record, fixedSize, sequence);
+    }
   }
 
-  private void zipAndWrite(ByteSequence bytes, int record, boolean fixedSize) throws IOException {
+  private void zipAndWrite(ByteSequence bytes, int record, boolean fixedSize, int sequence) throws IOException {
     BufferExposingByteArrayOutputStream s = new BufferExposingByteArrayOutputStream();
-    DeflaterOutputStream out = new DeflaterOutputStream(s);
+    Deflater deflater = CompressionPool.acquireDeflater(Deflater.DEFAULT_COMPRESSION);
     try {
-      out.write(bytes.getBytes(), bytes.getOffset(), bytes.getLength());
+      DeflaterOutputStream out = new DeflaterOutputStream(s, deflater);
+      try {
+        out.write(bytes.getBytes(), bytes.getOffset(), bytes.getLength());
+      }
+      finally {
+        out.close();
+      }
     }
     finally {
-      out.close();
+      CompressionPool.releaseDeflater(deflater, Deflater.DEFAULT_COMPRESSION);
     }
 
     synchronized (myLock) {
-      doWrite(record, fixedSize, s);
+      // the writes are compressed concurrently, the content of a later write of the record may be written already
+      if (myLastWriteSequences.get(record) == sequence) {
+        doWrite(record, fixedSize, s);
+        myLastWriteSequences.remove(record);
+        myPendingWriteRequests.remove(record);
+      }
       myPendingWriteRequestsSize -= bytes.getLength();
-      myPendingWriteRequests.remove(record);
     }
   }
 
@@ -38,6 +38,8 @@ import java.util.*;
 public class ClassPath {
   private final Stack<URL> myUrls = new Stack<URL>();
   private final ArrayList<Loader> myLoaders = new ArrayList<Loader>();
+  // the loaders created so far, for lookups without the class path lock
+  private volatile Loader[] myPublishedLoaders = new Loader[0];
   private final HashMap<URL,Loader> myLoadersMap = new HashMap<URL, Loader>();
   private final ClasspathCache myCache = new ClasspathCache();
 
@@ -120,14 +122,13 @@ public class ClassPath {
     try {
       int i;
       if (myCanUseCache) {
+        // the published entries only grow, so they cover at least the loaders counted before the lookup
+        int loaderCount = myCache.getPublishedLoaderCount();
         Resource prevResource = myCache.iterateLoaders(s, flag ? checkedIterator:uncheckedIterator, s, this);
         if (prevResource != null) return prevResource;
 
-        synchronized (myUrls) {
-          if (myUrls.isEmpty()) return null;
-        }
-
-        i = myLoaders.size();
+        // the rest of the loaders is usually empty, otherwise it's waited for the loaders being created
+        i = loaderCount;
       }
       else {
         i = 0;
@@ -155,13 +156,23 @@ public class ClassPath {
   }
 
   @Nullable
-  private synchronized Loader getLoader(int i) {
+  private Loader getLoader(int i) {
+    Loader[] loaders = myPublishedLoaders;
+    if (i < loaders.length) return loaders[i];
+    return createLoaders(i);
+  }
+
+  @Nullable
+  private synchronized Loader createLoaders(int i) {
     while (myLoaders.size() < i + 1) {
       boolean lastOne;
       URL url;
       synchronized (myUrls) {
         if (myUrls.empty()) {
-          if (myCanUseCache) myCache.nameSymbolsLoaded();
+          if (myCanUseCache) {
+            myCache.nameSymbolsLoaded();
+            myCache.publishEntries(myLoaders.size(), true);
+          }
           return null;
         }
         url = myUrls.pop();
@@ -181,9 +192,11 @@ public class ClassPath {
 
       myLoaders.add(loader);
       myLoadersMap.put(url, loader);
-      if (lastOne && myCanUseCache) {
-        myCache.nameSymbolsLoaded();
+      if (myCanUseCache) {
+        if (lastOne) myCache.nameSymbolsLoaded();
+        myCache.publishEntries(myLoaders.size(), lastOne);
       }
+      myPublishedLoaders = myLoaders.toArray(new Loader[myLoaders.size()]);
     }
 
     return myLoaders.get(i);
@@ -239,29 +252,31 @@ public class ClassPath {
 
   private class MyEnumeration implements Enumeration<URL> {
     private int myIndex = 0;
+    private int myLoaderIndex;
     private Resource myRes = null;
     private final String myName;
     private final boolean myCheck;
     private final List<Loader> myLoaders;
+    private final int myCachedLoaderCount;
 
     public MyEnumeration(String name, boolean check) {
       myName = name;
       myCheck = check;
       List<Loader> loaders = null;
+      int cachedLoaderCount = 0;
 
       if (myCanUseCache) {
-        synchronized (myUrls) {
-          if (myUrls.isEmpty()) {
-            loaders = new SmartList<Loader>();
-            myCache.iterateLoaders(name, myLoaderCollector, loaders, this);
-            if (!name.endsWith("/")) {
-              myCache.iterateLoaders(name.concat("/"), myLoaderCollector, loaders, this);
-            }
-          }
+        cachedLoaderCount = myCache.getPublishedLoaderCount();
+        loaders = new SmartList<Loader>();
+        myCache.iterateLoaders(name, myLoaderCollector, loaders, this);
+        if (!name.endsWith("/")) {
+          myCache.iterateLoaders(name.concat("/"), myLoaderCollector, loaders, this);
         }
       }
 
       myLoaders = loaders;
+      myCachedLoaderCount = cachedLoaderCount;
+      myLoaderIndex = cachedLoaderCount;
     }
 
     private boolean next() {
@@ -272,7 +287,8 @@ public class ClassPath {
         if (myLoaders != null) {
           while (myIndex < myLoaders.size()) {
             loader = myLoaders.get(myIndex++);
-            if (!myCache.loaderHasName(myName, loader)) {
+            // the entries published after the loaders were counted are checked with the rest of the loaders
+            if (loader.getIndex() >= myCachedLoaderCount || !myCache.loaderHasName(myName, loader)) {
               myRes = null;
               continue;
             }
@@ -280,12 +296,11 @@ public class ClassPath {
             if (myRes != null) return true;
           }
         }
-        else {
-          while ((loader = getLoader(myIndex++)) != null) {
-            if (!myCache.loaderHasName(myName, loader)) continue;
-            myRes = loader.getResource(myName, myCheck);
-            if (myRes != null) return true;
-          }
+
+        while ((loader = getLoader(myLoaderIndex++)) != null) {
+          if (myCanUseCache && !myCache.loaderHasName(myName, loader)) continue;
+          myRes = loader.getResource(myName, myCheck);
+          if (myRes != null) return true;
         }
       }
       finally {
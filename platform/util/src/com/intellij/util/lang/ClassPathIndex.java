@@ -0,0 +1,201 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.lang;
+
+import com.intellij.openapi.util.ShutDownTracker;
+import com.intellij.util.io.DataInputOutputUtil;
+import gnu.trove.THashMap;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.Map;
+
+/**
+ * Entry names of the jars on class paths, persisted between runs so that {@link ClasspathCache} can be built
+ * without opening every jar. A jar's entries are reused as long as its length and timestamp are the same.
+ * <p/>
+ * The index is stored in the file specified by the {@code idea.classpath.index} system property and is disabled
+ * if the property is not set.
+ */
+class ClassPathIndex {
+  @NonNls static final String PROPERTY_INDEX_FILE = "idea.classpath.index";
+  private static final int VERSION = 1;
+
+  private static final Object LOCK = new Object();
+  private static ClassPathIndex ourInstance;
+
+  private final File myFile;
+  private final Map<String, JarEntries> myJars = new THashMap<String, JarEntries>();
+  private boolean myChanged;
+
+  private static class JarEntries {
+    private final long myLength;
+    private final long myTimestamp;
+    private final String[] myNames;
+    // whether the jar is on some class path in this run, entries of the others are not saved
+    private boolean myUsed;
+
+    private JarEntries(long length, long timestamp, @NotNull String[] names) {
+      myLength = length;
+      myTimestamp = timestamp;
+      myNames = names;
+    }
+  }
+
+  private ClassPathIndex(@NotNull File file) {
+    myFile = file;
+  }
+
+  @Nullable
+  static ClassPathIndex getInstance() {
+    synchronized (LOCK) {
+      if (ourInstance == null) {
+        String path = System.getProperty(PROPERTY_INDEX_FILE);
+        if (path == null) return null;
+
+        final ClassPathIndex index = new ClassPathIndex(new File(path));
+        index.load();
+        ShutDownTracker.getInstance().registerShutdownTask(new Runnable() {
+          @Override
+          public void run() {
+            index.save();
+          }
+        });
+        ourInstance = index;
+      }
+      return ourInstance;
+    }
+  }
+
+  /**
+   * @return entry names of the jar as they were saved, or null if they are unknown or the jar is changed since then
+   */
+  @Nullable
+  String[] getEntries(@NotNull File jar) {
+    long length = jar.length();
+    long timestamp = jar.lastModified();
+    synchronized (myJars) {
+      JarEntries entries = myJars.get(jar.getPath());
+      if (entries == null || entries.myLength != length || entries.myTimestamp != timestamp) return null;
+      entries.myUsed = true;
+      return entries.myNames;
+    }
+  }
+
+  void putEntries(@NotNull File jar, long length, long timestamp, @NotNull String[] names) {
+    JarEntries entries = new JarEntries(length, timestamp, names);
+    entries.myUsed = true;
+    synchronized (myJars) {
+      myJars.put(jar.getPath(), entries);
+      myChanged = true;
+    }
+  }
+
+  private void load() {
+    if (!myFile.exists()) return;
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(myFile)));
+      try {
+        if (DataInputOutputUtil.readINT(in) != VERSION) return;
+        int jarCount = DataInputOutputUtil.readINT(in);
+        for (int i = 0; i < jarCount; i++) {
+          String path = in.readUTF();
+          long length = in.readLong();
+          long timestamp = in.readLong();
+          String[] names = new String[DataInputOutputUtil.readINT(in)];
+          String previous = "";
+          for (int j = 0; j < names.length; j++) {
+            // names are stored as the length of the prefix shared with the previous name and the rest of the name
+            int prefixLength = DataInputOutputUtil.readINT(in);
+            previous = names[j] = previous.substring(0, prefixLength).concat(in.readUTF());
+          }
+          myJars.put(path, new JarEntries(length, timestamp, names));
+        }
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException e) {
+      myJars.clear();
+    }
+    catch (RuntimeException e) {
+      myJars.clear();
+    }
+  }
+
+  private void save() {
+    synchronized (myJars) {
+      if (!myChanged) return;
+      myChanged = false;
+      try {
+        File parent = myFile.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) return;
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(myFile)));
+        try {
+          DataInputOutputUtil.writeINT(out, VERSION);
+          int usedCount = 0;
+          for (JarEntries entries : myJars.values()) {
+            if (entries.myUsed) usedCount++;
+          }
+          DataInputOutputUtil.writeINT(out, usedCount);
+          for (Map.Entry<String, JarEntries> entry : myJars.entrySet()) {
+            JarEntries entries = entry.getValue();
+            if (!entries.myUsed) continue;
+            out.writeUTF(entry.getKey());
+            out.writeLong(entries.myLength);
+            out.writeLong(entries.myTimestamp);
+            DataInputOutputUtil.writeINT(out, entries.myNames.length);
+            String previous = "";
+            for (String name : entries.myNames) {
+              int prefixLength = commonPrefixLength(previous, name);
+              DataInputOutputUtil.writeINT(out, prefixLength);
+              out.writeUTF(name.substring(prefixLength));
+              previous = name;
+            }
+          }
+        }
+        finally {
+          out.close();
+        }
+      }
+      catch (IOException e) {
+        //noinspection ResultOfMethodCallIgnored
+        myFile.delete();
+      }
+    }
+  }
+
+  private static int commonPrefixLength(@NotNull String s1, @NotNull String s2) {
+    int length = Math.min(s1.length(), s2.length());
+    int i = 0;
+    while (i < length && s1.charAt(i) == s2.charAt(i)) i++;
+    return i;
+  }
+
+  // for tests
+  static void reset() {
+    synchronized (LOCK) {
+      if (ourInstance != null) {
+        ourInstance.save();
+        ourInstance = null;
+      }
+    }
+  }
+}
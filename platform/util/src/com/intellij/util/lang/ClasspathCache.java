@@ -24,7 +24,6 @@ import com.intellij.util.ArrayUtil;
 import com.intellij.util.BloomFilterBase;
 import com.intellij.util.SmartList;
 import com.intellij.util.containers.HashMap;
-import gnu.trove.THashMap;
 import gnu.trove.THashSet;
 import gnu.trove.TIntHashSet;
 import gnu.trove.TIntObjectHashMap;
@@ -39,20 +38,66 @@ public class ClasspathCache {
   private static final boolean doDebug = false;
   private final DebugInfo myDebugInfo;
 
-  private final TIntObjectHashMap<Object> myResourcePackagesCache = new TIntObjectHashMap<Object>();
-  private final TIntObjectHashMap<Object> myClassPackagesCache = new TIntObjectHashMap<Object>();
-
-  private Map<String, Set<Loader>> myResources2LoadersTempMap = new THashMap<String, Set<Loader>>();
+  // Entries are added by the thread creating loaders, under the class path lock, to the working copies below.
+  // Other threads look up resources in the last published snapshot, which covers the first loaders of the class path.
+  private TIntObjectHashMap<Object> myResourcePackagesCache = new TIntObjectHashMap<Object>();
+  private TIntObjectHashMap<Object> myClassPackagesCache = new TIntObjectHashMap<Object>();
+  // names by loader index, until the name filter is built; a loader's names aren't changed after they are published
+  private TIntObjectHashMap<Set<String>> myLoaderNames = new TIntObjectHashMap<Set<String>>();
   private static final double PROBABILITY = 0.005d;
   private Name2LoaderFilter myNameFilter;
+  private boolean myNameFilterPublished;
   private boolean myTempMapMode = true;
+  private boolean myChanged;
+  private volatile Snapshot mySnapshot = new Snapshot(this, 0);
 
   public ClasspathCache() {
     myDebugInfo = doDebug ? new DebugInfo() : new NullDebugInfo();
   }
 
+  private static class Snapshot {
+    private final TIntObjectHashMap<Object> myResourcePackagesCache;
+    private final TIntObjectHashMap<Object> myClassPackagesCache;
+    @Nullable private final TIntObjectHashMap<Set<String>> myLoaderNames;
+    @Nullable private final Name2LoaderFilter myNameFilter;
+    private final int myLoaderCount;
+
+    private Snapshot(ClasspathCache cache, int loaderCount) {
+      myLoaderCount = loaderCount;
+      myResourcePackagesCache = copy(cache.myResourcePackagesCache);
+      myClassPackagesCache = copy(cache.myClassPackagesCache);
+      myLoaderNames = cache.myTempMapMode ? copy(cache.myLoaderNames) : null;
+      myNameFilter = cache.myTempMapMode ? null : cache.myNameFilter;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> TIntObjectHashMap<T> copy(TIntObjectHashMap<T> map) {
+      return (TIntObjectHashMap<T>)map.clone();
+    }
+  }
+
+  /**
+   * Makes the entries of the first {@code loaderCount} loaders visible to other threads. The entries are copied to be published,
+   * so until the whole class path is loaded it's only done once the number of loaders doubled, which keeps the copying linear.
+   * The loaders that aren't covered by the published entries are checked by the lookups themselves.
+   */
+  void publishEntries(int loaderCount, boolean allLoaded) {
+    if (!myChanged || !allLoaded && loaderCount < 2 * mySnapshot.myLoaderCount) return;
+    mySnapshot = new Snapshot(this, loaderCount);
+    myNameFilterPublished = !myTempMapMode;
+    myChanged = false;
+  }
+
+  /**
+   * The resources of the loaders from this index on have to be looked up in the loaders, not in {@link #iterateLoaders}.
+   */
+  int getPublishedLoaderCount() {
+    return mySnapshot.myLoaderCount;
+  }
+
   public void addResourceEntry(String resourcePath, Loader loader) {
     myDebugInfo.addResourceEntry(resourcePath, loader);
+    myChanged = true;
 
     String packageName = getPackageName(resourcePath);
     TIntObjectHashMap<Object> map = resourcePath.endsWith(UrlClassLoader.CLASS_EXTENSION) ?
@@ -81,14 +126,15 @@ public class ClasspathCache {
     LoaderIterator<ResultType, ParameterType, ParameterType2> iterator,
     ParameterType parameter,
     ParameterType2 parameter2) {
+    Snapshot snapshot = mySnapshot;
     TIntObjectHashMap<Object> map = resourcePath.endsWith(UrlClassLoader.CLASS_EXTENSION) ?
-                                    myClassPackagesCache : myResourcePackagesCache;    
+                                    snapshot.myClassPackagesCache : snapshot.myResourcePackagesCache;
     String packageName = getPackageName(resourcePath);
     
     int hash = packageName.hashCode();
     Object o = map.get(hash);
     myDebugInfo.checkLoadersCount(resourcePath, o);
-      
+
     if (o == null) return null;
     if (o instanceof Loader) return iterator.process((Loader)o, parameter, parameter2);
     Loader[] loaders = (Loader[])o;
@@ -110,29 +156,36 @@ public class ClasspathCache {
   public void addNameEntry(String name, Loader loader) {
     name = transformName(name);
     myDebugInfo.addNameEntry(name, loader);
+    myChanged = true;
     if (myTempMapMode) {
-      Set<Loader> loaders = myResources2LoadersTempMap.get(name);
-      if (loaders == null) myResources2LoadersTempMap.put(name, loaders = new THashSet<Loader>());
-      boolean added = loaders.add(loader);
+      Set<String> names = myLoaderNames.get(loader.getIndex());
+      if (names == null) myLoaderNames.put(loader.getIndex(), names = new THashSet<String>());
+      boolean added = names.add(name);
       if (UrlClassLoader.doDebug && added) ++registeredBeforeClose;
     } else {
       if (UrlClassLoader.doDebug) {
-        if (!myNameFilter.maybeContains(name, loader)) ++registeredAfterClose;
+        if (!myNameFilter.maybeContains(name, loader.getIndex())) ++registeredAfterClose;
       }
 
-      myNameFilter.add(name, loader);
+      if (myNameFilterPublished) {
+        myNameFilter = new Name2LoaderFilter(myNameFilter);
+        myNameFilterPublished = false;
+      }
+      myNameFilter.add(name, loader.getIndex());
     }
   }
 
   public boolean loaderHasName(String name, Loader loader) {
     String origName = name;
     name = transformName(name);
+    Snapshot snapshot = mySnapshot;
+    if (loader.getIndex() >= snapshot.myLoaderCount) return true;
 
     boolean result;
-    if (myTempMapMode) {
+    if (snapshot.myLoaderNames != null) {
       ++requests;
-      Set<Loader> loaders = myResources2LoadersTempMap.get(name);
-      result = loaders != null && loaders.contains(loader);
+      Set<String> names = snapshot.myLoaderNames.get(loader.getIndex());
+      result = names != null && names.contains(name);
 
       if (!result) ++hits;
 
@@ -153,7 +206,7 @@ public class ClasspathCache {
     }
     else {
       ++requests2;
-      result = myNameFilter.maybeContains(name, loader);
+      result = snapshot.myNameFilter.maybeContains(name, loader.getIndex());
       if (!result) ++hits2;
 
       if (doDebug) {
@@ -162,8 +215,8 @@ public class ClasspathCache {
           ++diffs2;
         }
 
-        Set<Loader> loaders = myResources2LoadersTempMap.get(name);
-        if (result != (loaders != null && loaders.contains(loader))) {
+        Set<String> names = myLoaderNames.get(loader.getIndex());
+        if (result != (names != null && names.contains(name))) {
           ++diffs;
         }
 
@@ -226,15 +279,11 @@ public class ClasspathCache {
     }
 
     myTempMapMode = false;
+    myChanged = true;
 
     int nBits = 0;
-    int uniques = 0;
-    for(Map.Entry<String, Set<Loader>> e:myResources2LoadersTempMap.entrySet()) {
-      int size = e.getValue().size();
-      if (size == 1) {
-        ++uniques;
-      }
-      nBits += size;
+    for (int index : myLoaderNames.keys()) {
+      nBits += myLoaderNames.get(index).size();
     }
     if (nBits > 20000) {
       nBits += (int)(nBits * 0.03d); // allow some growth for Idea main loader
@@ -242,15 +291,14 @@ public class ClasspathCache {
 
     myNameFilter = new Name2LoaderFilter(nBits, PROBABILITY);
 
-    for(Map.Entry<String, Set<Loader>> e:myResources2LoadersTempMap.entrySet()) {
-      final String name = e.getKey();
-      for(Loader loader: e.getValue()) {
-        myNameFilter.add(name, loader);
+    for (int index : myLoaderNames.keys()) {
+      for (String name : myLoaderNames.get(index)) {
+        myNameFilter.add(name, index);
       }
     }
 
     if (!doDebug) {
-      myResources2LoadersTempMap = null;
+      myLoaderNames = null;
     }
   }
 
@@ -261,23 +309,27 @@ public class ClasspathCache {
       super(nBits, probability);
     }
 
-    private boolean maybeContains(String name, Loader loader) {
-      int hash = hashFromNameAndLoader(name, loader, StringHash.murmur(name, SEED));
-      int hash2 = hashFromNameAndLoader(name, loader, hash);
+    Name2LoaderFilter(Name2LoaderFilter filter) {
+      super(filter);
+    }
+
+    private boolean maybeContains(String name, int loaderIndex) {
+      int hash = hashFromNameAndLoader(name, loaderIndex, StringHash.murmur(name, SEED));
+      int hash2 = hashFromNameAndLoader(name, loaderIndex, hash);
 
       return maybeContains(hash, hash2);
     }
 
-    private void add(String name, Loader loader) {
-      int hash = hashFromNameAndLoader(name, loader, StringHash.murmur(name, SEED));
-      int hash2 = hashFromNameAndLoader(name, loader, hash);
+    private void add(String name, int loaderIndex) {
+      int hash = hashFromNameAndLoader(name, loaderIndex, StringHash.murmur(name, SEED));
+      int hash2 = hashFromNameAndLoader(name, loaderIndex, hash);
 
       addIt(hash, hash2);
     }
 
-    private static int hashFromNameAndLoader(String name, Loader loader, int n) {
+    private static int hashFromNameAndLoader(String name, int loaderIndex, int n) {
       int hash = StringHash.murmur(name, n);
-      int i = loader.getIndex();
+      int i = loaderIndex;
       while (i > 0) {
         hash = hash * n + ((i % 10) + '0');
         i /= 10;
@@ -18,6 +18,7 @@ package com.intellij.util.lang;
 
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.ArrayUtil;
 import com.intellij.util.TimedComputable;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
@@ -27,12 +28,16 @@ import sun.misc.Resource;
 import java.io.*;
 import java.lang.ref.SoftReference;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 class JarLoader extends Loader {
   private final URL myURL;
+  private String[] myIndexedEntries;
+  private boolean myIndexedEntriesRequested;
   private SoftReference<JarMemoryLoader> myMemoryLoader;
   private final boolean myCanLockJar;
   private static final boolean myDebugTime = false;
@@ -67,6 +72,10 @@ class JarLoader extends Loader {
   }
 
   void preLoadClasses() {
+    // the preloaded part is always stored first, so the jar doesn't need to be opened if the saved entries say it's not there
+    String[] names = getIndexedEntries();
+    if (names != null && (names.length == 0 || !JarMemoryLoader.SIZE_ENTRY.equals(names[0]))) return;
+
     ZipFile zipFile = null;
     try {
       zipFile = acquireZipFile();
@@ -124,23 +133,57 @@ class JarLoader extends Loader {
     return null;
   }
 
+  @Nullable
+  private File getIndexedJar() {
+    return FILE_PROTOCOL.equals(myURL.getProtocol()) && ClassPathIndex.getInstance() != null
+           ? new File(FileUtil.unquote(myURL.getFile())) : null;
+  }
+
+  /**
+   * @return entry names saved in {@link ClassPathIndex} for this jar or null if there are none
+   */
+  @Nullable
+  private String[] getIndexedEntries() {
+    if (!myIndexedEntriesRequested) {
+      File jar = getIndexedJar();
+      myIndexedEntries = jar != null ? ClassPathIndex.getInstance().getEntries(jar) : null;
+      myIndexedEntriesRequested = true;
+    }
+    return myIndexedEntries;
+  }
+
   @Override
   void buildCache(final ClasspathCache cache) throws IOException {
-    ZipFile zipFile = null;
-    try {
-      zipFile = acquireZipFile();
-      if (zipFile == null) return;
-      final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+    String[] names = getIndexedEntries();
+    myIndexedEntries = null;
+
+    if (names == null) {
+      File jar = getIndexedJar();
+      long length = jar != null ? jar.length() : 0;
+      long timestamp = jar != null ? jar.lastModified() : 0;
+      ZipFile zipFile = null;
+      try {
+        zipFile = acquireZipFile();
+        if (zipFile == null) return;
+        final List<String> list = new ArrayList<String>(zipFile.size());
+        final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+          list.add(entries.nextElement().getName());
+        }
+        names = ArrayUtil.toStringArray(list);
+      }
+      finally {
+        releaseZipFile(zipFile);
+      }
 
-      while (entries.hasMoreElements()) {
-        ZipEntry zipEntry = entries.nextElement();
-        String name = zipEntry.getName();
-        cache.addResourceEntry(name, this);
-        cache.addNameEntry(name, this);
+      if (jar != null) {
+        ClassPathIndex.getInstance().putEntries(jar, length, timestamp, names);
       }
     }
-    finally {
-      releaseZipFile(zipFile);
+
+    for (String name : names) {
+      cache.addResourceEntry(name, this);
+      cache.addNameEntry(name, this);
     }
   }
 
@@ -26,6 +26,7 @@ import sun.misc.Resource;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
@@ -41,6 +42,25 @@ public class UrlClassLoader extends ClassLoader {
   protected static final boolean myDebugTime = false;
   protected static final long NS_THRESHOLD = 10000000;
 
+  static {
+    markParallelCapable(UrlClassLoader.class);
+  }
+
+  /**
+   * Java 7+ locks the class names being loaded instead of the whole loader once its class is registered as parallel capable.
+   * The registration is per class, so subclasses call this in their static initializers too. ClassLoader.registerAsParallelCapable()
+   * registers the class calling it, so the registry is updated directly, via reflection since the code has to run on Java 6 too.
+   */
+  protected static void markParallelCapable(Class<? extends ClassLoader> loaderClass) {
+    try {
+      Method register = Class.forName("java.lang.ClassLoader$ParallelLoaders").getDeclaredMethod("register", Class.class);
+      register.setAccessible(true);
+      register.invoke(null, loaderClass);
+    }
+    catch (Exception ignored) {
+    }
+  }
+
   public UrlClassLoader(@NotNull ClassLoader parent) {
     this(Arrays.asList(((URLClassLoader)parent).getURLs()), parent.getParent(), true, true);
   }
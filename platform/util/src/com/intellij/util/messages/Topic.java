@@ -34,15 +34,24 @@ public class Topic<L> {
   private final String myDisplayName;
   private final Class<L> myListenerClass;
   private final BroadcastDirection myBroadcastDirection;
+  private final boolean myAsyncDelivery;
 
   public Topic(@NonNls @NotNull String displayName, @NotNull Class<L> listenerClass) {
     this(displayName, listenerClass, BroadcastDirection.TO_CHILDREN);
   }
 
   public Topic(@NonNls @NotNull String displayName, @NotNull Class<L> listenerClass, final BroadcastDirection broadcastDirection) {
+    this(displayName, listenerClass, broadcastDirection, false);
+  }
+
+  public Topic(@NonNls @NotNull String displayName,
+               @NotNull Class<L> listenerClass,
+               final BroadcastDirection broadcastDirection,
+               boolean asyncDelivery) {
     myDisplayName = displayName;
     myListenerClass = listenerClass;
     myBroadcastDirection = broadcastDirection;
+    myAsyncDelivery = asyncDelivery;
   }
 
   /**
@@ -86,6 +95,25 @@ public class Topic<L> {
     return new Topic<L>(displayName, listenerClass, direction);
   }
 
+  /**
+   * @see #isAsyncDelivery()
+   */
+  public static <L> Topic<L> createAsync(@NonNls @NotNull String displayName, @NotNull Class<L> listenerClass) {
+    return new Topic<L>(displayName, listenerClass, BroadcastDirection.TO_CHILDREN, true);
+  }
+
+  /**
+   * Messages of an async topic are not delivered in the publishing thread. Every connection gets them in batches on a pooled thread,
+   * in the order they were published, so publishers aren't blocked by slow subscribers unless a subscriber falls behind by more than
+   * {@code idea.message.bus.async.queue.size} messages. Subscribers of such topics must be thread-safe and must not expect
+   * any locks of the publishing thread to be held.
+   *
+   * @return    whether messages of the current topic are delivered asynchronously. Default value is <code>false</code>
+   */
+  public boolean isAsyncDelivery() {
+    return myAsyncDelivery;
+  }
+
   /**
    * @return    broadcasting strategy configured for the current topic. Default value is {@link BroadcastDirection#TO_CHILDREN}
    * @see BroadcastDirection
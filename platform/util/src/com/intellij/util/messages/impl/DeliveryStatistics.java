@@ -0,0 +1,122 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.messages.impl;
+
+import com.intellij.openapi.util.Pair;
+import com.intellij.util.messages.Topic;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time spent by subscribers in handling messages of a {@link MessageBusImpl message bus}, per topic and per topic and handler class.
+ * Collected only if the {@code idea.message.bus.statistics} system property is set, since timing every delivery isn't free.
+ */
+public class DeliveryStatistics {
+  public static final boolean ENABLED = Boolean.getBoolean("idea.message.bus.statistics");
+
+  private final ConcurrentMap<Topic, Counter> myTopics = new ConcurrentHashMap<Topic, Counter>();
+  private final ConcurrentMap<Pair<Topic, Class>, Counter> mySubscribers = new ConcurrentHashMap<Pair<Topic, Class>, Counter>();
+
+  public static class Counter {
+    private final AtomicLong myCount = new AtomicLong();
+    private final AtomicLong myTotalNanos = new AtomicLong();
+    private final AtomicLong myMaxNanos = new AtomicLong();
+
+    private void add(long nanos) {
+      myCount.incrementAndGet();
+      myTotalNanos.addAndGet(nanos);
+      long max;
+      while (nanos > (max = myMaxNanos.get()) && !myMaxNanos.compareAndSet(max, nanos)) {
+        // retry
+      }
+    }
+
+    public long getCount() {
+      return myCount.get();
+    }
+
+    public long getTotalNanos() {
+      return myTotalNanos.get();
+    }
+
+    public long getMaxNanos() {
+      return myMaxNanos.get();
+    }
+
+    public String toString() {
+      return getCount() + " messages, " + getTotalNanos() / 1000000 + " ms total, " + getMaxNanos() / 1000000 + " ms max";
+    }
+  }
+
+  void record(@NotNull Topic topic, @NotNull Object handler, long nanos) {
+    getCounter(myTopics, topic).add(nanos);
+    getCounter(mySubscribers, Pair.<Topic, Class>create(topic, handler.getClass())).add(nanos);
+  }
+
+  @NotNull
+  private static <K> Counter getCounter(@NotNull ConcurrentMap<K, Counter> counters, @NotNull K key) {
+    Counter counter = counters.get(key);
+    if (counter == null) {
+      Counter newCounter = new Counter();
+      counter = counters.putIfAbsent(key, newCounter);
+      if (counter == null) counter = newCounter;
+    }
+    return counter;
+  }
+
+  @NotNull
+  public Map<Topic, Counter> getTopicCounters() {
+    return Collections.unmodifiableMap(myTopics);
+  }
+
+  /**
+   * @return counters by topic and class of the handler that subscribed to it
+   */
+  @NotNull
+  public Map<Pair<Topic, Class>, Counter> getSubscriberCounters() {
+    return Collections.unmodifiableMap(mySubscribers);
+  }
+
+  public void reset() {
+    myTopics.clear();
+    mySubscribers.clear();
+  }
+
+  /**
+   * @return subscribers sorted by the total time of handling messages, the slowest first
+   */
+  public String toString() {
+    List<Map.Entry<Pair<Topic, Class>, Counter>> entries = new ArrayList<Map.Entry<Pair<Topic, Class>, Counter>>(mySubscribers.entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<Pair<Topic, Class>, Counter>>() {
+      @Override
+      public int compare(Map.Entry<Pair<Topic, Class>, Counter> e1, Map.Entry<Pair<Topic, Class>, Counter> e2) {
+        long t1 = e1.getValue().getTotalNanos();
+        long t2 = e2.getValue().getTotalNanos();
+        return t1 < t2 ? 1 : t1 == t2 ? 0 : -1;
+      }
+    });
+    StringBuilder builder = new StringBuilder();
+    for (Map.Entry<Pair<Topic, Class>, Counter> entry : entries) {
+      Pair<Topic, Class> key = entry.getKey();
+      builder.append(key.first).append(" -> ").append(key.second.getName()).append(": ").append(entry.getValue()).append('\n');
+    }
+    return builder.toString();
+  }
+}
@@ -31,7 +31,10 @@ public final class Message {
 
   public Message(@NotNull Topic topic, @NotNull Method listenerMethod, Object[] args) {
     myTopic = topic;
-    listenerMethod.setAccessible(true);
+    // proxies pass the same method instance on every call, so it's made accessible only once
+    if (!listenerMethod.isAccessible()) {
+      listenerMethod.setAccessible(true);
+    }
     myListenerMethod = listenerMethod;
     myArgs = args;
   }
@@ -30,6 +30,9 @@ import org.jetbrains.annotations.NotNull;
 import java.lang.reflect.Method;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MessageBusConnectionImpl implements MessageBusConnection {
   private static final Logger LOG = Logger.getInstance("#com.intellij.util.messages.impl.MessageBusConnectionImpl");
@@ -40,6 +43,34 @@ public class MessageBusConnectionImpl implements MessageBusConnection {
   private MessageHandler myDefaultHandler;
   private final List<Pair<Topic, Object>> mySubscriptions = ContainerUtil.createLockFreeCopyOnWriteList();
 
+  /**
+   * Publishers of async topics wait while this many messages are queued for the connection, so a slow subscriber can't make
+   * the queue grow without bounds. Messages published by async delivery threads themselves are always queued to avoid deadlocks.
+   */
+  private static final int ASYNC_QUEUE_CAPACITY = Integer.getInteger("idea.message.bus.async.queue.size", 10000);
+
+  // messages of async topics, delivered in batches by a single task at a time to keep their order
+  private final Queue<Message> myAsyncMessages = new ConcurrentLinkedQueue<Message>();
+  private final AtomicInteger myAsyncMessageCount = new AtomicInteger();
+  private final Object myAsyncQueueLock = new Object();
+  private final AtomicBoolean myAsyncDeliveryScheduled = new AtomicBoolean();
+  private volatile boolean myDisconnected;
+  private final Runnable myAsyncDelivery = new Runnable() {
+    @Override
+    public void run() {
+      do {
+        Message message;
+        while ((message = myAsyncMessages.poll()) != null) {
+          asyncMessageTaken();
+          if (myDisconnected) break;
+          invokeHandler(message);
+        }
+        myAsyncDeliveryScheduled.set(false);
+      }
+      while (!myDisconnected && !myAsyncMessages.isEmpty() && myAsyncDeliveryScheduled.compareAndSet(false, true));
+    }
+  };
+
   public MessageBusConnectionImpl(@NotNull MessageBusImpl bus) {
     myBus = bus;
   }
@@ -75,6 +106,12 @@ public class MessageBusConnectionImpl implements MessageBusConnection {
 
   @Override
   public void disconnect() {
+    myDisconnected = true;
+    myAsyncMessages.clear();
+    synchronized (myAsyncQueueLock) {
+      myAsyncMessageCount.set(0);
+      myAsyncQueueLock.notifyAll();
+    }
     Queue<Message> jobs = myPendingMessages.get();
     myPendingMessages.remove();
     myBus.notifyConnectionTerminated(this);
@@ -107,9 +144,15 @@ public class MessageBusConnectionImpl implements MessageBusConnection {
     final Message messageOnLocalQueue = myPendingMessages.get().poll();
     assert messageOnLocalQueue == message;
 
+    invokeHandler(message);
+  }
+
+  private void invokeHandler(@NotNull Message message) {
     final Topic topic = message.getTopic();
     final Object handler = getHandler(topic);
+    if (handler == null) return;
 
+    long started = DeliveryStatistics.ENABLED ? System.nanoTime() : 0;
     try {
       Method listenerMethod = message.getListenerMethod();
 
@@ -126,12 +169,50 @@ public class MessageBusConnectionImpl implements MessageBusConnection {
     catch(Throwable e) {
       LOG.error(e.getCause() == null ? e : e.getCause());
     }
+    finally {
+      if (DeliveryStatistics.ENABLED) {
+        myBus.getDeliveryStatistics().record(topic, handler, System.nanoTime() - started);
+      }
+    }
   }
 
   void scheduleMessageDelivery(Message message) {
     myPendingMessages.get().offer(message);
   }
 
+  void scheduleAsyncDelivery(@NotNull Message message) {
+    if (myAsyncMessageCount.get() >= ASYNC_QUEUE_CAPACITY && !MessageBusImpl.isAsyncDeliveryThread()) {
+      waitForAsyncQueue();
+    }
+    myAsyncMessageCount.incrementAndGet();
+    myAsyncMessages.offer(message);
+    if (myAsyncDeliveryScheduled.compareAndSet(false, true)) {
+      MessageBusImpl.executeAsyncDelivery(myAsyncDelivery);
+    }
+  }
+
+  private void waitForAsyncQueue() {
+    synchronized (myAsyncQueueLock) {
+      while (!myDisconnected && myAsyncMessageCount.get() >= ASYNC_QUEUE_CAPACITY) {
+        try {
+          myAsyncQueueLock.wait();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  private void asyncMessageTaken() {
+    if (myAsyncMessageCount.getAndDecrement() >= ASYNC_QUEUE_CAPACITY) {
+      synchronized (myAsyncQueueLock) {
+        myAsyncQueueLock.notifyAll();
+      }
+    }
+  }
+
   public String toString() {
     return mySubscriptions.toString();
   }
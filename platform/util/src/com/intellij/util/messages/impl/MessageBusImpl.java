@@ -36,9 +36,8 @@ import java.lang.reflect.Proxy;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MessageBusImpl implements MessageBus {
   private static final Logger LOG = Logger.getInstance("#com.intellij.util.messages.impl.MessageBusImpl");
@@ -51,6 +50,7 @@ public class MessageBusImpl implements MessageBus {
 
   private static final Object NA = new Object();
   private MessageBusImpl myParentBus;
+  private final DeliveryStatistics myStatistics = new DeliveryStatistics();
 
   //is used for debugging purposes
   @SuppressWarnings({"UnusedDeclaration", "FieldCanBeLocal"})
@@ -183,10 +183,17 @@ public class MessageBusImpl implements MessageBus {
     final Topic topic = message.getTopic();
     final List<MessageBusConnectionImpl> topicSubscribers = mySubscribers.get(topic);
     if (topicSubscribers != null) {
-      Queue<DeliveryJob> queue = myMessageQueue.get();
-      for (MessageBusConnectionImpl subscriber : topicSubscribers) {
-        queue.offer(new DeliveryJob(subscriber, message));
-        subscriber.scheduleMessageDelivery(message);
+      if (topic.isAsyncDelivery()) {
+        for (MessageBusConnectionImpl subscriber : topicSubscribers) {
+          subscriber.scheduleAsyncDelivery(message);
+        }
+      }
+      else {
+        Queue<DeliveryJob> queue = myMessageQueue.get();
+        for (MessageBusConnectionImpl subscriber : topicSubscribers) {
+          queue.offer(new DeliveryJob(subscriber, message));
+          subscriber.scheduleMessageDelivery(message);
+        }
       }
     }
 
@@ -268,6 +275,47 @@ public class MessageBusImpl implements MessageBus {
     job.connection.deliverMessage(job.message);
   }
 
+  /**
+   * @return time spent by the subscribers of this bus in handling messages, collected only if {@link DeliveryStatistics#ENABLED}
+   */
+  @NotNull
+  public DeliveryStatistics getDeliveryStatistics() {
+    return myStatistics;
+  }
+
+  static void executeAsyncDelivery(@NotNull Runnable delivery) {
+    AsyncDeliveryExecutorHolder.EXECUTOR.execute(delivery);
+  }
+
+  static boolean isAsyncDeliveryThread() {
+    return Thread.currentThread() instanceof AsyncDeliveryThread;
+  }
+
+  private static class AsyncDeliveryThread extends Thread {
+    private AsyncDeliveryThread(@NotNull Runnable runnable, @NotNull String name) {
+      super(runnable, name);
+    }
+  }
+
+  private static class AsyncDeliveryExecutorHolder {
+    // connections have at most one delivery task queued, so the queue is bounded by the number of connections to async topics
+    private static final ThreadPoolExecutor EXECUTOR;
+    static {
+      int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+      EXECUTOR = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger myCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NotNull Runnable runnable) {
+          Thread thread = new AsyncDeliveryThread(runnable, "Message bus async delivery " + myCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+  }
+
   @NotNull
   static <T> ThreadLocal<Queue<T>> createThreadLocalQueue() {
     return new ThreadLocal<Queue<T>>() {
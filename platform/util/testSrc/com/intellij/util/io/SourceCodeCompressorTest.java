@@ -0,0 +1,134 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+public class SourceCodeCompressorTest extends TestCase {
+  public void testRoundTrip() throws IOException {
+    assertRoundTrip(new byte[0]);
+    assertRoundTrip(new byte[]{42});
+
+    byte[] source = createSource(1000);
+    byte[] compressed = SourceCodeCompressor.compress(source);
+    assertTrue(compressed.length < source.length);
+    assertTrue(Arrays.equals(source, SourceCodeCompressor.decompress(compressed)));
+
+    byte[] part = SourceCodeCompressor.compress(source, 10, 100);
+    assertTrue(Arrays.equals(Arrays.copyOfRange(source, 10, 110), SourceCodeCompressor.decompress(part)));
+
+    byte[] padded = new byte[compressed.length + 20];
+    System.arraycopy(compressed, 0, padded, 5, compressed.length);
+    assertTrue(Arrays.equals(source, SourceCodeCompressor.decompress(padded, compressed.length, 5)));
+  }
+
+  public void testIncompressibleRoundTrip() throws IOException {
+    byte[] random = new byte[100000];
+    new Random(0).nextBytes(random);
+    assertRoundTrip(random);
+  }
+
+  public void testConcurrentRoundTrip() throws Exception {
+    List<byte[]> sources = new ArrayList<byte[]>();
+    Random random = new Random(0);
+    for (int i = 0; i < 100; i++) {
+      byte[] source = createSource(random.nextInt(500));
+      if (i % 10 == 0) random.nextBytes(source);
+      sources.add(source);
+    }
+    roundTrip(sources, Math.max(4, Runtime.getRuntime().availableProcessors()));
+  }
+
+  /**
+   * Compresses and decompresses the sources of this module in one and in several threads.
+   */
+  public void testConcurrentThroughput() throws Exception {
+    File root = new File(PathManager.getHomePath(), "platform/util/src");
+    if (!root.isDirectory()) return;
+
+    final List<byte[]> sources = new ArrayList<byte[]>();
+    long size = 0;
+    for (File file : FileUtil.findFilesByMask(Pattern.compile(".*\\.java"), root)) {
+      byte[] bytes = FileUtil.loadFileBytes(file);
+      sources.add(bytes);
+      size += bytes.length;
+    }
+
+    roundTrip(sources, 1); // warm up
+    int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+    for (int threadCount : new int[]{1, threads}) {
+      long started = System.currentTimeMillis();
+      roundTrip(sources, threadCount);
+      long elapsed = Math.max(1, System.currentTimeMillis() - started);
+      System.out.println(threadCount + " thread(s): " + (threadCount * size * 1000 / elapsed / (1024 * 1024)) + " MB/s of " +
+                         sources.size() + " files compressed and decompressed");
+    }
+  }
+
+  private static void assertRoundTrip(byte[] source) throws IOException {
+    assertTrue(Arrays.equals(source, SourceCodeCompressor.decompress(SourceCodeCompressor.compress(source))));
+  }
+
+  private static byte[] createSource(int classCount) {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < classCount; i++) {
+      text.append("public class Foo").append(i).append(" extends Bar {}\n");
+    }
+    return text.toString().getBytes();
+  }
+
+  private static void roundTrip(final List<byte[]> sources, int threadCount) throws Exception {
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    final AtomicLong checked = new AtomicLong();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < threadCount; i++) {
+      Thread thread = new Thread("compressor " + i) {
+        @Override
+        public void run() {
+          try {
+            for (byte[] source : sources) {
+              byte[] decompressed = SourceCodeCompressor.decompress(SourceCodeCompressor.compress(source));
+              if (!Arrays.equals(source, decompressed)) throw new AssertionError("content differs after round trip");
+              checked.incrementAndGet();
+            }
+          }
+          catch (Throwable e) {
+            error.compareAndSet(null, e);
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (error.get() != null) throw new AssertionError(error.get());
+    assertEquals((long)threadCount * sources.size(), checked.get());
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io.storage;
+
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.io.ByteSequence;
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class RefCountingStorageTest extends TestCase {
+  private RefCountingStorage myStorage;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myStorage = new RefCountingStorage(getFileName());
+  }
+
+  private String getFileName() {
+    return FileUtil.getTempDirectory() + File.separatorChar + getName();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Disposer.dispose(myStorage);
+    Storage.deleteFiles(getFileName());
+    super.tearDown();
+  }
+
+  public void testLastWriteWinsAboveThePendingLimit() throws Exception {
+    // incompressible records of more than the pending limit, so the later writes are compressed in the calling thread
+    byte[] large = new byte[1024 * 1024];
+    new Random(0).nextBytes(large);
+    int[] records = new int[30];
+    for (int i = 0; i < records.length; i++) {
+      records[i] = myStorage.acquireNewRecord();
+      myStorage.writeBytes(records[i], new ByteSequence(large), false);
+    }
+    for (int i = 0; i < records.length; i++) {
+      myStorage.writeBytes(records[i], new ByteSequence(("record " + i).getBytes()), false);
+    }
+
+    for (int i = 0; i < records.length; i++) {
+      assertEquals("record " + i, new String(myStorage.readBytes(records[i])));
+    }
+  }
+
+  public void testConcurrentWritesOfSameRecord() throws Exception {
+    final int record = myStorage.acquireNewRecord();
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 4; t++) {
+      final byte[] content = new byte[4 * 1024 * 1024];
+      Arrays.fill(content, (byte)t);
+      threads.add(new Thread("writer " + t) {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 10; i++) {
+              myStorage.writeBytes(record, new ByteSequence(content), false);
+            }
+          }
+          catch (Throwable e) {
+            error.compareAndSet(null, e);
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (error.get() != null) throw new AssertionError(error.get());
+
+    // the stored content is one of the writes as a whole
+    byte[] stored = myStorage.readBytes(record);
+    assertEquals(4 * 1024 * 1024, stored.length);
+    byte[] expected = new byte[stored.length];
+    Arrays.fill(expected, stored[0]);
+    assertTrue(Arrays.equals(expected, stored));
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.lang;
+
+import com.intellij.openapi.util.SystemInfo;
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class UrlClassLoaderTest extends TestCase {
+  private File myDir;
+  private File myIndexFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("url", "loader");
+    myIndexFile = new File(myDir, "classpath.index");
+    ClassPathIndex.reset();
+    System.setProperty(ClassPathIndex.PROPERTY_INDEX_FILE, myIndexFile.getPath());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    System.clearProperty(ClassPathIndex.PROPERTY_INDEX_FILE);
+    ClassPathIndex.reset();
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testParallelCapable() throws Exception {
+    if (!SystemInfo.isJavaVersionAtLeast("1.7")) return;
+
+    UrlClassLoader loader = new UrlClassLoader(new URL[0], null);
+    Method getClassLoadingLock = ClassLoader.class.getDeclaredMethod("getClassLoadingLock", String.class);
+    getClassLoadingLock.setAccessible(true);
+    assertNotSame(loader, getClassLoadingLock.invoke(loader, "some.Class"));
+
+    UrlClassLoader subclassLoader = new ParallelCapableLoader();
+    assertNotSame(subclassLoader, getClassLoadingLock.invoke(subclassLoader, "some.Class"));
+  }
+
+  private static class ParallelCapableLoader extends UrlClassLoader {
+    static {
+      markParallelCapable(ParallelCapableLoader.class);
+    }
+
+    private ParallelCapableLoader() {
+      super(new URL[0], null);
+    }
+  }
+
+  public void testIndexedEntriesAreReusedUntilJarChanges() throws Exception {
+    List<URL> urls = createJars("a", 10, 20);
+    assertNotNull(createLoader(urls).getResource("a9/Resource19.txt"));
+    ClassPathIndex.reset();
+    assertTrue(myIndexFile.exists());
+
+    File jar = new File(myDir, "a5.jar");
+    String[] indexed = ClassPathIndex.getInstance().getEntries(jar);
+    assertNotNull(indexed);
+    assertEquals(20, indexed.length);
+    assertEquals("a5/Resource0.txt", indexed[0]);
+
+    assertNotNull(createLoader(urls).getResource("a9/Resource19.txt"));
+
+    createJar(jar, "changed", 1);
+    assertTrue(jar.setLastModified(jar.lastModified() + 2000));
+    assertNull(ClassPathIndex.getInstance().getEntries(jar));
+    UrlClassLoader loader = createLoader(urls);
+    assertNotNull(loader.getResource("changed/Resource0.txt"));
+    assertNull(loader.getResource("a5/Resource0.txt"));
+    assertNotNull(loader.getResource("a6/Resource0.txt"));
+  }
+
+  /**
+   * Compares building the class path caches from the jars and from the saved index, which is what happens on startup.
+   */
+  public void testStartupBenchmark() throws Exception {
+    List<URL> urls = createJars("p", 300, 300);
+
+    long started = System.currentTimeMillis();
+    assertNotNull(createLoader(urls).getResource("p299/Resource299.txt"));
+    long withoutIndex = System.currentTimeMillis() - started;
+    ClassPathIndex.reset();
+
+    started = System.currentTimeMillis();
+    assertNotNull(createLoader(urls).getResource("p299/Resource299.txt"));
+    long withIndex = System.currentTimeMillis() - started;
+
+    System.out.println("Class path of " + urls.size() + " jars: " + withoutIndex + " ms without index, " + withIndex + " ms with index");
+  }
+
+  public void testResourcesOfAllJars() throws Exception {
+    List<URL> urls = createJars("d", 5, 3);
+    for (int i = 0; i < 5; i++) {
+      createJar(new File(myDir, "d" + i + ".jar"), "d", 3);
+    }
+    UrlClassLoader loader = createLoader(urls);
+    assertNotNull(loader.getResource("d/Resource2.txt"));
+
+    // before and after the whole class path is loaded
+    for (int attempt = 0; attempt < 2; attempt++) {
+      assertEquals(urls.size(), Collections.list(loader.getResources("d/Resource1.txt")).size());
+      assertNull(loader.getResource("d/Resource3.txt"));
+    }
+  }
+
+  public void testUnchangedJarsAreNotReadToBuildCache() throws Exception {
+    List<URL> urls = createJars("a", 10, 20);
+    assertNotNull(createLoader(urls).getResource("a5/Resource0.txt"));
+    ClassPathIndex.reset();
+
+    // same length and timestamp, so the saved entries are taken as they are
+    File jar = new File(myDir, "a5.jar");
+    long length = jar.length();
+    long timestamp = jar.lastModified();
+    createJar(jar, "b5", 20);
+    assertTrue(jar.setLastModified(timestamp));
+    assertEquals(length, jar.length());
+
+    UrlClassLoader loader = createLoader(urls);
+    assertNull(loader.getResource("b5/Resource0.txt"));
+    assertNotNull(loader.getResource("a6/Resource0.txt"));
+  }
+
+  public void testConcurrentLookupsWhileLoadersAreCreated() throws Exception {
+    List<URL> urls = createJars("c", 50, 20);
+    final UrlClassLoader loader = createLoader(urls);
+    final AtomicReference<String> missing = new AtomicReference<String>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 8; t++) {
+      final Random random = new Random(t);
+      threads.add(new Thread("lookup " + t) {
+        @Override
+        public void run() {
+          for (int i = 0; i < 500; i++) {
+            String name = "c" + random.nextInt(50) + "/Resource" + random.nextInt(20) + ".txt";
+            if (loader.getResource(name) == null) missing.compareAndSet(null, name);
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertNull(missing.get(), missing.get());
+    assertNull(loader.getResource("c0/Resource20.txt"));
+  }
+
+  private static UrlClassLoader createLoader(List<URL> urls) {
+    return new UrlClassLoader(urls, null, true, true, false, true);
+  }
+
+  private List<URL> createJars(String prefix, int jarCount, int entryCount) throws IOException {
+    List<URL> urls = new ArrayList<URL>();
+    for (int i = 0; i < jarCount; i++) {
+      File jar = new File(myDir, prefix + i + ".jar");
+      createJar(jar, prefix + i, entryCount);
+      urls.add(jar.toURI().toURL());
+    }
+    return urls;
+  }
+
+  private static void createJar(File jar, String directory, int entryCount) throws IOException {
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+    try {
+      for (int i = 0; i < entryCount; i++) {
+        out.putNextEntry(new ZipEntry(directory + "/Resource" + i + ".txt"));
+        out.write(i);
+        out.closeEntry();
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+}
@@ -23,7 +23,11 @@ import com.intellij.openapi.util.text.StringUtil;
 import junit.framework.TestCase;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MessageBusTest extends TestCase {
   private MessageBus myBus;
@@ -197,6 +201,100 @@ public class MessageBusTest extends TestCase {
                  "C2T1Handler:t12");
   }
   
+  public void testAsyncTopicDeliversInOrderOutsideOfPublisher() throws InterruptedException {
+    final Topic<T1Listener> topic = Topic.createAsync("async", T1Listener.class);
+    final Thread publisherThread = Thread.currentThread();
+    final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+    final CountDownLatch delivered = new CountDownLatch(2 * 100);
+    for (final String id : new String[]{"c1", "c2"}) {
+      myBus.connect().subscribe(topic, new T1Listener() {
+        @Override
+        public void t11() {
+          if (Thread.currentThread() == publisherThread) log.add(id + ":sync");
+          log.add(id + ":t11");
+          delivered.countDown();
+        }
+
+        @Override
+        public void t12() {
+          log.add(id + ":t12");
+          delivered.countDown();
+        }
+      });
+    }
+
+    T1Listener publisher = myBus.syncPublisher(topic);
+    for (int i = 0; i < 50; i++) {
+      publisher.t11();
+      publisher.t12();
+    }
+    assertTrue(delivered.await(10, TimeUnit.SECONDS));
+
+    assertFalse(log.contains("c1:sync"));
+    assertFalse(log.contains("c2:sync"));
+    for (String id : new String[]{"c1", "c2"}) {
+      List<String> received = new ArrayList<String>();
+      for (String event : log) {
+        if (event.startsWith(id)) received.add(event);
+      }
+      assertEquals(100, received.size());
+      for (int i = 0; i < received.size(); i++) {
+        assertEquals(id + (i % 2 == 0 ? ":t11" : ":t12"), received.get(i));
+      }
+    }
+  }
+
+  public void testAsyncPublisherWaitsForSlowSubscriber() throws InterruptedException {
+    final Topic<T1Listener> topic = Topic.createAsync("async", T1Listener.class);
+    final int total = 100000;
+    final CountDownLatch released = new CountDownLatch(1);
+    final CountDownLatch delivered = new CountDownLatch(total);
+    myBus.connect().subscribe(topic, new T1Listener() {
+      @Override
+      public void t11() {
+        try {
+          released.await();
+        }
+        catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        delivered.countDown();
+      }
+
+      @Override
+      public void t12() {
+      }
+    });
+
+    final AtomicInteger published = new AtomicInteger();
+    Thread publisher = new Thread("async publisher") {
+      @Override
+      public void run() {
+        T1Listener listener = myBus.syncPublisher(topic);
+        for (int i = 0; i < total; i++) {
+          listener.t11();
+          published.incrementAndGet();
+        }
+      }
+    };
+    publisher.start();
+    try {
+      long deadline = System.currentTimeMillis() + 10000;
+      while (publisher.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(Thread.State.WAITING, publisher.getState());
+      assertTrue(String.valueOf(published.get()), published.get() < total);
+    }
+    finally {
+      released.countDown();
+    }
+
+    assertTrue(delivered.await(30, TimeUnit.SECONDS));
+    publisher.join(10000);
+    assertEquals(total, published.get());
+  }
+
   private void assertEvents(String... expected) {
     String joinExpected = StringUtil.join(expected, "\n");
     String joinActual = StringUtil.join(myLog, "\n");
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.messages.impl;
+
+import com.intellij.openapi.util.Pair;
+import com.intellij.util.messages.Topic;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class DeliveryStatisticsTest extends TestCase {
+  public interface Listener {
+    void changed();
+  }
+
+  private static final Topic<Listener> TOPIC1 = new Topic<Listener>("T1", Listener.class);
+  private static final Topic<Listener> TOPIC2 = new Topic<Listener>("T2", Listener.class);
+
+  private static class FastHandler {
+  }
+
+  private static class SlowHandler {
+  }
+
+  public void testCountersPerTopicAndSubscriber() {
+    DeliveryStatistics statistics = new DeliveryStatistics();
+    statistics.record(TOPIC1, new FastHandler(), 1000000);
+    statistics.record(TOPIC1, new FastHandler(), 3000000);
+    statistics.record(TOPIC1, new SlowHandler(), 50000000);
+    statistics.record(TOPIC2, new FastHandler(), 2000000);
+
+    DeliveryStatistics.Counter topic1 = statistics.getTopicCounters().get(TOPIC1);
+    assertEquals(3, topic1.getCount());
+    assertEquals(54000000, topic1.getTotalNanos());
+    assertEquals(50000000, topic1.getMaxNanos());
+    assertEquals(1, statistics.getTopicCounters().get(TOPIC2).getCount());
+
+    DeliveryStatistics.Counter fast = statistics.getSubscriberCounters().get(Pair.<Topic, Class>create(TOPIC1, FastHandler.class));
+    assertEquals(2, fast.getCount());
+    assertEquals(4000000, fast.getTotalNanos());
+    assertEquals(3000000, fast.getMaxNanos());
+    assertEquals(3, statistics.getSubscriberCounters().size());
+
+    statistics.reset();
+    assertTrue(statistics.getTopicCounters().isEmpty());
+    assertTrue(statistics.getSubscriberCounters().isEmpty());
+  }
+
+  public void testSlowestSubscribersFirst() {
+    DeliveryStatistics statistics = new DeliveryStatistics();
+    statistics.record(TOPIC1, new FastHandler(), 1000000);
+    statistics.record(TOPIC2, new SlowHandler(), 30000000);
+    statistics.record(TOPIC1, new SlowHandler(), 20000000);
+
+    assertEquals(Arrays.asList(TOPIC2 + " -> " + SlowHandler.class.getName() + ": 1 messages, 30 ms total, 30 ms max",
+                               TOPIC1 + " -> " + SlowHandler.class.getName() + ": 1 messages, 20 ms total, 20 ms max",
+                               TOPIC1 + " -> " + FastHandler.class.getName() + ": 1 messages, 1 ms total, 1 ms max"),
+                 Arrays.asList(statistics.toString().split("\n")));
+  }
+
+  public void testRecordedByBus() throws Exception {
+    if (!DeliveryStatistics.ENABLED) return;
+
+    MessageBusImpl bus = new MessageBusImpl(this, null);
+    try {
+      bus.connect().subscribe(TOPIC1, new Listener() {
+        @Override
+        public void changed() {
+        }
+      });
+      bus.syncPublisher(TOPIC1).changed();
+      bus.syncPublisher(TOPIC1).changed();
+      assertEquals(2, bus.getDeliveryStatistics().getTopicCounters().get(TOPIC1).getCount());
+    }
+    finally {
+      bus.dispose();
+    }
+  }
+}
@@ -30,7 +30,6 @@ import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiManager;
 import com.intellij.psi.impl.PsiFileEx;
 import com.intellij.psi.search.GlobalSearchScope;
-import com.intellij.psi.stubs.ObjectStubTree;
 import com.intellij.psi.stubs.Stub;
 import com.intellij.psi.stubs.StubTreeLoader;
 import com.intellij.psi.util.CachedValue;
@@ -75,12 +74,10 @@ public class DomServiceImpl extends DomService {
     if (!XmlUtil.isStubBuilding(file) && file.getFileType() == XmlFileType.INSTANCE) {
       VirtualFile virtualFile = file.getVirtualFile();
       if (virtualFile instanceof VirtualFileWithId) {
-        ObjectStubTree tree = StubTreeLoader.getInstance().readFromVFile(file.getProject(), virtualFile);
-        if (tree != null) {
-          Stub root = tree.getRoot();
-          if (root instanceof FileStub) {
-            return ((FileStub)root).getHeader();
-          }
+        // the header is kept in the root stub, so there is no need to read the rest of the tree
+        Stub root = StubTreeLoader.getInstance().readStubFromVFile(file.getProject(), virtualFile, 0, false);
+        if (root instanceof FileStub) {
+          return ((FileStub)root).getHeader();
         }
       }
     }